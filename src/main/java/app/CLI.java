@@ -4,9 +4,27 @@ import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
 
-import hw.BatteryMonitor;
+import hw.PowerService;
+import hw.PowerState;
+import io.BackgroundWriter;
 import io.ImageLoader;
+import io.ThumbnailCatalog;
+import io.Planar16Writer;
+import pipeline.BandStreamer;
+import pipeline.EditGraph;
+import pipeline.ExportPlan;
 import pipeline.PipelineOrchestrator;
+import pipeline.Recipe;
+import pipeline.Stacker;
+import pipeline.Stage;
+import pipeline.StageRegistry;
+import pipeline.TileCalibrator;
+import pipeline.VerifyHarness;
+import post.EditRunner;
+import stages.ColorPipeline;
+import stages.Resize;
+import stages.Stack;
+import util.Planar16;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
@@ -15,6 +33,8 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Command line entry for the RAW pipeline.
@@ -29,12 +49,59 @@ import java.nio.file.Paths;
  * set "JAVA_TOOL_OPTIONS=-DuseGPU=true"
  * build\install\raw-pipeline\bin\raw-pipeline.bat --input="C:\path\file.ARW"
  * --brightness=10 --contrast=20
+ *
+ * # warm server + per-image client (no JVM/OpenCL start-up per image)
+ * raw-pipeline serve --listen unix:/tmp/raw.sock
+ * raw-pipeline submit --connect unix:/tmp/raw.sock --input a.ARW --output a.png --recipe "sharpen 0.6"
+ *
+ * # panoramas larger than the heap: band streaming straight to PNG
+ * gradlew run --args="--input pano.png --stream --output pano_out.png --recipe sharpen"
+ *
+ * # gigapixel edits: frame lives in memory-mapped temp files, not on the heap
+ * # (tileable recipe steps only: no resize/downsample, no "denoise auto")
+ * gradlew run --args="--input huge.png --mapped --output huge_out.png --brightness 10 --recipe \"sharpen 0.6\""
+ *
+ * # 16-bit end to end (no banding from repeated shell edits; save as .png or .tif)
+ * gradlew run --args="--input scan16.png --depth 16 --brightness 5"
+ *
+ * # colour stage: WB + matrix + curve + brightness/contrast in one cached 3D LUT
+ * gradlew run --args="--input a.ARW --wb 2.0,1,1.5 --matrix 1.6,-0.5,-0.1,-0.2,1.4,-0.2,0,-0.5,1.5"
+ *
+ * # colourist looks (.cube, cached per file) as a recipe step or shell command
+ * gradlew run --args="--input a.ARW --recipe \"lut looks/film.cube tetra\""
+ *
+ * # edge-preserving denoise within the frame budget (--quality preview ~2 s, high ~20 s)
+ * gradlew run --args="--input a.ARW --quality high --recipe \"denoise auto 12\""
+ *
+ * # export at web size (Lanczos-3, row-parallel); the shell keeps the full-size image
+ * gradlew run --args="--input a.ARW --size 2048"
+ *
+ * # full, web and thumbnail from one decode; branches resize and encode concurrently
+ * gradlew run --args="--input a.ARW --export \"a.png; a_web.jpg size=2048 quality=85; a_thumb.png size=256\""
+ *
+ * # burst / bracket stacking, streamed band by band (memory flat in the frame count)
+ * gradlew run --args="--stack median --input \"burst/*.png\" --output burst_median.png"
+ * gradlew run --args="--stack \"sigma 2.5\" --depth 16 --input \"a1.png;a2.png;a3.png\""
+ * gradlew run --args="--stack merge --input \"bracket/*.jpg\" --output merged.png"
+ *
+ * # thumbnail catalogue of a card (only new/changed files are read), then page 0 as a contact sheet
+ * gradlew run --args="--catalog /media/card/DCIM --page 0 --output page0.png"
+ *
+ * # one-off per machine: pick tile shapes (saved to ~/.raw-pipeline)
+ * gradlew run --args="--calibrate"
+ *
+ * # plug-in stages: a jar listing pipeline.Stage implementations in META-INF/services
+ * java -cp "raw-pipeline.jar:lib/*:my-stages.jar" app.CLI --input a.ARW --recipe "mystage 3;sharpen 0.6"
+ *
+ * # regression check: record goldens + budgets once, then verify after changes
+ * gradlew run --args="--verify --record"
+ * gradlew run --args="--verify"
  */
 public final class CLI {
 
     // -------------------- Args --------------------
     private static final class Args {
-        @Parameter(names = "--input", description = "Input image path (.jpg/.png/.arw)", required = true)
+        @Parameter(names = "--input", description = "Input image path (.jpg/.png/.arw)")
         String input;
 
         @Parameter(names = "--brightness", description = "Brightness [-100..100]")
@@ -49,11 +116,81 @@ public final class CLI {
         @Parameter(names = "--gpu", description = "Use GPU acceleration (OpenCL). Also honored via -DuseGPU=true")
         boolean gpu = false;
 
+        @Parameter(names = "--stream", description = "Out-of-core band streaming (auto when the frame won't fit the heap)")
+        boolean stream = false;
+
+        @Parameter(names = "--mapped", description = "Gigapixel mode: process a memory-mapped copy of the frame (tileable recipe steps only)")
+        boolean mapped = false;
+
+        @Parameter(names = "--band-rows", description = "Rows per band in streaming mode (0 = from heap size)")
+        int bandRows = 0;
+
+        @Parameter(names = "--stack", description = "Combine the --input frames (';' list or glob): mean | median | sigma [kappa] | merge")
+        String stack;
+
+        @Parameter(names = "--catalog", description = "Index the embedded thumbnails of the ARWs under a directory (incremental)")
+        String catalog;
+
+        @Parameter(names = "--page", description = "With --catalog: write page N (0-based) of thumbnails as a contact sheet")
+        Integer page;
+
+        @Parameter(names = "--recipe", description = "Shell steps after brightness/contrast, e.g. \"sharpen 0.6;bw\"")
+        String recipe;
+
+        @Parameter(names = "--output", description = "Output path in streaming/mapped mode (default preview.png next to input)")
+        String output;
+
+        @Parameter(names = "--wb", description = "White balance multipliers r,g,b (linear), e.g. 2.0,1,1.5")
+        String wb;
+
+        @Parameter(names = "--matrix", description = "Camera-to-sRGB 3x3 matrix, 9 values row-major")
+        String matrix;
+
+        @Parameter(names = "--transfer", description = "Transfer curve: srgb | gamma22 | linear")
+        String transfer;
+
+        @Parameter(names = "--sepia", description = "Fold sepia into the colour LUT")
+        boolean sepia = false;
+
+        @Parameter(names = "--depth", description = "Bits per channel while editing: 8 | 16 (16 keeps 16-bit PNG/TIFF output)")
+        int depth = 8;
+
+        @Parameter(names = "--size", description = "Export size: WxH, long edge in px, or N% (8-bit; the shell keeps full size)")
+        String size;
+
+        @Parameter(names = "--filter", description = "Resize filter for --size: lanczos | bicubic | box")
+        String filter = "lanczos";
+
+        @Parameter(names = "--export", description = "Several outputs from one run, e.g. \"a.png; a_web.jpg size=2048 quality=85; a_thumb.png size=256\"")
+        String export;
+
+        @Parameter(names = "--calibrate", description = "Benchmark tile shapes on this machine and save the profile")
+        boolean calibrate = false;
+
+        @Parameter(names = "--verify", description = "Run every op through every backend/tiling against golden images and throughput budgets")
+        boolean verify = false;
+
+        @Parameter(names = "--record", description = "With --verify: write goldens and budgets from this machine instead of checking")
+        boolean record = false;
+
+        @Parameter(names = "--golden", description = "Golden image directory for --verify")
+        String golden = "golden";
+
         @Parameter(names = { "-h", "--help" }, help = true, description = "Show help")
         boolean help = false;
     }
 
     public static void main(String[] argv) {
+        // Sub-commands: warm server and its thin client
+        if (argv.length > 0 && (argv[0].equals("serve") || argv[0].equals("submit"))) {
+            String[] rest = java.util.Arrays.copyOfRange(argv, 1, argv.length);
+            if (argv[0].equals("serve"))
+                Daemon.main(rest);
+            else
+                DaemonClient.main(rest);
+            return;
+        }
+
         Args args = new Args();
         JCommander jc = JCommander.newBuilder().addObject(args).build();
         try {
@@ -67,26 +204,139 @@ public final class CLI {
             jc.usage();
             return;
         }
+        if (args.calibrate) {
+            TileCalibrator.run();
+            return;
+        }
+        if (args.verify) {
+            if (!VerifyHarness.run(Paths.get(args.golden), args.record))
+                System.exit(1);
+            return;
+        }
+        if (args.catalog != null) {
+            runCatalog(Paths.get(args.catalog), args.page, args.output);
+            return;
+        }
+        if (args.depth != 8 && args.depth != 16) {
+            System.err.println("--depth must be 8 or 16");
+            System.exit(1);
+        }
+        if (args.input == null) {
+            System.err.println("The following option is required: [--input]");
+            jc.usage();
+            System.exit(1);
+        }
 
         // Read GPU preference from CLI flag OR JVM property (-DuseGPU=true)
         boolean userWantsGPU = args.gpu || Boolean.parseBoolean(System.getProperty("useGPU", "false"));
 
+        // Power state comes from a background probe; this never blocks on hardware enumeration
+        PowerState power = PowerService.get().snapshot();
+        boolean onAC = power.onAC();
+        int battery = power.battery();
+
+        // Bursts and brackets: N frames streamed band by band into one output, no shell
+        if (args.stack != null) {
+            try {
+                Stack.Params params = Stack.Params.parse(args.stack);
+                List<Path> frames = Stacker.frames(args.input);
+                Path out = args.output != null ? Paths.get(args.output)
+                        : frames.get(0).resolveSibling(args.depth == 16 ? "stack16.png" : "stack.png");
+                PipelineOrchestrator orchestrator = new PipelineOrchestrator(onAC, battery, false, args.quality);
+                Stacker.run(frames, out, orchestrator, params, args.depth == 16, args.bandRows);
+            } catch (IllegalArgumentException | IOException e) {
+                System.err.println("Stacking failed: " + e.getMessage());
+                System.exit(2);
+            } catch (InterruptedException e) {
+                System.err.println("Processing interrupted: " + e.getMessage());
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+
         // Resolve input path
         Path inPath = Paths.get(args.input);
 
-        // Detect power state (for thread scaling + auto GPU policy in orchestrator)
-        boolean onAC = BatteryMonitor.onAC();
-        int battery = BatteryMonitor.levelOrGuess();
-
         // Banner
         System.out.println("== RAW Pipeline ==");
         System.out.println("Input: " + inPath.toString());
         System.out.println("GPU: " + userWantsGPU + "  Quality: " + args.quality);
 
-        // Load image (ARW -> embedded JPEG preview, or regular PNG/JPG)
-        BufferedImage inputImg;
+        Path previewOut = inPath.getParent() != null
+                ? inPath.getParent().resolve("preview.png")
+                : Paths.get("preview.png");
+        Recipe recipe;
+        ColorPipeline.Params color;
+        Resize.Filter resizeFilter;
+        ExportPlan exportPlan;
+        try {
+            recipe = Recipe.parse(args.recipe);
+            color = ColorPipeline.Params.fromOptions(args.brightness, args.contrast, args.wb, args.matrix,
+                    args.transfer, args.sepia);
+            resizeFilter = Resize.Filter.parse(args.filter);
+            exportPlan = args.export != null ? ExportPlan.parse(args.export) : null;
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        // Gigapixel edits: off-heap mapped frames, no shell
+        if (args.mapped) {
+            if (exportPlan != null)
+                System.out.println("--export is ignored with --mapped (writes --output only).");
+            if (args.size != null)
+                System.out.println("--size is ignored with --mapped (output keeps the input size).");
+            if (args.depth == 16)
+                System.out.println("--mapped runs 8-bit; --depth 16 is ignored.");
+            Path out = args.output != null ? Paths.get(args.output) : previewOut;
+            PipelineOrchestrator orchestrator = new PipelineOrchestrator(onAC, battery, userWantsGPU, args.quality);
+            try {
+                BandStreamer.runMapped(inPath, out, orchestrator, args.brightness, args.contrast, color, recipe);
+            } catch (IOException e) {
+                System.err.println("Mapped run failed: " + e.getMessage());
+                System.exit(2);
+            } catch (InterruptedException e) {
+                System.err.println("Processing interrupted: " + e.getMessage());
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+
+        // Frames bigger than the heap: stream bands from decoder to encoder, no shell
+        boolean stream = args.stream || BandStreamer.needsStreaming(inPath, args.depth == 16);
+        if (stream) {
+            if (!args.stream)
+                System.out.println("Frame too large for the heap; switching to band streaming.");
+            if (args.size != null || exportPlan != null)
+                System.out.println("--size/--export are ignored while streaming (writes --output at input size).");
+            Path out = args.output != null ? Paths.get(args.output) : previewOut;
+            PipelineOrchestrator orchestrator = new PipelineOrchestrator(onAC, battery, userWantsGPU, args.quality);
+            try {
+                if (args.depth == 16)
+                    BandStreamer.run16(inPath, out, orchestrator, args.brightness, args.contrast, color, recipe,
+                            args.bandRows);
+                else
+                    BandStreamer.run(inPath, out, orchestrator, args.brightness, args.contrast, color, recipe,
+                            args.bandRows);
+            } catch (IOException e) {
+                System.err.println("Streaming failed: " + e.getMessage());
+                System.exit(2);
+            } catch (InterruptedException e) {
+                System.err.println("Processing interrupted: " + e.getMessage());
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+
+        // Load image (ARW -> embedded JPEG preview, or regular PNG/JPG); 16-bit keeps deep samples
+        BufferedImage inputImg = null;
+        Planar16 input16 = null;
         try {
-            inputImg = ImageLoader.load(inPath);
+            if (args.depth == 16)
+                input16 = ImageLoader.load16(inPath);
+            else
+                inputImg = ImageLoader.load(inPath);
         } catch (IOException e) {
             // Friendly message already printed by ImageLoader
             System.exit(2);
@@ -97,9 +347,18 @@ public final class CLI {
         PipelineOrchestrator orchestrator = new PipelineOrchestrator(onAC, battery, userWantsGPU, args.quality);
 
         long t0 = System.nanoTime();
-        BufferedImage processed;
+        BufferedImage processed = null;
+        Planar16 processed16 = null;
         try {
-            processed = orchestrator.process(inputImg, args.brightness, args.contrast);
+            if (input16 != null) {
+                processed16 = color != null ? orchestrator.process(input16, color)
+                        : orchestrator.process(input16, args.brightness, args.contrast);
+                processed16 = recipe.apply(orchestrator, processed16);
+            } else {
+                processed = color != null ? orchestrator.process(inputImg, color)
+                        : orchestrator.process(inputImg, args.brightness, args.contrast);
+                processed = recipe.apply(orchestrator, processed);
+            }
         } catch (InterruptedException e) {
             System.err.println("Processing interrupted: " + e.getMessage());
             Thread.currentThread().interrupt();
@@ -107,34 +366,63 @@ public final class CLI {
         }
         long totalMs = Math.round((System.nanoTime() - t0) / 1e6);
 
-        // Write preview next to the input
-        Path previewOut = inPath.getParent() != null
-                ? inPath.getParent().resolve("preview.png")
-                : Paths.get("preview.png");
+        // Write preview next to the input (at --size if given), or every --export output
         try {
-            ImageIO.write(processed, "png", previewOut.toFile());
-            System.out.println("Total processing: " + String.format("%.2f", (double) totalMs) + " ms");
-            System.out.println("Preview written to: " + previewOut.toString());
-        } catch (IOException e) {
-            System.err.println("Failed to write preview: " + e.getMessage());
+            if (exportPlan != null) {
+                // one processed frame, one concurrent resize+encode branch per output
+                exportPlan.run(orchestrator, processed, processed16);
+                System.out.println("Total processing: " + String.format("%.2f", (double) totalMs) + " ms");
+            } else {
+                BufferedImage exported = processed;
+                if (args.size != null && processed16 != null)
+                    System.out.println("--size needs --depth 8; writing full size.");
+                else if (args.size != null) {
+                    int[] size = Resize.targetSize(processed.getWidth(), processed.getHeight(), args.size);
+                    exported = orchestrator.resize(processed, size[0], size[1], resizeFilter);
+                }
+                if (processed16 != null)
+                    Planar16Writer.write(processed16, previewOut);
+                else
+                    ImageIO.write(exported, "png", previewOut.toFile());
+                System.out.println("Total processing: " + String.format("%.2f", (double) totalMs) + " ms");
+                System.out.println("Preview written to: " + previewOut.toString());
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Failed to write " + (exportPlan != null ? "exports" : "preview") + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
         }
 
         // ---- Post-processing interactive shell ----
         System.out.println();
         System.out.println("Post-processing shell. Commands:");
-        System.out.println("  brighten <int>   e.g., brighten 10");
-        System.out.println("  contrast <int>   e.g., contrast -5");
-        System.out.println("  sharpen <float>  e.g., sharpen 0.6");
-        System.out.println("  bw");
-        System.out.println("  invert");
-        System.out.println("  sepia");
-        System.out.println("  blur <float>     e.g., blur 1.5");
-        System.out.println("  edge");
+        for (Stage st : StageRegistry.all())
+            System.out.println("  " + st.usage());
+        System.out.println("  view <x> <y> <w> <h> | view all   compute and show only that region (8-bit)");
+        System.out.println("  cancel           stop the edit still running");
         System.out.println("  save <name.png>");
         System.out.println("  quit");
         System.out.println();
 
-        BufferedImage current = processed;
+        // One orchestrator for the whole shell session (post ops never use the GPU)
+        PipelineOrchestrator shell = new PipelineOrchestrator(onAC, battery, false, args.quality);
+        // Edits run in the background: a new command supersedes one still running, and one that
+        // misses -DeditDeadlineMs writes a proxy preview first (the full-size result replaces it).
+        // Previews and saves are encoded by a background writer, so no edit waits on the disk.
+        // 8-bit edits extend a lazy graph: only the tiles under the viewport are computed.
+        BackgroundWriter writer = new BackgroundWriter();
+        AtomicReference<EditGraph.Region> view = new AtomicReference<>(); // null = whole frame
+        EditRunner<EditGraph> edits = processed16 == null ? new EditRunner<>(EditGraph.of(processed, shell),
+                (label, g, afterProxy) -> {
+                    BufferedImage shown = g.region(view.get());
+                    writer.preview(previewOut, p -> ImageIO.write(shown, "png", p.toFile()));
+                    System.out.println("Updated preview." + (view.get() != null ? " (" + view.get() + ")" : ""));
+                }) : null;
+        EditRunner<Planar16> edits16 = processed16 != null ? new EditRunner<>(processed16, (label, out, afterProxy) -> {
+            writer.preview(previewOut, p -> Planar16Writer.write(out, p));
+            System.out.println("Updated preview.");
+        }) : null;
         try (BufferedReader br = new BufferedReader(new InputStreamReader(System.in))) {
             while (true) {
                 System.out.print("post> ");
@@ -151,19 +439,6 @@ public final class CLI {
                         : new String[0];
 
                 switch (cmd) {
-                    case "brighten":
-                    case "contrast":
-                    case "sharpen":
-                    case "bw":
-                    case "invert":
-                    case "sepia":
-                    case "blur":
-                    case "edge": {
-                        current = new pipeline.PipelineOrchestrator(onAC, battery, false, args.quality)
-                                .postProcess(current, cmd, par);
-                        System.out.println("Updated preview.");
-                        break;
-                    }
                     case "save": {
                         if (par.length == 0) {
                             System.out.println("Usage: save <name.png>");
@@ -172,23 +447,99 @@ public final class CLI {
                         Path out = inPath.getParent() != null
                                 ? inPath.getParent().resolve(par[0])
                                 : Paths.get(par[0]);
-                        try {
-                            ImageIO.write(current, "png", out.toFile());
-                            System.out.println("Saved: " + out.toString());
-                        } catch (IOException e) {
-                            System.out.println("Save failed: " + e.getMessage());
+                        // the finished image is a snapshot (edits never change it in place): write it as is
+                        if (edits16 != null) {
+                            Planar16 img16 = edits16.await();
+                            writer.save(out, p -> Planar16Writer.write(img16, p));
+                        } else {
+                            EditGraph g = edits.await(); // the writer pulls the whole frame from the graph
+                            writer.save(out, p -> ImageIO.write(g.image(), "png", p.toFile()));
                         }
                         break;
                     }
+                    case "view":
+                        if (edits == null) {
+                            System.out.println("view needs --depth 8.");
+                            break;
+                        }
+                        try {
+                            view.set(EditGraph.Region.parse(par));
+                        } catch (IllegalArgumentException e) {
+                            System.out.println(e.getMessage());
+                            break;
+                        }
+                        EditGraph.Region v = view.get();
+                        edits.submit(line, g -> {
+                            g.region(v);
+                            return g;
+                        }, null);
+                        break;
+                    case "cancel":
+                        if (!(edits16 != null ? edits16.cancel() : edits.cancel()))
+                            System.out.println("Nothing running.");
+                        break;
                     case "quit":
                     case "exit":
                         return;
                     default:
-                        System.out.println("Unknown command: " + cmd);
+                        if (StageRegistry.get(cmd) == null) {
+                            System.out.println("Unknown command: " + cmd);
+                            break;
+                        }
+                        List<Recipe.Step> step = List.of(new Recipe.Step(cmd, par));
+                        if (edits16 != null) {
+                            edits16.submit(line, img -> shell.postProcess16(img, step),
+                                    img -> writeProxy(writer, shell.proxyPreview(img.toImage8(), step,
+                                            EditRunner.PROXY_PIXELS), previewOut));
+                        } else {
+                            EditGraph.Region at = view.get();
+                            edits.submit(line, g -> {
+                                EditGraph next = g.then(step.get(0));
+                                next.region(at); // the viewport's tiles, under this edit's token
+                                return next;
+                            }, g -> writeProxy(writer, shell.proxyPreview(g.region(at), step, EditRunner.PROXY_PIXELS),
+                                    previewOut));
+                        }
                 }
             }
         } catch (IOException ioe) {
             System.err.println("Shell I/O error: " + ioe.getMessage());
+        } finally {
+            if (edits16 != null)
+                edits16.close();
+            else
+                edits.close();
+            writer.close();
+        }
+    }
+
+    private static void writeProxy(BackgroundWriter writer, BufferedImage proxy, Path previewOut) {
+        writer.preview(previewOut, p -> ImageIO.write(proxy, "png", p.toFile()));
+    }
+
+    /** {@code --catalog}: update the index, then optionally write one page of it. */
+    private static void runCatalog(Path dir, Integer page, String output) {
+        try {
+            ThumbnailCatalog cat = ThumbnailCatalog.update(dir);
+            if (page == null)
+                return;
+            int perPage = Integer.getInteger("catalogPageSize", 48), cell = Integer.getInteger("catalogCell", 200);
+            int pages = Math.max(1, (cat.size() + perPage - 1) / perPage);
+            if (page < 0 || page >= pages) {
+                System.err.println("--page must be 0.." + (pages - 1));
+                System.exit(1);
+            }
+            long t0 = System.nanoTime();
+            Path out = output != null ? Paths.get(output) : dir.resolve("catalog-page-" + page + ".png");
+            ImageIO.write(cat.contactSheet(page, perPage, cell), "png", out.toFile());
+            System.out.printf("Catalog: page %d of %d -> %s (%.0f ms)%n", page, pages, out,
+                    (System.nanoTime() - t0) / 1e6);
+        } catch (IOException e) {
+            System.err.println("Catalog failed: " + e.getMessage());
+            System.exit(2);
+        } catch (InterruptedException e) {
+            System.err.println("Catalog interrupted: " + e.getMessage());
+            Thread.currentThread().interrupt();
         }
     }
 }
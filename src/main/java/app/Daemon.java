@@ -0,0 +1,360 @@
+package app;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+
+import hw.PowerService;
+import hw.PowerState;
+import io.ExportWriter;
+import io.ImageLoader;
+import pipeline.ExportPlan;
+import pipeline.PipelineOrchestrator;
+import pipeline.Recipe;
+import stages.ColorPipeline;
+import stages.GpuProcessor;
+import util.Synthetic;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Warm server mode: one JVM keeps the power service, the JIT-compiled filters, the OpenCL
+ * context and the tile pool alive, and takes jobs over a local socket.
+ *
+ * Protocol (one line each way, UTF-8):
+ * JOB\tinput=...\toutput=...\tbrightness=10\tcontrast=20\trecipe=sharpen 0.6;bw
+ * optional colour stage fields: wb=r,g,b matrix=9 values transfer=srgb sepia=true
+ * optional export=<plan> (see ExportPlan) instead of output: several outputs from one decode
+ * -> OK <ms> <output>[,<output>...] | ERR <message>
+ * PING -> PONG, SHUTDOWN -> BYE
+ *
+ * Example:
+ * raw-pipeline serve --listen unix:/tmp/raw.sock --jobs 2
+ * raw-pipeline submit --connect unix:/tmp/raw.sock --input a.ARW --output a.png
+ */
+public final class Daemon {
+
+    static final String DEFAULT_ADDRESS = "tcp:7077";
+
+    private static final class Args {
+        @Parameter(names = "--listen", description = "unix:/path/to.sock | tcp:[host:]port (loopback hosts only)")
+        String listen = DEFAULT_ADDRESS;
+
+        @Parameter(names = "--jobs", description = "Jobs processed concurrently")
+        int jobs = 2;
+
+        @Parameter(names = "--quality", description = "preview | high")
+        String quality = "preview";
+
+        @Parameter(names = "--gpu", description = "Use GPU acceleration (OpenCL). Also honored via -DuseGPU=true")
+        boolean gpu = false;
+
+        @Parameter(names = { "-h", "--help" }, help = true, description = "Show help")
+        boolean help = false;
+    }
+
+    private final PipelineOrchestrator orchestrator;
+    private final int jobs;
+    private final Semaphore jobSlots;
+    private volatile boolean running = true;
+
+    private Daemon(PipelineOrchestrator orchestrator, int jobs) {
+        this.orchestrator = orchestrator;
+        this.jobs = Math.max(1, jobs);
+        this.jobSlots = new Semaphore(this.jobs);
+    }
+
+    public static void main(String[] argv) {
+        Args args = new Args();
+        JCommander jc = JCommander.newBuilder().addObject(args).programName("serve").build();
+        try {
+            jc.parse(argv);
+        } catch (ParameterException pe) {
+            System.err.println(pe.getMessage());
+            jc.usage();
+            System.exit(1);
+        }
+        if (args.help) {
+            jc.usage();
+            return;
+        }
+
+        boolean userWantsGPU = args.gpu || Boolean.parseBoolean(System.getProperty("useGPU", "false"));
+        long t0 = System.nanoTime();
+
+        // Pay the one-off costs now: OpenCL, JIT of the tile loops (power is probed in the background)
+        PowerState power = PowerService.get().snapshot();
+        boolean onAC = power.onAC();
+        int battery = power.battery();
+        if (userWantsGPU)
+            GpuProcessor.warmUp();
+        int cores = Math.max(1, Runtime.getRuntime().availableProcessors());
+        ThreadPoolExecutor pool = PipelineOrchestrator.newTilePool(cores);
+        PipelineOrchestrator orch = new PipelineOrchestrator(onAC, battery, userWantsGPU, args.quality, pool);
+        warmUp(orch);
+        System.out.printf("Warm in %.0f ms (threads=%d, jobs=%d, gpu=%s)%n",
+                (System.nanoTime() - t0) / 1e6, cores, args.jobs, userWantsGPU);
+
+        try {
+            new Daemon(orch, args.jobs).serve(args.listen);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Server failed: " + e.getMessage());
+            System.exit(2);
+        } finally {
+            pool.shutdown();
+            GpuProcessor.release();
+        }
+    }
+
+    private static void warmUp(PipelineOrchestrator orch) {
+        BufferedImage img = Synthetic.gradientNoise(1024, 768);
+        try {
+            for (int i = 0; i < 3; i++) {
+                BufferedImage out = orch.process(img, 10, 10);
+                for (String op : new String[] { "sharpen", "bw", "blur", "edge", "sepia", "invert" })
+                    orch.postProcess(out, op, new String[0]);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ---- socket plumbing ----
+
+    static SocketAddress address(String spec) {
+        if (spec.startsWith("unix:"))
+            return UnixDomainSocketAddress.of(spec.substring(5));
+        String hp = spec.startsWith("tcp:") ? spec.substring(4) : spec;
+        int colon = hp.lastIndexOf(':');
+        if (colon < 0)
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(hp));
+        return new InetSocketAddress(hp.substring(0, colon), Integer.parseInt(hp.substring(colon + 1)));
+    }
+
+    /**
+     * The daemon has no authentication and jobs name files it reads and
+     * writes, so it only listens where other machines can't reach it.
+     */
+    private static void requireLocal(SocketAddress a) {
+        if (a instanceof InetSocketAddress in && (in.isUnresolved() || !in.getAddress().isLoopbackAddress()))
+            throw new IllegalArgumentException("refusing to listen on " + in.getHostString()
+                    + ": the job socket is unauthenticated, use a loopback host or a unix: socket");
+    }
+
+    /** Remove a socket file left by a previous run; anything else at that path is left alone. */
+    private static void deleteStaleSocket(Path p) throws IOException {
+        BasicFileAttributes a;
+        try {
+            a = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        boolean socket = a.isOther();
+        try {
+            socket = ((Integer) Files.getAttribute(p, "unix:mode", LinkOption.NOFOLLOW_LINKS) & 0170000) == 0140000;
+        } catch (UnsupportedOperationException | IllegalArgumentException ignored) {
+            // no unix view: isOther() (sockets, pipes, devices) is the best we can tell
+        }
+        if (!socket)
+            throw new IOException(p + " exists and is not a socket; not replacing it");
+        Files.delete(p);
+    }
+
+    static StandardProtocolFamily family(SocketAddress a) {
+        return (a instanceof UnixDomainSocketAddress) ? StandardProtocolFamily.UNIX : StandardProtocolFamily.INET;
+    }
+
+    private void serve(String listen) throws IOException {
+        SocketAddress addr = address(listen);
+        requireLocal(addr);
+        if (addr instanceof UnixDomainSocketAddress u)
+            deleteStaleSocket(u.getPath());
+        ExecutorService connections = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "daemon-conn");
+            t.setDaemon(true);
+            return t;
+        });
+        try (ServerSocketChannel server = ServerSocketChannel.open(family(addr))) {
+            server.bind(addr);
+            System.out.println("Listening on " + listen);
+            while (running) {
+                SocketChannel ch;
+                try {
+                    ch = server.accept();
+                } catch (IOException e) {
+                    if (!running)
+                        break;
+                    throw e;
+                }
+                connections.execute(() -> handle(ch, server));
+            }
+        } finally {
+            drain(connections);
+            if (addr instanceof UnixDomainSocketAddress u)
+                deleteStaleSocket(u.getPath());
+        }
+    }
+
+    /**
+     * Let running jobs finish (no new ones start once {@code running} is
+     * false), then close connections that are only waiting for a request.
+     */
+    private void drain(ExecutorService connections) {
+        connections.shutdown();
+        try {
+            if (jobSlots.availablePermits() < jobs)
+                System.out.println("Finishing running jobs ...");
+            jobSlots.acquire(jobs);
+            connections.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        connections.shutdownNow(); // idle connections blocked in readLine
+    }
+
+    private void handle(SocketChannel ch, ServerSocketChannel server) {
+        try (ch;
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(Channels.newInputStream(ch), StandardCharsets.UTF_8));
+                PrintWriter out = new PrintWriter(
+                        new OutputStreamWriter(Channels.newOutputStream(ch), StandardCharsets.UTF_8), true)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty())
+                    continue;
+                if (line.equalsIgnoreCase("PING")) {
+                    out.println("PONG");
+                } else if (line.equalsIgnoreCase("SHUTDOWN")) {
+                    out.println("BYE");
+                    running = false;
+                    server.close();
+                    return;
+                } else if (line.startsWith("JOB")) {
+                    out.println(runJob(parseJob(line)));
+                } else {
+                    out.println("ERR unknown request");
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Connection error: " + e.getMessage());
+        }
+    }
+
+    static Map<String, String> parseJob(String line) {
+        Map<String, String> job = new HashMap<>();
+        String[] fields = line.split("\t");
+        for (int i = 1; i < fields.length; i++) {
+            int eq = fields[i].indexOf('=');
+            if (eq > 0)
+                job.put(fields[i].substring(0, eq).trim(), fields[i].substring(eq + 1));
+        }
+        return job;
+    }
+
+    static String formatJob(String input, String output, int brightness, int contrast, String recipe) {
+        StringBuilder sb = new StringBuilder("JOB");
+        sb.append("\tinput=").append(input);
+        if (output != null)
+            sb.append("\toutput=").append(output);
+        sb.append("\tbrightness=").append(brightness);
+        sb.append("\tcontrast=").append(contrast);
+        if (recipe != null && !recipe.isBlank())
+            sb.append("\trecipe=").append(recipe);
+        return sb.toString();
+    }
+
+    /** Append an optional {@code key=value} field to a JOB line (skipped when value is null). */
+    static String withField(String job, String key, String value) {
+        return value == null || value.isBlank() ? job : job + "\t" + key + "=" + value;
+    }
+
+    /** Decode, process, apply recipe steps, encode. Runs on the connection thread. */
+    private String runJob(Map<String, String> job) {
+        String input = job.get("input"), output = job.get("output"), export = job.get("export");
+        if (input == null || (output == null && export == null))
+            return "ERR job needs input and output (or export)";
+        try {
+            jobSlots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "ERR interrupted";
+        }
+        if (!running) {
+            jobSlots.release();
+            return "ERR shutting down";
+        }
+        long t0 = System.nanoTime();
+        try {
+            BufferedImage img = ImageLoader.load(Paths.get(input));
+            if (img == null)
+                return "ERR unsupported image: " + input;
+            int bright = intOf(job.get("brightness")), contrast = intOf(job.get("contrast"));
+            // same settings across a batch hit the compiled-LUT cache
+            ColorPipeline.Params color = ColorPipeline.Params.fromOptions(bright, contrast, job.get("wb"),
+                    job.get("matrix"), job.get("transfer"), Boolean.parseBoolean(job.get("sepia")));
+            img = color != null ? orchestrator.process(img, color) : orchestrator.process(img, bright, contrast);
+
+            img = Recipe.parse(job.get("recipe")).apply(orchestrator, img);
+
+            if (export != null) {
+                List<ExportPlan.Result> results = ExportPlan.parse(export).run(orchestrator, img);
+                long ms = Math.round((System.nanoTime() - t0) / 1e6);
+                StringBuilder paths = new StringBuilder();
+                for (ExportPlan.Result r : results)
+                    paths.append(paths.length() == 0 ? "" : ",").append(r.path().toAbsolutePath());
+                System.out.println("Job done: " + input + " -> " + results.size() + " outputs (" + ms + " ms)");
+                return "OK " + ms + " " + paths;
+            }
+
+            Path out = Paths.get(output);
+            ExportWriter.write(img, out, -1);
+            long ms = Math.round((System.nanoTime() - t0) / 1e6);
+            System.out.println("Job done: " + input + " -> " + output + " (" + ms + " ms)");
+            return "OK " + ms + " " + out.toAbsolutePath();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "ERR interrupted";
+        } catch (Exception e) {
+            return "ERR " + e.getClass().getSimpleName() + ": " + e.getMessage();
+        } finally {
+            jobSlots.release();
+        }
+    }
+
+    private static int intOf(String s) {
+        try {
+            return s == null ? 0 : Integer.parseInt(s.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
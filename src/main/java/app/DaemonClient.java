@@ -0,0 +1,131 @@
+package app;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+
+import pipeline.ExportPlan;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.SocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+
+/**
+ * Thin client for {@link Daemon}: sends one job (or PING/SHUTDOWN) and prints
+ * the reply. Exit code 0 on OK, 3 on ERR, 2 if the server can't be reached.
+ */
+public final class DaemonClient {
+
+    private static final class Args {
+        @Parameter(names = "--connect", description = "unix:/path/to.sock | tcp:[host:]port")
+        String connect = Daemon.DEFAULT_ADDRESS;
+
+        @Parameter(names = "--input", description = "Input image path (.jpg/.png/.arw)")
+        String input;
+
+        @Parameter(names = "--output", description = "Output image path (.png/.jpg)")
+        String output;
+
+        @Parameter(names = "--brightness", description = "Brightness [-100..100]")
+        int brightness = 0;
+
+        @Parameter(names = "--contrast", description = "Contrast [-100..100]")
+        int contrast = 0;
+
+        @Parameter(names = "--recipe", description = "Shell commands separated by ';', e.g. \"sharpen 0.6;bw\"")
+        String recipe;
+
+        @Parameter(names = "--wb", description = "White balance multipliers r,g,b")
+        String wb;
+
+        @Parameter(names = "--matrix", description = "Camera-to-sRGB 3x3 matrix, 9 values row-major")
+        String matrix;
+
+        @Parameter(names = "--transfer", description = "Transfer curve: srgb | gamma22 | linear")
+        String transfer;
+
+        @Parameter(names = "--sepia", description = "Fold sepia into the colour LUT")
+        boolean sepia = false;
+
+        @Parameter(names = "--export", description = "Several outputs from one decode, e.g. \"a.png; a_web.jpg size=2048\"")
+        String export;
+
+        @Parameter(names = "--ping", description = "Check the server is up")
+        boolean ping = false;
+
+        @Parameter(names = "--shutdown", description = "Stop the server")
+        boolean shutdown = false;
+
+        @Parameter(names = { "-h", "--help" }, help = true, description = "Show help")
+        boolean help = false;
+    }
+
+    public static void main(String[] argv) {
+        Args args = new Args();
+        JCommander jc = JCommander.newBuilder().addObject(args).programName("submit").build();
+        try {
+            jc.parse(argv);
+        } catch (ParameterException pe) {
+            System.err.println(pe.getMessage());
+            jc.usage();
+            System.exit(1);
+        }
+        if (args.help) {
+            jc.usage();
+            return;
+        }
+
+        String request;
+        if (args.ping) {
+            request = "PING";
+        } else if (args.shutdown) {
+            request = "SHUTDOWN";
+        } else {
+            if (args.input == null || (args.output == null && args.export == null)) {
+                System.err.println("submit needs --input and --output (or --export)");
+                jc.usage();
+                System.exit(1);
+            }
+            String export = null;
+            try {
+                export = args.export != null ? ExportPlan.parse(args.export).toAbsoluteSpec() : null;
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+            // The server may run in another working directory: send absolute paths.
+            request = Daemon.formatJob(Paths.get(args.input).toAbsolutePath().toString(),
+                    args.output != null ? Paths.get(args.output).toAbsolutePath().toString() : null,
+                    args.brightness, args.contrast, args.recipe);
+            request = Daemon.withField(request, "export", export);
+            request = Daemon.withField(request, "wb", args.wb);
+            request = Daemon.withField(request, "matrix", args.matrix);
+            request = Daemon.withField(request, "transfer", args.transfer);
+            request = Daemon.withField(request, "sepia", args.sepia ? "true" : null);
+        }
+
+        SocketAddress addr = Daemon.address(args.connect);
+        try (SocketChannel ch = SocketChannel.open(Daemon.family(addr))) {
+            ch.connect(addr);
+            PrintWriter out = new PrintWriter(
+                    new OutputStreamWriter(Channels.newOutputStream(ch), StandardCharsets.UTF_8), true);
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(Channels.newInputStream(ch), StandardCharsets.UTF_8));
+            out.println(request);
+            String reply = in.readLine();
+            System.out.println(reply == null ? "ERR no reply" : reply);
+            if (reply == null || reply.startsWith("ERR"))
+                System.exit(3);
+        } catch (IOException e) {
+            System.err.println("Cannot reach server at " + args.connect + ": " + e.getMessage());
+            System.exit(2);
+        }
+    }
+}
@@ -4,9 +4,16 @@ import oshi.SystemInfo;
 import oshi.hardware.HardwareAbstractionLayer;
 import oshi.hardware.PowerSource;
 
+/**
+ * Direct OSHI power queries. OSHI is only initialised on the first query
+ * (holder idiom); callers normally go through {@link PowerService}.
+ */
 public final class BatteryMonitor {
-    private static final SystemInfo SI = new SystemInfo();
-    private static final HardwareAbstractionLayer HAL = SI.getHardware();
+    /** Shared with {@link ThermalMonitor}. */
+    static final class Oshi {
+        static final SystemInfo SI = new SystemInfo();
+        static final HardwareAbstractionLayer HAL = SI.getHardware();
+    }
 
     private BatteryMonitor() {
     }
@@ -17,7 +24,7 @@ public final class BatteryMonitor {
             return Boolean.parseBoolean(override);
 
         try {
-            PowerSource[] ps = HAL.getPowerSources().toArray(new PowerSource[0]);
+            PowerSource[] ps = Oshi.HAL.getPowerSources().toArray(new PowerSource[0]);
             if (ps.length == 0)
                 return true; // assume desktop/AC
 
@@ -42,7 +49,7 @@ public final class BatteryMonitor {
         }
 
         try {
-            PowerSource[] ps = HAL.getPowerSources().toArray(new PowerSource[0]);
+            PowerSource[] ps = Oshi.HAL.getPowerSources().toArray(new PowerSource[0]);
             if (ps.length == 0)
                 return 100;
 
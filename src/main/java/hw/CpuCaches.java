@@ -0,0 +1,25 @@
+package hw;
+
+import oshi.SystemInfo;
+import oshi.hardware.CentralProcessor;
+
+/** Cache sizes via OSHI (only queried by calibration, never on the hot path). */
+public final class CpuCaches {
+    private CpuCaches() {
+    }
+
+    /** Largest per-core cache (L2, or L1 if that's all we see); 256 KB if unknown. */
+    public static long perCoreBytes() {
+        long best = 0;
+        try {
+            for (CentralProcessor.ProcessorCache c : new SystemInfo().getHardware().getProcessor()
+                    .getProcessorCaches()) {
+                if (c.getLevel() <= 2 && c.getType() != CentralProcessor.ProcessorCache.Type.INSTRUCTION)
+                    best = Math.max(best, Integer.toUnsignedLong(c.getCacheSize()));
+            }
+        } catch (Throwable ignored) {
+        }
+        // Some VMs report nonsense (a few KB); treat that as unknown.
+        return best >= 16 * 1024 ? best : 256L * 1024;
+    }
+}
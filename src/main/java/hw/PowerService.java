@@ -0,0 +1,86 @@
+package hw;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Background power-state service.
+ *
+ * Hardware is probed on a daemon thread (first probe right away, then every
+ * -DpowerPollMs, default 5000), so nobody blocks on OSHI enumeration. Readers
+ * get the latest immutable {@link PowerState} with a volatile read; the
+ * orchestrator subscribes and is told about changes instead of polling.
+ * Each probe also reads CPU temperature and clock ({@link ThermalMonitor}),
+ * so heat moves the thread ceiling the same way the battery does.
+ */
+public final class PowerService {
+
+    private static final PowerService INSTANCE = new PowerService();
+
+    private volatile PowerState state = PowerState.initial();
+    private final List<Consumer<PowerState>> listeners = new CopyOnWriteArrayList<>();
+    private volatile Thread prober;
+
+    private PowerService() {
+    }
+
+    /** The shared service; starts probing on first use. */
+    public static PowerService get() {
+        INSTANCE.ensureStarted();
+        return INSTANCE;
+    }
+
+    /** Latest snapshot (never blocks). */
+    public PowerState snapshot() {
+        return state;
+    }
+
+    /**
+     * Call {@code l} on every change (from the probe thread). Returns a handle
+     * that unsubscribes when run.
+     */
+    public Runnable subscribe(Consumer<PowerState> l) {
+        listeners.add(l);
+        return () -> listeners.remove(l);
+    }
+
+    private void ensureStarted() {
+        if (prober != null)
+            return;
+        synchronized (this) {
+            if (prober != null)
+                return;
+            long pollMs = Long.getLong("powerPollMs", 5000L);
+            Thread t = new Thread(() -> {
+                ThermalMonitor thermal = new ThermalMonitor(); // hysteresis state lives on this thread
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        int temp = ThermalMonitor.cpuTemperature(), freq = ThermalMonitor.frequencyRatio();
+                        publish(new PowerState(BatteryMonitor.onAC(), BatteryMonitor.levelOrGuess(), true, temp, freq,
+                                thermal.update(temp, freq, ThermalMonitor.busy())));
+                        Thread.sleep(pollMs);
+                    }
+                } catch (InterruptedException ignored) {
+                }
+            }, "power-probe");
+            t.setDaemon(true);
+            prober = t;
+            t.start();
+        }
+    }
+
+    private void publish(PowerState next) {
+        PowerState prev = state;
+        if (next.equals(prev))
+            return;
+        state = next;
+        for (Consumer<PowerState> l : listeners) {
+            try {
+                l.accept(next);
+            } catch (RuntimeException e) {
+                System.err.println("[Power] listener failed: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package hw;
+
+/**
+ * Immutable power snapshot published by {@link PowerService}.
+ * {@code probed} is false until the first hardware read completes; until then
+ * the values are the -DforceOnAC/-DforceBatteryLevel/-DforceCpuTemp overrides
+ * or a desktop guess (AC, 100%, temperature unknown).
+ *
+ * @param cpuTempC  package temperature in whole degrees C, or -1 if the sensor is unreadable
+ * @param freqRatio current / rated CPU frequency in percent, or -1 if unknown
+ * @param thermal   throttling level derived from both, with hysteresis (see {@link ThermalMonitor})
+ */
+public record PowerState(boolean onAC, int battery, boolean probed, int cpuTempC, int freqRatio,
+        Thermal thermal) {
+
+    public enum Thermal {
+        /** No sign of heat: the battery policy alone decides. */
+        NOMINAL,
+        /** Running hot or clocked down: fewer threads. */
+        WARM,
+        /** At the throttle point: about half the cores, no GPU offload (it shares the heat budget). */
+        HOT
+    }
+
+    public PowerState(boolean onAC, int battery, boolean probed) {
+        this(onAC, battery, probed, -1, -1, Thermal.NOMINAL);
+    }
+
+    static PowerState initial() {
+        String ac = System.getProperty("forceOnAC");
+        String lvl = System.getProperty("forceBatteryLevel");
+        int battery = 100;
+        if (lvl != null) {
+            try {
+                battery = Math.max(0, Math.min(100, Integer.parseInt(lvl.trim())));
+            } catch (Exception ignored) {
+            }
+        }
+        int temp = ThermalMonitor.forcedTemp();
+        return new PowerState(ac == null || Boolean.parseBoolean(ac), battery, false, temp, -1,
+                new ThermalMonitor().update(temp, -1, false));
+    }
+}
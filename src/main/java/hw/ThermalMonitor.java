@@ -0,0 +1,119 @@
+package hw;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * CPU temperature and clock through OSHI, and the throttling level derived
+ * from them.
+ *
+ * - Temperature: WARM from -DthermalWarmC (default 80), HOT from
+ * -DthermalHotC (default 90). A level is only left once the temperature is
+ * -DthermalHysteresisC (default 5) below its threshold, so a box sitting at
+ * the limit doesn't flap between thread counts every probe.
+ * - Clock: without a readable sensor (common on VMs and small boxes), a busy
+ * CPU running under 70% of its base clock for two probes in a row is
+ * taken as throttling (WARM), and it takes three busy probes at full clock
+ * in a row to leave it. An idle CPU clocks down to save power, so idle
+ * probes don't count either way.
+ *
+ * -DforceCpuTemp=C replaces the sensor, like -DforceBatteryLevel.
+ */
+public final class ThermalMonitor {
+
+    private static final int LOW_FREQ_PCT = 70;
+    private static final int LOW_FREQ_PROBES = 2;
+    private static final int RECOVER_PROBES = 3;
+    private static final double BUSY_LOAD = 0.75;
+
+    private final int warmC = Integer.getInteger("thermalWarmC", 80);
+    private final int hotC = Integer.getInteger("thermalHotC", 90);
+    private final int hysteresisC = Integer.getInteger("thermalHysteresisC", 5);
+    private PowerState.Thermal level = PowerState.Thermal.NOMINAL;
+    private int lowFreqStreak, fullFreqStreak;
+
+    /** -DforceCpuTemp, or -1. */
+    static int forcedTemp() {
+        String t = System.getProperty("forceCpuTemp");
+        if (t != null) {
+            try {
+                return Math.max(0, (int) Math.round(Double.parseDouble(t.trim())));
+            } catch (Exception ignored) {
+            }
+        }
+        return -1;
+    }
+
+    /** Package temperature in whole degrees C, or -1 if there is no usable sensor. */
+    public static int cpuTemperature() {
+        int forced = forcedTemp();
+        if (forced >= 0)
+            return forced;
+        try {
+            double c = BatteryMonitor.Oshi.HAL.getSensors().getCpuTemperature();
+            return Double.isNaN(c) || c <= 0 ? -1 : (int) Math.round(c); // 0 = not readable
+        } catch (Throwable t) {
+            return -1;
+        }
+    }
+
+    /**
+     * Mean current frequency over the logical CPUs as a percentage of the base
+     * clock, or -1. The base (vendor) clock, not the maximum turbo: all-core
+     * turbo under full load often runs below 70% of the single-core peak, and
+     * that is not throttling. The maximum is only used when the base is unknown.
+     */
+    public static int frequencyRatio() {
+        try {
+            var cpu = BatteryMonitor.Oshi.HAL.getProcessor();
+            long max = cpu.getProcessorIdentifier().getVendorFreq();
+            if (max <= 0)
+                max = cpu.getMaxFreq();
+            long[] cur = cpu.getCurrentFreq();
+            if (max <= 0 || cur.length == 0)
+                return -1;
+            double sum = 0;
+            int n = 0;
+            for (long f : cur) {
+                if (f > 0) {
+                    sum += f;
+                    n++;
+                }
+            }
+            return n == 0 ? -1 : (int) Math.round(sum / n * 100.0 / max);
+        } catch (Throwable t) {
+            return -1;
+        }
+    }
+
+    /** True if the machine is mostly busy (recent CPU load at least 75%). */
+    public static boolean busy() {
+        if (ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean os)
+            return os.getCpuLoad() >= BUSY_LOAD;
+        return false;
+    }
+
+    /** Fold one probe into the level (call from a single thread). */
+    public PowerState.Thermal update(int tempC, int freqPct, boolean busy) {
+        PowerState.Thermal next;
+        if (tempC >= 0) {
+            if (tempC >= hotC || (level == PowerState.Thermal.HOT && tempC > hotC - hysteresisC))
+                next = PowerState.Thermal.HOT;
+            else if (tempC >= warmC || (level != PowerState.Thermal.NOMINAL && tempC > warmC - hysteresisC))
+                next = PowerState.Thermal.WARM;
+            else
+                next = PowerState.Thermal.NOMINAL;
+        } else {
+            if (busy && freqPct >= 0) {
+                boolean low = freqPct < LOW_FREQ_PCT;
+                lowFreqStreak = low ? lowFreqStreak + 1 : 0;
+                fullFreqStreak = low ? 0 : fullFreqStreak + 1;
+            }
+            if (level == PowerState.Thermal.NOMINAL)
+                next = lowFreqStreak >= LOW_FREQ_PROBES ? PowerState.Thermal.WARM : PowerState.Thermal.NOMINAL;
+            else // one good probe under load is not enough to call the throttling over
+                next = fullFreqStreak >= RECOVER_PROBES ? PowerState.Thermal.NOMINAL : PowerState.Thermal.WARM;
+        }
+        level = next;
+        return next;
+    }
+}
@@ -0,0 +1,98 @@
+package io;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes shell saves and preview refreshes on a background thread, so an edit
+ * never waits on the encoder or the disk.
+ *
+ * A write holds the image it was handed, not a copy. That is safe because
+ * shell edits are copy-on-write: every op returns a new image and never writes
+ * into the one it read, so the snapshot stays as it was while it encodes, and
+ * nothing is copied unless an edit actually happens.
+ *
+ * - Saves are written in the order asked for and each one reports when it is
+ * on disk ("Saved: ...").
+ * - Previews are coalesced per file: a refresh that arrives while an older one
+ * for the same file is still queued replaces it, so a run of quick edits
+ * writes the preview once, with the latest image.
+ */
+public final class BackgroundWriter {
+
+    /** Encodes its snapshot to {@code out}. */
+    public interface Write {
+        void to(Path out) throws IOException;
+    }
+
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "image-writer");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Map<Path, Write> pendingPreviews = new ConcurrentHashMap<>();
+    private final AtomicInteger pendingSaves = new AtomicInteger();
+    private final AtomicInteger coalesced = new AtomicInteger();
+    private volatile boolean closing; // the shell has quit: no prompt to reprint
+
+    /** Queue a save; returns at once and prints "Saved: ..." when it is written. */
+    public void save(Path out, Write w) {
+        pendingSaves.incrementAndGet();
+        worker.execute(() -> {
+            long t0 = System.nanoTime();
+            try {
+                w.to(out);
+                System.out.printf("%nSaved: %s (%d ms)%n%s", out.toAbsolutePath(),
+                        Math.round((System.nanoTime() - t0) / 1e6), prompt());
+            } catch (IOException | RuntimeException e) {
+                System.out.printf("%nSave failed: %s: %s%n%s", out, e.getMessage(), prompt());
+            } finally {
+                pendingSaves.decrementAndGet();
+            }
+        });
+    }
+
+    /** Queue a preview refresh of {@code out}, replacing one still waiting for the same file. */
+    public void preview(Path out, Write w) {
+        if (pendingPreviews.put(out, w) != null) {
+            coalesced.incrementAndGet();
+            return; // the queued refresh picks up this image instead
+        }
+        worker.execute(() -> {
+            Write latest = pendingPreviews.remove(out);
+            if (latest == null)
+                return;
+            try {
+                latest.to(out);
+            } catch (IOException | RuntimeException e) {
+                System.out.printf("%nPreview failed: %s%n%s", e.getMessage(), prompt());
+            }
+        });
+    }
+
+    /** Finish queued writes (saves are never dropped) and stop the thread. */
+    public void close() {
+        closing = true;
+        int saves = pendingSaves.get();
+        if (saves > 0)
+            System.out.println("Writer: finishing " + saves + " save(s) ...");
+        worker.shutdown();
+        try {
+            worker.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (coalesced.get() > 0)
+            System.out.println("Writer: " + coalesced.get() + " preview write(s) coalesced");
+    }
+
+    private String prompt() {
+        return closing ? "" : "post> ";
+    }
+}
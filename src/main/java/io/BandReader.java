@@ -0,0 +1,168 @@
+package io;
+
+import util.Planar16;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+/**
+ * Reads an image top to bottom in horizontal bands without materialising the
+ * whole frame, as packed ARGB or as 16-bit planes. Plain 8/16-bit PNGs are
+ * decoded row by row (each row once); anything else (JPEG, ARW previews, ...)
+ * goes through the ImageIO reader, which can only decode a source region from
+ * the top of the image: it is read in chunks as tall as 1/{@link
+ * #CHUNK_HEAP_FRACTION} of the heap allows (one decode when the frame fits),
+ * not once per band, or as a caller-given cap allows.
+ */
+public final class BandReader implements AutoCloseable {
+
+    private final PngRowReader png; // sequential path, or null
+    private final ImageReader reader; // region path, or null
+    private final ImageInputStream iis;
+    private final int width, height;
+    private int position;
+
+    /** Region path: decoded rows are buffered up to 1/this of the heap. */
+    private static final int CHUNK_HEAP_FRACTION = 8;
+    private int[] chunk; // rows [chunkStart, chunkStart + chunkRows) of the region path
+    private int chunkStart, chunkRows;
+    private int maxChunkRows; // 0 = heap budget only
+
+    private BandReader(PngRowReader png) {
+        this.png = png;
+        this.reader = null;
+        this.iis = null;
+        this.width = png.width;
+        this.height = png.height;
+    }
+
+    private BandReader(ImageReader reader, ImageInputStream iis) throws IOException {
+        this.png = null;
+        this.reader = reader;
+        this.iis = iis;
+        this.width = reader.getWidth(0);
+        this.height = reader.getHeight(0);
+    }
+
+    public static BandReader open(Path input) throws IOException {
+        return open(input, 0);
+    }
+
+    /**
+     * @param maxChunkRows on the region path, decode and hold at most this many
+     *                     rows at a time (0 = as many as the heap budget allows);
+     *                     callers keeping many readers open bound their total with it
+     */
+    public static BandReader open(Path input, int maxChunkRows) throws IOException {
+        if (streamsRows(input))
+            return new BandReader(PngRowReader.open(input));
+
+        ImageInputStream iis = ImageIO.createImageInputStream(input.toFile());
+        if (iis == null)
+            throw new IOException("Cannot open " + input);
+        Iterator<ImageReader> it = ImageIO.getImageReaders(iis);
+        if (!it.hasNext()) {
+            iis.close();
+            throw new IOException("No ImageIO reader for " + input);
+        }
+        ImageReader r = it.next();
+        r.setInput(iis, true, true);
+        BandReader br = new BandReader(r, iis);
+        br.maxChunkRows = maxChunkRows;
+        return br;
+    }
+
+    /** True if {@code input} is decoded row by row, with no region chunk held by its reader. */
+    public static boolean streamsRows(Path input) {
+        return input.getFileName().toString().toLowerCase().endsWith(".png") && PngRowReader.supports(input);
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    /** Next row to be read. */
+    public int position() {
+        return position;
+    }
+
+    /** Read the next {@code rows} rows as packed ARGB into {@code dst} (stride = width). */
+    public void nextInto(int[] dst, int off, int rows) throws IOException {
+        if (rows <= 0)
+            return;
+        if (position + rows > height)
+            throw new IOException("band past end of image: " + (position + rows) + " > " + height);
+        if (png != null) {
+            for (int r = 0; r < rows; r++)
+                png.readArgb(dst, off + r * width);
+        } else {
+            for (int y = position, end = position + rows; y < end;) {
+                if (chunk == null || y >= chunkStart + chunkRows)
+                    decodeChunk(y);
+                int n = Math.min(end, chunkStart + chunkRows) - y;
+                System.arraycopy(chunk, (y - chunkStart) * width, dst, off + (y - position) * width, n * width);
+                y += n;
+            }
+        }
+        position += rows;
+    }
+
+    /**
+     * Read the next {@code rows} rows as 16-bit samples into {@code dst} from row
+     * {@code row0} on. 16-bit PNGs keep their full depth; other sources widen 8-bit
+     * samples by 257.
+     */
+    public void nextInto16(Planar16 dst, int row0, int rows) throws IOException {
+        if (rows <= 0)
+            return;
+        if (png != null) {
+            if (position + rows > height)
+                throw new IOException("band past end of image: " + (position + rows) + " > " + height);
+            for (int r = 0; r < rows; r++)
+                png.readPlanar16(dst, row0 + r);
+            position += rows;
+        } else {
+            int[] argb = new int[width];
+            for (int r = 0; r < rows; r++) {
+                nextInto(argb, 0, 1);
+                dst.setArgbRow(row0 + r, argb, 0);
+            }
+        }
+    }
+
+    /** Decode rows from {@code y0} down as far as the chunk budget allows, in one region read. */
+    private void decodeChunk(int y0) throws IOException {
+        long budget = Runtime.getRuntime().maxMemory() / CHUNK_HEAP_FRACTION;
+        int rows = (int) Math.max(1, Math.min(height - y0, budget / (4L * width)));
+        if (maxChunkRows > 0)
+            rows = Math.min(rows, maxChunkRows);
+        chunk = null; // let the old chunk go before the decode allocates
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(new Rectangle(0, y0, width, rows));
+        BufferedImage img = reader.read(0, param);
+        chunk = img.getRGB(0, 0, width, rows, null, 0, width);
+        chunkStart = y0;
+        chunkRows = rows;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (png != null)
+            png.close();
+        if (reader != null) {
+            reader.dispose();
+            iis.close();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package io;
+
+import stages.CubeLut;
+import stages.Lut1D;
+import stages.Lut3D;
+import util.LruCache;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+
+/**
+ * Parser for Adobe/Resolve .cube files: LUT_1D_SIZE and/or LUT_3D_SIZE,
+ * DOMAIN_MIN/MAX, LUT_1D_INPUT_RANGE / LUT_3D_INPUT_RANGE. When a file has
+ * both tables (Resolve shaper + cube), the 1D data comes first.
+ *
+ * {@link #load} caches parsed LUTs by absolute path and modification time,
+ * so a batch re-uses one parse per look. The cache is a small LRU: a 65^3
+ * cube is ~3 MB, but the 256^3 the format allows is ~200 MB, and a daemon
+ * fed many looks must not keep them all.
+ */
+public final class CubeReader {
+
+    private record Key(Path path, long mtime) {
+    }
+
+    private static final int CACHE_MAX = Integer.getInteger("cubeCacheMax", 8);
+    private static final LruCache<Key, CubeLut> CACHE = new LruCache<>(CACHE_MAX);
+
+    private CubeReader() {
+    }
+
+    /**
+     * Parsed LUT for {@code file}, from the cache unless the file changed.
+     *
+     * @param log where a fresh parse reports its timing (null = nowhere)
+     */
+    public static CubeLut load(Path file, PrintStream log) throws IOException {
+        Path path = file.toAbsolutePath().normalize();
+        Key key = new Key(path, Files.getLastModifiedTime(path).toMillis());
+        try {
+            return CACHE.get(key, k -> {
+                long t0 = System.nanoTime();
+                try {
+                    CubeLut lut = read(k.path());
+                    if (log != null) {
+                        int s1 = lut.shaperSize(), s3 = lut.cubeSize();
+                        log.printf("LUT: %s (%s%s) parsed in %.1f ms%n", lut.title(),
+                                s1 > 0 ? "1D " + s1 + (s3 > 0 ? " + " : "") : "", s3 > 0 ? "3D " + s3 : "",
+                                (System.nanoTime() - t0) / 1e6);
+                    }
+                    return lut;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /** Parse without caching. */
+    public static CubeLut read(Path file) throws IOException {
+        String title = file.getFileName().toString();
+        int size1 = 0, size3 = 0;
+        float[] dMin = { 0, 0, 0 }, dMax = { 1, 1, 1 };
+        float[] r1Min = null, r1Max = null, r3Min = null, r3Max = null;
+        float[] data = null; // 1D rows then 3D rows, rgb triples
+        int rows = 0, line = 0;
+
+        try (BufferedReader br = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String s;
+            while ((s = br.readLine()) != null) {
+                line++;
+                s = s.trim();
+                if (s.isEmpty() || s.charAt(0) == '#')
+                    continue;
+                char c0 = s.charAt(0);
+                if (Character.isDigit(c0) || c0 == '-' || c0 == '+' || c0 == '.') {
+                    if (data == null) {
+                        if (size1 == 0 && size3 == 0)
+                            throw error(file, line, "data before LUT_1D_SIZE / LUT_3D_SIZE");
+                        data = new float[3 * (size1 + size3 * size3 * size3)];
+                    }
+                    if (rows * 3 >= data.length)
+                        throw error(file, line, "more data rows than declared");
+                    String[] t = s.split("\\s+");
+                    if (t.length < 3)
+                        throw error(file, line, "expected 3 values");
+                    try {
+                        data[rows * 3] = Float.parseFloat(t[0]);
+                        data[rows * 3 + 1] = Float.parseFloat(t[1]);
+                        data[rows * 3 + 2] = Float.parseFloat(t[2]);
+                    } catch (NumberFormatException e) {
+                        throw error(file, line, "bad number: " + s);
+                    }
+                    rows++;
+                    continue;
+                }
+                String[] t = s.split("\\s+", 2);
+                String rest = t.length > 1 ? t[1].trim() : "";
+                switch (t[0].toUpperCase(Locale.ROOT)) {
+                    case "TITLE" -> title = rest.replace("\"", "");
+                    case "LUT_1D_SIZE" -> size1 = intArg(file, line, rest, 2, 65536);
+                    case "LUT_3D_SIZE" -> size3 = intArg(file, line, rest, 2, 256);
+                    case "DOMAIN_MIN" -> dMin = triple(file, line, rest);
+                    case "DOMAIN_MAX" -> dMax = triple(file, line, rest);
+                    case "LUT_1D_INPUT_RANGE" -> {
+                        float[] p = pair(file, line, rest);
+                        r1Min = new float[] { p[0], p[0], p[0] };
+                        r1Max = new float[] { p[1], p[1], p[1] };
+                    }
+                    case "LUT_3D_INPUT_RANGE" -> {
+                        float[] p = pair(file, line, rest);
+                        r3Min = new float[] { p[0], p[0], p[0] };
+                        r3Max = new float[] { p[1], p[1], p[1] };
+                    }
+                    default -> {
+                        // unknown keywords (e.g. vendor extensions) are ignored
+                    }
+                }
+            }
+        }
+        int expected = size1 + size3 * size3 * size3;
+        if (data == null || rows != expected)
+            throw new IOException(file + ": expected " + expected + " data rows, found " + rows);
+
+        Lut1D shaper = null;
+        if (size1 > 0) {
+            float[] r = new float[size1], g = new float[size1], b = new float[size1];
+            for (int i = 0; i < size1; i++) {
+                r[i] = data[i * 3];
+                g[i] = data[i * 3 + 1];
+                b[i] = data[i * 3 + 2];
+            }
+            shaper = new Lut1D(r, g, b);
+        }
+        Lut3D cube = null;
+        if (size3 > 0) {
+            float[] d = new float[3 * size3 * size3 * size3];
+            System.arraycopy(data, 3 * size1, d, 0, d.length);
+            cube = new Lut3D(size3, d);
+        }
+        // DOMAIN_* applies to whichever table sees the input first; *_INPUT_RANGE overrides per table
+        float[] sMin = r1Min != null ? r1Min : dMin, sMax = r1Max != null ? r1Max : dMax;
+        float[] cMin = r3Min != null ? r3Min : (shaper == null ? dMin : new float[] { 0, 0, 0 });
+        float[] cMax = r3Max != null ? r3Max : (shaper == null ? dMax : new float[] { 1, 1, 1 });
+        return new CubeLut(title, shaper, sMin, sMax, cube, cMin, cMax);
+    }
+
+    private static IOException error(Path file, int line, String msg) {
+        return new IOException(file.getFileName() + ":" + line + ": " + msg);
+    }
+
+    private static int intArg(Path file, int line, String s, int min, int max) throws IOException {
+        try {
+            int v = Integer.parseInt(s.trim());
+            if (v < min || v > max)
+                throw error(file, line, "size out of range: " + v);
+            return v;
+        } catch (NumberFormatException e) {
+            throw error(file, line, "bad size: " + s);
+        }
+    }
+
+    private static float[] triple(Path file, int line, String s) throws IOException {
+        float[] v = floats(file, line, s);
+        if (v.length != 3)
+            throw error(file, line, "expected 3 values");
+        return v;
+    }
+
+    private static float[] pair(Path file, int line, String s) throws IOException {
+        float[] v = floats(file, line, s);
+        if (v.length != 2)
+            throw error(file, line, "expected 2 values");
+        return v;
+    }
+
+    private static float[] floats(Path file, int line, String s) throws IOException {
+        String[] t = s.trim().split("\\s+");
+        float[] v = new float[t.length];
+        try {
+            for (int i = 0; i < t.length; i++)
+                v[i] = Float.parseFloat(t[i]);
+        } catch (NumberFormatException e) {
+            throw error(file, line, "bad number: " + s);
+        }
+        return v;
+    }
+}
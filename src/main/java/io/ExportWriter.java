@@ -0,0 +1,89 @@
+package io;
+
+import util.Tiles;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+/**
+ * 8-bit encoders for exports, picked by file extension: PNG through
+ * {@link PngStreamWriter} (deflate level 0..9), JPEG through ImageIO with an
+ * explicit quality (1..100, alpha dropped), anything else through ImageIO.
+ */
+public final class ExportWriter {
+
+    public static final int DEFAULT_PNG_LEVEL = 6;
+    public static final int DEFAULT_JPEG_QUALITY = 90;
+
+    private ExportWriter() {
+    }
+
+    public static String formatOf(Path p) {
+        String n = p.getFileName().toString().toLowerCase();
+        if (n.endsWith(".jpg") || n.endsWith(".jpeg"))
+            return "jpg";
+        if (n.endsWith(".tif") || n.endsWith(".tiff"))
+            return "tiff";
+        int dot = n.lastIndexOf('.');
+        return dot < 0 ? "png" : n.substring(dot + 1);
+    }
+
+    /**
+     * Encode {@code img} to {@code out}; returns the file size in bytes.
+     *
+     * @param level PNG deflate level or JPEG quality; negative = format default
+     */
+    public static long write(BufferedImage img, Path out, int level) throws IOException {
+        String fmt = formatOf(out);
+        switch (fmt) {
+            case "png" -> {
+                try (PngStreamWriter w = new PngStreamWriter(out, img.getWidth(), img.getHeight(),
+                        level < 0 ? DEFAULT_PNG_LEVEL : level)) {
+                    w.writeRows(Tiles.argb(img), 0, img.getWidth(), img.getHeight());
+                }
+            }
+            case "jpg" -> writeJpeg(img, out, level < 0 ? DEFAULT_JPEG_QUALITY : level);
+            default -> {
+                if (!ImageIO.write(img, fmt, out.toFile()))
+                    throw new IOException("no writer for " + fmt);
+            }
+        }
+        return Files.size(out);
+    }
+
+    private static void writeJpeg(BufferedImage img, Path out, int quality) throws IOException {
+        Iterator<ImageWriter> it = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!it.hasNext())
+            throw new IOException("no writer for jpeg");
+        ImageWriter w = it.next();
+        ImageWriteParam p = w.getDefaultWriteParam();
+        p.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        p.setCompressionQuality(Math.max(1, Math.min(100, quality)) / 100f);
+        Files.deleteIfExists(out); // the stream would otherwise keep a longer old file's tail
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out.toFile())) {
+            w.setOutput(ios);
+            w.write(null, new IIOImage(opaque(img), null, null), p);
+        } finally {
+            w.dispose();
+        }
+    }
+
+    /** TYPE_INT_RGB copy (JPEG has no alpha); one array copy, no per-pixel conversion. */
+    private static BufferedImage opaque(BufferedImage img) {
+        if (img.getType() == BufferedImage.TYPE_INT_RGB)
+            return img;
+        BufferedImage rgb = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_RGB);
+        int[] src = Tiles.argb(img);
+        System.arraycopy(src, 0, ((DataBufferInt) rgb.getRaster().getDataBuffer()).getData(), 0, src.length);
+        return rgb;
+    }
+}
@@ -1,6 +1,7 @@
 package io;
 
 import util.ArwReader;
+import util.Planar16;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
@@ -27,4 +28,15 @@ public final class ImageLoader {
             throw e;
         }
     }
+
+    /**
+     * Load keeping up to 16 bits per channel (16-bit PNG/TIFF stay 16-bit,
+     * 8-bit sources and ARW previews are widened).
+     */
+    public static Planar16 load16(Path input) throws IOException {
+        BufferedImage img = load(input);
+        if (img == null)
+            throw new IOException("unsupported image: " + input);
+        return Planar16.fromImage(img);
+    }
 }
@@ -0,0 +1,34 @@
+package io;
+
+import util.Planar16;
+
+import javax.imageio.ImageIO;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/** Writes 16-bit planar images without dropping to 8 bits: PNG (streamed) or TIFF. */
+public final class Planar16Writer {
+
+    private Planar16Writer() {
+    }
+
+    public static boolean supports16(Path out) {
+        String n = out.getFileName().toString().toLowerCase();
+        return n.endsWith(".png") || n.endsWith(".tif") || n.endsWith(".tiff");
+    }
+
+    /** 16-bit for .png/.tif/.tiff; anything else is rounded to 8-bit and handed to ImageIO. */
+    public static void write(Planar16 img, Path out) throws IOException {
+        String n = out.getFileName().toString().toLowerCase();
+        if (n.endsWith(".png")) {
+            try (PngStreamWriter w = new PngStreamWriter(out, img.width, img.height, 6, 16)) {
+                w.writeRows16(img.r, img.g, img.b, img.a, 0, img.width, img.height);
+            }
+            return;
+        }
+        boolean tiff = n.endsWith(".tif") || n.endsWith(".tiff");
+        String fmt = tiff ? "tiff" : n.substring(n.lastIndexOf('.') + 1);
+        if (!ImageIO.write(tiff ? img.toImage16() : img.toImage8(), fmt, out.toFile()))
+            throw new IOException("no writer for " + fmt);
+    }
+}
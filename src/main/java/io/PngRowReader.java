@@ -0,0 +1,264 @@
+package io;
+
+import util.Planar16;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Sequential, row-at-a-time PNG decoder for the common layouts
+ * (non-interlaced, 8/16-bit grey, grey+alpha, RGB, RGBA). Decodes each row
+ * exactly once, so reading a huge PNG in bands is linear in its size.
+ * {@link #supports(Path)} says whether a file can be read this way.
+ */
+final class PngRowReader implements AutoCloseable {
+
+    private static final long SIGNATURE = 0x89504E470D0A1A0AL;
+
+    private final DataInputStream raw;
+    private final InputStream pixels;
+    final int width, height, bitDepth, colorType;
+    private final int channels, bpp, rowBytes;
+    private byte[] prev, cur;
+    private int nextRow;
+
+    private PngRowReader(Path p) throws IOException {
+        raw = new DataInputStream(new BufferedInputStream(Files.newInputStream(p), 1 << 16));
+        try {
+            if (raw.readLong() != SIGNATURE)
+                throw new IOException("not a PNG: " + p);
+            int len = raw.readInt();
+            if (raw.readInt() != 0x49484452 /* IHDR */ || len != 13)
+                throw new IOException("PNG without IHDR: " + p);
+            width = raw.readInt();
+            height = raw.readInt();
+            bitDepth = raw.readUnsignedByte();
+            colorType = raw.readUnsignedByte();
+            raw.readUnsignedByte(); // compression
+            raw.readUnsignedByte(); // filter method
+            int interlace = raw.readUnsignedByte();
+            raw.readInt(); // CRC
+            channels = switch (colorType) {
+                case 0 -> 1;
+                case 2 -> 3;
+                case 4 -> 2;
+                case 6 -> 4;
+                default -> throw new IOException("unsupported PNG colour type " + colorType);
+            };
+            if ((bitDepth != 8 && bitDepth != 16) || interlace != 0)
+                throw new IOException("unsupported PNG layout (depth " + bitDepth + ", interlace " + interlace + ")");
+        } catch (IOException e) {
+            raw.close();
+            throw e;
+        }
+        bpp = channels * bitDepth / 8;
+        rowBytes = width * bpp;
+        prev = new byte[rowBytes];
+        cur = new byte[rowBytes];
+        pixels = new InflaterInputStream(new IdatStream(raw), new java.util.zip.Inflater(), 1 << 16);
+    }
+
+    /** True if the file is a PNG this reader can stream. */
+    static boolean supports(Path p) {
+        try {
+            new PngRowReader(p).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    static PngRowReader open(Path p) throws IOException {
+        return new PngRowReader(p);
+    }
+
+    int channels() {
+        return channels;
+    }
+
+    /** Decode the next row into ARGB (16-bit samples keep their high byte). */
+    void readArgb(int[] dst, int off) throws IOException {
+        byte[] r = nextRaw();
+        int step = bitDepth / 8;
+        for (int x = 0, i = 0; x < width; x++, i += bpp) {
+            int a = 0xFF, rr, g, b;
+            switch (channels) {
+                case 1 -> rr = g = b = r[i] & 0xFF;
+                case 2 -> {
+                    rr = g = b = r[i] & 0xFF;
+                    a = r[i + step] & 0xFF;
+                }
+                case 3 -> {
+                    rr = r[i] & 0xFF;
+                    g = r[i + step] & 0xFF;
+                    b = r[i + 2 * step] & 0xFF;
+                }
+                default -> {
+                    rr = r[i] & 0xFF;
+                    g = r[i + step] & 0xFF;
+                    b = r[i + 2 * step] & 0xFF;
+                    a = r[i + 3 * step] & 0xFF;
+                }
+            }
+            dst[off + x] = (a << 24) | (rr << 16) | (g << 8) | b;
+        }
+    }
+
+    /** Decode the next row into row {@code y} of {@code dst} (8-bit samples widen by 257). */
+    void readPlanar16(Planar16 dst, int y) throws IOException {
+        byte[] r = nextRaw();
+        int step = bitDepth / 8;
+        int o = y * dst.width;
+        for (int x = 0, i = 0; x < width; x++, i += bpp) {
+            short a = (short) Planar16.MAX, rr, g, b;
+            switch (channels) {
+                case 1 -> rr = g = b = sample(r, i);
+                case 2 -> {
+                    rr = g = b = sample(r, i);
+                    a = sample(r, i + step);
+                }
+                case 3 -> {
+                    rr = sample(r, i);
+                    g = sample(r, i + step);
+                    b = sample(r, i + 2 * step);
+                }
+                default -> {
+                    rr = sample(r, i);
+                    g = sample(r, i + step);
+                    b = sample(r, i + 2 * step);
+                    a = sample(r, i + 3 * step);
+                }
+            }
+            dst.r[o + x] = rr;
+            dst.g[o + x] = g;
+            dst.b[o + x] = b;
+            dst.a[o + x] = a;
+        }
+    }
+
+    private short sample(byte[] row, int i) {
+        return bitDepth == 16 ? (short) (((row[i] & 0xFF) << 8) | (row[i + 1] & 0xFF))
+                : (short) ((row[i] & 0xFF) * 257);
+    }
+
+    /** Decode the next row and return its unfiltered bytes (valid until the next call). */
+    byte[] nextRaw() throws IOException {
+        if (nextRow >= height)
+            throw new EOFException("read past last row");
+        int filter = pixels.read();
+        if (filter < 0)
+            throw new EOFException("truncated PNG at row " + nextRow);
+        readFully(pixels, cur, rowBytes);
+        unfilter(filter, cur, nextRow == 0 ? null : prev);
+        byte[] t = prev;
+        prev = cur;
+        cur = t;
+        nextRow++;
+        return prev;
+    }
+
+    private void unfilter(int f, byte[] row, byte[] up) throws IOException {
+        switch (f) {
+            case 0 -> {
+            }
+            case 1 -> {
+                for (int i = bpp; i < rowBytes; i++)
+                    row[i] += row[i - bpp];
+            }
+            case 2 -> {
+                if (up != null)
+                    for (int i = 0; i < rowBytes; i++)
+                        row[i] += up[i];
+            }
+            case 3 -> {
+                for (int i = 0; i < rowBytes; i++) {
+                    int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+                    int b = up != null ? up[i] & 0xFF : 0;
+                    row[i] += (byte) ((a + b) >>> 1);
+                }
+            }
+            case 4 -> {
+                for (int i = 0; i < rowBytes; i++) {
+                    int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+                    int b = up != null ? up[i] & 0xFF : 0;
+                    int c = (up != null && i >= bpp) ? up[i - bpp] & 0xFF : 0;
+                    row[i] += (byte) PngStreamWriter.paethPredictor(a, b, c);
+                }
+            }
+            default -> throw new IOException("bad PNG filter " + f);
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] b, int n) throws IOException {
+        int off = 0;
+        while (off < n) {
+            int k = in.read(b, off, n - off);
+            if (k < 0)
+                throw new EOFException("truncated PNG data");
+            off += k;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        raw.close();
+    }
+
+    /** Concatenated payload of consecutive IDAT chunks; skips everything else. */
+    private static final class IdatStream extends InputStream {
+        private final DataInputStream in;
+        private int left; // bytes left in current IDAT
+        private boolean done;
+
+        IdatStream(DataInputStream in) {
+            this.in = in;
+        }
+
+        private boolean inIdat; // CRC of the current IDAT still unread
+
+        private boolean advance() throws IOException {
+            while (left == 0 && !done) {
+                if (inIdat) {
+                    in.readInt(); // CRC
+                    inIdat = false;
+                }
+                int len = in.readInt();
+                int type = in.readInt();
+                if (type == 0x49444154 /* IDAT */) {
+                    left = len;
+                    inIdat = true;
+                } else if (type == 0x49454E44 /* IEND */) {
+                    done = true;
+                } else {
+                    in.skipNBytes(len + 4L); // payload + CRC
+                }
+            }
+            return !done;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!advance())
+                return -1;
+            left--;
+            return in.readUnsignedByte();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (!advance())
+                return -1;
+            int k = in.read(b, off, Math.min(len, left));
+            if (k < 0)
+                throw new EOFException("truncated IDAT");
+            left -= k;
+            return k;
+        }
+    }
+}
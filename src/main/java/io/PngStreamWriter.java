@@ -0,0 +1,274 @@
+package io;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Row-streaming PNG encoder (8- or 16-bit RGBA, non-interlaced).
+ *
+ * Rows are filtered (per-row pick of None/Sub/Up/Paeth by smallest sum of
+ * absolute residuals, like libpng), deflated and flushed as IDAT chunks as
+ * they arrive, so an image never has to exist in memory as a whole.
+ */
+public final class PngStreamWriter implements Closeable {
+
+    private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+    private static final int IDAT_CHUNK = 64 * 1024;
+
+    private final DataOutputStream out;
+    private final int width, height;
+    private final int bitDepth, bpp; // bits per sample, bytes per pixel
+    private final Deflater deflater;
+    private final byte[] deflateBuf = new byte[IDAT_CHUNK];
+    private final byte[] idat = new byte[IDAT_CHUNK];
+    private int idatLen;
+
+    private byte[] prev, cur; // unfiltered rows (RGBA samples, big-endian)
+    private final byte[][] cand = new byte[4][]; // filtered candidates incl. filter byte
+    private int rowsWritten;
+
+    public PngStreamWriter(Path file, int width, int height, int compressionLevel) throws IOException {
+        this(Files.newOutputStream(file), width, height, compressionLevel, 8);
+    }
+
+    public PngStreamWriter(Path file, int width, int height, int compressionLevel, int bitDepth)
+            throws IOException {
+        this(Files.newOutputStream(file), width, height, compressionLevel, bitDepth);
+    }
+
+    public PngStreamWriter(OutputStream os, int width, int height, int compressionLevel) throws IOException {
+        this(os, width, height, compressionLevel, 8);
+    }
+
+    /** @param bitDepth 8 (rows via {@link #writeRows}) or 16 (rows via {@link #writeRows16}) */
+    public PngStreamWriter(OutputStream os, int width, int height, int compressionLevel, int bitDepth)
+            throws IOException {
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException("bad size " + width + "x" + height);
+        if (bitDepth != 8 && bitDepth != 16)
+            throw new IllegalArgumentException("bit depth must be 8 or 16: " + bitDepth);
+        this.out = new DataOutputStream(new BufferedOutputStream(os, 1 << 16));
+        this.width = width;
+        this.height = height;
+        this.bitDepth = bitDepth;
+        this.bpp = bitDepth / 2; // four samples
+        this.deflater = new Deflater(Math.max(0, Math.min(9, compressionLevel)));
+        int rowBytes = width * bpp;
+        prev = new byte[rowBytes];
+        cur = new byte[rowBytes];
+        for (int i = 0; i < cand.length; i++)
+            cand[i] = new byte[rowBytes + 1];
+
+        out.write(SIGNATURE);
+        ChunkBuffer ihdr = new ChunkBuffer(13);
+        ihdr.putInt(width);
+        ihdr.putInt(height);
+        ihdr.put(bitDepth);
+        ihdr.put(6); // colour type RGBA
+        ihdr.put(0); // deflate
+        ihdr.put(0); // adaptive filtering
+        ihdr.put(0); // no interlace
+        writeChunk("IHDR", ihdr.buf, ihdr.len);
+    }
+
+    /** Append {@code rows} rows of packed ARGB pixels (scanline stride = {@code stride}). */
+    public void writeRows(int[] argb, int offset, int stride, int rows) throws IOException {
+        if (bitDepth != 8)
+            throw new IllegalStateException("writer is " + bitDepth + "-bit; use writeRows16");
+        for (int r = 0; r < rows; r++) {
+            checkRow();
+            int base = offset + r * stride;
+            for (int x = 0, i = 0; x < width; x++) {
+                int p = argb[base + x];
+                cur[i++] = (byte) (p >>> 16);
+                cur[i++] = (byte) (p >>> 8);
+                cur[i++] = (byte) p;
+                cur[i++] = (byte) (p >>> 24);
+            }
+            emitRow();
+        }
+    }
+
+    /**
+     * Append {@code rows} rows of 16-bit planar samples (one plane per channel,
+     * scanline stride = {@code stride}).
+     */
+    public void writeRows16(short[] red, short[] green, short[] blue, short[] alpha, int offset, int stride,
+            int rows) throws IOException {
+        if (bitDepth != 16)
+            throw new IllegalStateException("writer is " + bitDepth + "-bit; use writeRows");
+        for (int r = 0; r < rows; r++) {
+            checkRow();
+            int base = offset + r * stride;
+            for (int x = 0, i = 0; x < width; x++) {
+                int p = base + x;
+                cur[i++] = (byte) (red[p] >>> 8);
+                cur[i++] = (byte) red[p];
+                cur[i++] = (byte) (green[p] >>> 8);
+                cur[i++] = (byte) green[p];
+                cur[i++] = (byte) (blue[p] >>> 8);
+                cur[i++] = (byte) blue[p];
+                cur[i++] = (byte) (alpha[p] >>> 8);
+                cur[i++] = (byte) alpha[p];
+            }
+            emitRow();
+        }
+    }
+
+    private void checkRow() throws IOException {
+        if (rowsWritten >= height)
+            throw new IOException("more rows than declared height " + height);
+    }
+
+    private void emitRow() throws IOException {
+        byte[] best = filterRow(cur, rowsWritten == 0 ? null : prev);
+        deflate(best, 0, best.length);
+        byte[] t = prev;
+        prev = cur;
+        cur = t;
+        rowsWritten++;
+    }
+
+    public int rowsWritten() {
+        return rowsWritten;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (rowsWritten != height)
+                throw new IOException("PNG incomplete: " + rowsWritten + " of " + height + " rows written");
+            deflater.finish();
+            while (!deflater.finished()) {
+                int n = deflater.deflate(deflateBuf);
+                appendIdat(deflateBuf, n);
+            }
+            flushIdat();
+            writeChunk("IEND", new byte[0], 0);
+        } finally {
+            deflater.end();
+            out.close();
+        }
+    }
+
+    // ---- filtering ----
+
+    private byte[] filterRow(byte[] row, byte[] up) {
+        int n = row.length;
+        byte[] none = cand[0], sub = cand[1], upF = cand[2], paeth = cand[3];
+        none[0] = 0;
+        sub[0] = 1;
+        upF[0] = 2;
+        paeth[0] = 4;
+        long sNone = 0, sSub = 0, sUp = 0, sPaeth = 0;
+        for (int i = 0; i < n; i++) {
+            int x = row[i] & 0xFF;
+            int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+            int b = up != null ? up[i] & 0xFF : 0;
+            int c = (up != null && i >= bpp) ? up[i - bpp] & 0xFF : 0;
+
+            byte vN = (byte) x, vS = (byte) (x - a), vU = (byte) (x - b), vP = (byte) (x - paethPredictor(a, b, c));
+            none[i + 1] = vN;
+            sub[i + 1] = vS;
+            upF[i + 1] = vU;
+            paeth[i + 1] = vP;
+            sNone += Math.abs((int) vN);
+            sSub += Math.abs((int) vS);
+            sUp += Math.abs((int) vU);
+            sPaeth += Math.abs((int) vP);
+        }
+        byte[] best = none;
+        long bestSum = sNone;
+        if (sSub < bestSum) {
+            best = sub;
+            bestSum = sSub;
+        }
+        if (sUp < bestSum) {
+            best = upF;
+            bestSum = sUp;
+        }
+        if (sPaeth < bestSum)
+            best = paeth;
+        return best;
+    }
+
+    static int paethPredictor(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc)
+            return a;
+        return pb <= pc ? b : c;
+    }
+
+    // ---- chunk plumbing ----
+
+    private void deflate(byte[] data, int off, int len) throws IOException {
+        deflater.setInput(data, off, len);
+        while (!deflater.needsInput()) {
+            int n = deflater.deflate(deflateBuf);
+            if (n == 0)
+                break;
+            appendIdat(deflateBuf, n);
+        }
+    }
+
+    private void appendIdat(byte[] b, int n) throws IOException {
+        int off = 0;
+        while (n > 0) {
+            int k = Math.min(n, idat.length - idatLen);
+            System.arraycopy(b, off, idat, idatLen, k);
+            idatLen += k;
+            off += k;
+            n -= k;
+            if (idatLen == idat.length)
+                flushIdat();
+        }
+    }
+
+    private void flushIdat() throws IOException {
+        if (idatLen > 0) {
+            writeChunk("IDAT", idat, idatLen);
+            idatLen = 0;
+        }
+    }
+
+    private void writeChunk(String type, byte[] data, int len) throws IOException {
+        byte[] t = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(t);
+        crc.update(data, 0, len);
+        out.writeInt(len);
+        out.write(t);
+        out.write(data, 0, len);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /** Tiny big-endian byte builder for chunk payloads. */
+    private static final class ChunkBuffer {
+        final byte[] buf;
+        int len;
+
+        ChunkBuffer(int cap) {
+            buf = new byte[cap];
+        }
+
+        void put(int b) {
+            buf[len++] = (byte) b;
+        }
+
+        void putInt(int v) {
+            put(v >>> 24);
+            put(v >>> 16);
+            put(v >>> 8);
+            put(v);
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package io;
+
+import util.ArwReader;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+/**
+ * Catalogue of the embedded thumbnails of a directory of ARWs, for browsing a
+ * card without running the pipeline: one index file holding every thumbnail's
+ * JPEG bytes and an offset table, read through a memory map.
+ *
+ * Layout: a header, then JPEG blobs and offset tables, appended and never
+ * rewritten in place. An update appends the new and changed thumbnails and a
+ * fresh table, forces them to disk, then points the header at the new table;
+ * a run that dies halfway leaves the previous table in force (and its partial
+ * tail is cut off by the next update). Entries are keyed by path (relative to
+ * the catalogued directory) + mtime + size, so re-indexing a card only opens
+ * the files that are new or changed. When dead bytes (stale blobs, old tables)
+ * outweigh live ones, the live part is written to a new file that is renamed
+ * over the index atomically; readers that already mapped the old file keep a
+ * consistent view of it. Where the platform refuses to replace a file that is
+ * open or mapped elsewhere (Windows), compaction is skipped until a later
+ * update finds it free. Updaters exclude each other through a separate lock
+ * file, since the index itself is replaced.
+ *
+ * Extraction reads only each file's IFDs and its smallest embedded JPEG
+ * ({@link ArwReader#thumbnail}), on -DcatalogThreads threads (default 2x
+ * cores, it is I/O bound); the calling thread is the only writer.
+ */
+public final class ThumbnailCatalog {
+
+    private static final long MAGIC = 0x5250_4341_544C_4731L; // "RPCATLG1"
+    private static final int HEADER = 24; // magic, table offset, table end
+    private static final String DEFAULT_NAME = ".raw-catalog";
+
+    /**
+     * One catalogued file; {@code length} 0 means it has no embedded JPEG
+     * (recorded anyway, so it isn't opened again until it changes).
+     */
+    public record Entry(String path, long mtime, long size, long offset, int length) {
+    }
+
+    /** One extraction result; {@code error} set if the file couldn't be read. */
+    private record Extracted(String path, long mtime, long size, byte[] jpeg, Exception error) {
+    }
+
+    private final Path file;
+    private final List<Entry> entries; // sorted by path
+    private final MappedByteBuffer map; // the committed part of the file; null if empty
+
+    private ThumbnailCatalog(Path file, List<Entry> entries, MappedByteBuffer map) {
+        this.file = file;
+        this.entries = entries;
+        this.map = map;
+    }
+
+    /** The index file for {@code dir}: -DcatalogPath, else .raw-catalog inside it. */
+    public static Path indexFor(Path dir) {
+        String p = System.getProperty("catalogPath");
+        return p != null ? Path.of(p) : dir.resolve(DEFAULT_NAME);
+    }
+
+    /** Open an index read-only (an empty catalogue if there is none yet). */
+    public static ThumbnailCatalog open(Path index) throws IOException {
+        if (!Files.exists(index))
+            return new ThumbnailCatalog(index, List.of(), null);
+        try (FileChannel ch = FileChannel.open(index, StandardOpenOption.READ)) {
+            long[] hdr = header(ch);
+            if (hdr == null || hdr[1] == 0)
+                return new ThumbnailCatalog(index, List.of(), null);
+            if (hdr[1] > Integer.MAX_VALUE)
+                throw new IOException(index + ": catalogue over 2 GB; split the directory");
+            MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, hdr[1]);
+            return new ThumbnailCatalog(index, readTable(map, (int) hdr[0]), map);
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public Entry entry(int i) {
+        return entries.get(i);
+    }
+
+    /** The thumbnail's JPEG bytes as a read-only view of the map (no copy), or null if it has none. */
+    public ByteBuffer jpeg(int i) {
+        Entry e = entries.get(i);
+        if (e.length() == 0)
+            return null;
+        return map.slice((int) e.offset(), e.length()).asReadOnlyBuffer();
+    }
+
+    /** The thumbnail decoded, or null if it has none or it doesn't decode. */
+    public BufferedImage image(int i) {
+        ByteBuffer b = jpeg(i);
+        if (b == null)
+            return null;
+        byte[] bytes = new byte[b.remaining()];
+        b.get(bytes);
+        try {
+            return ImageIO.read(new ByteArrayInputStream(bytes));
+        } catch (IOException | RuntimeException e) {
+            return null; // a JPEG variant ImageIO can't read: shown as an empty cell
+        }
+    }
+
+    /**
+     * Page {@code page} (0-based) of {@code perPage} thumbnails as one contact
+     * sheet, each scaled into a {@code cell}-px square.
+     */
+    public BufferedImage contactSheet(int page, int perPage, int cell) {
+        int from = Math.min(entries.size(), page * perPage), to = Math.min(entries.size(), from + perPage);
+        int cols = (int) Math.ceil(Math.sqrt(Math.max(1, to - from)));
+        int rows = Math.max(1, (to - from + cols - 1) / cols);
+        BufferedImage sheet = new BufferedImage(cols * cell, rows * cell, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = sheet.createGraphics();
+        try {
+            g.setColor(Color.DARK_GRAY);
+            g.fillRect(0, 0, sheet.getWidth(), sheet.getHeight());
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            for (int i = from; i < to; i++) {
+                BufferedImage t = image(i);
+                if (t == null)
+                    continue;
+                double s = Math.min((cell - 4.0) / t.getWidth(), (cell - 4.0) / t.getHeight());
+                int w = Math.max(1, (int) (t.getWidth() * s)), h = Math.max(1, (int) (t.getHeight() * s));
+                int x = (i - from) % cols * cell + (cell - w) / 2, y = (i - from) / cols * cell + (cell - h) / 2;
+                g.drawImage(t, x, y, w, h, null);
+            }
+        } finally {
+            g.dispose();
+        }
+        return sheet;
+    }
+
+    // ---------------- indexing ----------------
+
+    /**
+     * Bring the index for {@code dir} up to date and return it opened.
+     * Prints a "Catalog: ..." summary.
+     */
+    public static ThumbnailCatalog update(Path dir) throws IOException, InterruptedException {
+        long t0 = System.nanoTime();
+        Path index = indexFor(dir);
+        List<Path> files;
+        try (Stream<Path> s = Files.walk(dir)) {
+            files = s.filter(p -> p.getFileName().toString().toLowerCase().endsWith(".arw"))
+                    .filter(Files::isRegularFile).sorted().toList();
+        }
+
+        Path lockFile = index.resolveSibling(index.getFileName() + ".lock");
+        try (FileChannel lc = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                FileLock lock = lc.tryLock()) {
+            if (lock == null)
+                throw new IOException(index + " is being updated by another process");
+            List<Entry> compactable = update(dir, index, files, t0);
+            if (compactable != null)
+                compact(index, compactable);
+        }
+        return open(index);
+    }
+
+    /** The update proper, under the caller's lock; returns the live entries if the file is worth compacting. */
+    private static List<Entry> update(Path dir, Path index, List<Path> files, long t0)
+            throws IOException, InterruptedException {
+        try (FileChannel ch = FileChannel.open(index, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // the committed table, read under the lock (another updater may have just committed)
+            long[] hdr = header(ch);
+            Map<String, Entry> old = new HashMap<>();
+            if (hdr != null && hdr[1] > 0)
+                for (Entry e : readTable(ch, hdr))
+                    old.put(e.path(), e);
+            long end = hdr != null && hdr[1] > 0 ? hdr[1] : HEADER;
+            if (hdr == null)
+                writeHeader(ch, 0, 0);
+            trim(ch, end); // drop the tail of an update that never committed
+
+            // unchanged entries are kept as they are; the rest are extracted in parallel
+            List<Entry> next = new ArrayList<>(files.size());
+            int threads = Integer.getInteger("catalogThreads",
+                    Math.min(32, 2 * Runtime.getRuntime().availableProcessors()));
+            ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+                Thread t = new Thread(r, "catalog-reader");
+                t.setDaemon(true);
+                return t;
+            });
+            int submitted = 0, failed = 0;
+            long extracted = 0;
+            try {
+                ExecutorCompletionService<Extracted> done = new ExecutorCompletionService<>(pool);
+                for (Path p : files) {
+                    BasicFileAttributes a = Files.readAttributes(p, BasicFileAttributes.class);
+                    String key = dir.relativize(p).toString().replace('\\', '/');
+                    long mtime = a.lastModifiedTime().toMillis(), size = a.size();
+                    Entry e = old.get(key);
+                    if (e != null && e.mtime() == mtime && e.size() == size) {
+                        next.add(e);
+                        continue;
+                    }
+                    submitted++;
+                    done.submit(() -> {
+                        try {
+                            return new Extracted(key, mtime, size, ArwReader.thumbnail(p), null);
+                        } catch (IOException | RuntimeException ex) {
+                            return new Extracted(key, mtime, size, null, ex);
+                        }
+                    });
+                }
+                // single writer: blobs are appended in completion order
+                long pos = end;
+                for (int k = 0; k < submitted; k++) {
+                    Extracted r = done.take().get();
+                    if (r.error() != null) {
+                        failed++; // not recorded: retried on the next update
+                        System.out.println("Catalog: skipped " + r.path() + ": " + r.error().getMessage());
+                        continue;
+                    }
+                    int len = r.jpeg() != null ? r.jpeg().length : 0;
+                    if (len > 0) {
+                        writeFully(ch, ByteBuffer.wrap(r.jpeg()), pos);
+                        extracted += len;
+                    }
+                    next.add(new Entry(r.path(), r.mtime(), r.size(), len > 0 ? pos : 0, len));
+                    pos += len;
+                }
+                next.sort((x, y) -> x.path().compareTo(y.path()));
+                if (submitted > 0 || next.size() != old.size()) { // else the committed table still holds
+                    ByteBuffer table = table(next);
+                    writeFully(ch, table, pos);
+                    ch.force(false);
+                    writeHeader(ch, pos, pos + table.capacity()); // commit
+                    ch.force(false);
+                    end = pos + table.capacity();
+                }
+            } catch (ExecutionException e) {
+                throw new IOException("catalog extraction failed", e.getCause());
+            } finally {
+                pool.shutdownNow();
+            }
+
+            long live = HEADER + table(next).capacity();
+            for (Entry e : next)
+                live += e.length();
+            Map<String, Entry> gone = new HashMap<>(old);
+            for (Entry e : next)
+                gone.remove(e.path());
+            int removed = gone.size();
+            System.out.printf("Catalog: %d files (%d new/changed, %d unchanged, %d removed, %d failed), "
+                    + "%d KB extracted in %.0f ms; index %d KB, %d%% dead%n", next.size(), submitted - failed,
+                    next.size() - (submitted - failed), removed, failed, extracted >> 10,
+                    (System.nanoTime() - t0) / 1e6, end >> 10, Math.round(100.0 * (end - live) / end));
+            return end - live > live && end - live > (1 << 20) ? next : null;
+        }
+    }
+
+    /**
+     * Write the live blobs and a fresh table to a new file and rename it over
+     * the index (caller holds the update lock; the index channel is closed).
+     * The old file is never rewritten, so a reader holding it mapped keeps
+     * valid bytes. If the rename is refused (the index is open or mapped
+     * elsewhere on Windows, or no atomic rename), the new file is dropped and
+     * the index stays as it is.
+     */
+    private static void compact(Path index, List<Entry> entries) throws IOException {
+        Path tmp = index.resolveSibling(index.getFileName() + ".tmp");
+        long size;
+        try (FileChannel src = FileChannel.open(index, StandardOpenOption.READ);
+                FileChannel dst = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            long pos = HEADER;
+            List<Entry> moved = new ArrayList<>(entries.size());
+            for (Entry e : entries) {
+                if (e.length() > 0)
+                    copy(src, e.offset(), dst, pos, e.length());
+                moved.add(new Entry(e.path(), e.mtime(), e.size(), e.length() > 0 ? pos : 0, e.length()));
+                pos += e.length();
+            }
+            ByteBuffer table = table(moved);
+            writeFully(dst, table, pos);
+            writeHeader(dst, pos, pos + table.capacity());
+            dst.force(false);
+            size = pos + table.capacity();
+        }
+        try {
+            Files.move(tmp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            System.out.println("Catalog: compaction skipped, index in use (" + e.getMessage() + ")");
+            return;
+        }
+        System.out.printf("Catalog: compacted to %d KB%n", size >> 10);
+    }
+
+    /** Copy {@code len} bytes from {@code src} at {@code from} to {@code dst} at {@code to}. */
+    private static void copy(FileChannel src, long from, FileChannel dst, long to, long len) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate((int) Math.min(len, 1 << 20));
+        for (long done = 0; done < len;) {
+            b.clear().limit((int) Math.min(b.capacity(), len - done));
+            while (b.hasRemaining())
+                if (src.read(b, from + done + b.position()) < 0)
+                    throw new IOException("catalogue truncated at " + (from + done + b.position()));
+            b.flip();
+            writeFully(dst, b, to + done);
+            done += b.limit();
+        }
+    }
+
+    /**
+     * Cut the file to {@code end}. Where another process still has the file
+     * mapped (Windows refuses to shrink it then) the dead tail is left for a
+     * later update: readers only look below the header's table end.
+     */
+    private static void trim(FileChannel ch, long end) throws IOException {
+        if (ch.size() <= end)
+            return;
+        try {
+            ch.truncate(end);
+        } catch (IOException e) {
+            System.out.println("Catalog: index in use elsewhere; leaving " + ((ch.size() - end) >> 10)
+                    + " KB dead tail");
+        }
+    }
+
+    // ---------------- file format ----------------
+
+    /** {table offset, table end} from the header, or null if the file has no valid header. */
+    private static long[] header(FileChannel ch) throws IOException {
+        if (ch.size() < HEADER)
+            return null;
+        ByteBuffer b = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        while (b.hasRemaining())
+            if (ch.read(b, b.position()) < 0)
+                return null;
+        if (b.getLong(0) != MAGIC)
+            throw new IOException("not a thumbnail catalogue");
+        long off = b.getLong(8), end = b.getLong(16);
+        return end <= ch.size() && off <= end ? new long[] { off, end } : null;
+    }
+
+    private static void writeHeader(FileChannel ch, long tableOffset, long tableEnd) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        b.putLong(MAGIC).putLong(tableOffset).putLong(tableEnd).flip();
+        writeFully(ch, b, 0);
+    }
+
+    /** count, then per entry: path length + UTF-8 path, mtime, size, offset, length. */
+    private static ByteBuffer table(List<Entry> entries) {
+        int bytes = 4;
+        List<byte[]> paths = new ArrayList<>(entries.size());
+        for (Entry e : entries) {
+            byte[] p = e.path().getBytes(StandardCharsets.UTF_8);
+            paths.add(p);
+            bytes += 2 + p.length + 8 + 8 + 8 + 4;
+        }
+        ByteBuffer b = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        b.putInt(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            Entry e = entries.get(i);
+            b.putShort((short) paths.get(i).length).put(paths.get(i));
+            b.putLong(e.mtime()).putLong(e.size()).putLong(e.offset()).putInt(e.length());
+        }
+        return b.flip();
+    }
+
+    /** The committed table read through the channel (no mapping). */
+    private static List<Entry> readTable(FileChannel ch, long[] hdr) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate((int) (hdr[1] - hdr[0]));
+        while (b.hasRemaining())
+            if (ch.read(b, hdr[0] + b.position()) < 0)
+                throw new IOException("catalogue table truncated");
+        return readTable(b, 0);
+    }
+
+    private static List<Entry> readTable(ByteBuffer map, int at) {
+        ByteBuffer b = map.duplicate().order(ByteOrder.LITTLE_ENDIAN).position(at);
+        int n = b.getInt();
+        List<Entry> out = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            byte[] p = new byte[b.getShort() & 0xFFFF];
+            b.get(p);
+            out.add(new Entry(new String(p, StandardCharsets.UTF_8), b.getLong(), b.getLong(), b.getLong(),
+                    b.getInt()));
+        }
+        return Collections.unmodifiableList(out);
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer b, long pos) throws IOException {
+        while (b.hasRemaining())
+            pos += ch.write(b, pos);
+    }
+
+    @Override
+    public String toString() {
+        return file + " (" + entries.size() + " thumbnails)";
+    }
+}
@@ -0,0 +1,207 @@
+package pipeline;
+
+import io.BandReader;
+import io.PngStreamWriter;
+import stages.ColorPipeline;
+import util.MappedFrame;
+import util.Planar16;
+import util.Tiles;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Out-of-core mode: input is read in horizontal bands, each band (plus the
+ * recipe's halo rows above and below) runs through the normal tile pipeline,
+ * and the finished core rows are streamed straight into a PNG. Peak memory
+ * depends on band height, not on image size.
+ *
+ * {@link #runMapped} is the alternative for gigapixel frames: decode once
+ * into a memory-mapped frame, run the tiled stages over it, stream it out.
+ */
+public final class BandStreamer {
+
+    private BandStreamer() {
+    }
+
+    /**
+     * True if decoding plus a full-size output would not comfortably fit the heap.
+     *
+     * @param deep frame held as 16-bit planes (8 bytes a pixel instead of 4)
+     */
+    public static boolean needsStreaming(Path input, boolean deep) {
+        try (BandReader r = BandReader.open(input)) {
+            long frameBytes = (long) r.width() * r.height() * (deep ? 8L : 4L);
+            return frameBytes * 3 > Runtime.getRuntime().maxMemory() * 7 / 10;
+        } catch (IOException e) {
+            return false; // let the normal loader report it
+        }
+    }
+
+    /** Band height so one band and its working copies use ~1/12 of the heap. */
+    public static int defaultBandRows(int width) {
+        long budget = Runtime.getRuntime().maxMemory() / 12;
+        long perRow = (long) width * 4L * 4L; // window + tiles + output + recipe temp
+        return (int) Math.max(64, Math.min(4096, budget / Math.max(1, perRow)));
+    }
+
+    public static void run(Path input, Path output, PipelineOrchestrator orch, int bright, int contrast,
+            Recipe recipe, int bandRows) throws IOException, InterruptedException {
+        run(input, output, orch, bright, contrast, null, recipe, bandRows);
+    }
+
+    /** @param color colour stage to run instead of plain brightness/contrast (null = none) */
+    public static void run(Path input, Path output, PipelineOrchestrator orch, int bright, int contrast,
+            ColorPipeline.Params color, Recipe recipe, int bandRows) throws IOException, InterruptedException {
+        if (recipe.resizes())
+            throw new IOException("whole-frame steps (resize, downsample) can't run per band");
+        long t0 = System.nanoTime();
+        try (BandReader r = BandReader.open(input)) {
+            final int W = r.width(), H = r.height();
+            final int halo = recipe.halo();
+            if (bandRows <= 0)
+                bandRows = defaultBandRows(W);
+            System.out.printf("Streaming %dx%d in bands of %d rows (halo %d)%n", W, H, bandRows, halo);
+
+            int[] carry = new int[0]; // rows [carryStart, r.position()) kept for the next band's top halo
+            int carryStart = 0;
+            int bands = 0;
+            // one pool, tuner and Stats line for the whole stream rather than per band
+            PipelineOrchestrator.Session session = orch.openSession("bandStream");
+            try (PngStreamWriter w = new PngStreamWriter(output, W, H, 6)) {
+                for (int y0 = 0; y0 < H; y0 += bandRows) {
+                    int y1 = Math.min(H, y0 + bandRows);
+                    int ws = Math.max(0, y0 - halo), we = Math.min(H, y1 + halo);
+
+                    int[] win = new int[(we - ws) * W];
+                    int have = r.position() - ws; // rows of the window already decoded
+                    System.arraycopy(carry, (ws - carryStart) * W, win, 0, have * W);
+                    r.nextInto(win, have * W, we - r.position());
+
+                    BufferedImage in = Tiles.wrapArgb(win, W, we - ws);
+                    BufferedImage band = color != null ? orch.process(in, color) : orch.process(in, bright, contrast);
+                    band = recipe.apply(orch, band);
+
+                    int[] core = band.getRGB(0, y0 - ws, W, y1 - y0, null, 0, W);
+                    w.writeRows(core, 0, W, y1 - y0);
+
+                    // the next band starts its window at y1 - halo
+                    carryStart = Math.max(ws, y1 - halo);
+                    carry = new int[(we - carryStart) * W];
+                    System.arraycopy(win, (carryStart - ws) * W, carry, 0, carry.length);
+                    bands++;
+                }
+            } finally {
+                session.close();
+            }
+            System.out.printf("Streamed %d bands in %.0f ms -> %s%n", bands, (System.nanoTime() - t0) / 1e6, output);
+        }
+    }
+
+    /**
+     * 16-bit version of {@link #run}: bands are decoded into planes (16-bit PNGs
+     * keep their depth), run through the 16-bit path and written as a 16-bit PNG.
+     */
+    public static void run16(Path input, Path output, PipelineOrchestrator orch, int bright, int contrast,
+            ColorPipeline.Params color, Recipe recipe, int bandRows) throws IOException, InterruptedException {
+        if (recipe.resizes())
+            throw new IOException("whole-frame steps (resize, downsample) can't run per band");
+        long t0 = System.nanoTime();
+        try (BandReader r = BandReader.open(input)) {
+            final int W = r.width(), H = r.height();
+            final int halo = recipe.halo();
+            if (bandRows <= 0)
+                bandRows = Math.max(64, defaultBandRows(W) / 2); // twice the bytes per pixel
+            System.out.printf("Streaming %dx%d 16-bit in bands of %d rows (halo %d)%n", W, H, bandRows, halo);
+
+            Planar16 carry = null; // rows [carryStart, r.position()) for the next band's top halo (null = none)
+            int carryStart = 0;
+            int bands = 0;
+            PipelineOrchestrator.Session session = orch.openSession("bandStream16");
+            try (PngStreamWriter w = new PngStreamWriter(output, W, H, 6, 16)) {
+                for (int y0 = 0; y0 < H; y0 += bandRows) {
+                    int y1 = Math.min(H, y0 + bandRows);
+                    int ws = Math.max(0, y0 - halo), we = Math.min(H, y1 + halo);
+
+                    Planar16 win = new Planar16(W, we - ws);
+                    int have = r.position() - ws;
+                    copyRows(carry, ws - carryStart, win, 0, have);
+                    r.nextInto16(win, have, we - r.position());
+
+                    Planar16 band = color != null ? orch.process(win, color) : orch.process(win, bright, contrast);
+                    band = recipe.apply(orch, band);
+                    w.writeRows16(band.r, band.g, band.b, band.a, (y0 - ws) * W, W, y1 - y0);
+
+                    carryStart = Math.max(ws, y1 - halo);
+                    carry = we > carryStart ? new Planar16(W, we - carryStart) : null;
+                    copyRows(win, carryStart - ws, carry, 0, we - carryStart);
+                    bands++;
+                }
+            } finally {
+                session.close();
+            }
+            System.out.printf("Streamed %d bands in %.0f ms -> %s%n", bands, (System.nanoTime() - t0) / 1e6, output);
+        }
+    }
+
+    private static void copyRows(Planar16 src, int srcRow, Planar16 dst, int dstRow, int rows) {
+        if (rows <= 0)
+            return;
+        int W = src.width, from = srcRow * W, to = dstRow * W, n = rows * W;
+        System.arraycopy(src.r, from, dst.r, to, n);
+        System.arraycopy(src.g, from, dst.g, to, n);
+        System.arraycopy(src.b, from, dst.b, to, n);
+        System.arraycopy(src.a, from, dst.a, to, n);
+    }
+
+    /**
+     * Decode into an off-heap mapped frame, run the colour stage over it tile by
+     * tile into a second mapped frame, then the recipe's fused tiled passes
+     * back and forth between the two, then stream the result to PNG. Steps that
+     * need the whole frame (resize, auto-planned denoise) are not supported here.
+     */
+    public static void runMapped(Path input, Path output, PipelineOrchestrator orch, int bright, int contrast,
+            ColorPipeline.Params color, Recipe recipe) throws IOException, InterruptedException {
+        if (recipe.resizes())
+            throw new IOException("whole-frame steps (resize, downsample) can't run on a mapped frame");
+        long t0 = System.nanoTime();
+        try (BandReader r = BandReader.open(input);
+                MappedFrame src = MappedFrame.createTemp(r.width(), r.height());
+                MappedFrame dst = MappedFrame.createTemp(r.width(), r.height())) {
+            final int W = r.width(), H = r.height();
+            final int rows = Math.max(1, Math.min(H, defaultBandRows(W)));
+            System.out.printf("Mapped %dx%d (%.1f MP) off-heap%n", W, H, src.pixels() / 1e6);
+
+            int[] buf = new int[rows * W];
+            for (int y = 0; y < H; y += rows) {
+                int n = Math.min(rows, H - y);
+                r.nextInto(buf, 0, n);
+                src.write(0, y, W, n, buf);
+            }
+
+            MappedFrame result;
+            PipelineOrchestrator.Session session = orch.openSession("mapped");
+            try {
+                if (color != null)
+                    orch.process(src, dst, color);
+                else
+                    orch.process(src, dst, bright, contrast);
+                result = orch.postProcess(dst, src, recipe.steps());
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e.getMessage());
+            } finally {
+                session.close();
+            }
+
+            try (PngStreamWriter w = new PngStreamWriter(output, W, H, 6)) {
+                for (int y = 0; y < H; y += rows) {
+                    int n = Math.min(rows, H - y);
+                    result.read(0, y, W, n, buf);
+                    w.writeRows(buf, 0, W, n);
+                }
+            }
+            System.out.printf("Mapped run in %.0f ms -> %s%n", (System.nanoTime() - t0) / 1e6, output);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package pipeline;
+
+import io.CubeReader;
+import stages.Convolution;
+import stages.CubeLut;
+import stages.Denoise;
+import stages.FiltersCPU;
+import stages.FiltersCPU16;
+import stages.FiltersCPUFast;
+import stages.GpuProcessor;
+import stages.Lut3D;
+import stages.Resize;
+import util.Planar16;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+/**
+ * The shell's own stages. Costs are rough single-core ns-per-pixel estimates
+ * (taps and arithmetic per pixel, scaled to a laptop-class core), not
+ * measurements; only their ratios matter to the planner.
+ */
+final class BuiltinStages {
+
+    private BuiltinStages() {
+    }
+
+    private interface Binder {
+        Stage.Op bind(String[] args, Stage.Context ctx);
+    }
+
+    private interface HaloOf {
+        int halo(String[] args);
+    }
+
+    private record Builtin(String name, String usage, Stage.Kind kind, HaloOf haloOf, Set<Stage.Backend> backends,
+            double costNsPerPixel, Binder binder) implements Stage {
+        @Override
+        public int halo(String[] args) {
+            return haloOf.halo(args);
+        }
+
+        @Override
+        public Op bind(String[] args, Context ctx) {
+            return binder.bind(args, ctx);
+        }
+    }
+
+    /** Array form of a filter: {@link Stage.Op#applyInto}. */
+    private interface Into {
+        void apply(int[] src, int[] dst, int w, int h);
+    }
+
+    /** A bound op from its parts ({@code into}/{@code cpu16}/{@code openCl} may be null). */
+    private record Bound(int halo, UnaryOperator<BufferedImage> cpu, Into into, UnaryOperator<Planar16> cpu16,
+            UnaryOperator<BufferedImage> openCl) implements Stage.Op {
+        Bound(int halo, UnaryOperator<BufferedImage> cpu, UnaryOperator<Planar16> cpu16,
+                UnaryOperator<BufferedImage> openCl) {
+            this(halo, cpu, null, cpu16, openCl);
+        }
+
+        @Override
+        public BufferedImage apply(BufferedImage src) {
+            return cpu.apply(src);
+        }
+
+        @Override
+        public void applyInto(int[] src, int[] dst, int w, int h) {
+            if (into != null)
+                into.apply(src, dst, w, h);
+            else
+                Stage.Op.super.applyInto(src, dst, w, h);
+        }
+
+        @Override
+        public UnaryOperator<Planar16> apply16() {
+            return cpu16;
+        }
+    }
+
+    private static final Set<Stage.Backend> CPU = EnumSet.of(Stage.Backend.CPU_SCALAR);
+    private static final Set<Stage.Backend> CPU_CL = EnumSet.of(Stage.Backend.CPU_SCALAR, Stage.Backend.OPENCL);
+
+    static List<Stage> all() {
+        return List.of(
+                new Builtin("brighten", "brighten <int>   e.g., brighten 10", Stage.Kind.POINTWISE, a -> 0, CPU_CL, 30,
+                        (a, c) -> brightnessContrast(parse(a, 0, 10), 0)),
+                new Builtin("contrast", "contrast <int>   e.g., contrast -5", Stage.Kind.POINTWISE, a -> 0, CPU_CL, 30,
+                        (a, c) -> brightnessContrast(0, parse(a, 0, 10))),
+                new Builtin("sharpen", "sharpen <float>  e.g., sharpen 0.6", Stage.Kind.NEIGHBOURHOOD, a -> 1, CPU,
+                        100, (a, c) -> {
+                            Convolution.Kernel k = FiltersCPU.sharpenKernel(parseF(a, 0, 0.6f));
+                            return convolution(k);
+                        }),
+                new Builtin("bw", "bw", Stage.Kind.POINTWISE, a -> 0, CPU, 45,
+                        (a, c) -> new Bound(0, FiltersCPUFast::toGray, FiltersCPUFast::toGrayInto,
+                                FiltersCPU16::toGray, null)),
+                new Builtin("invert", "invert", Stage.Kind.POINTWISE, a -> 0, CPU, 25,
+                        (a, c) -> new Bound(0, FiltersCPU::invert, FiltersCPU::invertInto,
+                                FiltersCPU16::invert, null)),
+                new Builtin("sepia", "sepia", Stage.Kind.POINTWISE, a -> 0, CPU, 30,
+                        (a, c) -> new Bound(0, FiltersCPU::sepia, FiltersCPU::sepiaInto,
+                                FiltersCPU16::sepia, null)),
+                new Builtin("blur", "blur <float>     e.g., blur 1.5", Stage.Kind.NEIGHBOURHOOD, a -> 1, CPU, 95,
+                        (a, c) -> {
+                            Convolution.Kernel k = FiltersCPU.blurKernel(parseF(a, 0, 1.0f));
+                            return convolution(k);
+                        }),
+                new Builtin("edge", "edge", Stage.Kind.NEIGHBOURHOOD, a -> 1, CPU, 175,
+                        (a, c) -> new Bound(1, FiltersCPU::edgeDetect, FiltersCPU::edgeDetectInto,
+                                FiltersCPU16::edgeDetect, null)),
+                new Builtin("lut", "lut <file.cube> [tetra|trilinear]", Stage.Kind.POINTWISE, a -> 0, CPU, 70,
+                        BuiltinStages::cubeLut),
+                new Builtin("denoise", "denoise [auto|bilateral|nlm] [sigma] [radius]  e.g., denoise auto 12",
+                        Stage.Kind.NEIGHBOURHOOD, BuiltinStages::denoiseHalo, CPU_CL, 400, BuiltinStages::denoise),
+                new Builtin("resize", "resize <WxH|edge|N%> [lanczos|bicubic|box]  e.g., resize 2048",
+                        Stage.Kind.GEOMETRY, a -> 0, CPU, 35, BuiltinStages::resize),
+                new Builtin("downsample", "downsample <n>   e.g., downsample 4", Stage.Kind.GEOMETRY, a -> 0, CPU,
+                        10, BuiltinStages::downsample));
+    }
+
+    /** Kernel built once per binding; every tile and both depths share it. */
+    private static Stage.Op convolution(Convolution.Kernel k) {
+        return new Bound(k.radius(), t -> FiltersCPU.convolve(t, k),
+                (src, dst, w, h) -> FiltersCPU.convolveInto(src, dst, w, h, k), t -> FiltersCPU16.convolve(t, k), null);
+    }
+
+    private static Stage.Op brightnessContrast(int bright, int contrast) {
+        short[] lut = FiltersCPU16.bcLut(bright, contrast);
+        return new Bound(0, t -> FiltersCPUFast.applyBrightnessContrast(t, bright, contrast),
+                (src, dst, w, h) -> FiltersCPUFast.applyBrightnessContrastInto(src, dst, w, h, bright, contrast),
+                t -> FiltersCPU16.applyLut(t, lut), t -> GpuProcessor.applyBrightnessContrast(t, bright, contrast));
+    }
+
+    /** "lut <file.cube> [tetra|trilinear]": parsed once per file. */
+    private static Stage.Op cubeLut(String[] args, Stage.Context ctx) {
+        if (args.length == 0)
+            throw new IllegalArgumentException("usage: lut <file.cube> [tetra|trilinear]");
+        CubeLut lut;
+        try {
+            lut = CubeReader.load(Paths.get(args[0]), ctx.orchestrator().log());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Lut3D.Interp mode = args.length > 1 ? Lut3D.Interp.parse(args[1]) : Lut3D.Interp.TETRAHEDRAL;
+        return new Bound(0, t -> lut.apply(t, mode), (src, dst, w, h) -> {
+            System.arraycopy(src, 0, dst, 0, w * h); // the LUT maps in place
+            lut.apply(dst, 0, w * h, mode);
+        }, t -> lut.apply(t, mode), null);
+    }
+
+    private static int denoiseHalo(String[] args) {
+        Denoise.Settings s = fixedDenoise(args);
+        return s != null ? s.halo() : Denoise.MAX_HALO;
+    }
+
+    /** Settings when a radius is given, else null (planned against the frame budget). */
+    private static Denoise.Settings fixedDenoise(String[] args) {
+        if (args.length <= 2)
+            return null;
+        String m = args[0].toLowerCase();
+        Denoise.Mode mode = m.equals("auto") ? Denoise.Mode.NLM : Denoise.Mode.parse(m);
+        int r = Math.max(1, Math.min(parse(args, 2, 3), Denoise.MAX_HALO - 1));
+        return new Denoise.Settings(mode, Math.max(0.5f, parseF(args, 1, 10f)), r);
+    }
+
+    /**
+     * "denoise [auto|bilateral|nlm] [strength] [radius]": without a radius the
+     * strongest setting that fits the frame budget is picked (--quality preview
+     * ~2 s, high ~20 s; -DdenoiseBudgetMs overrides). Bilateral has an OpenCL kernel.
+     */
+    private static Stage.Op denoise(String[] args, Stage.Context ctx) {
+        if (ctx.depth16())
+            throw new IllegalArgumentException("denoise runs on 8-bit images only (use --depth 8)");
+        Denoise.Settings s = fixedDenoise(args); // a given radius binds without looking at the pixels
+        if (s == null) {
+            String m = args.length > 0 ? args[0].toLowerCase() : "auto";
+            Denoise.Mode mode = m.equals("auto") ? null : Denoise.Mode.parse(m);
+            float strength = Math.max(0.5f, parseF(args, 1, 10f));
+            boolean high = "high".equalsIgnoreCase(ctx.quality());
+            long budget = Long.getLong("denoiseBudgetMs", high ? 20_000 : 2_000);
+            PrintStream log = ctx.orchestrator().log();
+            log.println("Denoise: no radius given; planning against the whole frame (computes it now)");
+            s = Denoise.plan(ctx.frame(), mode, strength, budget, ctx.workers(), high, log);
+        }
+        Denoise.Settings fs = s;
+        Denoise.Prepared p = Denoise.prepare(s); // weight tables once per binding, shared by every tile
+        return new Bound(s.halo(), t -> Denoise.apply(t, p), (src, dst, w, h) -> Denoise.applyInto(src, dst, w, h, p),
+                null,
+                s.mode() == Denoise.Mode.BILATERAL ? t -> GpuProcessor.bilateral(t, fs.strength(), fs.radius()) : null);
+    }
+
+    /** "resize <WxH | long edge | N%> [lanczos|bicubic|box]", row-parallel. */
+    private static Stage.Op resize(String[] args, Stage.Context ctx) {
+        if (args.length == 0)
+            throw new IllegalArgumentException("usage: resize <WxH | long edge | N%> [lanczos|bicubic|box]");
+        Resize.targetSize(1000, 1000, args[0]); // syntax check
+        Resize.Filter f = args.length > 1 ? Resize.Filter.parse(args[1]) : Resize.Filter.LANCZOS3;
+        PipelineOrchestrator orch = ctx.orchestrator();
+        return new Bound(0, src -> {
+            int[] size = Resize.targetSize(src.getWidth(), src.getHeight(), args[0]);
+            try {
+                return orch.resize(src, size[0], size[1], f);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return src;
+            }
+        }, null, null);
+    }
+
+    /** "downsample <n>": 1/n box reduction. */
+    private static Stage.Op downsample(String[] args, Stage.Context ctx) {
+        int n = parse(args, 0, 2);
+        PipelineOrchestrator orch = ctx.orchestrator();
+        return new Bound(0, src -> {
+            try {
+                return orch.downsample(src, n);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return src;
+            }
+        }, null, null);
+    }
+
+    private static int parse(String[] a, int i, int def) {
+        try {
+            return Integer.parseInt(a[i]);
+        } catch (Exception e) {
+            return def;
+        }
+    }
+
+    private static float parseF(String[] a, int i, float def) {
+        try {
+            return Float.parseFloat(a[i]);
+        } catch (Exception e) {
+            return def;
+        }
+    }
+}
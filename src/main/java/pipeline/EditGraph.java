@@ -0,0 +1,300 @@
+package pipeline;
+
+import util.BufferPool;
+import util.CancelToken;
+import util.Tiles;
+
+import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The shell's edit chain as a lazy, pull-based graph: one node per step on
+ * top of the source frame. Appending a step ({@link #then}) only binds it;
+ * pixels are computed when a region is asked for ({@link #region}), and then
+ * only the tiles that feed that region: each tile of a node pulls the tiles
+ * of its parent that cover it plus the step's halo (clipped to the frame,
+ * exactly as the tiled orchestrator cuts them, so results match a full run).
+ *
+ * Tile results are memoised per node in a shared LRU cache (-DroiCacheMB,
+ * default 256 or a quarter of the heap; tiles of -DroiTile px, default 256),
+ * so panning over the same edits or appending a step only computes what is new.
+ * Nodes are immutable: an edit makes a new graph, and a save pulls the whole
+ * frame ({@link #image}) from the same cache without copying anything first.
+ *
+ * Whole-frame steps (resize, downsample) can't be pulled per tile: their
+ * node computes its parent's whole image once on first use and serves tiles
+ * from the result.
+ */
+public final class EditGraph {
+
+    private static final int TILE = Math.max(32, Integer.getInteger("roiTile", 256));
+    private static final TileCache CACHE = new TileCache(
+            Long.getLong("roiCacheMB", Math.min(256, Runtime.getRuntime().maxMemory() >> 22)) << 20);
+    private static final AtomicLong IDS = new AtomicLong();
+
+    private final long id = IDS.incrementAndGet();
+    private final PipelineOrchestrator orch;
+    private final EditGraph parent; // null for the source
+    private final String label;
+    private final Stage.Op op; // null for the source
+    private final boolean tiled; // op runs per tile (else on the whole parent image)
+    private final Map<Long, FutureTask<int[]>> inFlight = new ConcurrentHashMap<>();
+    private BufferedImage whole; // source, or a whole-frame step's result once computed; guarded by this
+
+    private EditGraph(PipelineOrchestrator orch, EditGraph parent, String label, Stage.Op op, boolean tiled,
+            BufferedImage whole) {
+        this.orch = orch;
+        this.parent = parent;
+        this.label = label;
+        this.op = op;
+        this.tiled = tiled;
+        this.whole = whole;
+    }
+
+    /** A viewport in frame pixels (clipped when used). */
+    public record Region(int x, int y, int w, int h) {
+
+        /** "x y w h"; "all" (or nothing) is null, the whole frame. */
+        public static Region parse(String[] args) {
+            if (args.length == 0 || args[0].equalsIgnoreCase("all"))
+                return null;
+            if (args.length < 4)
+                throw new IllegalArgumentException("usage: view <x> <y> <w> <h> | view all");
+            try {
+                Region r = new Region(Integer.parseInt(args[0]), Integer.parseInt(args[1]),
+                        Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+                if (r.w <= 0 || r.h <= 0)
+                    throw new IllegalArgumentException("view size must be positive");
+                return r;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("usage: view <x> <y> <w> <h> | view all");
+            }
+        }
+
+        @Override
+        public String toString() {
+            return w + "x" + h + " at " + x + "," + y;
+        }
+    }
+
+    /** A graph with no edits over {@code src}. */
+    public static EditGraph of(BufferedImage src, PipelineOrchestrator orch) {
+        return new EditGraph(orch, null, "source", null, false, src);
+    }
+
+    /**
+     * This graph plus {@code step}; binds the step (IllegalArgumentException on
+     * bad arguments) but computes nothing, unless the stage plans from the
+     * pixels (denoise without a radius), which materialises this graph.
+     */
+    public EditGraph then(Recipe.Step step) {
+        Stage stage = StageRegistry.require(step.op());
+        Stage.Op bound = stage.bind(step.args(), orch.stageContext(this::image)); // frame only if the stage asks
+        String name = step.op() + (step.args().length > 0 ? " " + String.join(" ", step.args()) : "");
+        return new EditGraph(orch, this, name, bound, stage.tileable(), null);
+    }
+
+    /** The steps from the source, e.g. "source > blur 2 > sharpen 0.6". */
+    @Override
+    public String toString() {
+        return parent == null ? label : parent + " > " + label;
+    }
+
+    public int width() {
+        return tiled ? parent.width() : materialised().getWidth();
+    }
+
+    public int height() {
+        return tiled ? parent.height() : materialised().getHeight();
+    }
+
+    /** The whole frame (a save): the same pull as {@link #region} over everything. */
+    public BufferedImage image() {
+        if (!tiled)
+            return materialised();
+        return region(0, 0, width(), height());
+    }
+
+    /** {@code view} (null = the whole frame). */
+    public BufferedImage region(Region view) {
+        return view == null ? image() : region(view.x(), view.y(), view.w(), view.h());
+    }
+
+    /**
+     * Pixels [x, x+w) x [y, y+h) (clipped to the frame), computing only the
+     * tiles of each node that feed them. Cancellable between tiles.
+     */
+    public BufferedImage region(int x, int y, int w, int h) {
+        int W = width(), H = height();
+        int x0 = Math.max(0, Math.min(W - 1, x)), y0 = Math.max(0, Math.min(H - 1, y));
+        int x1 = Math.max(x0 + 1, Math.min(W, x + w)), y1 = Math.max(y0 + 1, Math.min(H, y + h));
+        int rw = x1 - x0, rh = y1 - y0;
+        long t0 = System.nanoTime(), computed0 = CACHE.computed.sum(), hits0 = CACHE.hits.sum();
+
+        // tiles of this node under the region, pulled in parallel; each pulls its parents' tiles
+        int tx0 = x0 / TILE, ty0 = y0 / TILE, cols = (x1 - 1) / TILE - tx0 + 1, rows = (y1 - 1) / TILE - ty0 + 1;
+        int[] out = new int[rw * rh];
+        ThreadPoolExecutor exec = orch.rowPool();
+        try {
+            PipelineOrchestrator.rows(exec, cols * rows, (i0, i1) -> {
+                for (int i = i0; i < i1; i++) {
+                    int tx = tx0 + i % cols, ty = ty0 + i / cols;
+                    copyTile(tx, ty, x0, y0, rw, rh, out);
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("interrupted");
+        } finally {
+            orch.releaseRowPool(exec);
+        }
+        orch.log().printf("ROI: %dx%d at %d,%d of %s: %d tiles computed, %d cached, %d ms (cache %s)%n", rw, rh,
+                x0, y0, label, CACHE.computed.sum() - computed0, CACHE.hits.sum() - hits0,
+                Math.round((System.nanoTime() - t0) / 1e6), CACHE.stats());
+        return Tiles.wrapArgb(out, rw, rh);
+    }
+
+    // ---------------- tiles ----------------
+
+    /** Copy the part of tile (tx, ty) inside the rect at (rx, ry), rw x rh, into {@code dst} (stride rw). */
+    private void copyTile(int tx, int ty, int rx, int ry, int rw, int rh, int[] dst) {
+        int W = width(), H = height();
+        int x = tx * TILE, y = ty * TILE, w = Math.min(TILE, W - x), h = Math.min(TILE, H - y);
+        int cx0 = Math.max(x, rx), cy0 = Math.max(y, ry);
+        int cx1 = Math.min(x + w, rx + rw), cy1 = Math.min(y + h, ry + rh);
+        if (cx0 >= cx1 || cy0 >= cy1)
+            return;
+        if (!tiled) { // straight from the whole image
+            materialised().getRGB(cx0, cy0, cx1 - cx0, cy1 - cy0, dst, (cy0 - ry) * rw + cx0 - rx, rw);
+            return;
+        }
+        int[] t = tile(tx, ty);
+        for (int yy = cy0; yy < cy1; yy++)
+            System.arraycopy(t, (yy - y) * w + cx0 - x, dst, (yy - ry) * rw + cx0 - rx, cx1 - cx0);
+    }
+
+    /** Tile (tx, ty) of this node, from the cache or computed once (concurrent askers share the work). */
+    private int[] tile(int tx, int ty) {
+        long key = (long) tx << 32 | ty;
+        while (true) {
+            int[] t = CACHE.get(id, key);
+            if (t != null)
+                return t;
+            FutureTask<int[]> task = new FutureTask<>(() -> compute(tx, ty));
+            FutureTask<int[]> running = inFlight.putIfAbsent(key, task);
+            if (running == null) {
+                try {
+                    task.run();
+                } finally {
+                    inFlight.remove(key, task);
+                }
+                running = task;
+            }
+            try {
+                return running.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof CancellationException ce && running != task
+                        && !CancelToken.current().isCancelled())
+                    continue; // the other asker was cancelled, not us: compute it ourselves
+                if (e.getCause() instanceof RuntimeException re)
+                    throw re;
+                throw new IllegalStateException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("interrupted");
+            }
+        }
+    }
+
+    /** Run the step on the parent's pixels under tile (tx, ty) plus the halo, keep the core. */
+    private int[] compute(int tx, int ty) {
+        CancelToken.checkpoint();
+        int W = width(), H = height(), halo = op.halo();
+        int x = tx * TILE, y = ty * TILE, w = Math.min(TILE, W - x), h = Math.min(TILE, H - y);
+        int x0 = Math.max(0, x - halo), y0 = Math.max(0, y - halo);
+        int rw = Math.min(W, x + w + halo) - x0, rh = Math.min(H, y + h + halo) - y0;
+
+        BufferPool pool = BufferPool.shared();
+        int[] in = pool.acquire(rw * rh), res = pool.acquire(rw * rh);
+        try {
+            parent.read(x0, y0, rw, rh, in);
+            op.applyInto(in, res, rw, rh);
+            int[] t = new int[w * h];
+            for (int yy = 0; yy < h; yy++)
+                System.arraycopy(res, (y - y0 + yy) * rw + x - x0, t, yy * w, w);
+            CACHE.put(id, (long) tx << 32 | ty, t);
+            return t;
+        } finally {
+            pool.release(in);
+            pool.release(res);
+        }
+    }
+
+    /** Pixels [x, x+w) x [y, y+h) (inside the frame) into {@code dst} (stride w), from this node's tiles. */
+    private void read(int x, int y, int w, int h, int[] dst) {
+        if (!tiled) {
+            materialised().getRGB(x, y, w, h, dst, 0, w);
+            return;
+        }
+        for (int ty = y / TILE; ty <= (y + h - 1) / TILE; ty++)
+            for (int tx = x / TILE; tx <= (x + w - 1) / TILE; tx++)
+                copyTile(tx, ty, x, y, w, h, dst);
+    }
+
+    /** The source, or a whole-frame step run once on its parent's whole image. */
+    private synchronized BufferedImage materialised() {
+        if (whole == null)
+            whole = op.apply(parent.image());
+        return whole;
+    }
+
+    // ---------------- cache ----------------
+
+    /** LRU over (node, tile) within a byte budget, shared by every graph. */
+    private static final class TileCache {
+        private record Key(long node, long tile) {
+        }
+
+        private final long maxBytes;
+        private final LinkedHashMap<Key, int[]> map = new LinkedHashMap<>(256, 0.75f, true);
+        private long bytes;
+        final LongAdder hits = new LongAdder(), computed = new LongAdder();
+
+        TileCache(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized int[] get(long node, long tile) {
+            int[] t = map.get(new Key(node, tile));
+            if (t != null)
+                hits.increment();
+            return t;
+        }
+
+        synchronized void put(long node, long tile, int[] t) {
+            computed.increment();
+            int[] old = map.put(new Key(node, tile), t);
+            bytes += 4L * t.length - (old != null ? 4L * old.length : 0);
+            var it = map.values().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                int[] v = it.next();
+                if (v == t)
+                    break; // never evict what was just computed
+                bytes -= 4L * v.length;
+                it.remove();
+            }
+        }
+
+        synchronized String stats() {
+            return map.size() + " tiles, " + (bytes >> 20) + " MB";
+        }
+    }
+}
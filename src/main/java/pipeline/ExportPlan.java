@@ -0,0 +1,198 @@
+package pipeline;
+
+import io.ExportWriter;
+import io.Planar16Writer;
+import stages.Resize;
+import util.Planar16;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Several outputs from one processed frame, e.g.
+ * "full.png; web.jpg size=2048 quality=85; thumb.png size=256 level=9".
+ *
+ * Outputs are separated by ';'. Each is a path (format from the extension)
+ * followed by optional key=value settings: size (WxH, long edge or N%),
+ * filter (lanczos | bicubic | box), level (PNG deflate 0..9) and quality
+ * (JPEG 1..100). The frame is decoded and processed once; every output is a
+ * branch (resize + encode) reading the same shared frame, and the branches
+ * run concurrently on one row pool.
+ */
+public final class ExportPlan {
+
+    /** One requested output; {@code size} null = full size, {@code level} -1 = format default. */
+    public record Output(Path path, String size, Resize.Filter filter, int level) {
+    }
+
+    /** What one branch produced and where its time went. */
+    public record Result(Path path, int width, int height, long resizeMs, long encodeMs, long bytes) {
+    }
+
+    /** Box-reduce first when shrinking by this much or more, then resample the rest. */
+    private static final int REDUCE_GAP = 4;
+
+    private final List<Output> outputs;
+
+    private ExportPlan(List<Output> outputs) {
+        this.outputs = outputs;
+    }
+
+    public static ExportPlan parse(String spec) {
+        List<Output> outs = new ArrayList<>();
+        for (String part : spec.split(";")) {
+            String[] t = part.trim().split("\\s+");
+            if (t[0].isEmpty())
+                continue;
+            String size = null;
+            Resize.Filter filter = Resize.Filter.LANCZOS3;
+            int level = -1;
+            for (int i = 1; i < t.length; i++) {
+                int eq = t[i].indexOf('=');
+                if (eq < 0)
+                    throw new IllegalArgumentException("export setting must be key=value: " + t[i]);
+                String k = t[i].substring(0, eq).toLowerCase(), v = t[i].substring(eq + 1);
+                switch (k) {
+                    case "size" -> {
+                        Resize.targetSize(1000, 1000, v); // syntax check before any work
+                        size = v;
+                    }
+                    case "filter" -> filter = Resize.Filter.parse(v);
+                    case "level", "quality" -> {
+                        try {
+                            level = Integer.parseInt(v);
+                        } catch (NumberFormatException e) {
+                            throw new IllegalArgumentException(k + " must be an integer: " + v);
+                        }
+                    }
+                    default -> throw new IllegalArgumentException("unknown export setting: " + k);
+                }
+            }
+            outs.add(new Output(Paths.get(t[0]), size, filter, level));
+        }
+        if (outs.isEmpty())
+            throw new IllegalArgumentException("export needs at least one output");
+        return new ExportPlan(List.copyOf(outs));
+    }
+
+    public List<Output> outputs() {
+        return outputs;
+    }
+
+    /** The plan in spec syntax with absolute paths (for a server in another working directory). */
+    public String toAbsoluteSpec() {
+        StringBuilder sb = new StringBuilder();
+        for (Output o : outputs) {
+            if (sb.length() > 0)
+                sb.append("; ");
+            sb.append(o.path().toAbsolutePath());
+            if (o.size() != null)
+                sb.append(" size=").append(o.size());
+            if (o.filter() != Resize.Filter.LANCZOS3)
+                sb.append(" filter=").append(o.filter().name().toLowerCase());
+            if (o.level() >= 0)
+                sb.append(" level=").append(o.level());
+        }
+        return sb.toString();
+    }
+
+    public List<Result> run(PipelineOrchestrator orch, BufferedImage img) throws IOException, InterruptedException {
+        return run(orch, img, null);
+    }
+
+    /**
+     * Run every branch concurrently and print per-output timing.
+     *
+     * @param img   8-bit frame; may be null when {@code img16} is given
+     * @param img16 16-bit frame (or null); full-size PNG/TIFF outputs are
+     *              written from it, everything else from {@code img}
+     */
+    public List<Result> run(PipelineOrchestrator orch, BufferedImage img, Planar16 img16)
+            throws IOException, InterruptedException {
+        long t0 = System.nanoTime();
+        if (img == null && outputs.stream().anyMatch(o -> !deep(img16, o)))
+            img = img16.toImage8(); // resized and 8-bit-only outputs
+        final BufferedImage frame = img;
+        final ThreadPoolExecutor rowPool = orch.rowPool(); // one pool for every branch's passes
+        AtomicInteger n = new AtomicInteger();
+        ExecutorService branches = Executors.newFixedThreadPool(outputs.size(), r -> {
+            Thread t = new Thread(r, "export-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        List<Result> results = new ArrayList<>();
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (Output o : outputs)
+                futures.add(branches.submit(() -> branch(orch, rowPool, frame, img16, o)));
+            for (Future<Result> f : futures) {
+                try {
+                    results.add(f.get());
+                } catch (ExecutionException e) {
+                    Throwable c = e.getCause();
+                    if (c instanceof IOException io)
+                        throw io;
+                    if (c instanceof InterruptedException ie)
+                        throw ie;
+                    if (c instanceof RuntimeException re)
+                        throw re;
+                    throw new IOException(c);
+                }
+            }
+        } finally {
+            branches.shutdownNow();
+            orch.releaseRowPool(rowPool);
+        }
+
+        long branchMs = 0;
+        for (Result r : results) {
+            branchMs += r.resizeMs() + r.encodeMs();
+            System.out.printf("Export: %s %dx%d resize %d ms, encode %d ms, %d KB%n", r.path(), r.width(),
+                    r.height(), r.resizeMs(), r.encodeMs(), (r.bytes() + 512) / 1024);
+        }
+        System.out.printf("Export: %d outputs in %d ms (branches sum %d ms)%n", results.size(),
+                Math.round((System.nanoTime() - t0) / 1e6), branchMs);
+        return results;
+    }
+
+    /** Written straight from the 16-bit frame (full-size PNG/TIFF)? */
+    private static boolean deep(Planar16 img16, Output o) {
+        return img16 != null && o.size() == null && Planar16Writer.supports16(o.path());
+    }
+
+    private static Result branch(PipelineOrchestrator orch, ThreadPoolExecutor rowPool, BufferedImage img,
+            Planar16 img16, Output o) throws IOException, InterruptedException {
+        long t0 = System.nanoTime();
+        if (deep(img16, o)) {
+            Planar16Writer.write(img16, o.path());
+            long ms = Math.round((System.nanoTime() - t0) / 1e6);
+            return new Result(o.path(), img16.width, img16.height, 0, ms, o.path().toFile().length());
+        }
+
+        BufferedImage out = img;
+        if (o.size() != null) {
+            int[] size = Resize.targetSize(img.getWidth(), img.getHeight(), o.size());
+            // large reductions: cheap integer box pass first, keeping >= 2x for the filter
+            int ratio = Math.min(img.getWidth() / size[0], img.getHeight() / size[1]);
+            if (ratio >= REDUCE_GAP)
+                out = orch.downsample(out, ratio / 2, rowPool);
+            if (out.getWidth() != size[0] || out.getHeight() != size[1])
+                out = orch.resize(out, size[0], size[1], o.filter(), rowPool);
+        }
+        long t1 = System.nanoTime();
+        long bytes = ExportWriter.write(out, o.path(), o.level());
+        long t2 = System.nanoTime();
+        return new Result(o.path(), out.getWidth(), out.getHeight(), Math.round((t1 - t0) / 1e6),
+                Math.round((t2 - t1) / 1e6), bytes);
+    }
+}
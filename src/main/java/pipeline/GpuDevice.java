@@ -0,0 +1,68 @@
+package pipeline;
+
+import stages.FiltersCPUFast;
+import stages.GpuProcessor;
+
+import java.awt.image.BufferedImage;
+import java.util.function.UnaryOperator;
+
+/**
+ * The second device for heterogeneous scheduling: the OpenCL path, or a
+ * simulated accelerator for machines without one.
+ *
+ * -DsimulateGpu=<MP/s> runs the CPU filter on the GPU worker thread and pads
+ * each tile to the given throughput, so the scheduler can be exercised
+ * anywhere. -DclDevice=cpu uses a CPU OpenCL runtime instead.
+ */
+final class GpuDevice {
+
+    private final double simulatedMps; // 0 = real OpenCL
+
+    private GpuDevice(double simulatedMps) {
+        this.simulatedMps = simulatedMps;
+    }
+
+    /** Null if neither a simulated nor a real OpenCL device is available. */
+    static GpuDevice open() {
+        String sim = System.getProperty("simulateGpu");
+        if (sim != null) {
+            try {
+                double mps = Double.parseDouble(sim.trim());
+                if (mps > 0)
+                    return new GpuDevice(mps);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return GpuProcessor.isAvailable() ? new GpuDevice(0) : null;
+    }
+
+    String name() {
+        return simulatedMps > 0 ? String.format("simulated(%.0f MP/s)", simulatedMps) : "opencl";
+    }
+
+    BufferedImage applyBrightnessContrast(BufferedImage tile, int brightness, int contrast)
+            throws InterruptedException {
+        if (simulatedMps <= 0)
+            return GpuProcessor.applyBrightnessContrast(tile, brightness, contrast);
+        long t0 = System.nanoTime();
+        return padToRate(FiltersCPUFast.applyBrightnessContrast(tile, brightness, contrast), t0);
+    }
+
+    /** A stage group's OpenCL kernels; the simulated device runs the CPU version instead. */
+    BufferedImage apply(BufferedImage tile, UnaryOperator<BufferedImage> cpu, UnaryOperator<BufferedImage> kernels)
+            throws InterruptedException {
+        if (simulatedMps <= 0)
+            return kernels.apply(tile);
+        long t0 = System.nanoTime();
+        return padToRate(cpu.apply(tile), t0);
+    }
+
+    /** Simulated device: sleep until the tile took as long as it would at the configured rate. */
+    private BufferedImage padToRate(BufferedImage out, long t0) throws InterruptedException {
+        long targetNs = (long) ((double) out.getWidth() * out.getHeight() / simulatedMps * 1e3);
+        long leftNs = targetNs - (System.nanoTime() - t0);
+        if (leftNs > 0)
+            Thread.sleep(leftNs / 1_000_000L, (int) (leftNs % 1_000_000L));
+        return out;
+    }
+}
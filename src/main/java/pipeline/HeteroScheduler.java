@@ -0,0 +1,139 @@
+package pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shares one frame's tiles between the CPU pool and a GPU worker.
+ *
+ * CPU workers take from the head of the queue, the GPU from the tail, in
+ * batches sized by its share of the live measured throughput (EWMA of ns per
+ * pixel per device). Near the end of the frame a device only takes a tile if
+ * it is predicted to finish it before the other device could, so the slow
+ * device doesn't hold up the last tile.
+ */
+final class HeteroScheduler {
+
+    private static final double ALPHA = 0.3; // EWMA weight of the newest sample
+    private static final int MAX_GPU_BATCH = 8;
+
+    private final LinkedBlockingDeque<TileTask> pending = new LinkedBlockingDeque<>();
+
+    // 0 = not measured yet
+    private volatile double cpuNsPerPx; // per CPU worker
+    private volatile double gpuNsPerPx;
+    private volatile long gpuBusyUntil;
+    private volatile boolean gpuActive;
+    private final AtomicInteger deferred = new AtomicInteger(); // CPU pulls that left a tile to the GPU
+
+    private long cpuTiles, gpuTiles;
+
+    void offer(TileTask t) {
+        pending.addLast(t);
+    }
+
+    /** Put back tiles a device could not run (e.g. GPU revoked mid-batch). */
+    void requeue(TileTask t) {
+        pending.addFirst(t);
+    }
+
+    int queued() {
+        return pending.size();
+    }
+
+    void setGpuActive(boolean active) {
+        gpuActive = active;
+    }
+
+    boolean gpuActive() {
+        return gpuActive;
+    }
+
+    /** Next tile for a CPU worker, or null if none (or the GPU should take it). */
+    TileTask pollCpu(int cpuWorkers) {
+        if (gpuActive && gpuNsPerPx > 0 && cpuNsPerPx > 0 && pending.size() <= cpuWorkers) {
+            TileTask head = pending.peekFirst();
+            if (head == null)
+                return null;
+            long now = System.nanoTime();
+            double gpuDone = Math.max(now, gpuBusyUntil) + head.pixels() * gpuNsPerPx;
+            double cpuDone = now + head.pixels() * cpuNsPerPx;
+            if (gpuDone < cpuDone) {
+                deferred.incrementAndGet(); // the pull is spent: re-issued if the GPU declines the tile
+                return null; // leave the tail tile for the faster GPU
+            }
+        }
+        return pending.pollFirst();
+    }
+
+    /**
+     * CPU pulls given up to the GPU since the last call. Each pull runs once,
+     * so the GPU must re-issue them when it declines the tail, or the frame
+     * waits on tiles nobody will take.
+     */
+    int takeDeferred() {
+        return deferred.getAndSet(0);
+    }
+
+    /** Next GPU batch from the tail; waits briefly if the producer is still filling. */
+    List<TileTask> pollGpu(int cpuWorkers) throws InterruptedException {
+        List<TileTask> batch = new ArrayList<>();
+        int queued = pending.size();
+        if (queued == 0) {
+            TileTask t = pending.pollLast(2, TimeUnit.MILLISECONDS);
+            if (t != null)
+                batch.add(t);
+            return batch;
+        }
+
+        double g = gpuNsPerPx, c = cpuNsPerPx;
+        int n;
+        if (g > 0 && c > 0) {
+            if (queued <= cpuWorkers) {
+                // Tail of the frame: one at a time, and only if we would win the race.
+                TileTask tail = pending.peekLast();
+                if (tail == null || tail.pixels() * g > tail.pixels() * c)
+                    return batch;
+                n = 1;
+            } else {
+                double gpuRate = 1.0 / g, cpuRate = Math.max(1, cpuWorkers) / c;
+                double share = gpuRate / (gpuRate + cpuRate);
+                n = (int) Math.round(share * queued / 2);
+            }
+        } else {
+            n = 1; // nothing measured yet: probe with single tiles
+        }
+        n = Math.max(1, Math.min(MAX_GPU_BATCH, n));
+        long est = 0;
+        for (int i = 0; i < n; i++) {
+            TileTask t = pending.pollLast();
+            if (t == null)
+                break;
+            batch.add(t);
+            est += (long) (t.pixels() * g);
+        }
+        gpuBusyUntil = System.nanoTime() + est;
+        return batch;
+    }
+
+    synchronized void recordCpu(long pixels, long ns) {
+        cpuNsPerPx = ewma(cpuNsPerPx, ns / (double) Math.max(1, pixels));
+        cpuTiles++;
+    }
+
+    synchronized void recordGpu(long pixels, long ns) {
+        gpuNsPerPx = ewma(gpuNsPerPx, ns / (double) Math.max(1, pixels));
+        gpuTiles++;
+    }
+
+    synchronized String summary() {
+        return String.format("cpuTiles=%d gpuTiles=%d", cpuTiles, gpuTiles);
+    }
+
+    private static double ewma(double prev, double sample) {
+        return prev == 0 ? sample : prev + ALPHA * (sample - prev);
+    }
+}
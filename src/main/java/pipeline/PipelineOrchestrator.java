@@ -1,56 +1,141 @@
 package pipeline;
 
-import hw.BatteryMonitor;
 import hw.MemoryGuard;
+import hw.PowerService;
+import hw.PowerState;
+import stages.ColorPipeline;
+import stages.FiltersCPU16;
 import stages.FiltersCPUFast;
-import stages.GpuProcessor;
+import stages.Lut3D;
+import stages.Resize;
+import util.BufferPool;
+import util.CancelToken;
+import util.MachineProfile;
+import util.MappedFrame;
+import util.Planar16;
 import util.Tiles;
+import util.SpillReadAhead;
 import util.SpillStore;
 
 import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 
 public class PipelineOrchestrator {
 
     private final boolean onACStart;
     private final int batteryStart;
     private final boolean userWantsGPU; // what user requested (flag/property/CLI)
-    @SuppressWarnings("unused")
-    private final String quality;
+    private final String quality; // "preview" | "high": sets the per-frame budget of adaptive stages
 
     // live GPU permission based on power policy (updated by scaler thread)
     private volatile boolean gpuAllowed;
 
     private final int cores = Math.max(1, Runtime.getRuntime().availableProcessors());
 
+    // where Plan/Stats/Scaler/Resize lines go (VerifyHarness silences its own orchestrators)
+    private PrintStream log = System.out;
+
+    // long-lived tile pool shared by concurrent process() calls (daemon); null = one pool per call
+    private final ThreadPoolExecutor sharedPool;
+    private final int sharedPoolSize; // owner's size; only ever capped by the power ceiling
+
     public PipelineOrchestrator(boolean onAC, int battery, boolean useGPU, String quality) {
+        this(onAC, battery, useGPU, quality, null);
+    }
+
+    /**
+     * @param sharedPool warm pool from {@link #newTilePool(int)} to reuse across
+     *                   calls; its size is left to the owner (no per-call tuning)
+     */
+    public PipelineOrchestrator(boolean onAC, int battery, boolean useGPU, String quality,
+            ThreadPoolExecutor sharedPool) {
+        this.sharedPool = sharedPool;
+        this.sharedPoolSize = sharedPool != null ? sharedPool.getCorePoolSize() : 0;
         this.onACStart = onAC;
         this.batteryStart = battery;
         this.userWantsGPU = useGPU;
         this.quality = quality;
 
         // Initial GPU policy: if user asked for GPU AND (on AC or battery >= 30)
-        this.gpuAllowed = decideGpuAllowed(onACStart, batteryStart, userWantsGPU);
+        this.gpuAllowed = decideGpuAllowed(onACStart, batteryStart, PowerService.get().snapshot().thermal(),
+                userWantsGPU);
+    }
+
+    /** Drop this orchestrator's per-call log lines; returns {@code this}. */
+    PipelineOrchestrator quiet() {
+        log = new PrintStream(OutputStream.nullOutputStream());
+        return this;
+    }
+
+    /** Where this orchestrator's log lines go (also used by {@link EditGraph} and {@link Stacker}). */
+    PrintStream log() {
+        return log;
     }
 
     // ---- policy helpers ----
-    private int threadsFromPolicy(boolean onAC, int battery) {
+    private static final String OP_BRIGHTNESS_CONTRAST = "brightnessContrast";
+    private static final String OP_COLOR_LUT = "colorLut";
+    private static final int BANDS_PER_THREAD = 4; // row-parallel passes
+    private static final long SAMPLE_MS = 20; // throughput sampling period
+    private static final long LOG_MS = 500; // at most one resize line per this
+
+    /**
+     * Upper bound on pool size allowed by the power policy (the tuner works below it).
+     * Heat caps it further: a throttled CPU gains nothing from extra threads but heat.
+     */
+    private int threadsFromPolicy(boolean onAC, int battery, PowerState.Thermal thermal) {
+        int n;
         if (onAC || battery >= 80)
-            return Math.min(cores * 2, cores + 4);
-        if (battery >= 40)
-            return cores;
-        return Math.max(1, cores / 2);
+            n = Math.min(cores * 2, cores + 4);
+        else if (battery >= 40)
+            n = cores;
+        else
+            n = Math.max(1, cores / 2);
+        return switch (thermal) {
+            case NOMINAL -> n;
+            case WARM -> Math.min(n, Math.max(1, cores * 3 / 4));
+            case HOT -> Math.min(n, Math.max(1, cores / 2));
+        };
+    }
+
+    /** Tile pool as process() uses it: bounded hand-off queue, caller runs tiles when full. */
+    public static ThreadPoolExecutor newTilePool(int threads) {
+        int cores = Math.max(1, Runtime.getRuntime().availableProcessors());
+        return new ThreadPoolExecutor(
+                threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(Math.max(2, cores)),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /** Grow max before core (and shrink core before max) so the pool never sees core > max. */
+    private static void resizePool(ThreadPoolExecutor exec, int n) {
+        if (n > exec.getMaximumPoolSize()) {
+            exec.setMaximumPoolSize(n);
+            exec.setCorePoolSize(n);
+        } else {
+            exec.setCorePoolSize(n);
+            exec.setMaximumPoolSize(n);
+        }
     }
 
     private static final int BATTERY_GPU_MIN = 30; // threshold
 
-    private static boolean decideGpuAllowed(boolean onAC, int battery, boolean userWantsGPU) {
+    private static boolean decideGpuAllowed(boolean onAC, int battery, PowerState.Thermal thermal,
+            boolean userWantsGPU) {
         // Require both: user asked for GPU AND battery > 30, regardless of AC
         if (!userWantsGPU)
             return false;
+        if (thermal == PowerState.Thermal.HOT)
+            return false; // CPU and GPU share the package's heat budget
         return battery > BATTERY_GPU_MIN; // or >= if you prefer inclusive
     }
 
@@ -65,171 +150,949 @@ public class PipelineOrchestrator {
     // }
 
     public BufferedImage process(BufferedImage src, int initBright, int initContrast) throws InterruptedException {
-        long t0 = System.nanoTime();
+        return process(src, brightnessContrast(initBright, initContrast));
+    }
+
+    /**
+     * Colour stage: white balance, matrix, transfer curve, brightness/contrast
+     * and sepia as one cached 3D LUT, applied tile-parallel in a single pass.
+     */
+    public BufferedImage process(BufferedImage src, ColorPipeline.Params color) throws InterruptedException {
+        return process(src, colorOp(color));
+    }
 
-        // Tiling
-        final int TILE_W = 512, TILE_H = 512;
-        List<Tiles.Tile> tiles = Tiles.split(src, TILE_W, TILE_H);
+    private BufferedImage process(BufferedImage src, TileOp op) throws InterruptedException {
         BufferedImage out = new BufferedImage(src.getWidth(), src.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        runTiles(src.getWidth(), src.getHeight(), op,
+                (x, y, w, h) -> TileTask.extract(src, x, y, w, h),
+                (tile, x, y) -> Tiles.copy(tile, out, x, y));
+        return out;
+    }
 
-        // Memory guard + local spill counter (so we don’t have to change SpillStore)
-        final long avgTileBytes = MemoryGuard.estimateARGBBytes(TILE_W, TILE_H);
-        MemoryGuard mem = new MemoryGuard(0.6 /* 60% of free heap */, 256 * 1024 /* overhead guess */);
-        AtomicInteger spills = new AtomicInteger(0);
+    /**
+     * Gigapixel path: same tile pipeline, but tiles are read from and written to
+     * memory-mapped frames on demand. Nothing is resident beyond the tiles in
+     * flight, so there is nothing to spill; the OS page cache does the paging.
+     */
+    public void process(MappedFrame src, MappedFrame dst, int initBright, int initContrast)
+            throws InterruptedException {
+        process(src, dst, brightnessContrast(initBright, initContrast));
+    }
 
-        SpillStore spillTmp;
-        try {
-            spillTmp = new SpillStore();
-        } catch (Exception e) {
-            spillTmp = null;
-        }
-        final SpillStore spillRef = spillTmp; // FINAL ref for lambdas
+    public void process(MappedFrame src, MappedFrame dst, ColorPipeline.Params color) throws InterruptedException {
+        process(src, dst, colorOp(color));
+    }
 
-        // Initial pool
-        int threads = threadsFromPolicy(onACStart, batteryStart);
-        ArrayBlockingQueue<Runnable> queue = new ArrayBlockingQueue<>(Math.max(2, cores));
-        ThreadPoolExecutor exec = new ThreadPoolExecutor(
-                threads, threads, 60, TimeUnit.SECONDS, queue,
-                new ThreadPoolExecutor.CallerRunsPolicy());
+    private void process(MappedFrame src, MappedFrame dst, TileOp op) throws InterruptedException {
+        if (src.width() != dst.width() || src.height() != dst.height())
+            throw new IllegalArgumentException("frame sizes differ");
+        runTiles(src.width(), src.height(), op,
+                (x, y, w, h) -> TileTask.fromFrame(src, x, y, w, h),
+                dst::writeTile);
+    }
 
-        // Live scaler thread: updates threads AND gpuAllowed based on live battery/AC
-        final Thread scaler = new Thread(() -> {
-            try {
-                while (!Thread.currentThread().isInterrupted()) {
-                    boolean onAC = BatteryMonitor.onAC();
-                    int bat = BatteryMonitor.levelOrGuess();
-                    int target = threadsFromPolicy(onAC, bat);
-                    if (target != exec.getCorePoolSize()) {
-                        exec.setCorePoolSize(target);
-                        exec.setMaximumPoolSize(target);
-                        System.out.println("Scaler: target threads = " + target);
-                    }
-                    boolean newGpuAllowed = decideGpuAllowed(onAC, bat, userWantsGPU);
-                    if (newGpuAllowed != gpuAllowed) {
-                        gpuAllowed = newGpuAllowed;
-                        System.out.println(
-                                "Scaler: GPU allowed = " + gpuAllowed + " (onAC=" + onAC + ", bat=" + bat + "%)");
-                    }
-                    Thread.sleep(5000);
-                }
-            } catch (InterruptedException ignored) {
-            }
-        }, "battery-scaler");
-        scaler.setDaemon(true);
-        scaler.start();
+    /**
+     * 16-bit path: same tile plan, power ceiling and spill policy as the 8-bit
+     * path, CPU only (the OpenCL kernel is 8-bit). Tiles are cut on demand and,
+     * under memory pressure, spilled as 16-bit planes.
+     */
+    public Planar16 process(Planar16 src, int bright, int contrast) throws InterruptedException {
+        short[] lut = FiltersCPU16.bcLut(bright, contrast);
+        return process16(src, OP_BRIGHTNESS_CONTRAST, t -> FiltersCPU16.applyLut(t, lut));
+    }
 
-        CountDownLatch latch = new CountDownLatch(tiles.size());
-        AtomicLong inFlight = new AtomicLong(0);
+    /** 16-bit colour stage (same cached cube as the 8-bit path). */
+    public Planar16 process(Planar16 src, ColorPipeline.Params color) throws InterruptedException {
+        Lut3D lut = ColorPipeline.compile(color, log);
+        return process16(src, OP_COLOR_LUT, lut::apply);
+    }
+
+    @SuppressWarnings("try") // the token scope is only bound, never read
+    private Planar16 process16(Planar16 src, String opName, UnaryOperator<Planar16> op)
+            throws InterruptedException {
+        long t0 = System.nanoTime();
+        // same pool, tuner, power subscription and scaler as the 8-bit path
+        final Session session = session(opName);
+
+        final int W = src.width, H = src.height;
+        TilePlanner.Shape shape = TilePlanner.plan(TilePlanner.OpClass.POINT, W, H, session.ceiling.get());
+        final int TILE_W = shape.w(), TILE_H = shape.h();
+        final int tileCount = ((W + TILE_W - 1) / TILE_W) * ((H + TILE_H - 1) / TILE_H);
+        final Planar16 out = new Planar16(W, H);
 
+        final long tileBytes = Planar16.estimateBytes(TILE_W, TILE_H);
+        MemoryGuard mem = new MemoryGuard(0.6, 256 * 1024);
+        final AtomicLong inFlight = new AtomicLong();
+        int spills = 0;
+        SpillStore spillRef = null;
+
+        final ThreadPoolExecutor exec = session.exec;
+        final CountDownLatch latch = new CountDownLatch(tileCount);
+        final CancelToken token = CancelToken.current();
+        final AtomicInteger done = new AtomicInteger();
+        int produced = 0;
         try {
-            for (Tiles.Tile t : tiles) {
-                boolean doSpill = (spillRef != null) && mem.shouldSpill(inFlight.get() + 1, avgTileBytes);
-
-                if (doSpill) {
-                    // Producer: spill tile to SSD first
-                    SpillStore.Handle h;
-                    try {
-                        h = spillRef.spill(t.image(), t.x(), t.y());
-                        spills.incrementAndGet();
-                    } catch (Exception ioEx) {
-                        submitInRam(exec, t, initBright, initContrast, out, inFlight, latch);
-                        continue;
+            produce:
+            for (int y = 0; y < H; y += TILE_H) {
+                for (int x = 0; x < W; x += TILE_W) {
+                    if (token.isCancelled())
+                        break produce;
+                    final int tx = x, ty = y, tw = Math.min(TILE_W, W - x), th = Math.min(TILE_H, H - y);
+                    Callable<Planar16> load = () -> src.extract(tx, ty, tw, th);
+                    if (mem.shouldSpill(inFlight.get() + 1, tileBytes)) {
+                        try {
+                            if (spillRef == null)
+                                spillRef = new SpillStore();
+                            final SpillStore store = spillRef;
+                            final SpillStore.Handle h = store.spill(src.extract(tx, ty, tw, th), tx, ty);
+                            load = () -> {
+                                try {
+                                    return store.load16(h);
+                                } finally {
+                                    store.remove(h); // its slab region takes a later spill
+                                }
+                            };
+                            spills++;
+                        } catch (IOException ioEx) {
+                            // keep it in RAM
+                        }
                     }
-
-                    // Consumer: read from SSD, process, copy, then delete
-                    final SpillStore.Handle fh = h; // effectively final for lambda
-                    exec.submit(() -> {
+                    final Callable<Planar16> tile = load;
+                    produced++;
+                    exec.execute(() -> {
                         inFlight.incrementAndGet();
-                        try {
-                            BufferedImage reloaded = spillRef.load(fh);
-                            BufferedImage processed;
-                            if (gpuAllowed) {
-                                processed = GpuProcessor.applyBrightnessContrast(reloaded, initBright, initContrast);
-                            } else {
-                                processed = FiltersCPUFast.applyBrightnessContrast(reloaded, initBright, initContrast);
-                            }
-                            Tiles.copy(processed, out, fh.x, fh.y);
+                        try (CancelToken.Scope ignored = token.bind()) {
+                            if (token.isCancelled())
+                                return; // cancelled: drop the tile (and its spill copy)
+                            out.put(op.apply(tile.call()), tx, ty);
+                            done.incrementAndGet();
+                            session.tileDone((long) tw * th);
                         } catch (Exception e) {
                             // best effort
                         } finally {
-                            spillRef.remove(fh);
                             inFlight.decrementAndGet();
                             latch.countDown();
                         }
                     });
-                } else {
-                    submitInRam(exec, t, initBright, initContrast, out, inFlight, latch);
                 }
             }
+            for (int i = produced; i < tileCount; i++)
+                latch.countDown(); // never cut
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                session.aborted = true;
+                throw e;
+            }
+            if (done.get() < tileCount && token.isCancelled()) {
+                log.printf("Cancelled: %s after %d/%d tiles%n", token.reason(), done.get(), tileCount);
+                throw new CancellationException(token.reason());
+            }
 
-            latch.await();
+            long ns = System.nanoTime() - t0;
+            if (!session.record(tileCount, (long) W * H, spills, ns)) {
+                double secs = Math.max(1e-9, ns / 1e9);
+                log.printf("Stats: 16-bit threads=%d tiles=%d (%s) spilled=%d total=%d ms (%.1f MP/s)%n",
+                        exec.getCorePoolSize(), tileCount, shape, spills, Math.round(secs * 1e3),
+                        (double) W * H / 1e6 / secs);
+            }
+        } finally {
+            session.release();
+            if (spillRef != null)
+                spillRef.cleanup();
+        }
+        return out;
+    }
 
-            long totalMs = Math.round((System.nanoTime() - t0) / 1e6);
-            // ---- Runtime metrics summary ----
-            System.out.printf(
-                    "Stats: threads=%d tiles=%d spilled=%d gpuAllowed=%s total=%d ms%n",
-                    exec.getCorePoolSize(), tiles.size(), spills.get(), gpuAllowed, totalMs);
+    /** Produces the task for one tile rectangle (called in grid order by the producer). */
+    private interface TileSource {
+        TileTask tile(int x, int y, int w, int h);
+    }
 
-            return out;
-        } finally {
-            exec.shutdown();
-            try {
-                exec.awaitTermination(30, TimeUnit.SECONDS);
-            } catch (InterruptedException ignored) {
+    /** Receives each finished tile (called concurrently for disjoint rectangles). */
+    private interface TileSink {
+        void put(BufferedImage tile, int x, int y) throws IOException;
+    }
+
+    /** Per-tile CPU filter on packed ARGB into a caller-owned buffer ({@link Stage.Op#applyInto}). */
+    private interface CpuInto {
+        void apply(int[] src, int[] dst, int w, int h);
+    }
+
+    /** Per-tile GPU kernel (only ops the OpenCL path implements have one). */
+    private interface GpuKernel {
+        BufferedImage apply(GpuDevice gpu, BufferedImage tile) throws InterruptedException;
+    }
+
+    /**
+     * What runTiles does to each tile; {@code name} keys the tuned thread count.
+     * A neighbourhood op reads {@code halo} pixels around its tile: runTiles
+     * hands it the tile plus that margin and keeps only the core of the result.
+     * With {@code into} set, CPU tiles run on pooled buffers instead of {@code cpu}.
+     */
+    private record TileOp(String name, int halo, UnaryOperator<BufferedImage> cpu, CpuInto into, GpuKernel gpu) {
+        TileOp(String name, UnaryOperator<BufferedImage> cpu, CpuInto into, GpuKernel gpu) {
+            this(name, 0, cpu, into, gpu);
+        }
+    }
+
+    private static TileOp brightnessContrast(int bright, int contrast) {
+        return new TileOp(OP_BRIGHTNESS_CONTRAST,
+                t -> FiltersCPUFast.applyBrightnessContrast(t, bright, contrast),
+                (src, dst, w, h) -> FiltersCPUFast.applyBrightnessContrastInto(src, dst, w, h, bright, contrast),
+                (gpu, t) -> gpu.applyBrightnessContrast(t, bright, contrast));
+    }
+
+    private TileOp colorOp(ColorPipeline.Params color) {
+        Lut3D lut = ColorPipeline.compile(color, log);
+        return new TileOp(OP_COLOR_LUT, lut::apply, (src, dst, w, h) -> {
+            System.arraycopy(src, 0, dst, 0, w * h); // the LUT maps in place
+            lut.apply(dst, 0, w * h);
+        }, null);
+    }
+
+    /** Source that reads each tile with {@code halo} extra pixels (clipped to the frame). */
+    private static TileSource withHalo(TileSource src, int W, int H, int halo) {
+        return (x, y, w, h) -> {
+            int x0 = Math.max(0, x - halo), y0 = Math.max(0, y - halo);
+            int x1 = Math.min(W, x + w + halo), y1 = Math.min(H, y + h + halo);
+            return src.tile(x0, y0, x1 - x0, y1 - y0);
+        };
+    }
+
+    /**
+     * Sink that drops the halo again. A margin at the frame edge was never
+     * added, and a last row/column thinner than the halo is also covered by
+     * its neighbour's core; both compute the same pixels, so the overlap is harmless.
+     */
+    private static TileSink cropHalo(TileSink dst, int W, int H, int halo) {
+        return (tile, x, y) -> {
+            int x1 = x + tile.getWidth(), y1 = y + tile.getHeight();
+            int cx0 = x == 0 ? 0 : x + halo, cy0 = y == 0 ? 0 : y + halo;
+            int cx1 = x1 == W ? W : x1 - halo, cy1 = y1 == H ? H : y1 - halo;
+            dst.put(tile.getSubimage(cx0 - x, cy0 - y, cx1 - cx0, cy1 - cy0), cx0, cy0);
+        };
+    }
+
+    // ---------------- sessions ----------------
+
+    private volatile Session stream; // open session the next calls run on; null = one per call
+
+    /**
+     * Tile pool, tuner, power subscription and scaler behind tile runs. Each call
+     * opens a transient one; {@link #openSession} keeps one across calls so a
+     * band stream runs on one warm pool and prints one Stats line.
+     */
+    public final class Session implements AutoCloseable {
+        final ThreadPoolExecutor exec;
+        final AtomicInteger ceiling;
+        final AtomicLong doneTiles = new AtomicLong();
+        final AtomicLong donePixels = new AtomicLong();
+        volatile boolean aborted; // a caller was interrupted: queued work is dropped on close
+        private final boolean persistent;
+        private final boolean ownPool;
+        private final ThreadTuner tuner;
+        private final Runnable unsubscribe;
+        private final Thread scaler;
+        // totals over the calls of a persistent session
+        private int calls, tiles, spills;
+        private long pixels, busyNs;
+
+        private Session(String opName, boolean persistent) {
+            this.persistent = persistent;
+
+            // Power state: latest published snapshot (constructor values until the first probe lands)
+            PowerState ps = PowerService.get().snapshot();
+            boolean onACNow = ps.probed() ? ps.onAC() : onACStart;
+            int batteryNow = ps.probed() ? ps.battery() : batteryStart;
+            gpuAllowed = decideGpuAllowed(onACNow, batteryNow, ps.thermal(), userWantsGPU);
+
+            // Initial pool size: remembered best for this op, capped by the power and thermal policy
+            ceiling = new AtomicInteger(threadsFromPolicy(onACNow, batteryNow, ps.thermal()));
+            tuner = new ThreadTuner(opName, MachineProfile.shared(), cores);
+            int threads = tuner.start(ceiling.get(), System.nanoTime());
+            ownPool = sharedPool == null;
+            exec = ownPool ? newTilePool(threads) : sharedPool;
+
+            // Power and thermal changes arrive from the power service; they move the ceiling and GPU permission.
+            unsubscribe = PowerService.get().subscribe(p -> {
+                int newCeiling = threadsFromPolicy(p.onAC(), p.battery(), p.thermal());
+                if (ceiling.getAndSet(newCeiling) != newCeiling)
+                    log.println(p.thermal() == PowerState.Thermal.NOMINAL
+                            ? "Scaler: thread ceiling = " + newCeiling
+                            : "Scaler: thermal " + p.thermal() + " (" + (p.cpuTempC() >= 0 ? p.cpuTempC() + "C"
+                                    : "clock " + p.freqRatio() + "%") + ") -> thread ceiling = " + newCeiling);
+                boolean newGpuAllowed = decideGpuAllowed(p.onAC(), p.battery(), p.thermal(), userWantsGPU);
+                if (newGpuAllowed != gpuAllowed) {
+                    gpuAllowed = newGpuAllowed;
+                    log.println("Scaler: GPU allowed = " + gpuAllowed + " (onAC=" + p.onAC() + ", bat="
+                            + p.battery() + "%, thermal=" + p.thermal() + ")");
+                }
+            });
+
+            // Scaler thread: the tuner picks the pool size under the current ceiling from measured throughput.
+            // Resizes are logged at most every LOG_MS, once the size has held for a sample.
+            scaler = new Thread(() -> {
+                int logged = exec.getCorePoolSize();
+                long lastLog = 0;
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        int c = ceiling.get();
+                        long now = System.nanoTime();
+                        int target = ownPool
+                                ? tuner.sample(doneTiles.get(), donePixels.get(), now, c)
+                                : Math.min(c, sharedPoolSize);
+                        if (target != exec.getCorePoolSize()) {
+                            resizePool(exec, target);
+                        } else if (target != logged && now - lastLog >= LOG_MS * 1_000_000L) {
+                            log.printf("Scaler: target threads = %d (%.1f MP/s)%n", target,
+                                    tuner.lastRateMps());
+                            logged = target;
+                            lastLog = now;
+                        }
+                        Thread.sleep(SAMPLE_MS);
+                    }
+                } catch (InterruptedException ignored) {
+                }
+            }, "tile-scaler");
+            scaler.setDaemon(true);
+            scaler.start();
+        }
+
+        /** One finished tile, for the tuner. */
+        void tileDone(long px) {
+            doneTiles.incrementAndGet();
+            donePixels.addAndGet(px);
+        }
+
+        /** Adds a finished call to the session totals; false if the call should print its own Stats line. */
+        synchronized boolean record(int callTiles, long callPixels, int callSpills, long ns) {
+            if (!persistent)
+                return false;
+            calls++;
+            tiles += callTiles;
+            pixels += callPixels;
+            spills += callSpills;
+            busyNs += ns;
+            return true;
+        }
+
+        /** End of a call: a transient session closes, a persistent one stays for the next call. */
+        void release() {
+            if (!persistent)
+                close();
+        }
+
+        @Override
+        public void close() {
+            if (persistent) {
+                synchronized (PipelineOrchestrator.this) {
+                    if (stream != this)
+                        return; // already closed
+                    stream = null;
+                }
+                double secs = Math.max(1e-9, busyNs / 1e9);
+                log.printf("Stats: session calls=%d threads=%d tiles=%d spilled=%d busy=%d ms (%.1f MP/s)"
+                        + " pool=%s%n", calls, exec.getCorePoolSize(), tiles, spills, Math.round(busyNs / 1e6),
+                        pixels / 1e6 / secs, BufferPool.shared().stats());
             }
+            unsubscribe.run();
             scaler.interrupt();
+            if (ownPool) {
+                if (aborted)
+                    exec.shutdownNow(); // queued pulls would only drop their tiles
+                else
+                    exec.shutdown();
+                try {
+                    exec.awaitTermination(30, TimeUnit.SECONDS);
+                } catch (InterruptedException ignored) {
+                }
+                tuner.finish();
+            }
+        }
+    }
+
+    /**
+     * Run the following calls on one pool, tuner and scaler until the session is
+     * closed (band streaming). One session at a time per orchestrator.
+     *
+     * @param name key the tuner remembers the best thread count under
+     */
+    public synchronized Session openSession(String name) {
+        if (stream != null)
+            throw new IllegalStateException("a session is already open");
+        stream = new Session(name, true);
+        return stream;
+    }
+
+    /** The open session, or a transient one for this call. */
+    private Session session(String opName) {
+        Session s = stream;
+        return s != null ? s : new Session(opName, false);
+    }
+
+    /** Per-call state shared by the producer, CPU workers and the GPU worker. */
+    private static final class Run {
+        final TileOp op;
+        final TileSink sink;
+        final HeteroScheduler sched = new HeteroScheduler();
+        final Session session;
+        final ThreadPoolExecutor exec;
+        final CountDownLatch latch;
+        final AtomicLong inFlight = new AtomicLong();
+        final AtomicLong doneTiles = new AtomicLong();
+        final CancelToken token; // the caller's, carried onto every worker
+        volatile boolean aborted; // caller interrupted
+        Runnable cpuPuller;
+
+        Run(TileOp op, TileSink sink, Session session, int tiles, CancelToken token) {
+            this.op = op;
+            this.sink = sink;
+            this.session = session;
+            this.exec = session.exec;
+            this.latch = new CountDownLatch(tiles);
+            this.token = token;
+        }
+
+        /** Tiles still queued are dropped (released, counted down) instead of run. */
+        boolean stopped() {
+            return aborted || token.isCancelled();
+        }
+    }
+
+    private void runTiles(int W, int H, TileOp op, TileSource source, TileSink sink)
+            throws InterruptedException {
+        long t0 = System.nanoTime();
+        if (op.halo() > 0) {
+            source = withHalo(source, W, H, op.halo());
+            sink = cropHalo(sink, W, H, op.halo());
+        }
+
+        final Session session = session(op.name());
+        final int ceilingStart = session.ceiling.get();
+
+        final GpuDevice gpu = (userWantsGPU && op.gpu() != null) ? GpuDevice.open() : null;
+        if (userWantsGPU && op.gpu() != null && gpu == null)
+            log.println("GPU requested but no OpenCL device found; CPU only.");
+
+        // Tiling: calibrated shape for the op class, adapted to the frame size
+        TilePlanner.Shape shape = TilePlanner.plan(
+                (gpu != null && gpuAllowed) ? TilePlanner.OpClass.GPU
+                        : op.halo() == 0 ? TilePlanner.OpClass.POINT
+                        : op.halo() == 1 ? TilePlanner.OpClass.CONV3X3 : TilePlanner.OpClass.BLUR,
+                W, H, ceilingStart);
+        final int TILE_W = shape.w(), TILE_H = shape.h();
+        final int tileCount = ((W + TILE_W - 1) / TILE_W) * ((H + TILE_H - 1) / TILE_H);
+
+        // Memory guard + local spill counter (so we don’t have to change SpillStore)
+        final long avgTileBytes = MemoryGuard.estimateARGBBytes(TILE_W, TILE_H);
+        MemoryGuard mem = new MemoryGuard(0.6 /* 60% of free heap */, 256 * 1024 /* overhead guess */);
+        AtomicInteger spills = new AtomicInteger(0);
+        SpillStore spillRef = null; // created on first spill
+        SpillReadAhead readAhead = null; // reads spilled tiles back ahead of the workers
+
+        final ThreadPoolExecutor exec = session.exec;
+        final Run run = new Run(op, sink, session, tileCount, CancelToken.current());
+
+        // CPU workers and (if requested and present) the GPU share one tile queue
+        run.cpuPuller = () -> {
+            TileTask task = run.sched.pollCpu(exec.getCorePoolSize());
+            if (task != null)
+                runTile(task, null, run);
+        };
+        Thread gpuWorker = null;
+        if (gpu != null) {
+            gpuWorker = new Thread(() -> gpuLoop(gpu, run), "gpu-worker");
+            gpuWorker.setDaemon(true);
+            gpuWorker.start();
+        }
+
+        int produced = 0;
+        try {
+            produce:
+            for (int y = 0; y < H; y += TILE_H) {
+                for (int x = 0; x < W; x += TILE_W) {
+                    if (run.stopped())
+                        break produce; // nothing more is cut, read or spilled
+                    TileTask task = source.tile(x, y, Math.min(TILE_W, W - x), Math.min(TILE_H, H - y));
+                    if (task.isResident() && mem.shouldSpill(run.inFlight.get() + 1, avgTileBytes)) {
+                        // Producer: spill tile to SSD first; the consumer reloads it
+                        try {
+                            if (spillRef == null) {
+                                spillRef = new SpillStore();
+                                readAhead = new SpillReadAhead(spillRef, avgTileBytes);
+                            }
+                            TileTask spilled = TileTask.spilled(spillRef, task.spillTo(spillRef), readAhead);
+                            task.release(); // its pool buffer goes to the next tile
+                            task = spilled;
+                            spills.incrementAndGet();
+                        } catch (Exception ioEx) {
+                            // keep it in RAM
+                        }
+                    }
+                    run.sched.offer(task);
+                    produced++;
+                    exec.execute(run.cpuPuller);
+                }
+            }
+            for (int i = produced; i < tileCount; i++)
+                run.latch.countDown(); // never cut
+
+            try {
+                run.latch.await();
+            } catch (InterruptedException e) {
+                run.aborted = true;
+                throw e;
+            }
+            long done = run.doneTiles.get();
+            if (done < tileCount && run.token.isCancelled()) {
+                log.printf("Cancelled: %s after %d/%d tiles%n", run.token.reason(), done, tileCount);
+                throw new CancellationException(run.token.reason());
+            }
+
+            long totalNs = System.nanoTime() - t0;
+            if (!session.record(tileCount, (long) W * H, spills.get(), totalNs)) {
+                long totalMs = Math.round(totalNs / 1e6);
+                double secs = Math.max(1e-9, totalNs / 1e9);
+                // ---- Runtime metrics summary ----
+                log.printf(
+                        "Stats: threads=%d tiles=%d (%s) spilled=%d gpuAllowed=%s total=%d ms (%.1f tiles/s, %.1f MP/s)"
+                                + " pool=%s%n",
+                        exec.getCorePoolSize(), tileCount, shape, spills.get(), gpuAllowed, totalMs,
+                        tileCount / secs, (double) W * H / 1e6 / secs, BufferPool.shared().stats());
+            }
+            if (readAhead != null)
+                log.println("Spill: " + readAhead.stats() + " " + spillRef.stats());
+            if (gpu != null)
+                log.println("Devices: cpu + " + gpu.name() + " -> " + run.sched.summary());
+        } finally {
+            if (gpuWorker != null)
+                gpuWorker.interrupt();
+            if (run.aborted)
+                session.aborted = true;
+            session.release();
+            if (readAhead != null)
+                readAhead.close();
             if (spillRef != null)
                 spillRef.cleanup();
         }
     }
 
-    private void submitInRam(ThreadPoolExecutor exec, Tiles.Tile t, int initBright, int initContrast,
-            BufferedImage out, AtomicLong inFlight, CountDownLatch latch) {
-        exec.submit(() -> {
-            inFlight.incrementAndGet();
-            try {
-                BufferedImage tile;
-                if (gpuAllowed) {
-                    tile = GpuProcessor.applyBrightnessContrast(t.image(), initBright, initContrast);
-                } else {
-                    tile = FiltersCPUFast.applyBrightnessContrast(t.image(), initBright, initContrast);
+    /**
+     * GPU worker: pulls batches from the tail while the power policy allows it.
+     * When GPU use is revoked, unstarted tiles go back to the CPU side.
+     */
+    private void gpuLoop(GpuDevice gpu, Run run) {
+        HeteroScheduler sched = run.sched;
+        try {
+            while (run.latch.getCount() > 0) {
+                if (!gpuAllowed) {
+                    if (sched.gpuActive()) {
+                        sched.setGpuActive(false);
+                        handBackToCpu(sched.queued(), run);
+                    }
+                    Thread.sleep(10);
+                    continue;
+                }
+                sched.setGpuActive(true);
+                List<TileTask> batch = sched.pollGpu(run.exec.getCorePoolSize());
+                if (batch.isEmpty() && sched.queued() > 0) {
+                    // CPU will win the tail: re-issue pulls it gave up while the GPU looked faster
+                    handBackToCpu(sched.takeDeferred(), run);
+                    Thread.sleep(1);
+                }
+                for (int i = 0; i < batch.size(); i++) {
+                    if (!gpuAllowed) {
+                        for (int j = batch.size() - 1; j >= i; j--)
+                            sched.requeue(batch.get(j));
+                        handBackToCpu(batch.size() - i, run);
+                        break;
+                    }
+                    runTile(batch.get(i), gpu, run);
                 }
-                Tiles.copy(tile, out, t.x(), t.y());
-            } finally {
-                inFlight.decrementAndGet();
-                latch.countDown();
             }
-        });
+        } catch (InterruptedException ignored) {
+        } finally {
+            sched.setGpuActive(false);
+            if (run.latch.getCount() > 0)
+                handBackToCpu(sched.queued(), run);
+        }
+    }
+
+    private static void handBackToCpu(int n, Run run) {
+        try {
+            for (int i = 0; i < n; i++)
+                run.exec.execute(run.cpuPuller);
+        } catch (RejectedExecutionException ignored) {
+            // pool already shut down: the frame is finished
+        }
+    }
+
+    /**
+     * Load (or reload from spill), process on the given device (null = CPU), hand to the sink, release.
+     * CPU tiles of ops with an array form, and GPU tiles (read back into a pool buffer), end up in a
+     * pool buffer that is handed back once the sink has copied it out, so a steady stream of tiles
+     * allocates no pixel memory.
+     */
+    @SuppressWarnings("try") // the token scope is only bound, never read
+    private static void runTile(TileTask task, GpuDevice gpu, Run run) {
+        run.inFlight.incrementAndGet();
+        int[] out = null;
+        try (CancelToken.Scope ignored = run.token.bind()) {
+            if (run.stopped())
+                return; // cancelled: drop the tile (and its spill copy)
+            BufferedImage src = task.load();
+            long t0 = System.nanoTime();
+            BufferedImage tile;
+            if (gpu != null) {
+                tile = run.op.gpu().apply(gpu, src);
+                int[] d = Tiles.data(tile);
+                if (d != null && d != Tiles.data(src))
+                    out = d; // the device's read-back buffer: back to the pool once the sink has copied it
+            } else if (run.op.into() != null) {
+                int w = src.getWidth(), h = src.getHeight();
+                int[] in = Tiles.data(src);
+                out = BufferPool.shared().acquire(w * h);
+                run.op.into().apply(in != null ? in : Tiles.argb(src), out, w, h);
+                tile = Tiles.wrapArgb(out, w, h);
+            } else {
+                tile = run.op.cpu().apply(src);
+            }
+            long ns = System.nanoTime() - t0;
+            if (gpu != null)
+                run.sched.recordGpu(task.pixels(), ns);
+            else
+                run.sched.recordCpu(task.pixels(), ns);
+            run.sink.put(tile, task.x, task.y);
+            run.doneTiles.incrementAndGet();
+            run.session.tileDone(task.pixels());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            // best effort
+        } finally {
+            task.release();
+            BufferPool.shared().release(out);
+            run.inFlight.decrementAndGet();
+            run.latch.countDown();
+        }
+    }
+
+    // ---------------- resize ----------------
+
+    /**
+     * Separable resample to dw x dh: horizontal then vertical pass, each split
+     * into row bands on the tile pool (all cores the power policy allows).
+     */
+    public BufferedImage resize(BufferedImage src, int dw, int dh, Resize.Filter filter)
+            throws InterruptedException {
+        ThreadPoolExecutor exec = rowPool();
+        try {
+            return resize(src, dw, dh, filter, exec);
+        } finally {
+            releaseRowPool(exec);
+        }
+    }
+
+    /** Same on a row pool the caller holds (see {@link ExportPlan}). */
+    BufferedImage resize(BufferedImage src, int dw, int dh, Resize.Filter filter, ThreadPoolExecutor exec)
+            throws InterruptedException {
+        long t0 = System.nanoTime();
+        final int sw = src.getWidth(), sh = src.getHeight();
+        final int[] px = Tiles.argb(src);
+        final int[] tmp = new int[dw * sh], out = new int[dw * dh];
+        final Resize.Weights wx = Resize.weights(sw, dw, filter), wy = Resize.weights(sh, dh, filter);
+        rows(exec, sh, (y0, y1) -> Resize.horizontal(px, sw, tmp, wx, y0, y1));
+        rows(exec, dh, (y0, y1) -> Resize.vertical(tmp, dw, out, wy, y0, y1));
+        log.printf("Resize: %dx%d -> %dx%d %s, %d threads, %d ms%n", sw, sh, dw, dh,
+                filter.name().toLowerCase(), exec.getCorePoolSize(), Math.round((System.nanoTime() - t0) / 1e6));
+        return Tiles.wrapArgb(out, dw, dh);
+    }
+
+    /** Integer-ratio box reduction (1/factor per edge), for previews. */
+    public BufferedImage downsample(BufferedImage src, int factor) throws InterruptedException {
+        ThreadPoolExecutor exec = rowPool();
+        try {
+            return downsample(src, factor, exec);
+        } finally {
+            releaseRowPool(exec);
+        }
     }
 
-    // Post-processing (interactive)
+    /** Same on a row pool the caller holds. */
+    BufferedImage downsample(BufferedImage src, int factor, ThreadPoolExecutor exec) throws InterruptedException {
+        if (factor < 1)
+            throw new IllegalArgumentException("downsample factor must be >= 1: " + factor);
+        final int sw = src.getWidth(), sh = src.getHeight();
+        final int dw = (sw + factor - 1) / factor, dh = (sh + factor - 1) / factor;
+        final int[] px = Tiles.argb(src), out = new int[dw * dh];
+        rows(exec, dh, (y0, y1) -> Resize.downsample(px, sw, sh, factor, out, y0, y1));
+        return Tiles.wrapArgb(out, dw, dh);
+    }
+
+    /** One band of a row-parallel pass: rows [y0, y1). */
+    interface RowRange {
+        void run(int y0, int y1);
+    }
+
+    /** Pool for row-parallel passes (also used by Stacker); hand it back with {@link #releaseRowPool}. */
+    ThreadPoolExecutor rowPool() {
+        if (sharedPool != null)
+            return sharedPool;
+        Session s = stream;
+        if (s != null)
+            return s.exec;
+        PowerState ps = PowerService.get().snapshot();
+        int ceiling = threadsFromPolicy(ps.probed() ? ps.onAC() : onACStart, ps.probed() ? ps.battery() : batteryStart,
+                ps.thermal());
+        return newTilePool(Math.min(cores, ceiling));
+    }
+
+    void releaseRowPool(ThreadPoolExecutor exec) {
+        Session s = stream;
+        if (exec != sharedPool && (s == null || exec != s.exec))
+            exec.shutdown();
+    }
+
+    /**
+     * Run {@code body} over [0, rows) in bands on {@code exec}; rethrows the first failure
+     * (CancellationException once the caller's token is cancelled; later bands are skipped).
+     */
+    @SuppressWarnings("try") // the token scope is only bound, never read
+    static void rows(ThreadPoolExecutor exec, int rows, RowRange body) throws InterruptedException {
+        int bands = Math.max(1, Math.min(rows, exec.getCorePoolSize() * BANDS_PER_THREAD));
+        CountDownLatch latch = new CountDownLatch(bands);
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        CancelToken token = CancelToken.current();
+        for (int b = 0; b < bands; b++) {
+            int y0 = (int) ((long) rows * b / bands), y1 = (int) ((long) rows * (b + 1) / bands);
+            exec.execute(() -> {
+                try (CancelToken.Scope ignored = token.bind()) {
+                    token.throwIfCancelled();
+                    body.run(y0, y1);
+                } catch (RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        if (failure.get() != null)
+            throw failure.get();
+    }
+
+    // ---------------- stages ----------------
+
+    /** Groups estimated below this (one core) run inline as a single tile; the pool costs more. */
+    private static final double INLINE_MS = 2.0;
+    /** Halo cap for one fused pass; past it the margins cost more than the saved pass. */
+    private static final int MAX_FUSED_HALO = 16;
+
+    /** What stages see while binding; the frame is only produced if a stage asks for it. */
+    private record StageContext(String quality, int workers, Supplier<BufferedImage> lazyFrame, boolean depth16,
+            PipelineOrchestrator orchestrator) implements Stage.Context {
+
+        @Override
+        public BufferedImage frame() {
+            return lazyFrame.get();
+        }
+    }
+
+    private Stage.Context stageContext(BufferedImage frame) {
+        return stageContext(() -> frame);
+    }
+
+    /** Binding context for a frame that may not exist yet (see {@link EditGraph}). */
+    Stage.Context stageContext(Supplier<BufferedImage> frame) {
+        return new StageContext(quality, sharedPool != null ? sharedPoolSize : cores, frame, false, this);
+    }
+
+    private Stage.Context stageContext16() {
+        return new StageContext(quality, sharedPool != null ? sharedPoolSize : cores, () -> null, true, this);
+    }
+
+    /** One shell command (see {@link StageRegistry}); unknown names are an IllegalArgumentException. */
     public BufferedImage postProcess(BufferedImage current, String op, String[] args) {
-        return switch (op.toLowerCase()) {
-            case "brighten" -> FiltersCPUFast.applyBrightnessContrast(current, parse(args, 0, 10), 0);
-            case "contrast" -> FiltersCPUFast.applyBrightnessContrast(current, 0, parse(args, 0, 10));
-            case "sharpen" -> FiltersCPUFast.sharpen(current, parseF(args, 0, 0.6f));
-            case "bw" -> FiltersCPUFast.toGray(current);
-            case "invert" -> stages.FiltersCPU.invert(current);
-            case "sepia" -> stages.FiltersCPU.sepia(current);
-            case "blur" -> stages.FiltersCPU.gaussianBlur(current, parseF(args, 0, 1.0f));
-            case "edge" -> stages.FiltersCPU.edgeDetect(current);
-            default -> current;
-        };
+        return postProcess(current, List.of(new Recipe.Step(op, args)));
     }
 
-    private static int parse(String[] a, int i, int def) {
+    /**
+     * Run steps in order. Consecutive tileable stages fuse into one tiled pass
+     * (their halos add up, so every tile is read and written once for the whole
+     * group); stages in a group are bound against the frame as it was when the
+     * group started. A group may use the GPU only if every stage in it has an
+     * OpenCL kernel, and runs inline when it is too cheap for the pool.
+     * Whole-frame stages (resize) run on their own.
+     */
+    public BufferedImage postProcess(BufferedImage current, List<Recipe.Step> steps) {
+        int i = 0;
+        while (i < steps.size()) {
+            CancelToken.checkpoint();
+            Group g = nextGroup(steps, i, stageContext(current));
+            i += g.stages().size();
+            current = g.tileable() ? runGroup(current, g) : g.ops().get(0).apply(current);
+        }
+        return current;
+    }
+
+    /**
+     * Recipe steps over a mapped frame, tile by tile, so sharpen/denoise/LUT
+     * recipes run on frames that never fit the heap. Each fused group reads one
+     * frame and writes the other; returns whichever holds the result. Steps that
+     * need the whole frame (resize, auto-planned denoise) are an IllegalArgumentException.
+     */
+    public MappedFrame postProcess(MappedFrame a, MappedFrame b, List<Recipe.Step> steps)
+            throws InterruptedException {
+        Stage.Context ctx = stageContext(() -> {
+            throw new IllegalArgumentException("this step plans from the whole frame; not available on a mapped frame");
+        });
+        int i = 0;
+        while (i < steps.size()) {
+            CancelToken.checkpoint();
+            Group g = nextGroup(steps, i, ctx);
+            if (!g.tileable())
+                throw new IllegalArgumentException(g.stages().get(0).name() + " needs the whole frame on the heap");
+            i += g.stages().size();
+            process(a, b, groupOp(g, (long) a.width() * a.height()));
+            MappedFrame t = a;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    /** Stages bound together: one non-tileable stage, or a run of tileable ones to fuse. */
+    private record Group(List<Stage> stages, List<Stage.Op> ops, int halo, boolean tileable) {
+    }
+
+    /**
+     * Bind steps from {@code i}: a whole-frame stage alone, or consecutive
+     * tileable stages up to {@link #MAX_FUSED_HALO}, all against {@code ctx}.
+     */
+    private static Group nextGroup(List<Recipe.Step> steps, int i, Stage.Context ctx) {
+        Stage first = StageRegistry.require(steps.get(i).op());
+        Stage.Op firstOp = first.bind(steps.get(i++).args(), ctx);
+        if (!first.tileable())
+            return new Group(List.of(first), List.of(firstOp), firstOp.halo(), false);
+        List<Stage> group = new ArrayList<>(List.of(first));
+        List<Stage.Op> ops = new ArrayList<>(List.of(firstOp));
+        int halo = firstOp.halo();
+        while (i < steps.size()) {
+            Stage next = StageRegistry.require(steps.get(i).op());
+            if (!next.tileable() || halo + next.halo(steps.get(i).args()) > MAX_FUSED_HALO)
+                break;
+            Stage.Op op = next.bind(steps.get(i++).args(), ctx);
+            group.add(next);
+            ops.add(op);
+            halo += op.halo();
+        }
+        return new Group(group, ops, halo, true);
+    }
+
+    private BufferedImage runGroup(BufferedImage src, Group g) {
+        double nsPerPx = 0;
+        for (Stage s : g.stages())
+            nsPerPx += s.costNsPerPixel();
+        if ((double) src.getWidth() * src.getHeight() * nsPerPx / 1e6 < INLINE_MS) {
+            BufferedImage t = src; // one tile: no halo to add, nothing to crop
+            for (Stage.Op op : g.ops())
+                t = op.apply(t);
+            return t;
+        }
         try {
-            return Integer.parseInt(a[i]);
-        } catch (Exception e) {
-            return def;
+            return process(src, groupOp(g, (long) src.getWidth() * src.getHeight()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return src;
         }
     }
 
-    private static float parseF(String[] a, int i, float def) {
+    /** One fused tiled pass for a group of {@code pixels}; logs the plan line. */
+    private TileOp groupOp(Group g, long pixels) {
+        List<Stage.Op> ops = g.ops();
+        StringBuilder name = new StringBuilder();
+        double nsPerPx = 0;
+        boolean cl = true;
+        for (int k = 0; k < g.stages().size(); k++) {
+            Stage s = g.stages().get(k);
+            name.append(k > 0 ? "+" : "").append(s.name());
+            nsPerPx += s.costNsPerPixel();
+            cl &= s.backends().contains(Stage.Backend.OPENCL) && ops.get(k).openCl() != null;
+        }
+        UnaryOperator<BufferedImage> cpu = t -> {
+            for (Stage.Op op : ops)
+                t = op.apply(t);
+            return t;
+        };
+        CpuInto into = (in, out, w, h) -> {
+            // ping-pong between out and one pool buffer, arranged so the last op lands in out
+            int n = ops.size();
+            int[] tmp = n > 1 ? BufferPool.shared().acquire(w * h) : null;
+            try {
+                int[] cur = in;
+                for (int k = 0; k < n; k++) {
+                    int[] dst = (n - 1 - k) % 2 == 0 ? out : tmp;
+                    ops.get(k).applyInto(cur, dst, w, h);
+                    cur = dst;
+                }
+            } finally {
+                BufferPool.shared().release(tmp);
+            }
+        };
+        GpuKernel gpu = null;
+        if (cl) {
+            UnaryOperator<BufferedImage> kernels = t -> {
+                for (Stage.Op op : ops)
+                    t = op.openCl().apply(t);
+                return t;
+            };
+            gpu = (dev, t) -> dev.apply(t, cpu, kernels);
+        }
+        log.printf("Plan: %s tiled, halo %d, ~%.0f ms on one core%s%n", name, g.halo(), pixels * nsPerPx / 1e6,
+                cl ? ", OpenCL-capable" : "");
+        return new TileOp(name.toString(), g.halo(), cpu, into, gpu);
+    }
+
+    /**
+     * The steps on a box-downscaled copy of about {@code targetPixels}: a quick
+     * stand-in while the full-size edit runs (neighbourhoods act wider on it).
+     */
+    public BufferedImage proxyPreview(BufferedImage src, List<Recipe.Step> steps, long targetPixels) {
+        double ratio = (double) src.getWidth() * src.getHeight() / Math.max(1, targetPixels);
+        int factor = (int) Math.max(2, Math.ceil(Math.sqrt(ratio)));
         try {
-            return Float.parseFloat(a[i]);
-        } catch (Exception e) {
-            return def;
+            return postProcess(downsample(src, factor), steps);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("interrupted");
+        }
+    }
+
+    /** Same shell ops on a 16-bit image (no rounding to 8 bits between edits). */
+    public Planar16 postProcess16(Planar16 current, String op, String[] args) {
+        return postProcess16(current, List.of(new Recipe.Step(op, args)));
+    }
+
+    /** 16-bit steps one at a time; pointwise ones are tiled, the rest run on the whole frame. */
+    public Planar16 postProcess16(Planar16 current, List<Recipe.Step> steps) {
+        for (Recipe.Step s : steps) {
+            CancelToken.checkpoint();
+            Stage stage = StageRegistry.require(s.op());
+            UnaryOperator<Planar16> f = stage.bind(s.args(), stageContext16()).apply16();
+            if (f == null)
+                throw new IllegalArgumentException(s.op() + " runs on 8-bit images only (use --depth 8)");
+            if (stage.kind() != Stage.Kind.POINTWISE) {
+                current = f.apply(current);
+                continue;
+            }
+            try {
+                current = process16(current, stage.name(), f);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return current;
+            }
         }
+        return current;
     }
 }
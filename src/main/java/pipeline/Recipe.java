@@ -0,0 +1,73 @@
+package pipeline;
+
+import util.Planar16;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A list of post-processing steps in shell syntax, separated by ';'
+ * (e.g. "sharpen 0.6;bw;blur 1.5"), plus how many neighbour rows/columns the
+ * whole chain reads beyond a region (its halo). Step names are checked
+ * against the {@link StageRegistry} when parsed.
+ */
+public final class Recipe {
+
+    public record Step(String op, String[] args) {
+    }
+
+    private final List<Step> steps;
+
+    private Recipe(List<Step> steps) {
+        this.steps = steps;
+    }
+
+    public static Recipe parse(String spec) {
+        List<Step> steps = new ArrayList<>();
+        if (spec != null) {
+            for (String s : spec.split(";")) {
+                String[] parts = s.trim().split("\\s+");
+                if (parts[0].isEmpty())
+                    continue;
+                StageRegistry.require(parts[0]);
+                steps.add(new Step(parts[0].toLowerCase(), Arrays.copyOfRange(parts, 1, parts.length)));
+            }
+        }
+        return new Recipe(steps);
+    }
+
+    public List<Step> steps() {
+        return steps;
+    }
+
+    public boolean isEmpty() {
+        return steps.isEmpty();
+    }
+
+    /** True if a step needs the whole frame (e.g. changes its size), so it can't run per band. */
+    public boolean resizes() {
+        for (Step s : steps)
+            if (!StageRegistry.require(s.op()).tileable())
+                return true;
+        return false;
+    }
+
+    /** Sum of per-step halos: rows a band needs above/below to match whole-frame output. */
+    public int halo() {
+        int h = 0;
+        for (Step s : steps)
+            h += StageRegistry.require(s.op()).halo(s.args());
+        return h;
+    }
+
+    /** All steps through the orchestrator; consecutive tileable steps run as one fused pass. */
+    public BufferedImage apply(PipelineOrchestrator orch, BufferedImage img) {
+        return steps.isEmpty() ? img : orch.postProcess(img, steps);
+    }
+
+    public Planar16 apply(PipelineOrchestrator orch, Planar16 img) {
+        return steps.isEmpty() ? img : orch.postProcess16(img, steps);
+    }
+}
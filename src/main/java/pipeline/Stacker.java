@@ -0,0 +1,167 @@
+package pipeline;
+
+import io.BandReader;
+import io.PngStreamWriter;
+import stages.Stack;
+import util.CancelToken;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Stacking mode: N aligned frames in, one combined frame out (see
+ * {@link Stack} for the modes). Every frame is read top to bottom in bands;
+ * only the current band of each frame is in memory, combined in parallel
+ * pixel ranges and streamed into the PNG. The band height is chosen so the
+ * N bands together stay within a fixed budget (-DstackMB, default 1/8 of the
+ * heap), so memory is the same for 5 frames or 200; more frames just means
+ * shorter bands. PNGs are decoded row by row; other formats go through
+ * ImageIO region reads capped at one band per reader (counted in the budget),
+ * which re-decode from the top of the file for each band: flat memory, but
+ * slower than PNG for long stacks.
+ *
+ * Frames are decoded in parallel (one reader per file, all open for the whole
+ * run). They must all have the same size; nothing is aligned, so bursts need a
+ * tripod or a prior alignment step.
+ */
+public final class Stacker {
+
+    private Stacker() {
+    }
+
+    /**
+     * Input frames from a ';'-separated list; entries with '*' or '?' are globs
+     * over their directory (sorted by name).
+     */
+    public static List<Path> frames(String spec) throws IOException {
+        List<Path> out = new ArrayList<>();
+        for (String part : spec.split(";")) {
+            part = part.trim();
+            if (part.isEmpty())
+                continue;
+            Path p = Paths.get(part);
+            String name = p.getFileName().toString();
+            if (name.indexOf('*') < 0 && name.indexOf('?') < 0) {
+                out.add(p);
+                continue;
+            }
+            Path dir = p.getParent() != null ? p.getParent() : Paths.get(".");
+            List<Path> matched = new ArrayList<>();
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, name)) {
+                for (Path m : ds)
+                    if (Files.isRegularFile(m))
+                        matched.add(m);
+            }
+            if (matched.isEmpty())
+                throw new IOException("no files match " + part);
+            matched.sort(null);
+            out.addAll(matched);
+        }
+        return out;
+    }
+
+    /**
+     * Band rows so that {@code n} frame bands plus the output band fit the budget.
+     *
+     * @param chunked some frames go through ImageIO region reads, whose readers
+     *                hold a decoded chunk (capped at one band) besides the band
+     */
+    static int bandRows(int n, int width, int height, boolean chunked) {
+        long budget = Long.getLong("stackMB", Runtime.getRuntime().maxMemory() >> 23) << 20;
+        return (int) Math.max(1, Math.min(height, budget / Math.max(1, bytesPerRow(n, width, chunked))));
+    }
+
+    private static long bytesPerRow(int n, int width, boolean chunked) {
+        // n ARGB bands (+ n reader chunks), ARGB out, 3x16-bit out, alpha row
+        return (long) width * ((chunked ? 8L : 4L) * n + 4 + 6 + 6);
+    }
+
+    /**
+     * Combine {@code inputs} into {@code output} (PNG). {@code depth16} writes a
+     * 16-bit PNG, keeping the precision averaging gains.
+     *
+     * @param bandRows rows per band (0 = from the memory budget)
+     */
+    public static void run(List<Path> inputs, Path output, PipelineOrchestrator orch, Stack.Params params,
+            boolean depth16, int bandRows) throws IOException, InterruptedException {
+        final int n = inputs.size();
+        if (n < 2)
+            throw new IOException("stacking needs at least 2 frames, got " + n);
+        long t0 = System.nanoTime();
+        boolean chunked = false;
+        for (Path p : inputs)
+            chunked |= !BandReader.streamsRows(p);
+        final int W, H;
+        try (BandReader first = BandReader.open(inputs.get(0), 1)) {
+            W = first.width();
+            H = first.height();
+        }
+        final int rows = bandRows > 0 ? Math.min(bandRows, H) : bandRows(n, W, H, chunked);
+        BandReader[] readers = new BandReader[n];
+        try {
+            for (int k = 0; k < n; k++) {
+                // region readers hold at most one band, so memory stays flat in n (not heap/8 per frame)
+                readers[k] = BandReader.open(inputs.get(k), rows);
+                if (readers[k].width() != W || readers[k].height() != H)
+                    throw new IOException(String.format("%s is %dx%d, expected %dx%d", inputs.get(k),
+                            readers[k].width(), readers[k].height(), W, H));
+            }
+            orch.log().printf("Stack: %d frames %dx%d, %s, bands of %d rows (~%d MB in flight)%n", n, W, H, params,
+                    rows, (rows * bytesPerRow(n, W, chunked)) >> 20);
+
+            final int[][] bands = new int[n][rows * W];
+            final short[] r = new short[rows * W], g = new short[rows * W], b = new short[rows * W];
+            final short[] alpha = depth16 ? new short[rows * W] : null;
+            final int[] argb = depth16 ? null : new int[rows * W];
+            if (alpha != null)
+                Arrays.fill(alpha, (short) 0xFFFF);
+
+            ThreadPoolExecutor exec = orch.rowPool();
+            try (PngStreamWriter w = new PngStreamWriter(output, W, H, 6, depth16 ? 16 : 8)) {
+                for (int y = 0; y < H; y += rows) {
+                    CancelToken.checkpoint();
+                    final int h = Math.min(rows, H - y), px = h * W;
+                    // decode: one band from every frame, frames spread over the pool
+                    try {
+                        PipelineOrchestrator.rows(exec, n, (k0, k1) -> {
+                            for (int k = k0; k < k1; k++) {
+                                try {
+                                    readers[k].nextInto(bands[k], 0, h);
+                                } catch (IOException e) {
+                                    throw new UncheckedIOException(inputs.get(k) + ": " + e.getMessage(), e);
+                                }
+                            }
+                        });
+                    } catch (UncheckedIOException e) {
+                        throw new IOException(e.getMessage(), e.getCause());
+                    }
+                    // combine: pixel ranges of the band in parallel
+                    PipelineOrchestrator.rows(exec, px, (p0, p1) -> {
+                        Stack.combine(bands, n, p0, p1, params, r, g, b);
+                        if (argb != null)
+                            Stack.toArgb(r, g, b, p0, p1, argb);
+                    });
+                    if (depth16)
+                        w.writeRows16(r, g, b, alpha, 0, W, h);
+                    else
+                        w.writeRows(argb, 0, W, h);
+                }
+            } finally {
+                orch.releaseRowPool(exec);
+            }
+            orch.log().printf("Stacked %d frames in %.0f ms -> %s%n", n, (System.nanoTime() - t0) / 1e6, output);
+        } finally {
+            for (BandReader rd : readers)
+                if (rd != null)
+                    rd.close();
+        }
+    }
+}
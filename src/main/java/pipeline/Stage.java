@@ -0,0 +1,116 @@
+package pipeline;
+
+import util.Planar16;
+import util.Tiles;
+
+import java.awt.image.BufferedImage;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+/**
+ * A post-processing step (shell command, recipe step) plus the properties the
+ * orchestrator plans from: pointwise or neighbourhood (and how far it reads),
+ * tileable or whole-frame, which backends exist, and a rough cost.
+ *
+ * Built-ins are in {@link BuiltinStages}. More are found with
+ * {@link java.util.ServiceLoader}: put a jar on the class path that lists its
+ * implementations in META-INF/services/pipeline.Stage. A plug-in stage with a
+ * built-in's name replaces it.
+ */
+public interface Stage {
+
+    enum Kind {
+        /** Output pixel depends only on the same input pixel. */
+        POINTWISE,
+        /** Output pixel reads a window of {@link #halo} pixels around it. */
+        NEIGHBOURHOOD,
+        /** Changes the frame size (never tiled or fused). */
+        GEOMETRY
+    }
+
+    enum Backend {
+        CPU_SCALAR, OPENCL
+    }
+
+    /** Shell command, lower case. */
+    String name();
+
+    /** Help line, e.g. "sharpen <float>  e.g., sharpen 0.6". */
+    String usage();
+
+    Kind kind();
+
+    /** Upper bound on the neighbourhood radius for these arguments (before binding). */
+    default int halo(String[] args) {
+        return 0;
+    }
+
+    /** Tiles may be processed independently (false = the stage gets the whole frame). */
+    default boolean tileable() {
+        return kind() != Kind.GEOMETRY;
+    }
+
+    default Set<Backend> backends() {
+        return EnumSet.of(Backend.CPU_SCALAR);
+    }
+
+    /** Rough single-core CPU cost in ns per pixel; used for planning, not accounting. */
+    double costNsPerPixel();
+
+    /** Parse arguments (and plan, if the stage adapts to the frame); throws IllegalArgumentException on bad input. */
+    Op bind(String[] args, Context ctx);
+
+    /** What a stage may look at while binding. */
+    interface Context {
+        /** "preview" | "high". */
+        String quality();
+
+        /** Worker threads the orchestrator will use. */
+        int workers();
+
+        /**
+         * The 8-bit frame about to be processed, or null on the 16-bit path.
+         * May compute it (a lazy edit graph), so only stages that really plan
+         * from the pixels should call it; use {@link #depth16} for the depth.
+         */
+        BufferedImage frame();
+
+        /** True when binding for the 16-bit path. */
+        boolean depth16();
+
+        /** For whole-frame stages that use the orchestrator's row-parallel passes. */
+        PipelineOrchestrator orchestrator();
+    }
+
+    /** A stage bound to its arguments; safe to call from several workers at once. */
+    interface Op {
+        /** Pixels read beyond each edge; tiles are cut with this margin and cropped after. */
+        default int halo() {
+            return 0;
+        }
+
+        /** CPU result for one tile (or the whole frame for non-tileable stages). */
+        BufferedImage apply(BufferedImage src);
+
+        /**
+         * {@link #apply} on packed ARGB (stride = w, arrays may be longer than
+         * w*h) into a caller-owned buffer; src and dst are distinct. Tiled runs
+         * use this with pooled buffers. The default goes through apply() and
+         * copies; stages that can write into dst directly should override it.
+         */
+        default void applyInto(int[] src, int[] dst, int w, int h) {
+            Tiles.extractInto(apply(Tiles.wrapArgb(src, w, h)), 0, 0, w, h, dst);
+        }
+
+        /** 16-bit result for one tile or frame; null if the stage is 8-bit only. */
+        default UnaryOperator<Planar16> apply16() {
+            return null;
+        }
+
+        /** The same result through OpenCL, or null if this binding has no kernel. */
+        default UnaryOperator<BufferedImage> openCl() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package pipeline;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * Name → {@link Stage}: the built-ins, then whatever {@link ServiceLoader}
+ * finds on the class path (loaded once, on first use).
+ */
+public final class StageRegistry {
+
+    private static volatile Map<String, Stage> stages;
+
+    private StageRegistry() {
+    }
+
+    /** Stage for a shell command, or null. */
+    public static Stage get(String name) {
+        return stages().get(name.toLowerCase());
+    }
+
+    /** Like {@link #get} but an unknown name is an IllegalArgumentException. */
+    public static Stage require(String name) {
+        Stage s = get(name);
+        if (s == null)
+            throw new IllegalArgumentException("unknown step: " + name);
+        return s;
+    }
+
+    /** Every stage in help order (built-ins first). */
+    public static Collection<Stage> all() {
+        return stages().values();
+    }
+
+    private static Map<String, Stage> stages() {
+        Map<String, Stage> m = stages;
+        if (m == null) {
+            synchronized (StageRegistry.class) {
+                m = stages;
+                if (m == null)
+                    m = stages = Collections.unmodifiableMap(load());
+            }
+        }
+        return m;
+    }
+
+    private static Map<String, Stage> load() {
+        Map<String, Stage> m = new LinkedHashMap<>();
+        for (Stage s : BuiltinStages.all())
+            m.put(s.name(), s);
+        Iterator<Stage> it = ServiceLoader.load(Stage.class).iterator();
+        while (true) {
+            try {
+                if (!it.hasNext())
+                    break;
+                Stage s = it.next();
+                String name = s.name().toLowerCase();
+                boolean replaces = m.containsKey(name);
+                m.put(name, s);
+                System.out.println("Stage: " + name + " from " + s.getClass().getName()
+                        + (replaces ? " (replaces built-in)" : ""));
+            } catch (ServiceConfigurationError e) {
+                // a broken plug-in jar shouldn't take the shell down
+                System.err.println("Stage: skipping plug-in: " + e.getMessage());
+            }
+        }
+        return m;
+    }
+}
@@ -0,0 +1,136 @@
+package pipeline;
+
+import util.MachineProfile;
+
+import java.util.Locale;
+
+/**
+ * Throughput-feedback thread-count controller.
+ *
+ * The power policy only gives a ceiling; inside it we hill-climb the pool size
+ * on measured MP/s (one step per sample window) and remember the best setting
+ * per op in the machine profile, so the next run starts where this one ended.
+ * Memory-bound LUT ops usually peak at or below the core count.
+ */
+final class ThreadTuner {
+
+    private static final long MIN_WINDOW_NS = 50_000_000L; // 50 ms
+    private static final double GAIN = 1.03; // need >3% to count as better
+
+    private final String op;
+    private final MachineProfile profile;
+    private final int cores;
+    private final int minWindowTiles;
+
+    private int current;
+    private int direction = +1;
+    private int reversals;
+    private boolean settled;
+
+    private int bestThreads;
+    private double bestRate; // MP/s
+    private double lastRate;
+    private int windows;
+
+    private long winStartNs;
+    private long winStartTiles;
+    private long winStartPixels;
+
+    ThreadTuner(String op, MachineProfile profile, int cores) {
+        this.op = op;
+        this.profile = profile;
+        this.cores = cores;
+        this.minWindowTiles = Math.max(4, cores);
+    }
+
+    /** Starting pool size: remembered best for this op, else one thread per core. */
+    synchronized int start(int ceiling, long nowNs) {
+        int remembered = profile.getInt(key(), cores);
+        current = clamp(remembered, ceiling);
+        bestThreads = current;
+        bestRate = 0;
+        winStartNs = nowNs;
+        return current;
+    }
+
+    /**
+     * Feed cumulative progress counters; returns the pool size to use next.
+     * Only moves when a full window has been observed.
+     */
+    synchronized int sample(long tilesDone, long pixelsDone, long nowNs, int ceiling) {
+        if (current > ceiling) {
+            // Policy tightened: obey immediately and restart the window.
+            current = clamp(current, ceiling);
+            bestThreads = clamp(bestThreads, ceiling);
+            resetWindow(tilesDone, pixelsDone, nowNs);
+            return current;
+        }
+
+        long dt = nowNs - winStartNs;
+        long dTiles = tilesDone - winStartTiles;
+        if (dt < MIN_WINDOW_NS || dTiles < minWindowTiles)
+            return current;
+
+        double rate = (pixelsDone - winStartPixels) / (dt / 1e3); // pixels/us == MP/s
+        lastRate = rate;
+        windows++;
+        resetWindow(tilesDone, pixelsDone, nowNs);
+
+        if (rate > bestRate * GAIN || bestThreads == current) {
+            if (rate > bestRate) {
+                bestRate = rate;
+                bestThreads = current;
+            }
+        } else {
+            // Worse than the best seen: go back there and try the other side.
+            direction = -direction;
+            reversals++;
+            current = bestThreads;
+            if (reversals >= 2)
+                settled = true;
+            return current;
+        }
+
+        if (!settled) {
+            int next = clamp(current + direction, ceiling);
+            if (next == current) {
+                direction = -direction;
+                reversals++;
+                next = clamp(current + direction, ceiling);
+            }
+            current = next;
+        }
+        return current;
+    }
+
+    /** Persist the best observed setting (only if we actually measured something). */
+    synchronized void finish() {
+        if (windows < 2)
+            return;
+        profile.put(key(), Integer.toString(bestThreads));
+        profile.put(key() + ".mps", String.format(Locale.ROOT, "%.1f", bestRate));
+        profile.save();
+    }
+
+    synchronized double lastRateMps() {
+        return lastRate;
+    }
+
+    synchronized int bestThreads() {
+        return bestThreads;
+    }
+
+    private void resetWindow(long tiles, long pixels, long nowNs) {
+        winStartNs = nowNs;
+        winStartTiles = tiles;
+        winStartPixels = pixels;
+    }
+
+    private String key() {
+        return "threads." + op;
+    }
+
+    private static int clamp(int n, int ceiling) {
+        return Math.max(1, Math.min(ceiling, n));
+    }
+}
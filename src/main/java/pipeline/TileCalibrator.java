@@ -0,0 +1,127 @@
+package pipeline;
+
+import hw.CpuCaches;
+import stages.FiltersCPU;
+import stages.FiltersCPUFast;
+import stages.GpuProcessor;
+import util.MachineProfile;
+import util.Synthetic;
+import util.Tiles;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.UnaryOperator;
+
+/**
+ * Calibration mode: micro-benchmarks candidate tile shapes per op class on
+ * this machine and stores the winners in the machine profile, where
+ * {@link TilePlanner} picks them up.
+ *
+ * Benchmark frame size defaults to 2048x1536; override with
+ * -DcalibrateSize=WxH.
+ */
+public final class TileCalibrator {
+
+    private static final int REPS = 2;
+
+    private TileCalibrator() {
+    }
+
+    public static void run() {
+        int cores = Math.max(1, Runtime.getRuntime().availableProcessors());
+        TilePlanner.Shape frame = TilePlanner.Shape.parse(System.getProperty("calibrateSize", "2048x1536"));
+        if (frame == null)
+            frame = new TilePlanner.Shape(2048, 1536);
+        BufferedImage img = Synthetic.gradientNoise(frame.w(), frame.h());
+
+        long cache = CpuCaches.perCoreBytes();
+        List<TilePlanner.Shape> candidates = candidates(frame, cache);
+        System.out.println("Calibrating tile shapes on " + frame + " frame, " + cores + " threads, per-core cache "
+                + (cache / 1024) + " KB");
+
+        MachineProfile profile = MachineProfile.shared();
+        ExecutorService pool = Executors.newFixedThreadPool(cores);
+        try {
+            for (TilePlanner.OpClass op : TilePlanner.OpClass.values()) {
+                if (op == TilePlanner.OpClass.GPU && !GpuProcessor.isAvailable()) {
+                    System.out.println("  gpu: no OpenCL GPU, skipped");
+                    continue;
+                }
+                UnaryOperator<BufferedImage> f = opFor(op);
+                TilePlanner.Shape best = null;
+                double bestMs = Double.MAX_VALUE;
+                timeOnce(pool, img, TilePlanner.DEFAULT, f); // warm-up / JIT
+                for (TilePlanner.Shape s : candidates) {
+                    double ms = Double.MAX_VALUE;
+                    for (int r = 0; r < REPS; r++)
+                        ms = Math.min(ms, timeOnce(pool, img, s, f));
+                    System.out.printf("  %-7s %-9s %8.1f ms%n", op.name().toLowerCase(), s, ms);
+                    if (ms < bestMs) {
+                        bestMs = ms;
+                        best = s;
+                    }
+                }
+                if (best != null) {
+                    profile.put(op.key(), best.toString());
+                    System.out.println("  -> " + op.name().toLowerCase() + " = " + best);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("Calibration interrupted");
+            return;
+        } finally {
+            pool.shutdownNow();
+        }
+        profile.put("cache.perCore", Long.toString(cache));
+        profile.save();
+        System.out.println("Profile written to: " + profile.path().toAbsolutePath());
+    }
+
+    /** Powers-of-two squares, wide strips, and the square whose in+out tiles fit the per-core cache. */
+    static List<TilePlanner.Shape> candidates(TilePlanner.Shape frame, long cacheBytes) {
+        Set<TilePlanner.Shape> s = new LinkedHashSet<>();
+        for (int e = 64; e <= 1024; e *= 2)
+            s.add(new TilePlanner.Shape(e, e));
+        s.add(new TilePlanner.Shape(frame.w(), 32));
+        s.add(new TilePlanner.Shape(frame.w(), 128));
+        int fit = Integer.highestOneBit((int) Math.max(TilePlanner.MIN_EDGE, Math.sqrt(cacheBytes / 8.0)));
+        s.add(new TilePlanner.Shape(fit, fit));
+        return new ArrayList<>(s);
+    }
+
+    private static UnaryOperator<BufferedImage> opFor(TilePlanner.OpClass op) {
+        return switch (op) {
+            case POINT -> t -> FiltersCPUFast.applyBrightnessContrast(t, 10, 20);
+            case CONV3X3 -> t -> FiltersCPUFast.sharpen(t, 0.6f);
+            case BLUR -> t -> FiltersCPU.gaussianBlur(t, 3f);
+            case GPU -> t -> GpuProcessor.applyBrightnessContrast(t, 10, 20);
+        };
+    }
+
+    /** Split, run, and stitch one frame exactly like process() does. */
+    private static double timeOnce(ExecutorService pool, BufferedImage src, TilePlanner.Shape s,
+            UnaryOperator<BufferedImage> f) throws InterruptedException {
+        long t0 = System.nanoTime();
+        BufferedImage out = new BufferedImage(src.getWidth(), src.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        List<Tiles.Tile> tiles = Tiles.split(src, s.w(), s.h());
+        CountDownLatch latch = new CountDownLatch(tiles.size());
+        for (Tiles.Tile t : tiles) {
+            pool.execute(() -> {
+                try {
+                    Tiles.copy(f.apply(t.image()), out, t.x(), t.y());
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        return (System.nanoTime() - t0) / 1e6;
+    }
+}
@@ -0,0 +1,97 @@
+package pipeline;
+
+import util.MachineProfile;
+
+/**
+ * Picks the tile shape for a frame.
+ *
+ * The preferred shape per op class comes from the machine profile (written by
+ * {@link TileCalibrator}); it is then adapted to the frame so small images
+ * still give every worker something to do and huge ones don't explode into
+ * millions of tiny tasks.
+ *
+ * -DtileShape=WxH forces one exact shape for every op class (no adaptation);
+ * the verify harness uses it to run ops under several tilings.
+ */
+public final class TilePlanner {
+
+    /** Op classes with distinct memory/compute behaviour. */
+    public enum OpClass {
+        POINT, CONV3X3, BLUR, GPU;
+
+        String key() {
+            return "tile." + name().toLowerCase();
+        }
+    }
+
+    public record Shape(int w, int h) {
+        @Override
+        public String toString() {
+            return w + "x" + h;
+        }
+
+        static Shape parse(String s) {
+            if (s == null)
+                return null;
+            String[] p = s.trim().toLowerCase().split("x");
+            try {
+                int w = Integer.parseInt(p[0]), h = Integer.parseInt(p[1]);
+                return (w > 0 && h > 0) ? new Shape(w, h) : null;
+            } catch (Exception e) {
+                return null;
+            }
+        }
+    }
+
+    static final Shape DEFAULT = new Shape(512, 512);
+    static final int MIN_EDGE = 64;
+    static final int MAX_TILES = 4096;
+    static final int TILES_PER_THREAD = 4;
+
+    private TilePlanner() {
+    }
+
+    /** Calibrated (or default) shape for an op class, before frame adaptation. */
+    public static Shape preferred(OpClass op) {
+        Shape s = Shape.parse(MachineProfile.shared().get(op.key()));
+        return s != null ? s : DEFAULT;
+    }
+
+    /** Tile shape for a W×H frame processed by {@code threads} workers. */
+    public static Shape plan(OpClass op, int W, int H, int threads) {
+        Shape forced = Shape.parse(System.getProperty("tileShape"));
+        if (forced != null)
+            return new Shape(Math.min(forced.w(), W), Math.min(forced.h(), H));
+        return adapt(preferred(op), W, H, threads);
+    }
+
+    static Shape adapt(Shape pref, int W, int H, int threads) {
+        int tw = Math.min(pref.w(), W), th = Math.min(pref.h(), H);
+        long minTiles = Math.min((long) Math.max(1, threads) * TILES_PER_THREAD,
+                (long) ceilDiv(W, MIN_EDGE) * ceilDiv(H, MIN_EDGE));
+
+        // Small frame: split the larger edge until every worker has a few tiles.
+        while (count(W, H, tw, th) < minTiles && (tw > MIN_EDGE || th > MIN_EDGE)) {
+            if (tw >= th && tw > MIN_EDGE)
+                tw = Math.max(MIN_EDGE, tw / 2);
+            else
+                th = Math.max(MIN_EDGE, th / 2);
+        }
+        // Huge frame: grow the smaller edge until the task count is sane.
+        while (count(W, H, tw, th) > MAX_TILES && (tw < W || th < H)) {
+            if ((th <= tw || tw >= W) && th < H)
+                th = Math.min(H, th * 2);
+            else
+                tw = Math.min(W, tw * 2);
+        }
+        return new Shape(tw, th);
+    }
+
+    private static long count(int W, int H, int tw, int th) {
+        return (long) ceilDiv(W, tw) * ceilDiv(H, th);
+    }
+
+    private static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+}
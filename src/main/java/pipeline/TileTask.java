@@ -0,0 +1,120 @@
+package pipeline;
+
+import util.BufferPool;
+import util.MappedFrame;
+import util.SpillReadAhead;
+import util.SpillStore;
+import util.Tiles;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * One unit of tile work: resident in RAM, spilled to the spill store, or a
+ * region of a memory-mapped frame read on demand (spilled tiles may be read
+ * back early by a {@link SpillReadAhead}). Pixels it copies out
+ * (extracted, reloaded, read from the frame) sit in {@link BufferPool} buffers
+ * that {@link #release} hands back, so a task is good for one load.
+ */
+final class TileTask {
+    final int x, y, w, h;
+    private final BufferedImage image; // resident tile, else null
+    private final SpillStore.Handle handle; // spilled tile, else null
+    private final SpillStore store;
+    private final SpillReadAhead ahead; // read-ahead the spilled tile was queued with, or null
+    private final MappedFrame frame; // frame-backed tile, else null
+    private final boolean pooled; // image is over a pool buffer
+    private int[] loaded; // pool buffer load() filled, else null
+
+    private TileTask(int x, int y, int w, int h, BufferedImage image, SpillStore.Handle handle, SpillStore store,
+            SpillReadAhead ahead, MappedFrame frame, boolean pooled) {
+        this.x = x;
+        this.y = y;
+        this.w = w;
+        this.h = h;
+        this.image = image;
+        this.handle = handle;
+        this.store = store;
+        this.ahead = ahead;
+        this.frame = frame;
+        this.pooled = pooled;
+    }
+
+    static TileTask inRam(Tiles.Tile t) {
+        return inRam(t.x(), t.y(), t.image());
+    }
+
+    static TileTask inRam(int x, int y, BufferedImage img) {
+        return new TileTask(x, y, img.getWidth(), img.getHeight(), img, null, null, null, null, false);
+    }
+
+    /** A region of {@code src} copied into a pool buffer. */
+    static TileTask extract(BufferedImage src, int x, int y, int w, int h) {
+        BufferedImage img = BufferPool.shared().image(w, h);
+        Tiles.extractInto(src, x, y, w, h, Tiles.data(img));
+        return new TileTask(x, y, w, h, img, null, null, null, null, true);
+    }
+
+    static TileTask spilled(SpillStore store, SpillStore.Handle h) {
+        return spilled(store, h, null);
+    }
+
+    /** A spilled tile that {@code ahead} (if not null) may already have read back by the time it is loaded. */
+    static TileTask spilled(SpillStore store, SpillStore.Handle h, SpillReadAhead ahead) {
+        if (ahead != null)
+            ahead.enqueue(h);
+        return new TileTask(h.x, h.y, h.w, h.h, null, h, store, ahead, null, false);
+    }
+
+    static TileTask fromFrame(MappedFrame frame, int x, int y, int w, int h) {
+        return new TileTask(x, y, w, h, null, null, null, null, frame, false);
+    }
+
+    boolean isSpilled() {
+        return handle != null;
+    }
+
+    /** True if the pixels sit on the heap now (the only kind worth spilling). */
+    boolean isResident() {
+        return image != null;
+    }
+
+    /** Write a resident tile to the spill store. */
+    SpillStore.Handle spillTo(SpillStore s) throws IOException {
+        return s.spill(image, x, y);
+    }
+
+    long pixels() {
+        return (long) w * h;
+    }
+
+    BufferedImage load() throws IOException {
+        if (image != null)
+            return image;
+        if (ahead != null) {
+            loaded = ahead.take(handle); // usually staged already
+            return Tiles.wrapArgb(loaded, w, h);
+        }
+        loaded = BufferPool.shared().acquire(w * h);
+        if (frame != null)
+            frame.read(x, y, w, h, loaded);
+        else
+            store.loadPixels(handle, loaded);
+        return Tiles.wrapArgb(loaded, w, h);
+    }
+
+    /** Hand pool buffers back and drop the on-disk copy; the loaded image is dead after this. */
+    void release() {
+        if (handle != null) {
+            if (ahead != null && loaded == null)
+                ahead.discard(handle); // dropped before its load: free anything staged for it
+            store.remove(handle);
+        }
+        if (pooled)
+            BufferPool.shared().release(image);
+        if (loaded != null) {
+            BufferPool.shared().release(loaded);
+            loaded = null;
+        }
+    }
+}
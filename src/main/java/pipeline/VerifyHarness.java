@@ -0,0 +1,395 @@
+package pipeline;
+
+import stages.ColorPipeline;
+import stages.Convolution;
+import stages.Denoise;
+import stages.FiltersCPU;
+import stages.FiltersCPU16;
+import stages.FiltersCPUFast;
+import stages.GpuProcessor;
+import stages.Resize;
+import stages.Stack;
+import util.MachineProfile;
+import util.Planar16;
+import util.Synthetic;
+import util.Tiles;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+/**
+ * Verify mode: golden-image regression and throughput budgets.
+ *
+ * Every op runs on deterministic synthetic frames (gradients, noise, hard
+ * edges; sizes that are not tile multiples, down to a few pixels) through
+ * every backend that implements it: the float reference (FiltersCPU), the
+ * LUT path (FiltersCPUFast), 16-bit, OpenCL when present, a simulated GPU
+ * in the hetero scheduler, and the tiled orchestrator under several forced
+ * tile shapes. Each result must match the golden image for that op and frame
+ * within the op's tolerance (max channel difference); without a golden the
+ * reference backend's output stands in.
+ *
+ * The production path of every op is then timed on a larger frame and must
+ * reach the MP/s budget recorded for this machine, minus a slack
+ * (-DbudgetSlack, default 0.3). {@code --record} writes the goldens from the
+ * reference backend and the current throughput as the budgets.
+ *
+ * Perf frame size defaults to 2048x1536; override with -DverifySize=WxH.
+ */
+public final class VerifyHarness {
+
+    /** Forced tilings: small squares, odd sizes, full-width strips, one tile. */
+    private static final String[] TILE_SHAPES = { "64x64", "97x61", "4096x33", "4096x4096" };
+    private static final double SIMULATED_GPU_MPS = 400;
+    private static final int PERF_REPS = 3;
+
+    private interface Backend {
+        BufferedImage apply(BufferedImage src) throws Exception;
+    }
+
+    /** One op: reference, alternative backends, tolerance and the path whose speed is budgeted. */
+    private record Case(String op, int tolerance, Backend reference, Map<String, Backend> backends,
+            Backend production) {
+    }
+
+    private VerifyHarness() {
+    }
+
+    /** Returns false if any comparison or budget failed. */
+    public static boolean run(Path goldenDir, boolean record) {
+        TilePlanner.Shape perf = TilePlanner.Shape.parse(System.getProperty("verifySize", "2048x1536"));
+        if (perf == null)
+            perf = new TilePlanner.Shape(2048, 1536);
+        double slack = Double.parseDouble(System.getProperty("budgetSlack", "0.3"));
+
+        Map<String, BufferedImage> frames = new LinkedHashMap<>();
+        frames.put("gradient257x131", Synthetic.gradientNoise(257, 131));
+        frames.put("noise1031x517", Synthetic.noise(1031, 517, 7));
+        frames.put("edges640x480", Synthetic.edges(640, 480));
+        frames.put("tiny7x5", Synthetic.gradientNoise(7, 5));
+
+        // the harness prints its own table; the orchestrators' per-call lines are dropped
+        PipelineOrchestrator cpu = new PipelineOrchestrator(true, 100, false, "preview").quiet();
+        PipelineOrchestrator hetero = new PipelineOrchestrator(true, 100, true, "preview").quiet();
+        boolean gpu = gpuAvailable();
+        System.out.println("Verify: " + frames.size() + " frames, tile shapes " + String.join(" ", TILE_SHAPES)
+                + ", OpenCL " + (gpu ? "present" : "absent") + (record ? ", recording goldens" : ""));
+
+        MachineProfile profile = MachineProfile.shared();
+        int failures = 0;
+        try {
+            Files.createDirectories(goldenDir);
+            for (Case c : cases(cpu, hetero, gpu)) {
+                System.out.println(c.op() + " (tolerance " + c.tolerance() + ")");
+                Map<String, Integer> worst = new LinkedHashMap<>();
+                for (Map.Entry<String, BufferedImage> f : frames.entrySet()) {
+                    BufferedImage ref = c.reference().apply(f.getValue());
+                    Path golden = goldenDir.resolve(c.op() + "_" + f.getKey() + ".png");
+                    BufferedImage expected = ref;
+                    if (record) {
+                        ImageIO.write(ref, "png", golden.toFile());
+                    } else if (Files.isRegularFile(golden)) {
+                        expected = ImageIO.read(golden.toFile());
+                        worst.merge("reference", maxDiff(expected, ref), Math::max);
+                    }
+                    for (Map.Entry<String, Backend> b : c.backends().entrySet())
+                        worst.merge(b.getKey(), maxDiff(expected, b.getValue().apply(f.getValue())), Math::max);
+                }
+                for (Map.Entry<String, Integer> w : worst.entrySet()) {
+                    boolean ok = w.getValue() <= c.tolerance();
+                    if (!ok)
+                        failures++;
+                    System.out.printf("  %-22s max diff %s  %s%n", w.getKey(),
+                            w.getValue() == Integer.MAX_VALUE ? "size" : Integer.toString(w.getValue()),
+                            ok ? "ok" : "FAIL");
+                }
+
+                // budget: production path on the perf frame
+                BufferedImage big = Synthetic.gradientNoise(perf.w(), perf.h());
+                c.production().apply(big); // warm-up / JIT
+                double ms = Double.MAX_VALUE;
+                for (int r = 0; r < PERF_REPS; r++) {
+                    long t0 = System.nanoTime();
+                    c.production().apply(big);
+                    ms = Math.min(ms, (System.nanoTime() - t0) / 1e6);
+                }
+                double mps = (double) perf.w() * perf.h() / (ms * 1e3);
+                String key = "budget." + c.op();
+                if (record) {
+                    profile.put(key, String.format(Locale.ROOT, "%.1f", mps));
+                    System.out.printf("  %-22s %.1f MP/s (recorded)%n", "budget", mps);
+                } else {
+                    double budget = profile.getDouble(key, 0);
+                    boolean ok = budget <= 0 || mps >= budget * (1 - slack);
+                    if (!ok)
+                        failures++;
+                    System.out.printf("  %-22s %.1f MP/s vs %s  %s%n", "budget", mps,
+                            budget > 0 ? String.format("%.1f", budget) : "none", ok ? "ok" : "FAIL");
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Verify: " + e.getMessage());
+            return false;
+        } catch (Exception e) {
+            System.err.println("Verify: backend failed: " + e);
+            return false;
+        } finally {
+            System.clearProperty("tileShape");
+            System.clearProperty("simulateGpu");
+        }
+        if (record) {
+            profile.save();
+            System.out.println("Goldens written to " + goldenDir.toAbsolutePath() + ", budgets to "
+                    + profile.path().toAbsolutePath());
+        }
+        System.out.println(failures == 0 ? "Verify: all ok" : "Verify: " + failures + " failure(s)");
+        return failures == 0;
+    }
+
+    // ---------------- ops x backends ----------------
+
+    private static List<Case> cases(PipelineOrchestrator cpu, PipelineOrchestrator hetero, boolean gpu) {
+        ColorPipeline.Params color = ColorPipeline.Params.of(12, 20).withWhiteBalance(1.2, 1.0, 0.85);
+        Denoise.Settings bilateral = new Denoise.Settings(Denoise.Mode.BILATERAL, 10f, 3);
+        Denoise.Settings nlm = new Denoise.Settings(Denoise.Mode.NLM, 10f, 2);
+        List<Case> cases = new ArrayList<>();
+
+        Map<String, Backend> bc = backends();
+        bc.put("fast", t -> FiltersCPUFast.applyBrightnessContrast(t, 15, 25));
+        bc.put("cpu16", via16(t -> FiltersCPU16.applyBrightnessContrast(t, 15, 25)));
+        if (gpu)
+            bc.put("opencl", t -> GpuProcessor.applyBrightnessContrast(t, 15, 25));
+        tiled(bc, t -> cpu.process(t, 15, 25));
+        bc.put("hetero(simulated)", simulated(t -> hetero.process(t, 15, 25)));
+        cases.add(new Case("brightnessContrast", 1, t -> FiltersCPU.applyBrightnessContrast(t, 15, 25), bc,
+                t -> cpu.process(t, 15, 25)));
+
+        Map<String, Backend> lut = backends();
+        lut.put("cpu16", via16(t -> ColorPipeline.compile(color).apply(t)));
+        tiled(lut, t -> cpu.process(t, color));
+        cases.add(new Case("colorLut", 1, t -> ColorPipeline.compile(color).apply(t), lut,
+                t -> cpu.process(t, color)));
+
+        Map<String, Backend> bw = backends();
+        bw.put("fast", FiltersCPUFast::toGray);
+        bw.put("cpu16", via16(FiltersCPU16::toGray));
+        cases.add(new Case("bw", 1, FiltersCPU::toGray, bw, FiltersCPUFast::toGray));
+
+        Map<String, Backend> inv = backends();
+        inv.put("cpu16", via16(FiltersCPU16::invert));
+        cases.add(new Case("invert", 0, FiltersCPU::invert, inv, FiltersCPU::invert));
+
+        Map<String, Backend> sepia = backends();
+        sepia.put("cpu16", via16(FiltersCPU16::sepia));
+        cases.add(new Case("sepia", 1, FiltersCPU::sepia, sepia, FiltersCPU::sepia));
+
+        Map<String, Backend> sharpen = backends();
+        sharpen.put("fast", t -> FiltersCPUFast.sharpen(t, 0.6f));
+        sharpen.put("cpu16", via16(t -> FiltersCPU16.sharpen(t, 0.6f)));
+        cases.add(new Case("sharpen", 1, t -> FiltersCPU.sharpen(t, 0.6f), sharpen,
+                t -> FiltersCPUFast.sharpen(t, 0.6f)));
+
+        Map<String, Backend> blur = backends();
+        blur.put("cpu16", via16(t -> FiltersCPU16.gaussianBlur(t, 1.5f)));
+        cases.add(new Case("blur", 1, t -> FiltersCPU.gaussianBlur(t, 1.5f), blur,
+                t -> FiltersCPU.gaussianBlur(t, 1.5f)));
+
+        Map<String, Backend> edge = backends();
+        edge.put("cpu16", via16(FiltersCPU16::edgeDetect));
+        // 16-bit gradients are rounded once at the end instead of per tap: up to 4 levels on hard edges
+        cases.add(new Case("edge", 4, FiltersCPU::edgeDetect, edge, FiltersCPU::edgeDetect));
+
+        // convolution engine: separable passes against the full 5x5 window, and the 16-bit run
+        Convolution.Kernel gauss5 = Convolution.Kernel.gaussian(2, 1.2f);
+        Map<String, Backend> conv = backends();
+        conv.put("separable", t -> FiltersCPU.convolve(t, gauss5));
+        conv.put("cpu16", via16(t -> FiltersCPU16.convolve(t, gauss5)));
+        cases.add(new Case("convolve5x5", 1, t -> FiltersCPU.convolve(t, gauss5.as2D()), conv,
+                t -> FiltersCPU.convolve(t, gauss5)));
+
+        // fused stage group: three tileable steps in one tiled pass with a summed halo
+        Recipe chain = Recipe.parse("sharpen 0.6;bw;blur 1.5;invert");
+        Map<String, Backend> fused = backends();
+        tiled(fused, t -> chain.apply(cpu, t));
+        cases.add(new Case("fusedChain", 0,
+                t -> FiltersCPU.invert(FiltersCPU.gaussianBlur(FiltersCPUFast.toGray(FiltersCPUFast.sharpen(t, 0.6f)), 1.5f)),
+                fused, t -> chain.apply(cpu, t)));
+
+        String[] bArgs = { "bilateral", "10", "3" };
+        Map<String, Backend> bil = backends();
+        if (gpu)
+            bil.put("opencl", t -> GpuProcessor.bilateral(t, bilateral.strength(), bilateral.radius()));
+        tiled(bil, t -> cpu.postProcess(t, "denoise", bArgs));
+        bil.put("hetero(simulated)", simulated(t -> hetero.postProcess(t, "denoise", bArgs)));
+        cases.add(new Case("denoiseBilateral", 0, t -> Denoise.apply(t, bilateral), bil,
+                t -> cpu.postProcess(t, "denoise", bArgs)));
+
+        String[] nArgs = { "nlm", "10", "2" };
+        Map<String, Backend> nl = backends();
+        tiled(nl, t -> cpu.postProcess(t, "denoise", nArgs));
+        cases.add(new Case("denoiseNlm", 0, t -> Denoise.apply(t, nlm), nl,
+                t -> cpu.postProcess(t, "denoise", nArgs)));
+
+        Map<String, Backend> rz = backends();
+        rz.put("banded", t -> resize(cpu, t));
+        cases.add(new Case("resizeLanczos", 0, t -> {
+            int[] s = Resize.targetSize(t.getWidth(), t.getHeight(), "61%");
+            return Resize.resize(t, s[0], s[1], Resize.Filter.LANCZOS3);
+        }, rz, t -> resize(cpu, t)));
+
+        // lazy edit graph: whole-frame pull and odd-sized viewports stitched together, against the eager run
+        Map<String, Backend> roi = backends();
+        roi.put("graph image", t -> graph(cpu, t, chain).image());
+        roi.put("graph 3x2 viewports", t -> viewports(graph(cpu, t, chain), 3, 2));
+        cases.add(new Case("roiGraph", 0, t -> chain.apply(cpu, t), roi, t -> graph(cpu, t, chain).image()));
+
+        // stacking: the streamed, banded run against the same median in memory; three of the five
+        // frames are the input, so the median is the input itself
+        Stack.Params median = Stack.Params.parse("median");
+        Map<String, Backend> st = backends();
+        st.put("majority frame", t -> t);
+        st.put("streamed 7 rows", t -> stacked(cpu, t, median, 7));
+        cases.add(new Case("stackMedian", 0, t -> stackedInMemory(t, median), st, t -> stacked(cpu, t, median, 0)));
+
+        Map<String, Backend> ds = backends();
+        ds.put("banded", t -> cpu.downsample(t, 3));
+        cases.add(new Case("downsample", 0, t -> Resize.downsample(t, 3), ds, t -> cpu.downsample(t, 3)));
+        return cases;
+    }
+
+    private static Map<String, Backend> backends() {
+        return new LinkedHashMap<>();
+    }
+
+    /** The same orchestrator call once per forced tile shape. */
+    private static void tiled(Map<String, Backend> into, Backend b) {
+        for (String shape : TILE_SHAPES) {
+            into.put("tiled " + shape, t -> {
+                System.setProperty("tileShape", shape);
+                try {
+                    return b.apply(t);
+                } finally {
+                    System.clearProperty("tileShape");
+                }
+            });
+        }
+    }
+
+    private static Backend simulated(Backend b) {
+        return t -> {
+            System.setProperty("simulateGpu", Double.toString(SIMULATED_GPU_MPS));
+            try {
+                return b.apply(t);
+            } finally {
+                System.clearProperty("simulateGpu");
+            }
+        };
+    }
+
+    private static Backend via16(UnaryOperator<Planar16> f) {
+        return t -> f.apply(Planar16.fromImage(t)).toImage8();
+    }
+
+    private static BufferedImage resize(PipelineOrchestrator orch, BufferedImage t) throws InterruptedException {
+        int[] s = Resize.targetSize(t.getWidth(), t.getHeight(), "61%");
+        return orch.resize(t, s[0], s[1], Resize.Filter.LANCZOS3);
+    }
+
+    private static EditGraph graph(PipelineOrchestrator orch, BufferedImage t, Recipe r) {
+        EditGraph g = EditGraph.of(t, orch);
+        for (Recipe.Step s : r.steps())
+            g = g.then(s);
+        return g;
+    }
+
+    /** The frame as cols x rows separately pulled regions, pasted back together. */
+    private static BufferedImage viewports(EditGraph g, int cols, int rows) {
+        int W = g.width(), H = g.height();
+        BufferedImage out = new BufferedImage(W, H, BufferedImage.TYPE_INT_ARGB);
+        for (int j = 0; j < rows; j++) {
+            for (int i = 0; i < cols; i++) {
+                int x0 = W * i / cols, x1 = W * (i + 1) / cols, y0 = H * j / rows, y1 = H * (j + 1) / rows;
+                if (x1 > x0 && y1 > y0)
+                    Tiles.copy(g.region(x0, y0, x1 - x0, y1 - y0), out, x0, y0);
+            }
+        }
+        return out;
+    }
+
+    /** Frames for the stacking case: the input three times, its negative and a blur. */
+    private static BufferedImage[] burst(BufferedImage t) {
+        return new BufferedImage[] { t, FiltersCPU.invert(t), t, FiltersCPU.gaussianBlur(t, 2f), t };
+    }
+
+    private static BufferedImage stackedInMemory(BufferedImage t, Stack.Params p) {
+        BufferedImage[] burst = burst(t);
+        int[][] px = new int[burst.length][];
+        for (int k = 0; k < burst.length; k++)
+            px[k] = Tiles.argb(burst[k]);
+        int n = t.getWidth() * t.getHeight();
+        short[] r = new short[n], g = new short[n], b = new short[n];
+        int[] out = new int[n];
+        Stack.combine(px, px.length, 0, n, p, r, g, b);
+        Stack.toArgb(r, g, b, 0, n, out);
+        return Tiles.wrapArgb(out, t.getWidth(), t.getHeight());
+    }
+
+    /** Through the files: write the burst as PNGs, stack them with Stacker, read the result. */
+    private static BufferedImage stacked(PipelineOrchestrator orch, BufferedImage t, Stack.Params p, int bandRows)
+            throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("verify-stack");
+        try {
+            BufferedImage[] burst = burst(t);
+            List<Path> frames = new ArrayList<>();
+            for (int k = 0; k < burst.length; k++) {
+                Path f = dir.resolve("f" + k + ".png");
+                ImageIO.write(burst[k], "png", f.toFile());
+                frames.add(f);
+            }
+            Path out = dir.resolve("stack.png");
+            Stacker.run(frames, out, orch, p, false, bandRows);
+            return ImageIO.read(out.toFile());
+        } finally {
+            try (var files = Files.list(dir)) {
+                for (Path f : (Iterable<Path>) files::iterator)
+                    Files.deleteIfExists(f);
+            }
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    private static boolean gpuAvailable() {
+        try {
+            return GpuProcessor.isAvailable();
+        } catch (LinkageError e) { // JOCL not on the class path
+            return false;
+        }
+    }
+
+    // ---------------- helpers ----------------
+
+    /** Max absolute channel difference; MAX_VALUE when the sizes differ. */
+    static int maxDiff(BufferedImage a, BufferedImage b) {
+        if (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight())
+            return Integer.MAX_VALUE;
+        int[] pa = Tiles.argb(a), pb = Tiles.argb(b);
+        int max = 0;
+        for (int i = 0; i < pa.length; i++) {
+            int x = pa[i], y = pb[i];
+            if (x == y)
+                continue;
+            for (int s = 0; s < 32; s += 8)
+                max = Math.max(max, Math.abs(((x >>> s) & 0xFF) - ((y >>> s) & 0xFF)));
+        }
+        return max;
+    }
+}
@@ -0,0 +1,183 @@
+package post;
+
+import util.CancelToken;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs shell edits one at a time on a background thread, so the prompt never
+ * waits on a big frame.
+ *
+ * - A new edit supersedes the one still running: that edit's token is
+ * cancelled, it stops at its next tile or row, and its result is dropped (the
+ * new edit applies to the image as it was before it).
+ * - {@link #cancel()} stops the running edit the same way.
+ * - An edit that misses the deadline (-DeditDeadlineMs, default 1000) doesn't
+ * block the prompt: the shell shows a proxy (the same edit on a downscaled
+ * copy, given twice the deadline since it shares the CPU with the full-size
+ * edit) and the full-size edit carries on, replacing it when done.
+ *
+ * @param <T> the shell's image type (8-bit BufferedImage or Planar16)
+ */
+public final class EditRunner<T> {
+
+    /** Size to aim proxy previews at. */
+    public static final long PROXY_PIXELS = 1_000_000;
+
+    public interface Edit<T> {
+        T apply(T image);
+    }
+
+    /** A finished full-size edit; {@code afterProxy} if a proxy was shown for it. */
+    public interface Listener<T> {
+        void done(String label, T result, boolean afterProxy);
+    }
+
+    /** Renders and shows a proxy of the edit on {@code image}; throws CancellationException past its deadline. */
+    public interface Proxy<T> {
+        void show(T image);
+    }
+
+    private final class Job {
+        final String label;
+        final CancelToken token = CancelToken.create();
+        volatile boolean detached; // the prompt moved on before it finished
+        volatile boolean awaited; // the prompt is waiting on it again (cancel, save)
+        Future<?> future;
+
+        Job(String label) {
+            this.label = label;
+        }
+    }
+
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "shell-edit");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Listener<T> listener;
+    private final long deadlineMs = Long.getLong("editDeadlineMs", 1000);
+    private volatile T committed;
+    private Job running; // guarded by this
+
+    public EditRunner(T image, Listener<T> listener) {
+        this.committed = image;
+        this.listener = listener;
+    }
+
+    /** The image with every finished edit applied. */
+    public T image() {
+        return committed;
+    }
+
+    /**
+     * Start {@code edit} on the current image, superseding a running edit, and
+     * wait up to the deadline. Past it, {@code proxy} (may be null) is shown and
+     * this returns while the edit carries on.
+     */
+    @SuppressWarnings("try") // the token scope is only bound, never read
+    public void submit(String label, Edit<T> edit, Proxy<T> proxy) {
+        Job job = new Job(label);
+        synchronized (this) {
+            if (running != null)
+                running.token.cancel("superseded by " + label);
+            running = job;
+            job.future = worker.submit(() -> run(job, edit));
+        }
+        try {
+            job.future.get(deadlineMs, TimeUnit.MILLISECONDS);
+            return;
+        } catch (TimeoutException e) {
+            job.detached = true;
+        } catch (ExecutionException e) {
+            return; // reported by run()
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (proxy != null) {
+            long t0 = System.nanoTime();
+            try (CancelToken.Scope ignored = CancelToken.withDeadline(2 * deadlineMs).bind()) {
+                proxy.show(committed);
+                System.out.printf("Edit: proxy preview in %d ms; %s continues at full size ('cancel' stops it)%n",
+                        Math.round((System.nanoTime() - t0) / 1e6), label);
+                return;
+            } catch (RuntimeException ignored) {
+                // even the proxy is too slow (or failed): just say the edit is still going
+            }
+        }
+        System.out.println("Edit: " + label + " still running ('cancel' stops it)");
+    }
+
+    @SuppressWarnings("try") // the token scope is only bound, never read
+    private void run(Job job, Edit<T> edit) {
+        try (CancelToken.Scope ignored = job.token.bind()) {
+            T out = edit.apply(committed);
+            synchronized (this) {
+                job.token.throwIfCancelled(); // superseded after the last checkpoint: still dropped
+                committed = out;
+            }
+            listener.done(job.label, out, job.detached);
+        } catch (CancellationException e) {
+            System.out.println("Edit: " + job.label + " stopped (" + e.getMessage() + ")");
+        } catch (RuntimeException e) {
+            System.out.println(job.label + " failed: " + e.getMessage());
+        } finally {
+            synchronized (this) {
+                if (running == job)
+                    running = null;
+            }
+            if (job.detached && !job.awaited)
+                System.out.print("post> ");
+        }
+    }
+
+    /** Stop the running edit; false if none was running. */
+    public boolean cancel() {
+        Job job;
+        synchronized (this) {
+            job = running;
+            if (job == null)
+                return false;
+            job.token.cancel("cancelled");
+        }
+        awaitQuietly(job);
+        return true;
+    }
+
+    /** Wait for the running edit (e.g. before saving) and return the image. */
+    public T await() {
+        Job job;
+        synchronized (this) {
+            job = running;
+        }
+        if (job != null) {
+            System.out.println("Edit: waiting for " + job.label + " ...");
+            awaitQuietly(job);
+        }
+        return committed;
+    }
+
+    /** Stop whatever is running and the worker thread. */
+    public void close() {
+        cancel();
+        worker.shutdownNow();
+    }
+
+    private static void awaitQuietly(EditRunner<?>.Job job) {
+        job.awaited = true;
+        try {
+            job.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | CancellationException ignored) {
+            // reported by run()
+        }
+    }
+}
@@ -1,17 +1,25 @@
 package post;
 
+import pipeline.EditGraph;
 import pipeline.PipelineOrchestrator;
+import pipeline.Recipe;
+import pipeline.Stage;
+import pipeline.StageRegistry;
 import hw.DisplayService;
+import io.BackgroundWriter;
 
 import java.awt.image.BufferedImage;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
 
 public class PostShell {
     private final PipelineOrchestrator orchestrator;
     private BufferedImage image;
-    private Path lastPath;
+    private volatile Path lastPath;
+    private volatile EditGraph.Region view; // null = whole frame
 
     public PostShell(PipelineOrchestrator o, BufferedImage current, Path shown) {
         this.orchestrator = o;
@@ -21,13 +29,23 @@ public class PostShell {
 
     public void run() {
         System.out.println("\nPost-processing shell. Commands:");
-        System.out.println("  brighten <int>   e.g., brighten 10");
-        System.out.println("  contrast <int>   e.g., contrast -5");
-        System.out.println("  sharpen <float>  e.g., sharpen 0.6");
-        System.out.println("  bw");
+        for (Stage st : StageRegistry.all())
+            System.out.println("  " + st.usage());
+        System.out.println("  view <x> <y> <w> <h> | view all   compute and show only that region");
+        System.out.println("  cancel           stop the edit still running");
         System.out.println("  save <name.png>");
         System.out.println("  quit\n");
 
+        // edits extend a lazy graph and compute only the viewport's tiles; a new one supersedes a
+        // running one, slow ones show a proxy first; previews and saves are written off the prompt thread
+        BackgroundWriter writer = new BackgroundWriter();
+        Path preview = Paths.get("preview.png").toAbsolutePath();
+        EditRunner<EditGraph> edits = new EditRunner<>(EditGraph.of(image, orchestrator),
+                (label, g, afterProxy) -> {
+                    writer.preview(preview, open(g.region(view)));
+                    System.out.println("Updated preview." + (view != null ? " (" + view + ")" : "")
+                            + (afterProxy ? " (" + label + ", full size)" : ""));
+                });
         try (var br = new BufferedReader(new InputStreamReader(System.in))) {
             while (true) {
                 System.out.print("post> ");
@@ -46,20 +64,56 @@ public class PostShell {
                         : new String[0];
 
                 switch (cmd) {
+                    case "cancel" -> {
+                        if (!edits.cancel())
+                            System.out.println("Nothing running.");
+                    }
+                    case "view" -> {
+                        try {
+                            view = EditGraph.Region.parse(args);
+                        } catch (IllegalArgumentException e) {
+                            System.out.println(e.getMessage());
+                            continue;
+                        }
+                        EditGraph.Region v = view;
+                        edits.submit(line, g -> {
+                            g.region(v);
+                            return g;
+                        }, null);
+                    }
                     case "save" -> {
+                        // the graph is immutable: the writer pulls the whole frame from it off the prompt thread
+                        EditGraph g = edits.await();
                         String name = (args.length > 0) ? args[0] : "output.png";
-                        lastPath = DisplayService.saveAndOpen(image, name);
-                        System.out.println("Saved: " + lastPath.toAbsolutePath());
+                        writer.save(Paths.get(name).toAbsolutePath(),
+                                p -> lastPath = DisplayService.saveAndOpen(g.image(), p.toString()));
                     }
                     default -> {
-                        image = orchestrator.postProcess(image, cmd, args);
-                        lastPath = DisplayService.saveAndOpen(image, "preview.png");
-                        System.out.println("Updated preview.");
+                        if (StageRegistry.get(cmd) == null) {
+                            System.out.println("Unknown command: " + cmd);
+                            continue;
+                        }
+                        Recipe.Step step = new Recipe.Step(cmd, args);
+                        EditGraph.Region v = view;
+                        edits.submit(line, g -> {
+                            EditGraph next = g.then(step);
+                            next.region(v); // the viewport's tiles, now, under this edit's token
+                            return next;
+                        }, g -> writer.preview(preview,
+                                open(orchestrator.proxyPreview(g.region(v), List.of(step), EditRunner.PROXY_PIXELS))));
                     }
                 }
             }
         } catch (Exception e) {
             System.err.println("Shell error: " + e.getMessage());
+        } finally {
+            edits.close();
+            writer.close();
         }
     }
+
+    /** Writes {@code img} (a snapshot: edits never change it in place) and opens it. */
+    private BackgroundWriter.Write open(BufferedImage img) {
+        return p -> lastPath = DisplayService.saveAndOpen(img, p.toString());
+    }
 }
@@ -0,0 +1,182 @@
+package stages;
+
+import util.LruCache;
+
+import java.io.PrintStream;
+import java.util.Locale;
+
+/**
+ * Colour stage: white balance, camera-to-sRGB matrix, transfer curve and the
+ * existing brightness/contrast/sepia tweaks, compiled into one {@link Lut3D}.
+ *
+ * Per pixel that is a single tetrahedral lookup instead of several float
+ * passes. Compiled LUTs are cached per {@link Params} (records compare by
+ * value), so a batch with the same settings builds the cube once. Lattice
+ * size defaults to 33; override with -DcolorLutSize=N (65 tracks hard gamut
+ * clipping from strong matrices more closely).
+ */
+public final class ColorPipeline {
+
+    private static final int LUT_SIZE = Integer.getInteger("colorLutSize", 33);
+    private static final int CACHE_MAX = 32; // ~430 KB per 33^3 cube
+    private static final LruCache<Params, Lut3D> CACHE = new LruCache<>(CACHE_MAX);
+
+    private ColorPipeline() {
+    }
+
+    /** Encoding of the input and output values; the matrix and white balance work in linear light. */
+    public enum Transfer {
+        SRGB, GAMMA22, LINEAR;
+
+        public static Transfer parse(String s) {
+            return switch (s.trim().toLowerCase(Locale.ROOT)) {
+                case "srgb" -> SRGB;
+                case "gamma22", "2.2" -> GAMMA22;
+                case "linear" -> LINEAR;
+                default -> throw new IllegalArgumentException("transfer must be srgb | gamma22 | linear: " + s);
+            };
+        }
+
+        float decode(float v) {
+            return switch (this) {
+                case SRGB -> v <= 0.04045f ? v / 12.92f : (float) Math.pow((v + 0.055f) / 1.055f, 2.4);
+                case GAMMA22 -> (float) Math.pow(v, 2.2);
+                case LINEAR -> v;
+            };
+        }
+
+        float encode(float v) {
+            if (v <= 0f)
+                return 0f;
+            return switch (this) {
+                case SRGB -> v <= 0.0031308f ? v * 12.92f : 1.055f * (float) Math.pow(v, 1 / 2.4) - 0.055f;
+                case GAMMA22 -> (float) Math.pow(v, 1 / 2.2);
+                case LINEAR -> v;
+            };
+        }
+    }
+
+    /** Row-major 3x3 colour matrix. */
+    public record Matrix3(double m00, double m01, double m02,
+            double m10, double m11, double m12,
+            double m20, double m21, double m22) {
+
+        public static final Matrix3 IDENTITY = new Matrix3(1, 0, 0, 0, 1, 0, 0, 0, 1);
+
+        /** Nine comma/space separated values, row-major. */
+        public static Matrix3 parse(String s) {
+            String[] t = s.trim().split("[,\\s]+");
+            if (t.length != 9)
+                throw new IllegalArgumentException("matrix needs 9 values, got " + t.length);
+            double[] m = new double[9];
+            for (int i = 0; i < 9; i++)
+                m[i] = Double.parseDouble(t[i]);
+            return new Matrix3(m[0], m[1], m[2], m[3], m[4], m[5], m[6], m[7], m[8]);
+        }
+    }
+
+    /** Everything that goes into the cube; equal params share one cached LUT. */
+    public record Params(double wbR, double wbG, double wbB, Matrix3 matrix, Transfer transfer,
+            int brightness, int contrast, boolean sepia) {
+
+        public static Params of(int brightness, int contrast) {
+            return new Params(1, 1, 1, Matrix3.IDENTITY, Transfer.SRGB, brightness, contrast, false);
+        }
+
+        public Params withWhiteBalance(double r, double g, double b) {
+            return new Params(r, g, b, matrix, transfer, brightness, contrast, sepia);
+        }
+
+        public Params withMatrix(Matrix3 m) {
+            return new Params(wbR, wbG, wbB, m, transfer, brightness, contrast, sepia);
+        }
+
+        public Params withTransfer(Transfer t) {
+            return new Params(wbR, wbG, wbB, matrix, t, brightness, contrast, sepia);
+        }
+
+        public Params withSepia(boolean s) {
+            return new Params(wbR, wbG, wbB, matrix, transfer, brightness, contrast, s);
+        }
+
+        /**
+         * Params from command-line style strings, or null when none of the colour
+         * options is set (plain brightness/contrast is cheaper without a cube).
+         */
+        public static Params fromOptions(int brightness, int contrast, String wb, String matrix, String transfer,
+                boolean sepia) {
+            if (wb == null && matrix == null && transfer == null && !sepia)
+                return null;
+            Params p = of(brightness, contrast).withSepia(sepia);
+            if (wb != null) {
+                double[] m = parseWhiteBalance(wb);
+                p = p.withWhiteBalance(m[0], m[1], m[2]);
+            }
+            if (matrix != null)
+                p = p.withMatrix(Matrix3.parse(matrix));
+            if (transfer != null)
+                p = p.withTransfer(Transfer.parse(transfer));
+            return p;
+        }
+
+        /** "r,g,b" multipliers, e.g. "2.1,1,1.6". */
+        public static double[] parseWhiteBalance(String s) {
+            String[] t = s.trim().split("[,\\s]+");
+            if (t.length != 3)
+                throw new IllegalArgumentException("white balance needs 3 values, got " + t.length);
+            return new double[] { Double.parseDouble(t[0]), Double.parseDouble(t[1]), Double.parseDouble(t[2]) };
+        }
+    }
+
+    /** Cached cube for {@code p} (built on first use, silently). */
+    public static Lut3D compile(Params p) {
+        return compile(p, null);
+    }
+
+    /** Same; a fresh build reports its timing to {@code log} (null = nowhere). */
+    public static Lut3D compile(Params p, PrintStream log) {
+        return CACHE.get(p, k -> {
+            long t0 = System.nanoTime();
+            Lut3D l = Lut3D.build(LUT_SIZE, (r, g, b, out) -> eval(k, r, g, b, out));
+            if (log != null)
+                log.printf("Color: compiled %d^3 LUT in %.1f ms%n", LUT_SIZE, (System.nanoTime() - t0) / 1e6);
+            return l;
+        });
+    }
+
+    /** The reference (uncompiled) transform for one colour; inputs and outputs in [0..1]. */
+    static void eval(Params p, float r, float g, float b, float[] out) {
+        Transfer tf = p.transfer();
+        float lr = tf.decode(r) * (float) p.wbR();
+        float lg = tf.decode(g) * (float) p.wbG();
+        float lb = tf.decode(b) * (float) p.wbB();
+
+        Matrix3 m = p.matrix();
+        float mr = (float) (m.m00() * lr + m.m01() * lg + m.m02() * lb);
+        float mg = (float) (m.m10() * lr + m.m11() * lg + m.m12() * lb);
+        float mb = (float) (m.m20() * lr + m.m21() * lg + m.m22() * lb);
+
+        // brightness/contrast as in FiltersCPU, on encoded values
+        float add = p.brightness() / 100f;
+        float scale = (float) Math.pow(2.0, p.contrast() / 50.0);
+        float er = clamp(tf.encode(clamp(mr)) * scale + add);
+        float eg = clamp(tf.encode(clamp(mg)) * scale + add);
+        float eb = clamp(tf.encode(clamp(mb)) * scale + add);
+
+        if (p.sepia()) {
+            float sr = 0.393f * er + 0.769f * eg + 0.189f * eb;
+            float sg = 0.349f * er + 0.686f * eg + 0.168f * eb;
+            float sb = 0.272f * er + 0.534f * eg + 0.131f * eb;
+            er = clamp(sr);
+            eg = clamp(sg);
+            eb = clamp(sb);
+        }
+        out[0] = er;
+        out[1] = eg;
+        out[2] = eb;
+    }
+
+    private static float clamp(float v) {
+        return v < 0f ? 0f : (v > 1f ? 1f : v);
+    }
+}
@@ -0,0 +1,495 @@
+package stages;
+
+import util.CancelToken;
+import util.ScratchArena;
+
+import java.util.Arrays;
+
+/**
+ * Convolution engine for odd N x N kernels over images of any depth.
+ *
+ * Rows are unpacked once into per-channel int rows and kept in a ring of N
+ * (the sliding window), padded left and right by the kernel radius according
+ * to the {@link Border} mode; rows above and below the image are mapped the
+ * same way. Taps are integer fixed point with the rounding error folded into
+ * the centre tap, so a kernel that sums to one keeps flat areas exactly flat.
+ * Rank-1 kernels (Gaussian, box, Sobel) are detected and run as a horizontal
+ * pass per incoming row plus a vertical pass over the ring: 2N taps per pixel
+ * instead of N². Accumulation is tap-major over whole rows, which the JIT
+ * vectorises.
+ *
+ * Scratch memory comes from the calling thread's {@link ScratchArena}, so a
+ * tile worker convolves without allocating pixel memory. Every output row is
+ * a {@link CancelToken#checkpoint()}.
+ */
+public final class Convolution {
+
+    private Convolution() {
+    }
+
+    /** How pixels outside the image are made up. */
+    public enum Border {
+        /** Repeat the edge pixel: aaa|abcd|ddd. */
+        CLAMP,
+        /** Mirror about the edge pixel: cb|abcd|cb. */
+        REFLECT;
+
+        /** The shell's filters use this; -DconvBorder=clamp|reflect overrides. */
+        public static final Border DEFAULT = parse(System.getProperty("convBorder", "reflect"));
+
+        /** Source index for position {@code i} of a line of {@code n} pixels. */
+        public int index(int i, int n) {
+            if (i >= 0 && i < n)
+                return i;
+            if (this == CLAMP || n == 1)
+                return i < 0 ? 0 : n - 1;
+            int period = 2 * (n - 1);
+            i = Math.floorMod(i, period);
+            return i < n ? i : period - i;
+        }
+
+        public static Border parse(String s) {
+            return switch (s.trim().toLowerCase()) {
+                case "clamp", "replicate" -> CLAMP;
+                case "reflect", "mirror" -> REFLECT;
+                default -> throw new IllegalArgumentException("border must be clamp | reflect: " + s);
+            };
+        }
+    }
+
+    /** Unpacks source row {@code y}: channel c's w values go to buf[off + c * stride ...]. */
+    public interface RowReader {
+        void read(int y, int[] buf, int off, int stride);
+    }
+
+    /** Takes output row {@code y}, rounded and clamped, laid out as for {@link RowReader}. */
+    public interface RowWriter {
+        void write(int y, int[] buf, int off, int stride);
+    }
+
+    // ---------------- kernels ----------------
+
+    /** An odd N x N kernel (row-major weights), with its rank-1 factors when it has them. */
+    public static final class Kernel {
+        final int size, radius;
+        final float[] weights;
+        final float[] col, row; // k[j][i] = col[j] * row[i], or null
+        private final Fixed fixed8, fixed16;
+
+        private Kernel(int size, float[] weights, float[] col, float[] row) {
+            this.size = size;
+            this.radius = size / 2;
+            this.weights = weights;
+            this.col = col;
+            this.row = row;
+            this.fixed8 = new Fixed(this, 0xFF);
+            this.fixed16 = new Fixed(this, 0xFFFF);
+        }
+
+        /** Kernel from {@code size * size} row-major weights; separability is detected. */
+        public static Kernel of(int size, float... weights) {
+            if (size < 1 || size % 2 == 0 || weights.length != size * size)
+                throw new IllegalArgumentException(
+                        "kernel must be odd N x N, got " + weights.length + " weights for N=" + size);
+            float[] k = weights.clone();
+            float[][] f = factor(size, k);
+            return f != null ? new Kernel(size, k, f[0], f[1]) : new Kernel(size, k, null, null);
+        }
+
+        /** Separable kernel: outer product of a vertical and a horizontal 1D kernel. */
+        public static Kernel separable(float[] col, float[] row) {
+            if (col.length != row.length || col.length % 2 == 0)
+                throw new IllegalArgumentException("1D kernels must have the same odd length");
+            int n = col.length;
+            float[] k = new float[n * n];
+            for (int j = 0; j < n; j++)
+                for (int i = 0; i < n; i++)
+                    k[j * n + i] = col[j] * row[i];
+            return new Kernel(n, k, col.clone(), row.clone());
+        }
+
+        /** Normalised Gaussian of the given radius (sigma = radius / 2 when 0), separable. */
+        public static Kernel gaussian(int radius, float sigma) {
+            if (sigma <= 0)
+                sigma = Math.max(0.5f, radius / 2f);
+            float[] g = new float[2 * radius + 1];
+            float sum = 0;
+            for (int i = -radius; i <= radius; i++)
+                sum += g[i + radius] = (float) Math.exp(-(i * i) / (2.0 * sigma * sigma));
+            for (int i = 0; i < g.length; i++)
+                g[i] /= sum;
+            return separable(g, g);
+        }
+
+        /** Same weights, always run as a full N x N window (for checking the separable path). */
+        public Kernel as2D() {
+            return new Kernel(size, weights, null, null);
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int radius() {
+            return radius;
+        }
+
+        public boolean isSeparable() {
+            return col != null;
+        }
+
+        Fixed fixed(int max) {
+            return max <= 0xFF ? fixed8 : fixed16;
+        }
+
+        /** Rank-1 factors {col, row} if every weight is col[j] * row[i] (to float precision), else null. */
+        private static float[][] factor(int n, float[] k) {
+            int pj = 0, pi = 0;
+            float peak = 0;
+            for (int j = 0; j < n; j++)
+                for (int i = 0; i < n; i++)
+                    if (Math.abs(k[j * n + i]) > peak) {
+                        peak = Math.abs(k[j * n + i]);
+                        pj = j;
+                        pi = i;
+                    }
+            if (peak == 0 || n == 1)
+                return null;
+            float p = k[pj * n + pi];
+            float[] col = new float[n], row = new float[n];
+            for (int j = 0; j < n; j++)
+                col[j] = k[j * n + pi];
+            for (int i = 0; i < n; i++)
+                row[i] = k[pj * n + i] / p;
+            float eps = peak * 1e-5f;
+            for (int j = 0; j < n; j++)
+                for (int i = 0; i < n; i++)
+                    if (Math.abs(col[j] * row[i] - k[j * n + i]) > eps)
+                        return null;
+            return new float[][] { col, row };
+        }
+    }
+
+    /**
+     * Integer taps for one sample depth, with fractional bits picked from the
+     * depth and the kernel's absolute sum so int accumulators stay in range
+     * (down to a floor of 6 bits). Past the floor (16-bit samples under a very
+     * strong kernel) the window accumulates in longs instead: {@code wide}.
+     * N x N taps always exist (gradients use them); separable kernels also get
+     * 1D taps and keep {@code extra} fractional bits between the horizontal and
+     * vertical pass, if both passes fit in an int.
+     */
+    static final class Fixed {
+        private static final int MIN_BITS = 6;
+        final int bits2D, bits, extra;
+        final boolean wide;
+        final int[] taps; // N x N
+        final int[] col, row; // 1D factors, or null
+
+        Fixed(Kernel k, int max) {
+            int headroom = 30 - log2Ceil(max + 1);
+            int room2D = headroom - log2Ceil(absSum(k.weights));
+            bits2D = clamp(room2D, MIN_BITS, 14);
+            wide = room2D < MIN_BITS;
+            taps = quantise(k.weights, bits2D);
+            int room = k.col == null ? 0 : headroom - log2Ceil(absSum(k.col)) - log2Ceil(absSum(k.row));
+            if (k.col == null || room < MIN_BITS) {
+                bits = extra = 0;
+                col = row = null;
+            } else {
+                bits = clamp(room - 4, MIN_BITS, 14);
+                extra = clamp(room - bits, 0, bits);
+                col = quantise(k.col, bits);
+                row = quantise(k.row, bits);
+            }
+        }
+
+        /** round(w * 2^bits), with the sum's rounding error moved to the centre tap. */
+        private static int[] quantise(float[] w, int bits) {
+            float one = 1 << bits, sum = 0;
+            int[] q = new int[w.length];
+            int qsum = 0;
+            for (int i = 0; i < w.length; i++) {
+                q[i] = Math.round(w[i] * one);
+                qsum += q[i];
+                sum += w[i];
+            }
+            q[w.length / 2] += Math.round(sum * one) - qsum;
+            return q;
+        }
+
+        private static float absSum(float[] w) {
+            float s = 0;
+            for (float v : w)
+                s += Math.abs(v);
+            return s;
+        }
+
+        private static int log2Ceil(float x) {
+            int c = (int) Math.ceil(Math.max(1f, x));
+            return 32 - Integer.numberOfLeadingZeros(c - 1);
+        }
+    }
+
+    // ---------------- packed ARGB ----------------
+
+    /** Convolve R, G and B of packed ARGB (stride = w); alpha is kept. src and dst must differ. */
+    public static void argb(int[] src, int[] dst, int w, int h, Kernel k, Border border) {
+        run(w, h, 3, 0xFF, (y, buf, off, stride) -> unpack(src, y * w, w, buf, off, stride),
+                (y, buf, off, stride) -> {
+                    int o = y * w;
+                    int r = off, g = off + stride, b = off + 2 * stride;
+                    for (int x = 0; x < w; x++)
+                        dst[o + x] = (src[o + x] & 0xFF000000) | (buf[r + x] << 16) | (buf[g + x] << 8) | buf[b + x];
+                }, k, border);
+    }
+
+    /**
+     * Gradient magnitude of the BT.709 luma of packed ARGB: sqrt(gx² + gy²) for
+     * two kernels (e.g. Sobel), floored, as opaque gray. src and dst must differ.
+     */
+    public static void argbGradient(int[] src, int[] dst, int w, int h, Kernel kx, Kernel ky, Border border) {
+        gradient(w, h, 0xFF, (y, buf, off, stride) -> {
+            int o = y * w;
+            for (int x = 0; x < w; x++) {
+                int p = src[o + x];
+                int r = (p >>> 16) & 0xFF, g = (p >>> 8) & 0xFF, b = p & 0xFF;
+                buf[off + x] = Math.min(255, (int) (0.2126 * r + 0.7152 * g + 0.0722 * b));
+            }
+        }, (y, buf, off, stride) -> {
+            int o = y * w;
+            for (int x = 0; x < w; x++) {
+                int m = buf[off + x];
+                dst[o + x] = 0xFF000000 | (m << 16) | (m << 8) | m;
+            }
+        }, kx, ky, border);
+    }
+
+    /** Sobel pair (x derivative, y derivative). */
+    public static final Kernel SOBEL_X = Kernel.separable(new float[] { 1, 2, 1 }, new float[] { -1, 0, 1 });
+    public static final Kernel SOBEL_Y = Kernel.separable(new float[] { -1, 0, 1 }, new float[] { 1, 2, 1 });
+
+    private static void unpack(int[] src, int o, int w, int[] buf, int off, int stride) {
+        int r = off, g = off + stride, b = off + 2 * stride;
+        for (int x = 0; x < w; x++) {
+            int p = src[o + x];
+            buf[r + x] = (p >>> 16) & 0xFF;
+            buf[g + x] = (p >>> 8) & 0xFF;
+            buf[b + x] = p & 0xFF;
+        }
+    }
+
+    // ---------------- engine ----------------
+
+    /**
+     * Convolve {@code channels} channels of samples in 0..max, row by row:
+     * each source row is read once, each output row written once, in order.
+     */
+    public static void run(int w, int h, int channels, int max, RowReader in, RowWriter out, Kernel k,
+            Border border) {
+        if (w <= 0 || h <= 0)
+            return;
+        Fixed q = k.fixed(max);
+        if (q.col == null)
+            run2D(w, h, channels, max, in, out, k, q, border);
+        else
+            runSeparable(w, h, channels, max, in, out, k, q, border);
+    }
+
+    /** Full N x N window: a ring of N padded rows, N² row MACs per output row. */
+    private static void run2D(int w, int h, int C, int max, RowReader in, RowWriter out, Kernel k, Fixed q,
+            Border border) {
+        final int n = k.size, r = k.radius, P = w + 2 * r;
+        final int ring = n * C * P, accOff = ring;
+        final int[] buf = ScratchArena.get().ints(ScratchArena.WINDOW, ring + C * w);
+        final int half = 1 << (q.bits2D - 1);
+        final long[] wide = q.wide ? new long[C * w] : null; // int accumulators would overflow
+
+        for (int v = -r; v < r; v++)
+            load(v, h, w, C, r, P, Math.floorMod(v, n) * C * P, buf, in, border);
+        for (int y = 0; y < h; y++) {
+            CancelToken.checkpoint();
+            load(y + r, h, w, C, r, P, Math.floorMod(y + r, n) * C * P, buf, in, border);
+            if (wide != null) {
+                accumulateWide(buf, wide, y, n, r, C, P, w, q.taps);
+                finishWide(wide, buf, accOff, half, q.bits2D, max);
+                out.write(y, buf, accOff, w);
+                continue;
+            }
+            Arrays.fill(buf, accOff, accOff + C * w, 0);
+            for (int j = 0; j < n; j++) {
+                int base = Math.floorMod(y - r + j, n) * C * P;
+                for (int i = 0; i < n; i++) {
+                    int t = q.taps[j * n + i];
+                    if (t == 0)
+                        continue;
+                    for (int c = 0; c < C; c++) {
+                        int s = base + c * P + i, a = accOff + c * w;
+                        for (int x = 0; x < w; x++)
+                            buf[a + x] += t * buf[s + x];
+                    }
+                }
+            }
+            finish(buf, accOff, C * w, half, q.bits2D, max);
+            out.write(y, buf, accOff, w);
+        }
+    }
+
+    /** {@link #run2D}'s window sum for output row y in longs. */
+    private static void accumulateWide(int[] buf, long[] acc, int y, int n, int r, int C, int P, int w, int[] taps) {
+        Arrays.fill(acc, 0L);
+        for (int j = 0; j < n; j++) {
+            int base = Math.floorMod(y - r + j, n) * C * P;
+            for (int i = 0; i < n; i++) {
+                long t = taps[j * n + i];
+                if (t == 0)
+                    continue;
+                for (int c = 0; c < C; c++) {
+                    int s = base + c * P + i, a = c * w;
+                    for (int x = 0; x < w; x++)
+                        acc[a + x] += t * buf[s + x];
+                }
+            }
+        }
+    }
+
+    private static void finishWide(long[] acc, int[] buf, int off, int half, int shift, int max) {
+        for (int i = 0; i < acc.length; i++) {
+            long v = (acc[i] + half) >> shift;
+            buf[off + i] = v < 0 ? 0 : (v > max ? max : (int) v);
+        }
+    }
+
+    /** Rank-1 kernel: horizontal pass as each row enters the ring, vertical pass over the ring. */
+    private static void runSeparable(int w, int h, int C, int max, RowReader in, RowWriter out, Kernel k, Fixed q,
+            Border border) {
+        final int n = k.size, r = k.radius, P = w + 2 * r;
+        final int ring = n * C * w, padOff = ring, accOff = padOff + C * P;
+        final int[] buf = ScratchArena.get().ints(ScratchArena.WINDOW, accOff + C * w);
+        final int hShift = q.bits - q.extra, vShift = q.bits + q.extra;
+
+        for (int v = -r; v < r; v++)
+            loadFiltered(v, h, w, C, r, P, n, padOff, buf, in, q, hShift, border);
+        for (int y = 0; y < h; y++) {
+            CancelToken.checkpoint();
+            loadFiltered(y + r, h, w, C, r, P, n, padOff, buf, in, q, hShift, border);
+            Arrays.fill(buf, accOff, accOff + C * w, 0);
+            for (int j = 0; j < n; j++) {
+                int t = q.col[j];
+                if (t == 0)
+                    continue;
+                int base = Math.floorMod(y - r + j, n) * C * w;
+                for (int c = 0; c < C * w; c += w) {
+                    int s = base + c, a = accOff + c;
+                    for (int x = 0; x < w; x++)
+                        buf[a + x] += t * buf[s + x];
+                }
+            }
+            finish(buf, accOff, C * w, 1 << (vShift - 1), vShift, max);
+            out.write(y, buf, accOff, w);
+        }
+    }
+
+    /** Gradient magnitude of one channel under two kernels, from one ring of padded rows. */
+    public static void gradient(int w, int h, int max, RowReader in, RowWriter out, Kernel kx, Kernel ky,
+            Border border) {
+        if (w <= 0 || h <= 0)
+            return;
+        if (kx.size != ky.size)
+            throw new IllegalArgumentException("gradient kernels must be the same size");
+        final int n = kx.size, r = kx.radius, P = w + 2 * r;
+        // both as full windows at a shared scale, so the magnitude needs one rescale
+        final Fixed fx = kx.fixed(max), fy = ky.fixed(max);
+        if (fx.wide || fy.wide)
+            throw new IllegalArgumentException("gradient kernels too strong for samples up to " + max);
+        final int bits = Math.min(fx.bits2D, fy.bits2D);
+        final int[] tx = rescale(fx, bits), ty = rescale(fy, bits);
+        final int ring = n * P, ax = ring, ay = ring + w;
+        final int[] buf = ScratchArena.get().ints(ScratchArena.WINDOW, ring + 2 * w);
+        final double inv = 1.0 / (1 << bits);
+
+        for (int v = -r; v < r; v++)
+            load(v, h, w, 1, r, P, Math.floorMod(v, n) * P, buf, in, border);
+        for (int y = 0; y < h; y++) {
+            CancelToken.checkpoint();
+            load(y + r, h, w, 1, r, P, Math.floorMod(y + r, n) * P, buf, in, border);
+            Arrays.fill(buf, ax, ay + w, 0);
+            for (int j = 0; j < n; j++) {
+                int base = Math.floorMod(y - r + j, n) * P;
+                for (int i = 0; i < n; i++) {
+                    int a = tx[j * n + i], b = ty[j * n + i], s = base + i;
+                    if (a != 0)
+                        for (int x = 0; x < w; x++)
+                            buf[ax + x] += a * buf[s + x];
+                    if (b != 0)
+                        for (int x = 0; x < w; x++)
+                            buf[ay + x] += b * buf[s + x];
+                }
+            }
+            for (int x = 0; x < w; x++) {
+                double gx = buf[ax + x], gy = buf[ay + x];
+                buf[ax + x] = (int) Math.min(max, Math.sqrt(gx * gx + gy * gy) * inv);
+            }
+            out.write(y, buf, ax, w);
+        }
+    }
+
+    private static int[] rescale(Fixed f, int bits) {
+        if (f.bits2D == bits)
+            return f.taps;
+        int[] t = f.taps.clone();
+        for (int i = 0; i < t.length; i++)
+            t[i] >>= f.bits2D - bits;
+        return t;
+    }
+
+    /** Read virtual row v (mapped into the image) into a ring slot and pad it left and right. */
+    private static void load(int v, int h, int w, int C, int r, int P, int off, int[] buf, RowReader in,
+            Border border) {
+        in.read(border.index(v, h), buf, off + r, P);
+        if (r == 0)
+            return;
+        for (int c = 0; c < C; c++) {
+            int row = off + c * P + r;
+            for (int x = 1; x <= r; x++) {
+                buf[row - x] = buf[row + border.index(-x, w)];
+                buf[row + w - 1 + x] = buf[row + border.index(w - 1 + x, w)];
+            }
+        }
+    }
+
+    /** Read virtual row v into the pad row, run the horizontal taps into its ring slot. */
+    private static void loadFiltered(int v, int h, int w, int C, int r, int P, int n, int padOff, int[] buf,
+            RowReader in, Fixed q, int shift, Border border) {
+        load(v, h, w, C, r, P, padOff, buf, in, border);
+        int dst = Math.floorMod(v, n) * C * w;
+        Arrays.fill(buf, dst, dst + C * w, 0);
+        for (int i = 0; i < n; i++) {
+            int t = q.row[i];
+            if (t == 0)
+                continue;
+            for (int c = 0; c < C; c++) {
+                int s = padOff + c * P + i, d = dst + c * w;
+                for (int x = 0; x < w; x++)
+                    buf[d + x] += t * buf[s + x];
+            }
+        }
+        if (shift > 0) {
+            int half = 1 << (shift - 1);
+            for (int i = dst, end = dst + C * w; i < end; i++)
+                buf[i] = (buf[i] + half) >> shift;
+        }
+    }
+
+    /** Fixed point to samples: round, shift, clamp to 0..max. */
+    private static void finish(int[] buf, int off, int len, int half, int shift, int max) {
+        for (int i = off, end = off + len; i < end; i++) {
+            int v = (buf[i] + half) >> shift;
+            buf[i] = v < 0 ? 0 : (v > max ? max : v);
+        }
+    }
+
+    private static int clamp(int v, int lo, int hi) {
+        return v < lo ? lo : (v > hi ? hi : v);
+    }
+}
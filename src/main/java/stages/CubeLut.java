@@ -0,0 +1,135 @@
+package stages;
+
+import util.Planar16;
+import util.Tiles;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A parsed .cube look: an optional 1D shaper, an optional 3D cube, and the
+ * input domain of each.
+ *
+ * Input -> shaper domain -> shaper -> cube domain -> cube. For 8-bit input
+ * that whole chain up to the cube lookup is folded into per-channel tables of
+ * lattice offsets and fractions (256 entries each), so a shaper costs nothing
+ * per pixel. 1D-only files become three 256-entry output tables.
+ */
+public final class CubeLut {
+
+    private final String title;
+    private final Lut1D shaper; // may be null
+    private final float[] shaperMin, shaperMax;
+    private final Lut3D cube; // may be null
+    private final float[] cubeMin, cubeMax;
+
+    // 8-bit tables
+    private final int[][] idx = new int[3][256];
+    private final float[][] frac = new float[3][256];
+    private final int[][] out1d = new int[3][256];
+
+    public CubeLut(String title, Lut1D shaper, float[] shaperMin, float[] shaperMax, Lut3D cube, float[] cubeMin,
+            float[] cubeMax) {
+        if (shaper == null && cube == null)
+            throw new IllegalArgumentException("LUT has neither 1D nor 3D data");
+        this.title = title;
+        this.shaper = shaper;
+        this.shaperMin = shaperMin;
+        this.shaperMax = shaperMax;
+        this.cube = cube;
+        this.cubeMin = cubeMin;
+        this.cubeMax = cubeMax;
+
+        for (int c = 0; c < 3; c++) {
+            int stride = cube == null ? 0 : 3 * (c == 0 ? 1 : (c == 1 ? cube.size() : cube.size() * cube.size()));
+            for (int v = 0; v < 256; v++) {
+                float s = shaped(c, v / 255f);
+                if (cube == null) {
+                    out1d[c][v] = Lut3D.to8(s);
+                } else {
+                    float x = latticeCoord(c, s);
+                    int i = cube.cell(x);
+                    idx[c][v] = i * stride;
+                    frac[c][v] = x - i;
+                }
+            }
+        }
+    }
+
+    public String title() {
+        return title;
+    }
+
+    public boolean hasShaper() {
+        return shaper != null;
+    }
+
+    /** 1D shaper length, or 0 without one. */
+    public int shaperSize() {
+        return shaper == null ? 0 : shaper.size();
+    }
+
+    /** 3D lattice size, or 0 for a 1D-only LUT. */
+    public int cubeSize() {
+        return cube == null ? 0 : cube.size();
+    }
+
+    private float shaped(int c, float v) {
+        if (shaper == null)
+            return v;
+        return shaper.map(c, norm(v, shaperMin[c], shaperMax[c]));
+    }
+
+    private float latticeCoord(int c, float v) {
+        return norm(v, cubeMin[c], cubeMax[c]) * (cube.size() - 1);
+    }
+
+    private static float norm(float v, float lo, float hi) {
+        float t = (v - lo) / (hi - lo);
+        return t < 0f ? 0f : (t > 1f ? 1f : t);
+    }
+
+    // ---------------- 8-bit ----------------
+
+    public void apply(int[] argb, int off, int len, Lut3D.Interp mode) {
+        if (cube != null) {
+            cube.applyCoded(argb, off, len, idx[0], idx[1], idx[2], frac[0], frac[1], frac[2], mode);
+            return;
+        }
+        int[] tr = out1d[0], tg = out1d[1], tb = out1d[2];
+        for (int i = off, end = off + len; i < end; i++) {
+            int p = argb[i];
+            argb[i] = (p & 0xFF000000) | (tr[(p >>> 16) & 0xFF] << 16) | (tg[(p >>> 8) & 0xFF] << 8) | tb[p & 0xFF];
+        }
+    }
+
+    public BufferedImage apply(BufferedImage src, Lut3D.Interp mode) {
+        int w = src.getWidth(), h = src.getHeight();
+        int[] px = src.getRGB(0, 0, w, h, null, 0, w);
+        apply(px, 0, px.length, mode);
+        return Tiles.wrapArgb(px, w, h);
+    }
+
+    // ---------------- 16-bit ----------------
+
+    public Planar16 apply(Planar16 src, Lut3D.Interp mode) {
+        Planar16 dst = new Planar16(src.width, src.height);
+        final float inv = 1f / Planar16.MAX;
+        float[] rgb = new float[3];
+        for (int i = 0; i < dst.r.length; i++) {
+            float r = shaped(0, (src.r[i] & 0xFFFF) * inv);
+            float g = shaped(1, (src.g[i] & 0xFFFF) * inv);
+            float b = shaped(2, (src.b[i] & 0xFFFF) * inv);
+            if (cube != null) {
+                cube.sample(latticeCoord(0, r), latticeCoord(1, g), latticeCoord(2, b), mode, rgb);
+                r = rgb[0];
+                g = rgb[1];
+                b = rgb[2];
+            }
+            dst.r[i] = Lut3D.to16(r);
+            dst.g[i] = Lut3D.to16(g);
+            dst.b[i] = Lut3D.to16(b);
+        }
+        System.arraycopy(src.a, 0, dst.a, 0, src.a.length);
+        return dst;
+    }
+}
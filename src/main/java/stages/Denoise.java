@@ -0,0 +1,367 @@
+package stages;
+
+import util.CancelToken;
+import util.ScratchArena;
+import util.Tiles;
+
+import java.awt.image.BufferedImage;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Edge-preserving noise reduction on packed ARGB tiles.
+ *
+ * - bilateral: separable approximation (a horizontal then a vertical 1D
+ * bilateral pass), O(radius) per pixel instead of O(radius^2).
+ * - nlm: non-local means with 3x3 patches. Works one search offset at a
+ * time over the whole tile (squared difference, 3x3 box sum, weight LUT,
+ * accumulate), so the inner loops are flat array passes.
+ *
+ * Both read {@link Settings#halo()} pixels around a region; tiles are padded
+ * by edge replication, so frame borders need no special case. Alpha is kept.
+ * Rows (bilateral) and search offsets (NLM) are cancellation checkpoints.
+ * {@link #applyInto} works on packed arrays with per-thread scratch, for the
+ * tiled path.
+ */
+public final class Denoise {
+
+    /** Largest radius (and halo) accepted; keeps the halo well below the minimum tile edge. */
+    public static final int MAX_HALO = 8;
+
+    private Denoise() {
+    }
+
+    public enum Mode {
+        BILATERAL, NLM;
+
+        public static Mode parse(String s) {
+            return switch (s.trim().toLowerCase()) {
+                case "bilateral", "bl" -> BILATERAL;
+                case "nlm", "nl-means" -> NLM;
+                default -> throw new IllegalArgumentException("denoise mode must be bilateral | nlm | auto: " + s);
+            };
+        }
+    }
+
+    /**
+     * @param strength noise sigma in 8-bit levels (~5 low ISO .. ~25 very high ISO)
+     * @param radius   bilateral kernel radius, or NLM search radius
+     */
+    public record Settings(Mode mode, float strength, int radius) {
+
+        /** Pixels read beyond a region (NLM adds the patch radius). */
+        public int halo() {
+            return mode == Mode.NLM ? radius + 1 : radius;
+        }
+
+        @Override
+        public String toString() {
+            return mode.name().toLowerCase() + " r=" + radius + " sigma=" + strength;
+        }
+    }
+
+    public static BufferedImage apply(BufferedImage src, Settings s) {
+        return apply(src, prepare(s));
+    }
+
+    // ---------------- planning ----------------
+
+    private static final int PROBE_EDGE = 128;
+    private static final int PROBE_NLM_R = 2, PROBE_BL_R = 3;
+
+    /**
+     * Best settings whose estimated wall time for {@code frame} fits
+     * {@code budgetMs} on {@code workers} threads. Candidates run from
+     * highest quality down (NLM with shrinking search window, then bilateral);
+     * {@code only} restricts them to one mode (null = auto). If nothing fits,
+     * the cheapest candidate is returned.
+     *
+     * Costs come from timing one reference radius per mode on a centre crop
+     * (best of two runs, so the first includes JIT warm-up), scaled by the
+     * number of taps: (2R+1)^2 offsets for NLM, 2(2r+1) for bilateral. The
+     * pick is reported to {@code log}.
+     */
+    public static Settings plan(BufferedImage frame, Mode only, float strength, long budgetMs, int workers,
+            boolean high, PrintStream log) {
+        int pw = Math.min(PROBE_EDGE, frame.getWidth()), ph = Math.min(PROBE_EDGE, frame.getHeight());
+        BufferedImage probe = frame.getSubimage((frame.getWidth() - pw) / 2, (frame.getHeight() - ph) / 2, pw, ph);
+        double scale = (double) frame.getWidth() * frame.getHeight() / ((long) pw * ph) / Math.max(1, workers);
+
+        Settings[] candidates = {
+                new Settings(Mode.NLM, strength, high ? 7 : 5),
+                new Settings(Mode.NLM, strength, 3),
+                new Settings(Mode.NLM, strength, 2),
+                new Settings(Mode.BILATERAL, strength, 5),
+                new Settings(Mode.BILATERAL, strength, 3),
+                new Settings(Mode.BILATERAL, strength, 2),
+        };
+        double nlmMsPerTap = -1, blMsPerTap = -1;
+        Settings pick = null;
+        double pickMs = 0;
+        for (Settings c : candidates) {
+            if (only != null && c.mode() != only)
+                continue;
+            double ms;
+            if (c.mode() == Mode.NLM) {
+                if (nlmMsPerTap < 0)
+                    nlmMsPerTap = probeMs(probe, new Settings(Mode.NLM, strength, PROBE_NLM_R)) * scale
+                            / nlmTaps(PROBE_NLM_R);
+                ms = nlmMsPerTap * nlmTaps(c.radius());
+            } else {
+                if (blMsPerTap < 0)
+                    blMsPerTap = probeMs(probe, new Settings(Mode.BILATERAL, strength, PROBE_BL_R)) * scale
+                            / blTaps(PROBE_BL_R);
+                ms = blMsPerTap * blTaps(c.radius());
+            }
+            pick = c;
+            pickMs = ms;
+            if (ms <= budgetMs)
+                break;
+        }
+        log.printf("Denoise: %s, est %d ms on %d thread(s) (budget %d ms)%s%n", pick, Math.round(pickMs),
+                Math.max(1, workers), budgetMs, pickMs > budgetMs ? ", over budget at the cheapest setting" : "");
+        return pick;
+    }
+
+    private static int nlmTaps(int r) {
+        return (2 * r + 1) * (2 * r + 1);
+    }
+
+    private static int blTaps(int r) {
+        return 2 * (2 * r + 1);
+    }
+
+    private static double probeMs(BufferedImage probe, Settings s) {
+        double best = Double.MAX_VALUE;
+        for (int i = 0; i < 2; i++) {
+            long t0 = System.nanoTime();
+            apply(probe, s);
+            best = Math.min(best, (System.nanoTime() - t0) / 1e6);
+        }
+        return best;
+    }
+
+    // ---------------- bound form ----------------
+
+    /**
+     * Settings with their weight tables built once, so every tile of a binding
+     * shares them; {@link #applyInto} then allocates nothing per tile.
+     */
+    public static final class Prepared {
+        final Settings settings;
+        final float[] spatial, range; // bilateral
+        final float[] weights; // NLM weight by scaled patch distance
+        final float toLut; // NLM box sum -> weights index
+
+        private Prepared(Settings s) {
+            this.settings = s;
+            if (s.mode() == Mode.NLM) {
+                spatial = range = null;
+                float s2 = Math.max(1f, s.strength() * s.strength());
+                float h2 = 0.55f * 0.55f * s2;
+                float cutoff = 2 * s2 + h2 * 7f; // weight < 1e-3 beyond this
+                float lutScale = (NLM_LUT - 1) / cutoff;
+                weights = new float[NLM_LUT];
+                for (int i = 0; i < NLM_LUT; i++) {
+                    float d2 = i / lutScale;
+                    weights[i] = (float) Math.exp(-Math.max(d2 - 2 * s2, 0f) / h2);
+                }
+                weights[NLM_LUT - 1] = 0f;
+                toLut = lutScale / 27f; // box sum of 9 pixels x 3 channels -> mean
+            } else {
+                int radius = s.radius();
+                spatial = new float[radius + 1];
+                float ss = Math.max(0.5f, radius / 2f);
+                for (int d = 0; d <= radius; d++)
+                    spatial[d] = (float) Math.exp(-(d * d) / (2.0 * ss * ss));
+                range = rangeLut(2.5f * Math.max(0.5f, s.strength()));
+                weights = null;
+                toLut = 0;
+            }
+        }
+
+        public Settings settings() {
+            return settings;
+        }
+    }
+
+    public static Prepared prepare(Settings s) {
+        return new Prepared(s);
+    }
+
+    /**
+     * Denoise packed ARGB {@code src} (stride = w) into {@code dst}. Padding,
+     * channel planes and accumulators come from the calling thread's
+     * {@link ScratchArena}, so a steady stream of tiles allocates nothing.
+     */
+    public static void applyInto(int[] src, int[] dst, int w, int h, Prepared p) {
+        if (p.settings.mode() == Mode.NLM)
+            nlm(src, dst, w, h, p);
+        else
+            bilateral(src, dst, w, h, p);
+    }
+
+    public static BufferedImage apply(BufferedImage src, Prepared p) {
+        int w = src.getWidth(), h = src.getHeight();
+        int[] out = new int[w * h];
+        applyInto(Tiles.argb(src), out, w, h, p);
+        return Tiles.wrapArgb(out, w, h);
+    }
+
+    // ---------------- bilateral ----------------
+
+    /** Separable bilateral; spatial sigma = radius / 2, range sigma = 2.5 * noise sigma. */
+    public static BufferedImage bilateral(BufferedImage src, float sigma, int radius) {
+        return apply(src, prepare(new Settings(Mode.BILATERAL, sigma, radius)));
+    }
+
+    private static void bilateral(int[] src, int[] dst, int w, int h, Prepared p) {
+        int radius = p.settings.radius(), pad = radius;
+        int pw = w + 2 * pad, ph = h + 2 * pad;
+        ScratchArena arena = ScratchArena.get();
+        int[] px = padded(src, w, h, pad, arena.ints(ScratchArena.PLANE, pw * ph));
+
+        // horizontal pass over every padded row (core columns only; the vertical
+        // pass never reads the halo columns), then vertical pass over the core
+        int[] tmp = arena.ints(ScratchArena.PLANE2, pw * ph);
+        for (int y = 0; y < ph; y++) {
+            CancelToken.checkpoint();
+            pass(px, y * pw + pad, 1, tmp, y * pw + pad, w, radius, p.spatial, p.range);
+        }
+        for (int y = 0; y < h; y++) {
+            CancelToken.checkpoint();
+            pass(tmp, (y + pad) * pw + pad, pw, dst, y * w, w, radius, p.spatial, p.range);
+        }
+    }
+
+    /** 1D bilateral of {@code n} consecutive pixels from {@code start}, gathering neighbours {@code step} apart. */
+    private static void pass(int[] src, int start, int step, int[] dst, int dstStart, int n, int radius,
+            float[] spatial, float[] range) {
+        for (int k = 0; k < n; k++) {
+            int i = start + k;
+            int c = src[i];
+            int cr = (c >>> 16) & 0xFF, cg = (c >>> 8) & 0xFF, cb = c & 0xFF;
+            float sw = 0, sr = 0, sg = 0, sb = 0;
+            for (int d = -radius; d <= radius; d++) {
+                int q = src[i + d * step];
+                int qr = (q >>> 16) & 0xFF, qg = (q >>> 8) & 0xFF, qb = q & 0xFF;
+                float wgt = spatial[Math.abs(d)] * range[Math.abs(qr - cr) + Math.abs(qg - cg) + Math.abs(qb - cb)];
+                sw += wgt;
+                sr += wgt * qr;
+                sg += wgt * qg;
+                sb += wgt * qb;
+            }
+            float inv = 1f / sw;
+            dst[dstStart + k] = (c & 0xFF000000) | (Math.round(sr * inv) << 16) | (Math.round(sg * inv) << 8)
+                    | Math.round(sb * inv);
+        }
+    }
+
+    /** Range weight by summed absolute RGB difference (0..765). */
+    private static float[] rangeLut(float sigmaR) {
+        float[] lut = new float[766];
+        for (int d = 0; d < lut.length; d++) {
+            double m = d / 3.0; // mean per-channel difference
+            lut[d] = (float) Math.exp(-(m * m) / (2.0 * sigmaR * sigmaR));
+        }
+        return lut;
+    }
+
+    // ---------------- non-local means ----------------
+
+    private static final int NLM_LUT = 1024;
+
+    /**
+     * Non-local means (Buades et al.) with 3x3 patches: weight =
+     * exp(-max(d2 - 2 sigma^2, 0) / h^2), h = 0.55 sigma, d2 = mean squared
+     * patch difference per sample.
+     */
+    public static BufferedImage nlm(BufferedImage src, float sigma, int searchRadius) {
+        return apply(src, prepare(new Settings(Mode.NLM, sigma, searchRadius)));
+    }
+
+    private static void nlm(int[] src, int[] dst, int w, int h, Prepared p) {
+        int R = p.settings.radius(), pad = R + 1;
+        int pw = w + 2 * pad, ph = h + 2 * pad;
+        int n = pw * ph;
+        ScratchArena arena = ScratchArena.get();
+        int[] px = padded(src, w, h, pad, arena.ints(ScratchArena.PLANE, n));
+        // channel planes r | g | b, then diff | rowSum; accumulators sw | sr | sg | sb
+        int[] c = arena.ints(ScratchArena.PLANE2, 3 * n);
+        for (int i = 0; i < n; i++) {
+            int q = px[i];
+            c[i] = (q >>> 16) & 0xFF;
+            c[n + i] = (q >>> 8) & 0xFF;
+            c[2 * n + i] = q & 0xFF;
+        }
+        int[] t = arena.ints(ScratchArena.WINDOW, 2 * n);
+        float[] acc = arena.floats(ScratchArena.PLANE, 4 * n);
+        Arrays.fill(acc, 0, 4 * n, 0f);
+        final int G = n, B = 2 * n, ROWSUM = n, SR = n, SG = 2 * n, SB = 3 * n;
+        float[] wl = p.weights;
+        float toLut = p.toLut;
+
+        for (int dy = -R; dy <= R; dy++) {
+            for (int dx = -R; dx <= R; dx++) {
+                CancelToken.checkpoint(); // one search offset is a full pass over the tile
+                int off = dy * pw + dx;
+                // squared difference to the shifted image over the core plus the patch ring
+                // (pad = R + 1, so the shifted index stays inside the padded tile)
+                for (int y = pad - 1; y < pad + h + 1; y++) {
+                    int o = y * pw;
+                    for (int x = pad - 1; x < pad + w + 1; x++) {
+                        int i = o + x, j = i + off;
+                        int er = c[i] - c[j], eg = c[G + i] - c[G + j], eb = c[B + i] - c[B + j];
+                        t[i] = er * er + eg * eg + eb * eb;
+                    }
+                }
+                // 3x3 box sum, then weight and accumulate, over the core only
+                for (int y = pad - 1; y < pad + h + 1; y++) {
+                    int o = y * pw;
+                    for (int x = pad; x < pad + w; x++)
+                        t[ROWSUM + o + x] = t[o + x - 1] + t[o + x] + t[o + x + 1];
+                }
+                for (int y = pad; y < pad + h; y++) {
+                    int o = y * pw;
+                    for (int x = pad; x < pad + w; x++) {
+                        int i = o + x, j = i + off;
+                        int d = t[ROWSUM + i - pw] + t[ROWSUM + i] + t[ROWSUM + i + pw];
+                        float wgt = wl[Math.min(NLM_LUT - 1, (int) (d * toLut))];
+                        acc[i] += wgt;
+                        acc[SR + i] += wgt * c[j];
+                        acc[SG + i] += wgt * c[G + j];
+                        acc[SB + i] += wgt * c[B + j];
+                    }
+                }
+            }
+        }
+
+        for (int y = 0; y < h; y++) {
+            int o = (y + pad) * pw + pad;
+            for (int x = 0; x < w; x++) {
+                int i = o + x;
+                float inv = 1f / acc[i]; // the zero offset always contributes weight 1
+                dst[y * w + x] = (src[y * w + x] & 0xFF000000) | (Math.round(acc[SR + i] * inv) << 16)
+                        | (Math.round(acc[SG + i] * inv) << 8) | Math.round(acc[SB + i] * inv);
+            }
+        }
+    }
+
+    // ---------------- helpers ----------------
+
+    /** {@code src} (stride = w) into {@code px} with {@code pad} pixels of edge replication on every side. */
+    static int[] padded(int[] src, int w, int h, int pad, int[] px) {
+        int pw = w + 2 * pad, ph = h + 2 * pad;
+        for (int y = 0; y < ph; y++) {
+            int sy = Math.max(0, Math.min(h - 1, y - pad));
+            int o = y * pw;
+            System.arraycopy(src, sy * w, px, o + pad, w);
+            int first = src[sy * w], last = src[sy * w + w - 1];
+            for (int x = 0; x < pad; x++) {
+                px[o + x] = first;
+                px[o + pad + w + x] = last;
+            }
+        }
+        return px;
+    }
+}
@@ -1,5 +1,7 @@
 package stages;
 
+import util.Tiles;
+
 import java.awt.image.BufferedImage;
 
 /**
@@ -15,57 +17,54 @@ public class FiltersCPUFast {
     /** Brightness [-100..100], Contrast [-100..100] */
     public static BufferedImage applyBrightnessContrast(BufferedImage src, int brightness, int contrast) {
         int w = src.getWidth(), h = src.getHeight();
-        BufferedImage dst = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        int[] out = new int[w * h];
+        applyBrightnessContrastInto(Tiles.argb(src), out, w, h, brightness, contrast);
+        return Tiles.wrapArgb(out, w, h);
+    }
 
-        // Build LUT once (256 entries)
+    /** Same on packed ARGB (stride = w); src == dst is fine. */
+    public static void applyBrightnessContrastInto(int[] src, int[] dst, int w, int h, int brightness,
+            int contrast) {
+        // Build LUT once (256 entries); tiles of one frame share it
         int[] lut = bcLut(brightness, contrast);
 
-        int[] row = new int[w];
-        for (int y = 0; y < h; y++) {
-            src.getRGB(0, y, w, 1, row, 0, w);
-
-            // Tight loop over contiguous int[] -> hot for auto-vectorization
-            for (int x = 0; x < w; x++) {
-                int p = row[x];
-
-                int a = (p >>> 24);
-                int r = (p >>> 16) & 0xFF;
-                int g = (p >>> 8) & 0xFF;
-                int b = (p) & 0xFF;
+        // Tight loop over contiguous int[] -> hot for auto-vectorization
+        for (int i = 0, n = w * h; i < n; i++) {
+            int p = src[i];
 
-                // LUT mapping does the brightness/contrast transform
-                r = lut[r];
-                g = lut[g];
-                b = lut[b];
+            int a = (p >>> 24);
+            int r = (p >>> 16) & 0xFF;
+            int g = (p >>> 8) & 0xFF;
+            int b = (p) & 0xFF;
 
-                row[x] = (a << 24) | (r << 16) | (g << 8) | b;
-            }
+            // LUT mapping does the brightness/contrast transform
+            r = lut[r];
+            g = lut[g];
+            b = lut[b];
 
-            dst.setRGB(0, y, w, 1, row, 0, w);
+            dst[i] = (a << 24) | (r << 16) | (g << 8) | b;
         }
-        return dst;
     }
 
     /** Grayscale (fast integer luma) */
     public static BufferedImage toGray(BufferedImage src) {
         int w = src.getWidth(), h = src.getHeight();
-        BufferedImage dst = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
-        int[] row = new int[w];
-        for (int y = 0; y < h; y++) {
-            src.getRGB(0, y, w, 1, row, 0, w);
-            for (int i = 0; i < w; i++) {
-                int p = row[i];
-                int a = (p >>> 24);
-                int r = (p >>> 16) & 0xFF;
-                int g = (p >>> 8) & 0xFF;
-                int b = (p) & 0xFF;
-                // Fast luma: 0.2126, 0.7152, 0.0722 ≈ 54, 183, 19 (sum 256)
-                int y8 = (54 * r + 183 * g + 19 * b) >>> 8;
-                row[i] = (a << 24) | (y8 << 16) | (y8 << 8) | y8;
-            }
-            dst.setRGB(0, y, w, 1, row, 0, w);
+        int[] out = new int[w * h];
+        toGrayInto(Tiles.argb(src), out, w, h);
+        return Tiles.wrapArgb(out, w, h);
+    }
+
+    public static void toGrayInto(int[] src, int[] dst, int w, int h) {
+        for (int i = 0, n = w * h; i < n; i++) {
+            int p = src[i];
+            int a = (p >>> 24);
+            int r = (p >>> 16) & 0xFF;
+            int g = (p >>> 8) & 0xFF;
+            int b = (p) & 0xFF;
+            // Fast luma: 0.2126, 0.7152, 0.0722 ≈ 54, 183, 19 (sum 256)
+            int y8 = (54 * r + 183 * g + 19 * b) >>> 8;
+            dst[i] = (a << 24) | (y8 << 16) | (y8 << 8) | y8;
         }
-        return dst;
     }
 
     /** Sharpen: reuse the existing CPU implementation (good quality) */
@@ -73,10 +72,28 @@ public class FiltersCPUFast {
         return FiltersCPU.sharpen(src, amount);
     }
 
+    public static void sharpenInto(int[] src, int[] dst, int w, int h, float amount) {
+        FiltersCPU.sharpenInto(src, dst, w, h, amount);
+    }
+
     // --- helpers ---
 
-    /** Build LUT for brightness/contrast mapping. */
+    private record BcLut(int brightness, int contrast, int[] lut) {
+    }
+
+    private static volatile BcLut lastLut;
+
+    /** LUT for brightness/contrast mapping; the last one is kept, so a tiled frame builds it once. */
     private static int[] bcLut(int brightness, int contrast) {
+        BcLut last = lastLut;
+        if (last != null && last.brightness() == brightness && last.contrast() == contrast)
+            return last.lut();
+        int[] lut = buildBcLut(brightness, contrast);
+        lastLut = new BcLut(brightness, contrast, lut);
+        return lut;
+    }
+
+    private static int[] buildBcLut(int brightness, int contrast) {
         // brightness: add in [−1..+1], contrast: scale (2^(c/50))
         float bf = brightness / 100.0f;
         float cf = (float) Math.pow(2.0, contrast / 50.0);
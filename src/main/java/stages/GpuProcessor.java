@@ -1,16 +1,33 @@
 package stages;
 
+import util.BufferPool;
+import util.Tiles;
+
 import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 
 import org.jocl.*;
 import static org.jocl.CL.*;
 
 /**
- * Brightness/contrast on GPU using JOCL (OpenCL 1.x/2.0).
+ * Brightness/contrast and bilateral denoise on GPU using JOCL (OpenCL 1.x/2.0).
  * Falls back to CPU if no compatible GPU/OpenCL is available.
  *
  * brightness is given in [ -100 .. +100 ] (like your CLI),
  * contrast is given in [ -100 .. +100 ] and mapped to scale = 2^(contrast/50).
+ *
+ * -DclDevice=gpu|cpu|all picks the OpenCL device type (default gpu); "cpu"
+ * lets the OpenCL path run on machines with only a CPU OpenCL runtime.
+ *
+ * Kernels work on the packed ARGB ints of a TYPE_INT_ARGB raster as they
+ * are, so the host neither swizzles nor walks pixels: a tile's int[] goes
+ * into a pinned staging buffer (CL_MEM_ALLOC_HOST_PTR, mapped once) with one
+ * bulk copy and comes back the same way. Staging and device buffers are kept
+ * and grown across tiles. Point kernels are run in -DclSlices row slices
+ * (default 4) alternating over two queues with non-blocking transfers, so
+ * one slice's upload overlaps the previous slice's kernel and read-back.
  */
 public final class GpuProcessor {
 
@@ -18,29 +35,105 @@ public final class GpuProcessor {
     }
 
     private static final String KERNEL = """
+                // Pixels are Java's packed ARGB ints (0xAARRGGBB), as in a TYPE_INT_ARGB raster.
+                inline float4 argb(uint p) {
+                    return (float4)((float)((p >> 16) & 0xFFu), (float)((p >> 8) & 0xFFu),
+                                    (float)(p & 0xFFu), (float)(p >> 24));
+                }
+
                 __kernel void brightnessContrast(
-                    __global uchar4* pixels,
+                    __global uint* pixels,
                     const float add,          // brightness in [ -1 .. +1 ]
                     const float scale)        // contrast scale, e.g. 2^(c/50)
                 {
-                    int i = get_global_id(0);
-                    uchar4 p = pixels[i];
+                    int i = get_global_id(0);  // slices are launched with a global offset
+                    uint p = pixels[i];
 
-                    float r = ( (p.x / 255.0f) * scale + add );
-                    float g = ( (p.y / 255.0f) * scale + add );
-                    float b = ( (p.z / 255.0f) * scale + add );
+                    float r = ( (((p >> 16) & 0xFFu) / 255.0f) * scale + add );
+                    float g = ( (((p >> 8) & 0xFFu) / 255.0f) * scale + add );
+                    float b = ( ((p & 0xFFu) / 255.0f) * scale + add );
 
                     r = clamp(r, 0.0f, 1.0f);
                     g = clamp(g, 0.0f, 1.0f);
                     b = clamp(b, 0.0f, 1.0f);
 
-                    pixels[i] = (uchar4)((uchar)(r * 255.0f),
-                                         (uchar)(g * 255.0f),
-                                         (uchar)(b * 255.0f),
-                                         p.w);
+                    pixels[i] = (p & 0xFF000000u)
+                              | ((uint)(uchar)(r * 255.0f) << 16)
+                              | ((uint)(uchar)(g * 255.0f) << 8)
+                              | (uint)(uchar)(b * 255.0f);
+                }
+
+                // One pass of the separable bilateral (run along x, then along y), with
+                // the same weights and 8-bit rounding as Denoise.bilateral. Reads clamp
+                // to the buffer edge; callers pass tiles with a halo.
+                __kernel void bilateralPass(
+                    __global const uint* src,
+                    __global uint* dst,
+                    const int w, const int h,
+                    const int radius,
+                    const int stepX, const int stepY,
+                    const float invSpatial,   // 1 / (2 sigmaS^2)
+                    const float invRange)     // 1 / (2 sigmaR^2), on mean channel difference
+                {
+                    int x = get_global_id(0), y = get_global_id(1);
+                    if (x >= w || y >= h) return;
+                    uint p = src[y * w + x];
+                    float4 c = argb(p);
+                    float4 sum = (float4)(0.0f);
+                    float sw = 0.0f;
+                    for (int d = -radius; d <= radius; d++) {
+                        int xx = clamp(x + d * stepX, 0, w - 1);
+                        int yy = clamp(y + d * stepY, 0, h - 1);
+                        float4 q = argb(src[yy * w + xx]);
+                        float4 e = fabs(q - c);
+                        float m = (e.x + e.y + e.z) / 3.0f;
+                        float wgt = exp(-(float)(d * d) * invSpatial - m * m * invRange);
+                        sum += wgt * q;
+                        sw += wgt;
+                    }
+                    float4 o = sum / sw + 0.5f;
+                    dst[y * w + x] = (p & 0xFF000000u) | ((uint)convert_uchar_sat(o.x) << 16)
+                                   | ((uint)convert_uchar_sat(o.y) << 8) | (uint)convert_uchar_sat(o.z);
                 }
             """;
 
+    private static volatile Boolean available;
+
+    /** OpenCL device type selected by -DclDevice. */
+    static long deviceType() {
+        return switch (System.getProperty("clDevice", "gpu").toLowerCase()) {
+            case "cpu" -> CL_DEVICE_TYPE_CPU;
+            case "all", "any" -> CL_DEVICE_TYPE_ALL;
+            default -> CL_DEVICE_TYPE_GPU;
+        };
+    }
+
+    /** True if an OpenCL device of the selected type can be found (probed once, cached). */
+    public static boolean isAvailable() {
+        Boolean a = available;
+        if (a == null) {
+            try {
+                CL.setExceptionsEnabled(true);
+                int[] numPlatforms = new int[1];
+                clGetPlatformIDs(0, null, numPlatforms);
+                boolean found = false;
+                if (numPlatforms[0] > 0) {
+                    cl_platform_id[] platforms = new cl_platform_id[numPlatforms[0]];
+                    clGetPlatformIDs(platforms.length, platforms, null);
+                    int[] numDevices = new int[1];
+                    CL.setExceptionsEnabled(false);
+                    int err = clGetDeviceIDs(platforms[0], deviceType(), 0, null, numDevices);
+                    found = err == CL_SUCCESS && numDevices[0] > 0;
+                }
+                a = found;
+            } catch (Throwable t) {
+                a = false;
+            }
+            available = a;
+        }
+        return a;
+    }
+
     public static BufferedImage applyBrightnessContrast(BufferedImage src, int brightness, int contrast) {
         try {
             return runOnGpu(src, brightness, contrast);
@@ -51,26 +144,47 @@ public final class GpuProcessor {
         }
     }
 
+    /**
+     * Separable bilateral with the CPU path's parameters and rounding (spatial
+     * sigma radius/2, range sigma 2.5 * noise sigma), so CPU and GPU tiles of
+     * one frame match; falls back to {@link Denoise#bilateral}.
+     */
+    public static BufferedImage bilateral(BufferedImage src, float sigma, int radius) {
+        try {
+            return runBilateral(src, sigma, radius);
+        } catch (Throwable t) {
+            System.err.println("[GPU] Falling back to CPU: " + t.getMessage());
+            return Denoise.bilateral(src, sigma, radius);
+        }
+    }
+
     // ---- JOCL implementation ----
-    private static BufferedImage runOnGpu(BufferedImage src, int brightness, int contrast) {
-        CL.setExceptionsEnabled(true);
 
-        int w = src.getWidth();
-        int h = src.getHeight();
-        int n = w * h;
+    private static final int SLICES = Math.max(1, Integer.getInteger("clSlices", 4));
+    private static final int MIN_SLICE_PX = 64 * 1024; // smaller slices cost more in launches than they overlap
 
-        // Pack ARGB → RGBA bytes
-        byte[] bytes = new byte[n * 4];
-        int idx = 0;
-        for (int y = 0; y < h; y++) {
-            for (int x = 0; x < w; x++) {
-                int p = src.getRGB(x, y);
-                bytes[idx++] = (byte) ((p >> 16) & 0xFF); // R
-                bytes[idx++] = (byte) ((p >> 8) & 0xFF); // G
-                bytes[idx++] = (byte) (p & 0xFF); // B
-                bytes[idx++] = (byte) ((p >> 24) & 0xFF); // A
-            }
-        }
+    /** Context, queues and compiled kernels, built once and reused for every tile. */
+    private static final class ClState {
+        cl_context context;
+        cl_command_queue queue;
+        cl_command_queue queue2; // second in-order queue: slices alternate, so transfers overlap kernels
+        cl_program program;
+        cl_kernel kernel;
+        cl_kernel bilateral;
+        // grown on demand, kept across tiles
+        cl_mem pinned; // host-side staging (CL_MEM_ALLOC_HOST_PTR), mapped for its lifetime
+        ByteBuffer staging; // the mapping (or a plain direct buffer if mapping failed)
+        cl_mem devA, devB;
+        long capacity; // bytes in each of the above
+    }
+
+    private static final Object CL_LOCK = new Object();
+    private static ClState state; // guarded by CL_LOCK
+
+    /** Build the OpenCL context/program on first use (caller holds CL_LOCK). */
+    private static ClState ensureInit() {
+        if (state != null)
+            return state;
 
         // --- Platform & device ---
         int[] numPlatforms = new int[1];
@@ -83,67 +197,207 @@ public final class GpuProcessor {
         cl_platform_id platform = platforms[0];
 
         int[] numDevices = new int[1];
-        int err = clGetDeviceIDs(platform, CL_DEVICE_TYPE_GPU, 0, null, numDevices);
+        int err = clGetDeviceIDs(platform, deviceType(), 0, null, numDevices);
         if (err != CL_SUCCESS || numDevices[0] == 0) {
-            throw new RuntimeException("No OpenCL GPU device found");
+            throw new RuntimeException("No OpenCL device found (clDevice=" + System.getProperty("clDevice", "gpu") + ")");
         }
 
         cl_device_id[] devices = new cl_device_id[numDevices[0]];
-        clGetDeviceIDs(platform, CL_DEVICE_TYPE_GPU, devices.length, devices, null);
+        clGetDeviceIDs(platform, deviceType(), devices.length, devices, null);
         cl_device_id device = devices[0];
 
+        ClState cl = new ClState();
+
         // --- Context & queue ---
         cl_context_properties props = new cl_context_properties();
         props.addProperty(CL_CONTEXT_PLATFORM, platform);
 
-        cl_context context = clCreateContext(props, 1, new cl_device_id[] { device }, null, null, null);
+        cl.context = clCreateContext(props, 1, new cl_device_id[] { device }, null, null, null);
         cl_queue_properties qprops = new cl_queue_properties();
-        cl_command_queue queue = clCreateCommandQueueWithProperties(context, device, qprops, null);
+        cl.queue = clCreateCommandQueueWithProperties(cl.context, device, qprops, null);
+        cl.queue2 = clCreateCommandQueueWithProperties(cl.context, device, qprops, null);
 
         // --- Program & kernel ---
-        cl_program program = clCreateProgramWithSource(context, 1, new String[] { KERNEL }, null, null);
-        clBuildProgram(program, 0, null, null, null, null);
-        cl_kernel kernel = clCreateKernel(program, "brightnessContrast", null);
-
-        // --- Device buffer ---
-        cl_mem mem = clCreateBuffer(context,
-                CL_MEM_READ_WRITE | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_uchar * bytes.length, Pointer.to(bytes), null);
-
-        // --- Kernel args ---
-        float add = brightness / 100.0f; // [-1..1]
-        float scale = (float) Math.pow(2.0, contrast / 50.0);// contrast scale
-        clSetKernelArg(kernel, 0, Sizeof.cl_mem, Pointer.to(mem));
-        clSetKernelArg(kernel, 1, Sizeof.cl_float, Pointer.to(new float[] { add }));
-        clSetKernelArg(kernel, 2, Sizeof.cl_float, Pointer.to(new float[] { scale }));
-
-        // --- Launch ---
-        long[] global = new long[] { n };
-        clEnqueueNDRangeKernel(queue, kernel, 1, null, global, null, 0, null, null);
-
-        // --- Read back ---
-        clEnqueueReadBuffer(queue, mem, CL_TRUE, 0,
-                Sizeof.cl_uchar * bytes.length, Pointer.to(bytes), 0, null, null);
-
-        // --- Cleanup ---
-        clReleaseMemObject(mem);
-        clReleaseKernel(kernel);
-        clReleaseProgram(program);
-        clReleaseCommandQueue(queue);
-        clReleaseContext(context);
-
-        // Unpack RGBA → ARGB
-        BufferedImage out = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
-        idx = 0;
-        for (int y = 0; y < h; y++) {
-            for (int x = 0; x < w; x++) {
-                int r = bytes[idx++] & 0xFF;
-                int g = bytes[idx++] & 0xFF;
-                int b = bytes[idx++] & 0xFF;
-                int a = bytes[idx++] & 0xFF;
-                out.setRGB(x, y, (a << 24) | (r << 16) | (g << 8) | b);
+        cl.program = clCreateProgramWithSource(cl.context, 1, new String[] { KERNEL }, null, null);
+        clBuildProgram(cl.program, 0, null, null, null, null);
+        cl.kernel = clCreateKernel(cl.program, "brightnessContrast", null);
+        cl.bilateral = clCreateKernel(cl.program, "bilateralPass", null);
+
+        state = cl;
+        return cl;
+    }
+
+    /** Build the OpenCL state now (e.g. at daemon start) instead of on the first tile. */
+    public static void warmUp() {
+        if (!isAvailable())
+            return;
+        try {
+            CL.setExceptionsEnabled(true);
+            synchronized (CL_LOCK) {
+                ensureInit();
             }
+        } catch (Throwable t) {
+            System.err.println("[GPU] Warm-up failed: " + t.getMessage());
+        }
+    }
+
+    /** Release the cached OpenCL objects. */
+    public static void release() {
+        synchronized (CL_LOCK) {
+            if (state == null)
+                return;
+            releaseBuffers(state);
+            clReleaseKernel(state.kernel);
+            clReleaseKernel(state.bilateral);
+            clReleaseProgram(state.program);
+            clReleaseCommandQueue(state.queue);
+            clReleaseCommandQueue(state.queue2);
+            clReleaseContext(state.context);
+            state = null;
+        }
+    }
+
+    // ---- buffers ----
+
+    /** Staging and device buffers of at least {@code bytes} each (caller holds CL_LOCK). */
+    private static void ensureBuffers(ClState cl, long bytes) {
+        if (cl.capacity >= bytes)
+            return;
+        long cap = Math.max(bytes, cl.capacity * 3 / 2); // before release zeroes the capacity
+        releaseBuffers(cl);
+        cl.devA = clCreateBuffer(cl.context, CL_MEM_READ_WRITE, cap, null, null);
+        cl.devB = clCreateBuffer(cl.context, CL_MEM_READ_WRITE, cap, null, null);
+        try {
+            cl.pinned = clCreateBuffer(cl.context, CL_MEM_READ_WRITE | CL_MEM_ALLOC_HOST_PTR, cap, null, null);
+            cl.staging = clEnqueueMapBuffer(cl.queue, cl.pinned, CL_TRUE, CL_MAP_READ | CL_MAP_WRITE, 0, cap, 0,
+                    null, null, null);
+        } catch (CLException e) { // no host-accessible allocation: an ordinary direct buffer still transfers async
+            if (cl.pinned != null)
+                clReleaseMemObject(cl.pinned);
+            cl.pinned = null;
+            cl.staging = ByteBuffer.allocateDirect((int) Math.min(Integer.MAX_VALUE, cap));
+        }
+        cl.staging.order(ByteOrder.nativeOrder());
+        cl.capacity = cap;
+    }
+
+    private static void releaseBuffers(ClState cl) {
+        if (cl.capacity == 0)
+            return;
+        if (cl.pinned != null) {
+            clEnqueueUnmapMemObject(cl.queue, cl.pinned, cl.staging, 0, null, null);
+            clFinish(cl.queue);
+            clReleaseMemObject(cl.pinned);
+        }
+        clReleaseMemObject(cl.devA);
+        clReleaseMemObject(cl.devB);
+        cl.pinned = null;
+        cl.staging = null;
+        cl.capacity = 0;
+    }
+
+    /**
+     * The tile's packed ARGB ints into staging: straight from its raster array
+     * when that is packed with stride = width (pooled tiles' arrays are longer
+     * than w*h, only the first n ints are the tile), else through getRGB.
+     */
+    private static IntBuffer upload(ClState cl, BufferedImage src) {
+        int w = src.getWidth(), h = src.getHeight(), n = w * h;
+        ensureBuffers(cl, 4L * n);
+        IntBuffer ints = cl.staging.asIntBuffer();
+        int[] d = Tiles.data(src);
+        ints.put(d != null ? d : src.getRGB(0, 0, w, h, null, 0, w), 0, n);
+        return ints;
+    }
+
+    /**
+     * Staging back into a TYPE_INT_ARGB tile on a {@link BufferPool} buffer;
+     * the tiled path hands it back once the sink has copied it out.
+     */
+    private static BufferedImage download(IntBuffer ints, int w, int h) {
+        int[] out = BufferPool.shared().acquire(w * h);
+        ints.get(0, out, 0, w * h);
+        return Tiles.wrapArgb(out, w, h);
+    }
+
+    private static Pointer staged(ClState cl, long byteOffset) {
+        return Pointer.to(cl.staging).withByteOffset(byteOffset);
+    }
+
+    // ---- kernels ----
+
+    private static BufferedImage runOnGpu(BufferedImage src, int brightness, int contrast) {
+        CL.setExceptionsEnabled(true);
+
+        int w = src.getWidth();
+        int h = src.getHeight();
+        int n = w * h;
+
+        synchronized (CL_LOCK) {
+            ClState cl = ensureInit();
+            IntBuffer ints = upload(cl, src);
+
+            // --- Kernel args (captured at each enqueue) ---
+            float add = brightness / 100.0f; // [-1..1]
+            float scale = (float) Math.pow(2.0, contrast / 50.0);// contrast scale
+            clSetKernelArg(cl.kernel, 1, Sizeof.cl_float, Pointer.to(new float[] { add }));
+            clSetKernelArg(cl.kernel, 2, Sizeof.cl_float, Pointer.to(new float[] { scale }));
+
+            // --- Slices: upload, launch, read back, alternating queues; nothing blocks until the end.
+            // Each queue has its own device buffer, so the two never touch the same memory object. ---
+            int slices = Math.max(1, Math.min(SLICES, n / MIN_SLICE_PX));
+            for (int k = 0; k < slices; k++) {
+                long p0 = (long) n * k / slices, p1 = (long) n * (k + 1) / slices;
+                long off = Sizeof.cl_uint * p0, len = Sizeof.cl_uint * (p1 - p0);
+                cl_command_queue q = (k & 1) == 0 ? cl.queue : cl.queue2;
+                cl_mem dev = (k & 1) == 0 ? cl.devA : cl.devB;
+                clEnqueueWriteBuffer(q, dev, CL_FALSE, off, len, staged(cl, off), 0, null, null);
+                clSetKernelArg(cl.kernel, 0, Sizeof.cl_mem, Pointer.to(dev));
+                clEnqueueNDRangeKernel(q, cl.kernel, 1, new long[] { p0 }, new long[] { p1 - p0 }, null, 0, null,
+                        null);
+                clEnqueueReadBuffer(q, dev, CL_FALSE, off, len, staged(cl, off), 0, null, null);
+            }
+            clFinish(cl.queue);
+            clFinish(cl.queue2);
+            return download(ints, w, h);
+        }
+    }
+
+    private static BufferedImage runBilateral(BufferedImage src, float sigma, int radius) {
+        CL.setExceptionsEnabled(true);
+
+        int w = src.getWidth();
+        int h = src.getHeight();
+        long bytes = Sizeof.cl_uint * (long) w * h;
+        float ss = Math.max(0.5f, radius / 2f), sr = 2.5f * Math.max(0.5f, sigma);
+
+        synchronized (CL_LOCK) {
+            ClState cl = ensureInit();
+            IntBuffer ints = upload(cl, src);
+            cl_mem a = cl.devA, b = cl.devB;
+            // the y pass needs whole columns, so no slicing: one async upload, two passes, one read
+            clEnqueueWriteBuffer(cl.queue, a, CL_FALSE, 0, bytes, staged(cl, 0), 0, null, null);
+            clSetKernelArg(cl.bilateral, 2, Sizeof.cl_int, Pointer.to(new int[] { w }));
+            clSetKernelArg(cl.bilateral, 3, Sizeof.cl_int, Pointer.to(new int[] { h }));
+            clSetKernelArg(cl.bilateral, 4, Sizeof.cl_int, Pointer.to(new int[] { radius }));
+            clSetKernelArg(cl.bilateral, 7, Sizeof.cl_float, Pointer.to(new float[] { 1f / (2 * ss * ss) }));
+            clSetKernelArg(cl.bilateral, 8, Sizeof.cl_float, Pointer.to(new float[] { 1f / (2 * sr * sr) }));
+            long[] global = new long[] { w, h };
+
+            // a -> b along x, b -> a along y (in-order queue, no explicit events needed)
+            clSetKernelArg(cl.bilateral, 0, Sizeof.cl_mem, Pointer.to(a));
+            clSetKernelArg(cl.bilateral, 1, Sizeof.cl_mem, Pointer.to(b));
+            clSetKernelArg(cl.bilateral, 5, Sizeof.cl_int, Pointer.to(new int[] { 1 }));
+            clSetKernelArg(cl.bilateral, 6, Sizeof.cl_int, Pointer.to(new int[] { 0 }));
+            clEnqueueNDRangeKernel(cl.queue, cl.bilateral, 2, null, global, null, 0, null, null);
+            clSetKernelArg(cl.bilateral, 0, Sizeof.cl_mem, Pointer.to(b));
+            clSetKernelArg(cl.bilateral, 1, Sizeof.cl_mem, Pointer.to(a));
+            clSetKernelArg(cl.bilateral, 5, Sizeof.cl_int, Pointer.to(new int[] { 0 }));
+            clSetKernelArg(cl.bilateral, 6, Sizeof.cl_int, Pointer.to(new int[] { 1 }));
+            clEnqueueNDRangeKernel(cl.queue, cl.bilateral, 2, null, global, null, 0, null, null);
+
+            clEnqueueReadBuffer(cl.queue, a, CL_TRUE, 0, bytes, staged(cl, 0), 0, null, null);
+            return download(ints, w, h);
         }
-        return out;
     }
 }
@@ -0,0 +1,36 @@
+package stages;
+
+/**
+ * Per-channel 1D curve (a .cube LUT_1D table or the shaper in front of a 3D
+ * cube). Sampled with linear interpolation on [0..1].
+ */
+public final class Lut1D {
+
+    private final int size;
+    private final float[] r, g, b;
+
+    public Lut1D(float[] r, float[] g, float[] b) {
+        if (r.length < 2 || r.length != g.length || r.length != b.length)
+            throw new IllegalArgumentException("1D LUT needs >= 2 equal-length channels");
+        this.size = r.length;
+        this.r = r;
+        this.g = g;
+        this.b = b;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Curve value of channel {@code ch} (0 = R, 1 = G, 2 = B) at {@code x} in [0..1]. */
+    public float map(int ch, float x) {
+        float[] t = ch == 0 ? r : (ch == 1 ? g : b);
+        float pos = x * (size - 1);
+        if (pos <= 0f)
+            return t[0];
+        if (pos >= size - 1)
+            return t[size - 1];
+        int i = (int) pos;
+        return t[i] + (pos - i) * (t[i + 1] - t[i]);
+    }
+}
@@ -0,0 +1,247 @@
+package stages;
+
+import util.Planar16;
+import util.Tiles;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * RGB -> RGB lookup cube with tetrahedral (default) or trilinear interpolation.
+ *
+ * The lattice is size^3 RGB triples in [0..1], red varying fastest (the
+ * .cube file order). Tetrahedral interpolation reads 4 of the 8 corners per
+ * pixel and reproduces the grey axis exactly, so neutral tones don't pick up
+ * tints between lattice points. For 8-bit input the lattice index and
+ * fraction of every code value are precomputed, so the per-pixel work is a
+ * few compares and 9 multiply-adds.
+ */
+public final class Lut3D {
+
+    /** Interpolation between lattice points. */
+    public enum Interp {
+        /** 8 corners per pixel; what most .cube authoring tools preview with. */
+        TRILINEAR,
+        /** 4 corners per pixel; cheaper and exact on the grey axis. */
+        TETRAHEDRAL;
+
+        public static Interp parse(String s) {
+            return switch (s.trim().toLowerCase()) {
+                case "tri", "trilinear" -> TRILINEAR;
+                case "tetra", "tetrahedral" -> TETRAHEDRAL;
+                default -> throw new IllegalArgumentException("interpolation must be tetra | trilinear: " + s);
+            };
+        }
+    }
+
+    /** Fills {@code out} with the colour for input (r, g, b), all in [0..1]. */
+    @FunctionalInterface
+    public interface ColorFn {
+        void map(float r, float g, float b, float[] out);
+    }
+
+    private final int size;
+    private final float[] data; // 3 * size^3
+
+    // per 8-bit code value: lower lattice index (times stride per axis) and fraction
+    private final int[] idxR = new int[256], idxG = new int[256], idxB = new int[256];
+    private final float[] frac8 = new float[256];
+
+    public Lut3D(int size, float[] data) {
+        if (size < 2 || data.length != 3 * size * size * size)
+            throw new IllegalArgumentException("LUT size " + size + " does not match " + data.length + " values");
+        this.size = size;
+        this.data = data;
+        for (int v = 0; v < 256; v++) {
+            float f = v * (size - 1) / 255f;
+            int i = Math.min(size - 2, (int) f);
+            idxR[v] = 3 * i;
+            idxG[v] = 3 * i * size;
+            idxB[v] = 3 * i * size * size;
+            frac8[v] = f - i;
+        }
+    }
+
+    /** Sample {@code fn} on a size^3 lattice. */
+    public static Lut3D build(int size, ColorFn fn) {
+        float[] d = new float[3 * size * size * size];
+        float[] out = new float[3];
+        float step = 1f / (size - 1);
+        int k = 0;
+        for (int b = 0; b < size; b++)
+            for (int g = 0; g < size; g++)
+                for (int r = 0; r < size; r++) {
+                    fn.map(r * step, g * step, b * step, out);
+                    d[k++] = out[0];
+                    d[k++] = out[1];
+                    d[k++] = out[2];
+                }
+        return new Lut3D(size, d);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // ---------------- 8-bit ----------------
+
+    /** Map packed ARGB pixels in place; alpha is kept. */
+    public void apply(int[] argb, int off, int len) {
+        apply(argb, off, len, Interp.TETRAHEDRAL);
+    }
+
+    public void apply(int[] argb, int off, int len, Interp mode) {
+        applyCoded(argb, off, len, idxR, idxG, idxB, frac8, frac8, frac8, mode);
+    }
+
+    /**
+     * 8-bit kernel on precomputed per-code lattice offsets and fractions (one
+     * table per channel, so a caller can fold a shaper or domain into them).
+     */
+    void applyCoded(int[] argb, int off, int len, int[] iR, int[] iG, int[] iB, float[] fR, float[] fG, float[] fB,
+            Interp mode) {
+        final int sr = 3, sg = 3 * size, sb = 3 * size * size;
+        final float[] d = data;
+        final boolean tetra = mode == Interp.TETRAHEDRAL;
+        float[] rgb = new float[3];
+        for (int i = off, end = off + len; i < end; i++) {
+            int p = argb[i];
+            int r = (p >>> 16) & 0xFF, g = (p >>> 8) & 0xFF, b = p & 0xFF;
+            int base = iR[r] + iG[g] + iB[b];
+            if (tetra)
+                tetra(d, base, sr, sg, sb, fR[r], fG[g], fB[b], rgb);
+            else
+                trilinear(d, base, sr, sg, sb, fR[r], fG[g], fB[b], rgb);
+            argb[i] = (p & 0xFF000000) | (to8(rgb[0]) << 16) | (to8(rgb[1]) << 8) | to8(rgb[2]);
+        }
+    }
+
+    /** New TYPE_INT_ARGB image with the LUT applied. */
+    public BufferedImage apply(BufferedImage src) {
+        return apply(src, Interp.TETRAHEDRAL);
+    }
+
+    public BufferedImage apply(BufferedImage src, Interp mode) {
+        int w = src.getWidth(), h = src.getHeight();
+        int[] px = src.getRGB(0, 0, w, h, null, 0, w);
+        apply(px, 0, px.length, mode);
+        return Tiles.wrapArgb(px, w, h);
+    }
+
+    /** Lower lattice index for a coordinate in lattice units (last cell for the top edge). */
+    int cell(float x) {
+        return Math.max(0, Math.min(size - 2, (int) x));
+    }
+
+    static int to8(float v) {
+        int i = (int) (v * 255f + 0.5f);
+        return i < 0 ? 0 : (i > 255 ? 255 : i);
+    }
+
+    // ---------------- 16-bit ----------------
+
+    /** New 16-bit image with the LUT applied (fractions computed per sample). */
+    public Planar16 apply(Planar16 src) {
+        return apply(src, Interp.TETRAHEDRAL);
+    }
+
+    public Planar16 apply(Planar16 src, Interp mode) {
+        Planar16 dst = new Planar16(src.width, src.height);
+        final float scale = (size - 1) / (float) Planar16.MAX;
+        float[] rgb = new float[3];
+        for (int i = 0; i < dst.r.length; i++) {
+            sample((src.r[i] & 0xFFFF) * scale, (src.g[i] & 0xFFFF) * scale, (src.b[i] & 0xFFFF) * scale, mode, rgb);
+            dst.r[i] = to16(rgb[0]);
+            dst.g[i] = to16(rgb[1]);
+            dst.b[i] = to16(rgb[2]);
+        }
+        System.arraycopy(src.a, 0, dst.a, 0, src.a.length);
+        return dst;
+    }
+
+    /** Interpolate at lattice coordinates (each in [0..size-1]). */
+    public void sample(float xr, float xg, float xb, Interp mode, float[] out) {
+        final int sr = 3, sg = 3 * size, sb = 3 * size * size;
+        int ir = cell(xr), ig = cell(xg), ib = cell(xb);
+        int base = ir * sr + ig * sg + ib * sb;
+        if (mode == Interp.TETRAHEDRAL)
+            tetra(data, base, sr, sg, sb, xr - ir, xg - ig, xb - ib, out);
+        else
+            trilinear(data, base, sr, sg, sb, xr - ir, xg - ig, xb - ib, out);
+    }
+
+    /** Trilinear interpolation inside the cell at {@code base}: lerp along r, then g, then b. */
+    static void trilinear(float[] d, int base, int sr, int sg, int sb, float fr, float fg, float fb, float[] out) {
+        for (int c = 0; c < 3; c++) {
+            int p = base + c;
+            float c00 = d[p] + fr * (d[p + sr] - d[p]);
+            float c10 = d[p + sg] + fr * (d[p + sg + sr] - d[p + sg]);
+            float c01 = d[p + sb] + fr * (d[p + sb + sr] - d[p + sb]);
+            float c11 = d[p + sb + sg] + fr * (d[p + sb + sg + sr] - d[p + sb + sg]);
+            float c0 = c00 + fg * (c10 - c00);
+            float c1 = c01 + fg * (c11 - c01);
+            out[c] = c0 + fb * (c1 - c0);
+        }
+    }
+
+    /** Tetrahedral interpolation inside the cell at {@code base} (strides per axis). */
+    static void tetra(float[] d, int base, int sr, int sg, int sb, float fr, float fg, float fb, float[] out) {
+        // walk the tetrahedron c000 -> first axis -> first two axes -> c111
+        int c1, c2;
+        float w0, w1, w2, w3; // weights of c000, c1, c2, c111
+        if (fr >= fg) {
+            if (fg >= fb) { // r > g > b
+                c1 = sr;
+                c2 = sr + sg;
+                w0 = 1 - fr;
+                w1 = fr - fg;
+                w2 = fg - fb;
+                w3 = fb;
+            } else if (fr >= fb) { // r > b > g
+                c1 = sr;
+                c2 = sr + sb;
+                w0 = 1 - fr;
+                w1 = fr - fb;
+                w2 = fb - fg;
+                w3 = fg;
+            } else { // b > r > g
+                c1 = sb;
+                c2 = sr + sb;
+                w0 = 1 - fb;
+                w1 = fb - fr;
+                w2 = fr - fg;
+                w3 = fg;
+            }
+        } else {
+            if (fb >= fg) { // b > g > r
+                c1 = sb;
+                c2 = sg + sb;
+                w0 = 1 - fb;
+                w1 = fb - fg;
+                w2 = fg - fr;
+                w3 = fr;
+            } else if (fb >= fr) { // g > b > r
+                c1 = sg;
+                c2 = sg + sb;
+                w0 = 1 - fg;
+                w1 = fg - fb;
+                w2 = fb - fr;
+                w3 = fr;
+            } else { // g > r > b
+                c1 = sg;
+                c2 = sr + sg;
+                w0 = 1 - fg;
+                w1 = fg - fr;
+                w2 = fr - fb;
+                w3 = fb;
+            }
+        }
+        int p0 = base, p1 = base + c1, p2 = base + c2, p3 = base + sr + sg + sb;
+        for (int c = 0; c < 3; c++)
+            out[c] = w0 * d[p0 + c] + w1 * d[p1 + c] + w2 * d[p2 + c] + w3 * d[p3 + c];
+    }
+
+    static short to16(float v) {
+        int i = (int) (v * Planar16.MAX + 0.5f);
+        return (short) (i < 0 ? 0 : (i > Planar16.MAX ? Planar16.MAX : i));
+    }
+}
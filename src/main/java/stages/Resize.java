@@ -0,0 +1,269 @@
+package stages;
+
+import util.LruCache;
+import util.Tiles;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Separable resampling on packed ARGB arrays (no Graphics2D).
+ *
+ * Each axis gets a weight table once per (source size, target size, filter):
+ * first source index, tap count and 14-bit fixed-point weights per output
+ * column/row, normalised to sum to exactly one (the rounding residue goes to
+ * the centre tap, so flat areas keep their value). The horizontal pass maps W x H to
+ * w x H, the vertical pass w x H to w x h; both work on a row range, so
+ * callers can split rows across threads. When downscaling the filter is
+ * stretched by the scale factor, so it averages instead of aliasing.
+ *
+ * {@link #downsample} is the cheap integer-ratio box reduction for previews.
+ */
+public final class Resize {
+
+    private static final int BITS = 14;
+    private static final int ONE = 1 << BITS;
+    private static final int HALF = ONE >> 1;
+    private static final int CACHE_MAX = 32;
+    private static final LruCache<String, Weights> CACHE = new LruCache<>(CACHE_MAX);
+
+    private Resize() {
+    }
+
+    public enum Filter {
+        /** Area average; fastest, soft. */
+        BOX(0.5),
+        /** Catmull-Rom style cubic (a = -0.5). */
+        BICUBIC(2.0),
+        /** Windowed sinc over 3 lobes; sharpest, slight ringing on hard edges. */
+        LANCZOS3(3.0);
+
+        final double support;
+
+        Filter(double support) {
+            this.support = support;
+        }
+
+        double eval(double x) {
+            x = Math.abs(x);
+            return switch (this) {
+                case BOX -> x < 0.5 ? 1.0 : 0.0;
+                case BICUBIC -> {
+                    double a = -0.5;
+                    if (x < 1)
+                        yield ((a + 2) * x - (a + 3)) * x * x + 1;
+                    if (x < 2)
+                        yield (((x - 5) * x + 8) * x - 4) * a;
+                    yield 0;
+                }
+                case LANCZOS3 -> x < 3 ? sinc(x) * sinc(x / 3) : 0;
+            };
+        }
+
+        private static double sinc(double x) {
+            if (x == 0)
+                return 1;
+            x *= Math.PI;
+            return Math.sin(x) / x;
+        }
+
+        public static Filter parse(String s) {
+            return switch (s.trim().toLowerCase()) {
+                case "box" -> BOX;
+                case "bicubic", "cubic" -> BICUBIC;
+                case "lanczos", "lanczos3" -> LANCZOS3;
+                default -> throw new IllegalArgumentException("filter must be lanczos | bicubic | box: " + s);
+            };
+        }
+    }
+
+    /** Per output index: first source index, tap count, and {@code taps} fixed-point weights. */
+    public static final class Weights {
+        final int[] start, count, w;
+        final int taps;
+
+        private Weights(int[] start, int[] count, int[] w, int taps) {
+            this.start = start;
+            this.count = count;
+            this.w = w;
+            this.taps = taps;
+        }
+    }
+
+    /** Cached weight table mapping {@code srcLen} samples to {@code dstLen}. */
+    public static Weights weights(int srcLen, int dstLen, Filter f) {
+        return CACHE.get(srcLen + ">" + dstLen + ":" + f, k -> buildWeights(srcLen, dstLen, f));
+    }
+
+    private static Weights buildWeights(int srcLen, int dstLen, Filter f) {
+        double scale = (double) srcLen / dstLen;
+        double fscale = Math.max(1.0, scale);
+        double support = f.support * fscale;
+        int taps = (int) Math.ceil(support) * 2 + 1;
+        int[] start = new int[dstLen], count = new int[dstLen], w = new int[dstLen * taps];
+        double[] tmp = new double[taps];
+        for (int i = 0; i < dstLen; i++) {
+            double center = (i + 0.5) * scale;
+            int lo = Math.max(0, (int) (center - support + 0.5));
+            int hi = Math.min(srcLen, (int) (center + support + 0.5));
+            int n = Math.min(taps, hi - lo);
+            double sum = 0;
+            for (int k = 0; k < n; k++) {
+                tmp[k] = f.eval((lo + k - center + 0.5) / fscale);
+                sum += tmp[k];
+            }
+            if (sum == 0) { // box filter between samples: nearest neighbour
+                n = 1;
+                lo = Math.min(srcLen - 1, (int) center);
+                tmp[0] = sum = 1;
+            }
+            start[i] = lo;
+            count[i] = n;
+            int total = 0, centre = 0;
+            for (int k = 0; k < n; k++) {
+                w[i * taps + k] = (int) Math.round(tmp[k] / sum * ONE);
+                total += w[i * taps + k];
+                if (tmp[k] > tmp[centre])
+                    centre = k;
+            }
+            w[i * taps + centre] += ONE - total;
+        }
+        return new Weights(start, count, w, taps);
+    }
+
+    // ---------------- passes ----------------
+
+    /** Rows [y0, y1) of {@code src} (width sw) resampled along x into {@code dst} (width = table length). */
+    public static void horizontal(int[] src, int sw, int[] dst, Weights wx, int y0, int y1) {
+        int dw = wx.start.length, taps = wx.taps;
+        int[] start = wx.start, count = wx.count, wt = wx.w;
+        for (int y = y0; y < y1; y++) {
+            int so = y * sw, dOff = y * dw;
+            for (int x = 0; x < dw; x++) {
+                int s = so + start[x], n = count[x], k = x * taps;
+                int a = HALF, r = HALF, g = HALF, b = HALF;
+                for (int t = 0; t < n; t++) {
+                    int p = src[s + t], c = wt[k + t];
+                    a += (p >>> 24) * c;
+                    r += ((p >>> 16) & 0xFF) * c;
+                    g += ((p >>> 8) & 0xFF) * c;
+                    b += (p & 0xFF) * c;
+                }
+                dst[dOff + x] = pack(a, r, g, b);
+            }
+        }
+    }
+
+    /** Output rows [y0, y1) resampled along y from {@code src} (width w) into {@code dst} (same width). */
+    public static void vertical(int[] src, int w, int[] dst, Weights wy, int y0, int y1) {
+        int taps = wy.taps;
+        int[] aa = new int[w], ar = new int[w], ag = new int[w], ab = new int[w];
+        for (int y = y0; y < y1; y++) {
+            Arrays.fill(aa, HALF);
+            Arrays.fill(ar, HALF);
+            Arrays.fill(ag, HALF);
+            Arrays.fill(ab, HALF);
+            int n = wy.count[y], k = y * taps;
+            for (int t = 0; t < n; t++) {
+                int so = (wy.start[y] + t) * w, c = wy.w[k + t];
+                for (int x = 0; x < w; x++) {
+                    int p = src[so + x];
+                    aa[x] += (p >>> 24) * c;
+                    ar[x] += ((p >>> 16) & 0xFF) * c;
+                    ag[x] += ((p >>> 8) & 0xFF) * c;
+                    ab[x] += (p & 0xFF) * c;
+                }
+            }
+            int dOff = y * w;
+            for (int x = 0; x < w; x++)
+                dst[dOff + x] = pack(aa[x], ar[x], ag[x], ab[x]);
+        }
+    }
+
+    /**
+     * Output rows [y0, y1) of a 1/{@code f} box reduction (each output pixel
+     * averages an f x f block; the last row/column may average a partial block).
+     */
+    public static void downsample(int[] src, int sw, int sh, int f, int[] dst, int y0, int y1) {
+        int dw = (sw + f - 1) / f;
+        int[] aa = new int[dw], ar = new int[dw], ag = new int[dw], ab = new int[dw];
+        for (int y = y0; y < y1; y++) {
+            Arrays.fill(aa, 0);
+            Arrays.fill(ar, 0);
+            Arrays.fill(ag, 0);
+            Arrays.fill(ab, 0);
+            int sy0 = y * f, sy1 = Math.min(sh, sy0 + f);
+            for (int sy = sy0; sy < sy1; sy++) {
+                int so = sy * sw;
+                for (int sx = 0; sx < sw; sx++) {
+                    int p = src[so + sx], x = sx / f;
+                    aa[x] += p >>> 24;
+                    ar[x] += (p >>> 16) & 0xFF;
+                    ag[x] += (p >>> 8) & 0xFF;
+                    ab[x] += p & 0xFF;
+                }
+            }
+            int rows = sy1 - sy0, dOff = y * dw;
+            for (int x = 0; x < dw; x++) {
+                int n = rows * (Math.min(sw, (x + 1) * f) - x * f), half = n >> 1;
+                dst[dOff + x] = ((aa[x] + half) / n) << 24 | ((ar[x] + half) / n) << 16
+                        | ((ag[x] + half) / n) << 8 | (ab[x] + half) / n;
+            }
+        }
+    }
+
+    private static int pack(int a, int r, int g, int b) {
+        return clamp8(a >> BITS) << 24 | clamp8(r >> BITS) << 16 | clamp8(g >> BITS) << 8 | clamp8(b >> BITS);
+    }
+
+    private static int clamp8(int v) {
+        return v < 0 ? 0 : (v > 255 ? 255 : v);
+    }
+
+    // ---------------- whole-image helpers (single thread) ----------------
+
+    public static BufferedImage resize(BufferedImage src, int dw, int dh, Filter f) {
+        int sw = src.getWidth(), sh = src.getHeight();
+        int[] px = Tiles.argb(src);
+        int[] tmp = new int[dw * sh], out = new int[dw * dh];
+        horizontal(px, sw, tmp, weights(sw, dw, f), 0, sh);
+        vertical(tmp, dw, out, weights(sh, dh, f), 0, dh);
+        return Tiles.wrapArgb(out, dw, dh);
+    }
+
+    public static BufferedImage downsample(BufferedImage src, int f) {
+        int sw = src.getWidth(), sh = src.getHeight(), dw = (sw + f - 1) / f, dh = (sh + f - 1) / f;
+        int[] px = Tiles.argb(src);
+        int[] out = new int[dw * dh];
+        downsample(px, sw, sh, f, out, 0, dh);
+        return Tiles.wrapArgb(out, dw, dh);
+    }
+
+    /**
+     * Target size for a spec: "WxH" (exact), "W" (long edge, aspect kept), or
+     * "50%". Never returns a zero edge.
+     */
+    public static int[] targetSize(int w, int h, String spec) {
+        String s = spec.trim().toLowerCase();
+        try {
+            if (s.endsWith("%")) {
+                double p = Double.parseDouble(s.substring(0, s.length() - 1)) / 100.0;
+                return new int[] { Math.max(1, (int) Math.round(w * p)), Math.max(1, (int) Math.round(h * p)) };
+            }
+            int x = s.indexOf('x');
+            if (x > 0) {
+                int tw = Integer.parseInt(s.substring(0, x)), th = Integer.parseInt(s.substring(x + 1));
+                if (tw > 0 && th > 0)
+                    return new int[] { tw, th };
+                throw new NumberFormatException();
+            }
+            int edge = Integer.parseInt(s);
+            if (edge <= 0)
+                throw new NumberFormatException();
+            double k = (double) edge / Math.max(w, h);
+            return new int[] { Math.max(1, (int) Math.round(w * k)), Math.max(1, (int) Math.round(h * k)) };
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("size must be WxH, a long edge in px, or N%: " + spec);
+        }
+    }
+}
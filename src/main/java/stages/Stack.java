@@ -0,0 +1,213 @@
+package stages;
+
+import util.ScratchArena;
+
+import java.util.Arrays;
+
+/**
+ * Per-pixel combination of N aligned frames (bursts, brackets).
+ *
+ * - mean: plain average; noise falls with sqrt(N).
+ * - median: robust to outliers (a passing car, a hot pixel in one frame).
+ * - sigma: kappa-sigma clipped mean; samples further than kappa standard
+ * deviations from the mean are dropped and the mean is taken again (up to
+ * three rounds). Mean-like noise, median-like outlier rejection.
+ * - merge: exposure fusion for brackets; each frame is weighted by how well
+ * exposed the pixel is (luma near mid-grey), so highlights come from the dark
+ * frames and shadows from the bright ones. Per pixel, no pyramid blending.
+ *
+ * Inputs are packed 8-bit ARGB, one array per frame with the same layout;
+ * results are written as 16-bit channels, so the precision an average gains
+ * survives to a 16-bit output. Alpha is not combined (output is opaque).
+ */
+public final class Stack {
+
+    /** Past this many frames the median counts a histogram instead of sorting. */
+    private static final int SORT_MAX = 48;
+    /** Spread of the well-exposedness weight (fraction of full scale). */
+    private static final double MERGE_SIGMA = 0.2;
+    private static final float[] MERGE_WEIGHT = new float[256];
+
+    static {
+        for (int l = 0; l < 256; l++) {
+            double d = l / 255.0 - 0.5;
+            MERGE_WEIGHT[l] = (float) (Math.exp(-d * d / (2 * MERGE_SIGMA * MERGE_SIGMA)) + 1e-4);
+        }
+    }
+
+    private Stack() {
+    }
+
+    public enum Mode {
+        MEAN, MEDIAN, SIGMA, MERGE;
+
+        public static Mode parse(String s) {
+            return switch (s.trim().toLowerCase()) {
+                case "mean", "average", "avg" -> MEAN;
+                case "median" -> MEDIAN;
+                case "sigma", "sigma-clip", "clip" -> SIGMA;
+                case "merge", "hdr", "fusion" -> MERGE;
+                default -> throw new IllegalArgumentException("stack mode must be mean | median | sigma [kappa] | merge: " + s);
+            };
+        }
+    }
+
+    /** @param kappa clip distance in standard deviations (sigma mode only) */
+    public record Params(Mode mode, float kappa) {
+
+        /** "mean", "median", "sigma [kappa]" (default 2.5) or "merge". */
+        public static Params parse(String spec) {
+            String[] p = spec.trim().split("\\s+");
+            Mode m = Mode.parse(p[0]);
+            float kappa = 2.5f;
+            if (p.length > 1) {
+                try {
+                    kappa = Float.parseFloat(p[1]);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("bad sigma kappa: " + p[1]);
+                }
+                if (!(kappa > 0))
+                    throw new IllegalArgumentException("sigma kappa must be > 0: " + p[1]);
+            }
+            return new Params(m, kappa);
+        }
+
+        @Override
+        public String toString() {
+            return mode == Mode.SIGMA ? "sigma kappa=" + kappa : mode.name().toLowerCase();
+        }
+    }
+
+    /**
+     * Combine pixels [p0, p1) of {@code frames[0..n)} into the 16-bit planes
+     * {@code r, g, b} at the same indices.
+     */
+    public static void combine(int[][] frames, int n, int p0, int p1, Params p, short[] r, short[] g, short[] b) {
+        switch (p.mode()) {
+            case MEAN -> mean(frames, n, p0, p1, r, g, b);
+            case MEDIAN -> median(frames, n, p0, p1, r, g, b);
+            case SIGMA -> sigma(frames, n, p0, p1, p.kappa(), r, g, b);
+            case MERGE -> merge(frames, n, p0, p1, r, g, b);
+        }
+    }
+
+    /** 16-bit planes back to opaque 8-bit ARGB (round to nearest). */
+    public static void toArgb(short[] r, short[] g, short[] b, int p0, int p1, int[] dst) {
+        for (int i = p0; i < p1; i++)
+            dst[i] = 0xFF000000 | to8(r[i]) << 16 | to8(g[i]) << 8 | to8(b[i]);
+    }
+
+    private static int to8(short v) {
+        return ((v & 0xFFFF) * 255 + 32767) / 65535;
+    }
+
+    // ---------------- modes ----------------
+
+    private static void mean(int[][] f, int n, int p0, int p1, short[] r, short[] g, short[] b) {
+        long half = n / 2;
+        for (int i = p0; i < p1; i++) {
+            long sr = 0, sg = 0, sb = 0;
+            for (int k = 0; k < n; k++) {
+                int c = f[k][i];
+                sr += (c >> 16) & 0xFF;
+                sg += (c >> 8) & 0xFF;
+                sb += c & 0xFF;
+            }
+            r[i] = (short) ((sr * 257 + half) / n);
+            g[i] = (short) ((sg * 257 + half) / n);
+            b[i] = (short) ((sb * 257 + half) / n);
+        }
+    }
+
+    private static void median(int[][] f, int n, int p0, int p1, short[] r, short[] g, short[] b) {
+        int[] v = ScratchArena.get().ints(ScratchArena.PLANE, Math.max(n, 256));
+        for (int i = p0; i < p1; i++) {
+            r[i] = median(f, n, i, 16, v);
+            g[i] = median(f, n, i, 8, v);
+            b[i] = median(f, n, i, 0, v);
+        }
+    }
+
+    /** Median of one channel at pixel {@code i}; an even count averages the middle two. */
+    private static short median(int[][] f, int n, int i, int shift, int[] v) {
+        int lo, hi; // the two middle values (equal for odd n)
+        if (n <= SORT_MAX) {
+            for (int k = 0; k < n; k++)
+                v[k] = (f[k][i] >> shift) & 0xFF;
+            Arrays.sort(v, 0, n);
+            lo = v[(n - 1) / 2];
+            hi = v[n / 2];
+        } else {
+            Arrays.fill(v, 0, 256, 0);
+            for (int k = 0; k < n; k++)
+                v[(f[k][i] >> shift) & 0xFF]++;
+            lo = nth(v, (n - 1) / 2);
+            hi = (n & 1) == 1 ? lo : nth(v, n / 2);
+        }
+        return (short) (((lo + hi) * 257 + 1) / 2);
+    }
+
+    /** Value of rank {@code k} (0-based) in a 256-bin histogram. */
+    private static int nth(int[] hist, int k) {
+        int seen = 0;
+        for (int l = 0; l < 256; l++) {
+            seen += hist[l];
+            if (seen > k)
+                return l;
+        }
+        return 255;
+    }
+
+    private static void sigma(int[][] f, int n, int p0, int p1, float kappa, short[] r, short[] g, short[] b) {
+        for (int i = p0; i < p1; i++) {
+            r[i] = clipped(f, n, i, 16, kappa);
+            g[i] = clipped(f, n, i, 8, kappa);
+            b[i] = clipped(f, n, i, 0, kappa);
+        }
+    }
+
+    /** Kappa-sigma clipped mean of one channel at pixel {@code i}. */
+    private static short clipped(int[][] f, int n, int i, int shift, float kappa) {
+        double lo = 0, hi = 255, mean = 0;
+        for (int round = 0; round < 3; round++) {
+            long s = 0, s2 = 0;
+            int kept = 0;
+            for (int k = 0; k < n; k++) {
+                int x = (f[k][i] >> shift) & 0xFF;
+                if (x >= lo && x <= hi) {
+                    s += x;
+                    s2 += (long) x * x;
+                    kept++;
+                }
+            }
+            if (kept == 0)
+                break; // everything clipped: keep the previous round's mean
+            mean = (double) s / kept;
+            double sd = Math.sqrt(Math.max(0, (double) s2 / kept - mean * mean));
+            double nlo = mean - kappa * sd, nhi = mean + kappa * sd;
+            if (kept < 3 || (nlo <= lo && nhi >= hi))
+                break; // too few samples to judge, or nothing more to clip
+            lo = nlo;
+            hi = nhi;
+        }
+        return (short) Math.round(mean * 257);
+    }
+
+    private static void merge(int[][] f, int n, int p0, int p1, short[] r, short[] g, short[] b) {
+        for (int i = p0; i < p1; i++) {
+            double sw = 0, sr = 0, sg = 0, sb = 0;
+            for (int k = 0; k < n; k++) {
+                int c = f[k][i];
+                int cr = (c >> 16) & 0xFF, cg = (c >> 8) & 0xFF, cb = c & 0xFF;
+                float w = MERGE_WEIGHT[(cr * 77 + cg * 150 + cb * 29) >> 8];
+                sw += w;
+                sr += w * cr;
+                sg += w * cg;
+                sb += w * cb;
+            }
+            r[i] = (short) Math.round(sr / sw * 257);
+            g[i] = (short) Math.round(sg / sw * 257);
+            b[i] = (short) Math.round(sb / sw * 257);
+        }
+    }
+}
@@ -4,8 +4,14 @@ import javax.imageio.IIOException;
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
 
 public final class ArwReader {
     private ArwReader() {
@@ -35,4 +41,107 @@ public final class ArwReader {
             throw new IOException("Failed to read RAW file: " + arwPath + " — " + ioe.getMessage(), ioe);
         }
     }
+
+    // ---------------- embedded thumbnail ----------------
+
+    private static final int TAG_COMPRESSION = 0x103, TAG_STRIP_OFFSETS = 0x111, TAG_STRIP_BYTES = 0x117;
+    private static final int TAG_SUB_IFDS = 0x14A, TAG_JPEG_OFFSET = 0x201, TAG_JPEG_LENGTH = 0x202;
+    private static final int MAX_IFDS = 32;
+
+    /**
+     * The smallest JPEG embedded in a TIFF-structured raw (ARW; DNG/NEF headers
+     * work the same): JPEGInterchangeFormat entries and single-strip JPEG
+     * images in the IFD chain and SubIFDs. Only the IFDs and the chosen JPEG
+     * are read, never the raw data or the large preview. Null if there is none.
+     */
+    public static byte[] thumbnail(Path path) throws IOException {
+        try (FileChannel ch = FileChannel.open(path)) {
+            long size = ch.size();
+            ByteBuffer hdr = read(ch, 0, 8, ByteOrder.LITTLE_ENDIAN);
+            if (hdr.remaining() < 8)
+                return null;
+            ByteOrder order;
+            if (hdr.getShort(0) == 0x4949)
+                order = ByteOrder.LITTLE_ENDIAN; // "II"
+            else if (hdr.getShort(0) == 0x4D4D)
+                order = ByteOrder.BIG_ENDIAN; // "MM"
+            else
+                return null;
+            hdr.order(order);
+            if (hdr.getShort(2) != 42)
+                return null;
+
+            long[] best = { -1, Long.MAX_VALUE }; // offset, length
+            Set<Long> seen = new HashSet<>();
+            ArrayDeque<Long> todo = new ArrayDeque<>();
+            todo.add(hdr.getInt(4) & 0xFFFFFFFFL);
+            while (!todo.isEmpty() && seen.size() < MAX_IFDS) {
+                long ifd = todo.poll();
+                if (ifd < 8 || ifd + 2 > size || !seen.add(ifd))
+                    continue; // null link, out of the file, or a loop
+                int n = read(ch, ifd, 2, order).getShort(0) & 0xFFFF;
+                if (ifd + 2 + n * 12L + 4 > size)
+                    continue;
+                ByteBuffer e = read(ch, ifd + 2, n * 12 + 4, order);
+                long jpegOff = -1, jpegLen = -1, stripOff = -1, stripLen = -1;
+                int compression = 0, strips = 0;
+                for (int i = 0; i < n; i++) {
+                    int at = i * 12, tag = e.getShort(at) & 0xFFFF, type = e.getShort(at + 2) & 0xFFFF;
+                    long count = e.getInt(at + 4) & 0xFFFFFFFFL;
+                    long value = type == 3 ? e.getShort(at + 8) & 0xFFFF : e.getInt(at + 8) & 0xFFFFFFFFL;
+                    switch (tag) {
+                        case TAG_COMPRESSION -> compression = (int) value;
+                        case TAG_JPEG_OFFSET -> jpegOff = value;
+                        case TAG_JPEG_LENGTH -> jpegLen = value;
+                        case TAG_STRIP_OFFSETS -> {
+                            stripOff = value;
+                            strips = (int) count;
+                        }
+                        case TAG_STRIP_BYTES -> stripLen = value;
+                        case TAG_SUB_IFDS -> {
+                            if (count == 1) {
+                                todo.add(value);
+                            } else if (count > 1 && count <= MAX_IFDS) {
+                                ByteBuffer subs = read(ch, value, (int) count * 4, order);
+                                for (int k = 0; k + 4 <= subs.limit(); k += 4)
+                                    todo.add(subs.getInt(k) & 0xFFFFFFFFL);
+                            }
+                        }
+                        default -> {
+                        }
+                    }
+                }
+                consider(ch, size, jpegOff, jpegLen, best);
+                if ((compression == 6 || compression == 7) && strips == 1)
+                    consider(ch, size, stripOff, stripLen, best);
+                todo.add(e.getInt(n * 12) & 0xFFFFFFFFL); // next IFD
+            }
+            if (best[0] < 0)
+                return null;
+            ByteBuffer jpeg = read(ch, best[0], (int) best[1], order);
+            byte[] out = new byte[jpeg.remaining()];
+            jpeg.get(out);
+            return out;
+        }
+    }
+
+    /** Keep (off, len) if it starts with a JPEG SOI marker and is smaller than the best so far. */
+    private static void consider(FileChannel ch, long size, long off, long len, long[] best) throws IOException {
+        if (off <= 0 || len < 4 || off + len > size || len >= best[1] || len > Integer.MAX_VALUE)
+            return;
+        ByteBuffer soi = read(ch, off, 2, ByteOrder.BIG_ENDIAN);
+        if (soi.remaining() == 2 && soi.getShort(0) == (short) 0xFFD8) {
+            best[0] = off;
+            best[1] = len;
+        }
+    }
+
+    /** Up to {@code len} bytes at {@code pos} (fewer at end of file), ready to read. */
+    private static ByteBuffer read(FileChannel ch, long pos, int len, ByteOrder order) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(len).order(order);
+        while (b.hasRemaining())
+            if (ch.read(b, pos + b.position()) < 0)
+                break;
+        return b.flip();
+    }
 }
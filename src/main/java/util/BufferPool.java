@@ -0,0 +1,102 @@
+package util;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shared pool of int[] pixel buffers in size classes (four per power of two,
+ * so a buffer is at most 25% larger than asked for). Tile workers take a
+ * buffer per tile and give it back when the tile is written, so a batch of
+ * frames with the same tiling stops allocating after the first frame.
+ *
+ * Only give back what {@link #acquire} handed out: a released array is reused
+ * by the next caller. Arrays that are not a size class, or that would push the
+ * pool past its cap (-DbufferPoolMB, default 64), are left to the GC.
+ */
+public final class BufferPool {
+
+    private static final int MIN_BITS = 6; // smallest class: 64 ints
+    private static final int CLASSES = (31 - MIN_BITS) * 4 + 1;
+
+    private static final BufferPool SHARED = new BufferPool(Long.getLong("bufferPoolMB", 64) << 20);
+
+    private final ConcurrentLinkedDeque<int[]>[] free;
+    private final long maxBytes;
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder();
+
+    @SuppressWarnings({ "unchecked", "rawtypes" }) // generic array creation
+    public BufferPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+        free = new ConcurrentLinkedDeque[CLASSES];
+        for (int i = 0; i < CLASSES; i++)
+            free[i] = new ConcurrentLinkedDeque<>();
+    }
+
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    /** A buffer of at least {@code len} ints; contents are whatever the last user left. */
+    public int[] acquire(int len) {
+        int c = classOf(len);
+        int[] a = free[c].pollFirst();
+        if (a != null) {
+            pooledBytes.addAndGet(-4L * a.length);
+            hits.increment();
+            return a;
+        }
+        misses.increment();
+        return new int[sizeOf(c)];
+    }
+
+    public void release(int[] a) {
+        if (a == null || a.length < (1 << MIN_BITS))
+            return;
+        int c = classOf(a.length);
+        if (sizeOf(c) != a.length)
+            return; // not one of ours
+        if (pooledBytes.addAndGet(4L * a.length) > maxBytes) {
+            pooledBytes.addAndGet(-4L * a.length);
+            return;
+        }
+        free[c].addFirst(a); // LIFO: the warmest buffer goes out next
+    }
+
+    /** A w x h TYPE_INT_ARGB image over a pooled buffer; give it back with {@link #release(BufferedImage)}. */
+    public BufferedImage image(int w, int h) {
+        return Tiles.wrapArgb(acquire(w * h), w, h);
+    }
+
+    public void release(BufferedImage img) {
+        release(Tiles.data(img));
+    }
+
+    /** "hits/requests" since start, for the Stats line. */
+    public String stats() {
+        long h = hits.sum(), n = h + misses.sum();
+        return h + "/" + n;
+    }
+
+    // ---------------- size classes ----------------
+
+    /** 2^k < len <= 2^(k+1): classes 2^k + m * 2^(k-2), m = 1..4. */
+    static int classOf(int len) {
+        if (len <= (1 << MIN_BITS))
+            return 0;
+        int k = 31 - Integer.numberOfLeadingZeros(len - 1);
+        int quarter = 1 << (k - 2);
+        int m = (len - (1 << k) + quarter - 1) / quarter;
+        return (k - MIN_BITS) * 4 + m;
+    }
+
+    static int sizeOf(int c) {
+        if (c == 0)
+            return 1 << MIN_BITS;
+        int k = (c - 1) / 4 + MIN_BITS, m = (c - 1) % 4 + 1;
+        long size = (1L << k) + ((long) m << (k - 2));
+        return (int) Math.min(Integer.MAX_VALUE - 8, size);
+    }
+}
@@ -0,0 +1,87 @@
+package util;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Cooperative cancellation for one piece of work (a shell edit, a frame), with
+ * an optional deadline. Work calls {@link #checkpoint()} between tiles, row
+ * bands and filter rows; once the token in force is cancelled or past its
+ * deadline that throws {@link CancellationException}, which unwinds to whoever
+ * started the work.
+ *
+ * The token in force is per thread: {@link #bind()} sets it for a block, and
+ * the orchestrator carries the caller's token onto its tile workers. Code that
+ * never binds one runs under {@link #NONE}, where checkpoints cost a
+ * ThreadLocal read.
+ */
+public final class CancelToken {
+
+    /** Never cancelled; what unbound threads run under. */
+    public static final CancelToken NONE = new CancelToken(0);
+
+    private static final ThreadLocal<CancelToken> CURRENT = new ThreadLocal<>();
+
+    private final long deadline; // System.nanoTime(), or 0 for none
+    private volatile String reason; // non-null once cancelled
+
+    private CancelToken(long deadline) {
+        this.deadline = deadline;
+    }
+
+    public static CancelToken create() {
+        return new CancelToken(0);
+    }
+
+    /** Cancels itself {@code ms} from now. */
+    public static CancelToken withDeadline(long ms) {
+        return new CancelToken(System.nanoTime() + Math.max(1, ms) * 1_000_000L);
+    }
+
+    /** Ask the work to stop; the first reason wins. No-op on {@link #NONE}. */
+    public void cancel(String why) {
+        if (this != NONE && reason == null)
+            reason = why;
+    }
+
+    public boolean isCancelled() {
+        return reason != null || (deadline != 0 && System.nanoTime() - deadline > 0);
+    }
+
+    /** Why it was cancelled ("deadline" when it ran out of time), or null. */
+    public String reason() {
+        String r = reason;
+        return r != null ? r : isCancelled() ? "deadline" : null;
+    }
+
+    public void throwIfCancelled() {
+        if (isCancelled())
+            throw new CancellationException(reason());
+    }
+
+    // ---------------- thread binding ----------------
+
+    /** Token in force on this thread ({@link #NONE} if none was bound). */
+    public static CancelToken current() {
+        CancelToken t = CURRENT.get();
+        return t != null ? t : NONE;
+    }
+
+    /** Throw if the token in force on this thread is cancelled. */
+    public static void checkpoint() {
+        CancelToken t = CURRENT.get();
+        if (t != null)
+            t.throwIfCancelled();
+    }
+
+    /** Make this the token in force until the scope closes (then the previous one is back). */
+    public Scope bind() {
+        CancelToken prev = CURRENT.get();
+        CURRENT.set(this);
+        return () -> CURRENT.set(prev);
+    }
+
+    public interface Scope extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
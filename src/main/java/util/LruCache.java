@@ -0,0 +1,47 @@
+package util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Small bounded cache for compiled tables (colour cubes, resample weights):
+ * at most {@code max} entries, least recently used evicted first, so a burst
+ * of new keys during interactive tweaking never drops the entries still in use.
+ *
+ * Values are built outside the lock; if two threads build the same key at once
+ * the first one stored wins and both get it.
+ */
+public final class LruCache<K, V> {
+
+    private final Map<K, V> map;
+
+    public LruCache(int max) {
+        this.map = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > max;
+            }
+        };
+    }
+
+    /** Cached value for {@code key}, built with {@code build} on a miss. */
+    public V get(K key, Function<? super K, ? extends V> build) {
+        synchronized (map) {
+            V v = map.get(key);
+            if (v != null)
+                return v;
+        }
+        V built = build.apply(key);
+        synchronized (map) {
+            V raced = map.putIfAbsent(key, built);
+            return raced != null ? raced : built;
+        }
+    }
+
+    public int size() {
+        synchronized (map) {
+            return map.size();
+        }
+    }
+}
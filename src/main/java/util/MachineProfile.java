@@ -0,0 +1,107 @@
+package util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Small per-machine tuning store (key=value properties file).
+ * Default location is ~/.raw-pipeline/profile.properties; override with
+ * -DprofilePath=/some/file.properties.
+ */
+public final class MachineProfile {
+
+    private static volatile MachineProfile shared;
+
+    private final Path path;
+    private final Properties props = new Properties();
+
+    private MachineProfile(Path path) {
+        this.path = path;
+        if (Files.isRegularFile(path)) {
+            try (InputStream in = Files.newInputStream(path)) {
+                props.load(in);
+            } catch (IOException e) {
+                System.err.println("[Profile] Ignoring unreadable profile " + path + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /** Process-wide profile, loaded on first use. */
+    public static MachineProfile shared() {
+        MachineProfile p = shared;
+        if (p == null) {
+            synchronized (MachineProfile.class) {
+                p = shared;
+                if (p == null) {
+                    String override = System.getProperty("profilePath");
+                    Path file = override != null
+                            ? Paths.get(override)
+                            : Paths.get(System.getProperty("user.home"), ".raw-pipeline", "profile.properties");
+                    p = shared = new MachineProfile(file);
+                }
+            }
+        }
+        return p;
+    }
+
+    public Path path() {
+        return path;
+    }
+
+    public synchronized String get(String key) {
+        return props.getProperty(key);
+    }
+
+    public synchronized int getInt(String key, int def) {
+        String v = props.getProperty(key);
+        if (v == null)
+            return def;
+        try {
+            return Integer.parseInt(v.trim());
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    public synchronized double getDouble(String key, double def) {
+        String v = props.getProperty(key);
+        if (v == null)
+            return def;
+        try {
+            return Double.parseDouble(v.trim());
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    public synchronized void put(String key, String value) {
+        props.setProperty(key, value);
+    }
+
+    /** Write the profile atomically (temp file + rename). Failures are reported, not thrown. */
+    public synchronized void save() {
+        try {
+            Path parent = path.toAbsolutePath().getParent();
+            if (parent != null)
+                Files.createDirectories(parent);
+            Path tmp = Files.createTempFile(parent, "profile", ".tmp");
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                props.store(out, "raw-pipeline machine profile");
+            }
+            try {
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            System.err.println("[Profile] Could not save " + path + ": " + e.getMessage());
+        }
+    }
+}
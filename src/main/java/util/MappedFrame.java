@@ -0,0 +1,151 @@
+package util;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Packed-ARGB frame buffer backed by a memory-mapped file.
+ *
+ * Pixels are addressed with long offsets (y * width + x), so frames are not
+ * limited to 2^31 pixels like BufferedImage/int[]; the OS page cache does the
+ * paging instead of our spill logic, and the pixels put no pressure on the GC.
+ * The file is mapped in chunks of whole rows (each chunk at most 1 GiB).
+ * Reads/writes of disjoint regions are safe from multiple threads.
+ */
+public final class MappedFrame implements Closeable {
+
+    private static final long MAX_CHUNK_BYTES = 1L << 30;
+
+    private final Path file;
+    private final boolean deleteOnClose;
+    private final int width, height;
+    private final int rowsPerChunk;
+    private final IntBuffer[] chunks;
+    private final FileChannel ch;
+
+    private MappedFrame(Path file, int width, int height, boolean deleteOnClose) throws IOException {
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException("bad size " + width + "x" + height);
+        this.file = file;
+        this.width = width;
+        this.height = height;
+        this.deleteOnClose = deleteOnClose;
+        long rowBytes = (long) width * 4L;
+        if (rowBytes > MAX_CHUNK_BYTES)
+            throw new IllegalArgumentException("row too wide: " + width);
+        this.rowsPerChunk = (int) Math.min(height, MAX_CHUNK_BYTES / rowBytes);
+        int n = (height + rowsPerChunk - 1) / rowsPerChunk;
+        this.chunks = new IntBuffer[n];
+        this.ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            for (int i = 0; i < n; i++) {
+                int rows = Math.min(rowsPerChunk, height - i * rowsPerChunk);
+                MappedByteBuffer mb = ch.map(FileChannel.MapMode.READ_WRITE, i * rowsPerChunk * rowBytes,
+                        rows * rowBytes);
+                chunks[i] = mb.order(ByteOrder.nativeOrder()).asIntBuffer();
+            }
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    /** New frame in a temp file that is deleted on close. */
+    public static MappedFrame createTemp(int width, int height) throws IOException {
+        Path f = Files.createTempFile("raw-pipeline-frame", ".argb");
+        f.toFile().deleteOnExit();
+        return new MappedFrame(f, width, height, true);
+    }
+
+    /** Frame backed by {@code file} (created or reused; kept on close). */
+    public static MappedFrame open(Path file, int width, int height) throws IOException {
+        return new MappedFrame(file, width, height, false);
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    public long pixels() {
+        return (long) width * height;
+    }
+
+    /** Linear pixel offset of (x, y). */
+    public long offset(int x, int y) {
+        return (long) y * width + x;
+    }
+
+    /** Copy {@code n} pixels of row {@code y} starting at {@code x} into {@code dst}. */
+    public void getRow(int y, int x, int n, int[] dst, int off) {
+        chunks[y / rowsPerChunk].get((y % rowsPerChunk) * width + x, dst, off, n);
+    }
+
+    /** Copy {@code n} pixels from {@code src} into row {@code y} starting at {@code x}. */
+    public void setRow(int y, int x, int n, int[] src, int off) {
+        chunks[y / rowsPerChunk].put((y % rowsPerChunk) * width + x, src, off, n);
+    }
+
+    /** Read a region as packed ARGB (stride = w). */
+    public int[] read(int x, int y, int w, int h, int[] dst) {
+        if (dst == null || dst.length < w * h)
+            dst = new int[w * h];
+        for (int r = 0; r < h; r++)
+            getRow(y + r, x, w, dst, r * w);
+        return dst;
+    }
+
+    /** Write packed ARGB (stride = w) into a region. */
+    public void write(int x, int y, int w, int h, int[] src) {
+        for (int r = 0; r < h; r++)
+            setRow(y + r, x, w, src, r * w);
+    }
+
+    /** Region as a TYPE_INT_ARGB image (a heap copy of just that region). */
+    public BufferedImage readTile(int x, int y, int w, int h) {
+        return Tiles.wrapArgb(read(x, y, w, h, null), w, h);
+    }
+
+    /** Store a tile image at (x, y). */
+    public void writeTile(BufferedImage tile, int x, int y) {
+        int w = tile.getWidth(), h = tile.getHeight();
+        int[] px = Tiles.data(tile);
+        if (px != null) {
+            write(x, y, w, h, px);
+            return;
+        }
+        int[] row = ScratchArena.get().ints(ScratchArena.ROW, w); // halo-cropped subimage: row by row
+        for (int r = 0; r < h; r++) {
+            Tiles.extractInto(tile, 0, r, w, 1, row);
+            setRow(y + r, x, w, row, 0);
+        }
+    }
+
+    public Path file() {
+        return file;
+    }
+
+    @Override
+    public void close() throws IOException {
+        ch.close();
+        if (deleteOnClose) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ignored) {
+                // still mapped on some platforms; deleteOnExit covers it
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package util;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+/**
+ * 16-bit-per-channel image in planar layout: one unsigned short[] per channel
+ * (R, G, B, A), row-major with stride = width.
+ *
+ * Planes keep the loops over a channel contiguous and branch-free, so the JIT
+ * can vectorise them the same way it does the packed-int 8-bit loops. Read
+ * samples with {@code plane[i] & 0xFFFF}.
+ */
+public final class Planar16 {
+
+    public static final int MAX = 0xFFFF;
+
+    public final int width, height;
+    public final short[] r, g, b, a;
+
+    public Planar16(int width, int height) {
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException("bad size " + width + "x" + height);
+        this.width = width;
+        this.height = height;
+        int n = width * height;
+        r = new short[n];
+        g = new short[n];
+        b = new short[n];
+        a = new short[n];
+    }
+
+    public int pixels() {
+        return width * height;
+    }
+
+    /** Heap bytes for a w x h planar 16-bit image (four 2-byte planes). */
+    public static long estimateBytes(int w, int h) {
+        return (long) w * h * 8L;
+    }
+
+    /**
+     * Keeps 16-bit samples when the image has them (16-bit PNG/TIFF decode to a
+     * ushort raster); 8-bit images are widened with v * 257 so white stays white.
+     */
+    public static Planar16 fromImage(BufferedImage img) {
+        int w = img.getWidth(), h = img.getHeight();
+        Planar16 p = new Planar16(w, h);
+        Raster ras = img.getRaster();
+        if (img.getColorModel() instanceof ComponentColorModel && ras.getTransferType() == DataBuffer.TYPE_USHORT) {
+            int bands = ras.getNumBands();
+            boolean gray = bands <= 2;
+            boolean alpha = img.getColorModel().hasAlpha();
+            int[] row = new int[w];
+            for (int y = 0; y < h; y++) {
+                int o = y * w;
+                ras.getSamples(0, y, w, 1, 0, row);
+                copy(row, p.r, o, w);
+                if (gray) {
+                    System.arraycopy(p.r, o, p.g, o, w);
+                    System.arraycopy(p.r, o, p.b, o, w);
+                } else {
+                    ras.getSamples(0, y, w, 1, 1, row);
+                    copy(row, p.g, o, w);
+                    ras.getSamples(0, y, w, 1, 2, row);
+                    copy(row, p.b, o, w);
+                }
+                if (alpha) {
+                    ras.getSamples(0, y, w, 1, bands - 1, row);
+                    copy(row, p.a, o, w);
+                } else {
+                    java.util.Arrays.fill(p.a, o, o + w, (short) MAX);
+                }
+            }
+            return p;
+        }
+        int[] row = new int[w];
+        for (int y = 0; y < h; y++) {
+            img.getRGB(0, y, w, 1, row, 0, w);
+            p.setArgbRow(y, row, 0);
+        }
+        return p;
+    }
+
+    private static void copy(int[] src, short[] dst, int off, int n) {
+        for (int i = 0; i < n; i++)
+            dst[off + i] = (short) src[i];
+    }
+
+    /** Widen one row of packed 8-bit ARGB into row {@code y}. */
+    public void setArgbRow(int y, int[] argb, int off) {
+        int o = y * width;
+        for (int x = 0; x < width; x++) {
+            int px = argb[off + x];
+            a[o + x] = (short) (((px >>> 24) & 0xFF) * 257);
+            r[o + x] = (short) (((px >>> 16) & 0xFF) * 257);
+            g[o + x] = (short) (((px >>> 8) & 0xFF) * 257);
+            b[o + x] = (short) ((px & 0xFF) * 257);
+        }
+    }
+
+    /** Round one row down to packed 8-bit ARGB (for previews and 8-bit writers). */
+    public void getArgbRow(int y, int[] argb, int off) {
+        int o = y * width;
+        for (int x = 0; x < width; x++) {
+            int A = to8(a[o + x]), R = to8(r[o + x]), G = to8(g[o + x]), B = to8(b[o + x]);
+            argb[off + x] = (A << 24) | (R << 16) | (G << 8) | B;
+        }
+    }
+
+    /** Nearest 8-bit value of a 16-bit sample. */
+    private static int to8(short v) {
+        return ((v & 0xFFFF) * 255 + 32767) / 65535;
+    }
+
+    /** 8-bit ARGB copy, for the preview window and 8-bit encoders. */
+    public BufferedImage toImage8() {
+        int[] px = new int[width * height];
+        for (int y = 0; y < height; y++)
+            getArgbRow(y, px, y * width);
+        return Tiles.wrapArgb(px, width, height);
+    }
+
+    /** 16-bit RGBA image (ushort raster, sRGB) for ImageIO writers such as TIFF. */
+    public BufferedImage toImage16() {
+        ComponentColorModel cm = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB),
+                new int[] { 16, 16, 16, 16 }, true, false, Transparency.TRANSLUCENT, DataBuffer.TYPE_USHORT);
+        WritableRaster wr = cm.createCompatibleWritableRaster(width, height);
+        short[] d = ((DataBufferUShort) wr.getDataBuffer()).getData();
+        for (int i = 0, j = 0, n = pixels(); i < n; i++) {
+            d[j++] = r[i];
+            d[j++] = g[i];
+            d[j++] = b[i];
+            d[j++] = a[i];
+        }
+        return new BufferedImage(cm, wr, false, null);
+    }
+
+    /** Copy one region out as its own image. */
+    public Planar16 extract(int x, int y, int w, int h) {
+        Planar16 t = new Planar16(w, h);
+        for (int yy = 0; yy < h; yy++) {
+            int s = (y + yy) * width + x, d = yy * w;
+            System.arraycopy(r, s, t.r, d, w);
+            System.arraycopy(g, s, t.g, d, w);
+            System.arraycopy(b, s, t.b, d, w);
+            System.arraycopy(a, s, t.a, d, w);
+        }
+        return t;
+    }
+
+    /** Paste {@code tile} with its top-left corner at (x, y). */
+    public void put(Planar16 tile, int x, int y) {
+        int w = tile.width;
+        for (int yy = 0; yy < tile.height; yy++) {
+            int s = yy * w, d = (y + yy) * width + x;
+            System.arraycopy(tile.r, s, r, d, w);
+            System.arraycopy(tile.g, s, g, d, w);
+            System.arraycopy(tile.b, s, b, d, w);
+            System.arraycopy(tile.a, s, a, d, w);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package util;
+
+/**
+ * Per-thread scratch arrays for filter temporaries (a row, a gray plane, an
+ * accumulator), int or float. Each tile worker grows its own slots to the largest tile it
+ * has seen and then reuses them, so temporaries cost nothing per tile.
+ *
+ * A slot's contents are only valid until the same thread asks for that slot
+ * again; nested users take different slots.
+ */
+public final class ScratchArena {
+
+    /** One image row (Tiles copies, row-based filters). */
+    public static final int ROW = 0;
+    /** A whole-tile plane (e.g. the gray image for edge detection). */
+    public static final int PLANE = 1;
+    /** A second tile-sized plane. */
+    public static final int PLANE2 = 2;
+    /** Convolution row ring and accumulators (stages.Convolution). */
+    public static final int WINDOW = 3;
+
+    private static final int SLOTS = 4;
+    private static final ThreadLocal<ScratchArena> LOCAL = ThreadLocal.withInitial(ScratchArena::new);
+
+    private final int[][] ints = new int[SLOTS][];
+    private final float[][] floats = new float[SLOTS][];
+
+    private ScratchArena() {
+    }
+
+    /** The calling thread's arena. */
+    public static ScratchArena get() {
+        return LOCAL.get();
+    }
+
+    /** Slot {@code slot}, at least {@code len} long (contents undefined). */
+    public int[] ints(int slot, int len) {
+        int[] a = ints[slot];
+        if (a == null || a.length < len)
+            a = ints[slot] = new int[len];
+        return a;
+    }
+
+    /** Float slot {@code slot} (separate from the int slot of that number), at least {@code len} long. */
+    public float[] floats(int slot, int len) {
+        float[] a = floats[slot];
+        if (a == null || a.length < len)
+            a = floats[slot] = new float[len];
+        return a;
+    }
+}
@@ -0,0 +1,225 @@
+package util;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read-ahead for spilled tiles. The producer queues each spilled tile in the
+ * order workers will take it; an I/O thread reads the next few into pooled
+ * buffers ahead of time, so a worker usually finds its pixels on the heap
+ * instead of waiting on the disk.
+ *
+ * The staging area is small and bounded (-DspillReadAheadMB, default 32):
+ * tiles spill because the heap is tight. Within that bound the depth adapts:
+ * it aims at (read latency / time between takes) + 1 tiles, so a slow disk
+ * or fast consumers read further ahead, and a fast disk keeps little staged.
+ *
+ * A worker that arrives first reads its tile itself (the I/O thread skips
+ * it); one that arrives mid-read waits for that read instead of repeating it.
+ *
+ * Reads go through {@link SpillStore#loadPixels} on one plain thread rather than an
+ * AsynchronousFileChannel: on Linux and macOS the JDK implements that with a
+ * thread pool doing the same blocking positional reads, and a second channel
+ * would bypass the store's free list and direct staging buffers. One ordered
+ * reader also keeps the depth and the staging bound simple to enforce.
+ */
+public final class SpillReadAhead implements AutoCloseable {
+
+    private static final int QUEUED = 0, READING = 1, READY = 2, TAKEN = 3;
+
+    private static final class Slot {
+        final SpillStore.Handle handle;
+        int state = QUEUED; // guarded by this
+        int[] data;
+        IOException error;
+
+        Slot(SpillStore.Handle handle) {
+            this.handle = handle;
+        }
+    }
+
+    private final SpillStore store;
+    private final int maxDepth;
+    private final Map<SpillStore.Handle, Slot> slots = new ConcurrentHashMap<>();
+    private final LinkedBlockingQueue<Slot> queue = new LinkedBlockingQueue<>();
+    private final Object room = new Object(); // I/O thread waits here for staging room
+    private final Thread io;
+    private final LongAdder hits = new LongAdder(), waits = new LongAdder(), misses = new LongAdder();
+    private int staged; // slots READING or READY; guarded by room
+    private volatile boolean closed;
+    // EWMAs in ms: one read on the I/O thread, the gap between two takes
+    private volatile double readMs = -1, takeGapMs = -1;
+    private volatile long lastTake;
+    private volatile int depth = 2;
+
+    /** @param tileBytes typical spilled tile size, to size the staging area */
+    public SpillReadAhead(SpillStore store, long tileBytes) {
+        this.store = store;
+        long budget = Long.getLong("spillReadAheadMB", 32) << 20;
+        this.maxDepth = (int) Math.max(1, Math.min(64, budget / Math.max(1, tileBytes)));
+        this.depth = Math.min(depth, maxDepth);
+        this.io = new Thread(this::loop, "spill-read-ahead");
+        io.setDaemon(true);
+        io.start();
+    }
+
+    /** Producer: {@code h} will be taken after everything queued before it. */
+    public void enqueue(SpillStore.Handle h) {
+        Slot s = new Slot(h);
+        slots.put(h, s);
+        queue.add(s);
+    }
+
+    /**
+     * Worker: the tile's pixels in a {@link BufferPool} buffer (the caller
+     * releases it); staged if the read-ahead got there first, else read now.
+     */
+    public int[] take(SpillStore.Handle h) throws IOException {
+        noteTake();
+        Slot s = slots.remove(h);
+        if (s == null) {
+            misses.increment();
+            return store.loadPixels(h, BufferPool.shared().acquire(h.w * h.h));
+        }
+        synchronized (s) {
+            if (s.state == QUEUED) {
+                s.state = TAKEN; // ours: the I/O thread will skip it
+                misses.increment();
+            } else {
+                if (s.state == READING) {
+                    waits.increment();
+                    while (s.state == READING) {
+                        try {
+                            s.wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new IOException("interrupted waiting for read-ahead", e);
+                        }
+                    }
+                } else {
+                    hits.increment();
+                }
+                s.state = TAKEN;
+                freeRoom();
+                if (s.error != null)
+                    throw s.error;
+                return s.data;
+            }
+        }
+        return store.loadPixels(h, BufferPool.shared().acquire(h.w * h.h));
+    }
+
+    /** A queued tile will never be taken (its task was dropped): free what was staged for it. */
+    public void discard(SpillStore.Handle h) {
+        Slot s = slots.remove(h);
+        if (s == null)
+            return;
+        synchronized (s) {
+            while (s.state == READING) {
+                try {
+                    s.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (s.state == READY) {
+                BufferPool.shared().release(s.data);
+                freeRoom();
+            }
+            s.state = TAKEN;
+        }
+    }
+
+    /** "read-ahead hits/waits/misses depth=d" for the Stats line. */
+    public String stats() {
+        return String.format("read-ahead=%d/%d/%d depth=%d", hits.sum(), waits.sum(), misses.sum(), depth);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        io.interrupt();
+        try {
+            io.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SpillStore.Handle h : slots.keySet())
+            discard(h);
+    }
+
+    // ---------------- I/O thread ----------------
+
+    private void loop() {
+        try {
+            while (!closed) {
+                Slot s = queue.poll(50, TimeUnit.MILLISECONDS);
+                if (s == null)
+                    continue;
+                synchronized (room) {
+                    while (staged >= depth && !closed)
+                        room.wait(5); // re-check: depth may grow while we wait
+                    if (closed)
+                        return;
+                    staged++;
+                }
+                synchronized (s) {
+                    if (s.state != QUEUED) { // a worker got there first
+                        freeRoom();
+                        continue;
+                    }
+                    s.state = READING;
+                }
+                long t0 = System.nanoTime();
+                int[] data = null;
+                IOException error = null;
+                try {
+                    data = store.loadPixels(s.handle, BufferPool.shared().acquire(s.handle.w * s.handle.h));
+                } catch (IOException e) {
+                    error = e;
+                }
+                readMs = ewma(readMs, (System.nanoTime() - t0) / 1e6);
+                adapt();
+                synchronized (s) {
+                    s.data = data;
+                    s.error = error;
+                    s.state = READY;
+                    s.notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    private void freeRoom() {
+        synchronized (room) {
+            staged--;
+            room.notifyAll();
+        }
+    }
+
+    private void noteTake() {
+        long now = System.nanoTime(), last = lastTake;
+        lastTake = now;
+        if (last != 0)
+            takeGapMs = ewma(takeGapMs, (now - last) / 1e6);
+    }
+
+    /** Enough tiles staged to cover one read at the current take rate, plus one. */
+    private void adapt() {
+        if (readMs < 0 || takeGapMs < 0)
+            return;
+        int want = (int) Math.ceil(readMs / Math.max(0.01, takeGapMs)) + 1;
+        depth = Math.max(1, Math.min(maxDepth, want));
+    }
+
+    private static double ewma(double avg, double sample) {
+        return avg < 0 ? sample : avg * 0.8 + sample * 0.2;
+    }
+}
@@ -2,17 +2,31 @@ package util;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
-import javax.imageio.ImageIO;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
 
 public class SpillStore {
 
     public static final class Handle {
         private final Path path;
         public final int x, y, w, h;
+        public final long offset; // byte offset in the slab file
+        public final int bytesPerPixel; // 4 = packed ARGB, 8 = planar 16-bit
+        private boolean removed; // guarded by the store
 
-        public Handle(Path p, int x, int y, int w, int h) {
+        public Handle(Path p, long offset, int x, int y, int w, int h) {
+            this(p, offset, 4, x, y, w, h);
+        }
+
+        public Handle(Path p, long offset, int bytesPerPixel, int x, int y, int w, int h) {
             this.path = p;
+            this.offset = offset;
+            this.bytesPerPixel = bytesPerPixel;
             this.x = x;
             this.y = y;
             this.w = w;
@@ -22,40 +36,144 @@ public class SpillStore {
         public Path path() {
             return path;
         }
+
+        public long bytes() {
+            return (long) w * h * bytesPerPixel;
+        }
     }
 
     private final Path dir;
+    private final Path slab;
+    private final FileChannel ch;
+    private long end; // slab length in use
+    private final Map<Long, ArrayDeque<Long>> free = new HashMap<>(); // region size -> removed offsets
+    private long reused;
+
+    /** Per-thread direct staging buffer for channel reads and writes. */
+    private static final ThreadLocal<ByteBuffer> SCRATCH = new ThreadLocal<>();
 
     public SpillStore() throws IOException {
         this.dir = Files.createTempDirectory("raw-pipeline-spill");
         this.dir.toFile().deleteOnExit();
+        this.slab = dir.resolve("tiles.argb");
+        this.ch = FileChannel.open(slab, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
     }
 
     /**
-     * Write a tile as PNG to temp. (Simple & portable; you can switch to raw .bin
-     * later for speed.)
+     * Append a tile as raw native-order ARGB to the slab file. No encoding: the
+     * OS page cache decides what actually reaches the disk.
      */
     public Handle spill(BufferedImage tile, int x, int y) throws IOException {
-        Path p = Files.createTempFile(dir, "tile_", ".png");
-        ImageIO.write(tile, "png", p.toFile());
-        return new Handle(p, x, y, tile.getWidth(), tile.getHeight());
+        int w = tile.getWidth(), h = tile.getHeight();
+        int[] px = Tiles.data(tile);
+        return spill(px != null ? px : tile.getRGB(0, 0, w, h, null, 0, w), x, y, w, h);
+    }
+
+    /** Append packed ARGB pixels (stride = w). */
+    public Handle spill(int[] argb, int x, int y, int w, int h) throws IOException {
+        long bytes = (long) w * h * 4L;
+        ByteBuffer buf = scratch(bytes);
+        buf.asIntBuffer().put(argb, 0, w * h);
+        long off = allocate(bytes);
+        write(buf, off);
+        return new Handle(slab, off, x, y, w, h);
+    }
+
+    /** Append a 16-bit planar tile (R, G, B, A planes back to back). */
+    public Handle spill(Planar16 tile, int x, int y) throws IOException {
+        int n = tile.pixels();
+        long bytes = Planar16.estimateBytes(tile.width, tile.height);
+        ByteBuffer buf = scratch(bytes);
+        buf.asShortBuffer().put(tile.r, 0, n).put(tile.g, 0, n).put(tile.b, 0, n).put(tile.a, 0, n);
+        long off = allocate(bytes);
+        write(buf, off);
+        return new Handle(slab, off, 8, x, y, tile.width, tile.height);
+    }
+
+    /** Read a 16-bit planar tile back. */
+    public Planar16 load16(Handle h) throws IOException {
+        Planar16 t = new Planar16(h.w, h.h);
+        int n = t.pixels();
+        read(h).asShortBuffer().get(t.r, 0, n).get(t.g, 0, n).get(t.b, 0, n).get(t.a, 0, n);
+        return t;
     }
 
     /** Read a tile back. */
     public BufferedImage load(Handle h) throws IOException {
-        return ImageIO.read(h.path().toFile());
+        return Tiles.wrapArgb(loadPixels(h), h.w, h.h);
     }
 
-    /** Delete a spilled tile when done. */
-    public void remove(Handle h) {
-        try {
-            Files.deleteIfExists(h.path());
-        } catch (Exception ignored) {
+    /** Read a tile back as packed ARGB (stride = w). */
+    public int[] loadPixels(Handle h) throws IOException {
+        return loadPixels(h, new int[h.w * h.h]);
+    }
+
+    /** Same into {@code dst} (at least w*h long, e.g. from {@link BufferPool}). */
+    public int[] loadPixels(Handle h, int[] dst) throws IOException {
+        read(h).asIntBuffer().get(dst, 0, h.w * h.h);
+        return dst;
+    }
+
+    /** A spilled tile is done with: its slab region goes to the next spill of the same size. */
+    public synchronized void remove(Handle h) {
+        if (h.removed)
+            return;
+        h.removed = true;
+        free.computeIfAbsent(h.bytes(), k -> new ArrayDeque<>()).push(h.offset);
+    }
+
+    /** Slab bytes in use and how many spills reused a removed region. */
+    public synchronized String stats() {
+        return String.format("slab=%.1f MB reused=%d", end / 1e6, reused);
+    }
+
+    /** A removed region of exactly this size, else the end of the slab. */
+    private synchronized long allocate(long bytes) {
+        ArrayDeque<Long> q = free.get(bytes);
+        if (q != null && !q.isEmpty()) {
+            reused++;
+            return q.pop();
+        }
+        long off = end;
+        end += bytes;
+        return off;
+    }
+
+    private void write(ByteBuffer buf, long off) throws IOException {
+        while (buf.hasRemaining())
+            off += ch.write(buf, off);
+    }
+
+    private ByteBuffer read(Handle h) throws IOException {
+        ByteBuffer buf = scratch(h.bytes());
+        long off = h.offset;
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, off);
+            if (n < 0)
+                throw new IOException("spill slab truncated at " + off);
+            off += n;
+        }
+        return buf.flip();
+    }
+
+    /** This thread's staging buffer, cleared and limited to {@code bytes}. */
+    private static ByteBuffer scratch(long bytes) {
+        ByteBuffer buf = SCRATCH.get();
+        if (buf == null || buf.capacity() < bytes) {
+            buf = ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder());
+            SCRATCH.set(buf);
         }
+        buf.clear().limit((int) bytes);
+        return buf;
     }
 
     /** Clean up entire spill dir (optional). */
     public void cleanup() {
+        try {
+            ch.close();
+        } catch (Exception ignored) {
+        }
         try (var s = Files.newDirectoryStream(dir)) {
             for (Path p : s)
                 try {
@@ -0,0 +1,55 @@
+package util;
+
+import java.awt.image.BufferedImage;
+
+/** Deterministic synthetic frames for calibration and warm-up. */
+public final class Synthetic {
+    private Synthetic() {
+    }
+
+    /** Horizontal red ramp, vertical green ramp, blue = xor pattern + LCG noise. */
+    public static BufferedImage gradientNoise(int w, int h) {
+        BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        int[] row = new int[w];
+        int seed = 12345;
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                seed = seed * 1103515245 + 12345;
+                int n = (seed >>> 24) & 0x3F;
+                int r = (x * 255 / Math.max(1, w - 1));
+                int g = (y * 255 / Math.max(1, h - 1));
+                int b = Math.min(255, ((x ^ y) & 0xFF) / 2 + n);
+                row[x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+            img.setRGB(0, y, w, 1, row, 0, w);
+        }
+        return img;
+    }
+
+    /** Uniform LCG noise in every channel (worst case for LUTs and denoisers). */
+    public static BufferedImage noise(int w, int h, int seed) {
+        int[] px = new int[w * h];
+        for (int i = 0; i < px.length; i++) {
+            seed = seed * 1103515245 + 12345;
+            px[i] = 0xFF000000 | (seed >>> 8);
+        }
+        return Tiles.wrapArgb(px, w, h);
+    }
+
+    /** Hard edges: 8px checkerboard, a thin diagonal line, and a black/white step every 37 columns. */
+    public static BufferedImage edges(int w, int h) {
+        int[] px = new int[w * h];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int v = ((x >> 3) + (y >> 3)) % 2 == 0 ? 40 : 215;
+                if ((x / 37) % 2 == 1)
+                    v = 255 - v;
+                int p = 0xFF000000 | v << 16 | v << 8 | v;
+                if (Math.abs(x - y) <= 1)
+                    p = 0xFFFF2000; // saturated, so colour ops see a clipped channel
+                px[y * w + x] = p;
+            }
+        }
+        return Tiles.wrapArgb(px, w, h);
+    }
+}
@@ -1,6 +1,11 @@
 package util;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -14,23 +19,95 @@ public class Tiles {
         for (int y = 0; y < H; y += th) {
             for (int x = 0; x < W; x += tw) {
                 int w = Math.min(tw, W - x), h = Math.min(th, H - y);
-                BufferedImage sub = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
-                int[] row = new int[w];
-                for (int yy = 0; yy < h; yy++) {
-                    src.getRGB(x, y + yy, w, 1, row, 0, w);
-                    sub.setRGB(0, yy, w, 1, row, 0, w);
-                }
-                tiles.add(new Tile(sub, x, y));
+                tiles.add(new Tile(extract(src, x, y, w, h), x, y));
             }
         }
         return tiles;
     }
 
+    /** Copy one region out of {@code src} as its own TYPE_INT_ARGB image. */
+    public static BufferedImage extract(BufferedImage src, int x, int y, int w, int h) {
+        int[] px = new int[w * h];
+        extractInto(src, x, y, w, h, px);
+        return wrapArgb(px, w, h);
+    }
+
+    /** Copy one region of {@code src} into {@code dst} (stride = w). */
+    public static void extractInto(BufferedImage src, int x, int y, int w, int h, int[] dst) {
+        int[] s = packed(src);
+        if (s != null) {
+            int stride = stride(src), o = offset(src, x, y);
+            for (int yy = 0; yy < h; yy++)
+                System.arraycopy(s, o + yy * stride, dst, yy * w, w);
+            return;
+        }
+        for (int yy = 0; yy < h; yy++)
+            src.getRGB(x, y + yy, w, 1, dst, yy * w, w);
+    }
+
+    /** Paste {@code tile} into {@code dst} at (dx, dy); row copies between the rasters, no temporaries. */
     public static void copy(BufferedImage tile, BufferedImage dst, int dx, int dy) {
-        int[] row = new int[tile.getWidth()];
-        for (int y = 0; y < tile.getHeight(); y++) {
-            tile.getRGB(0, y, row.length, 1, row, 0, row.length);
-            dst.setRGB(dx, dy + y, row.length, 1, row, 0, row.length);
+        int w = tile.getWidth(), h = tile.getHeight();
+        int[] s = packed(tile), d = packed(dst);
+        if (s != null && d != null) {
+            int ss = stride(tile), so = offset(tile, 0, 0), ds = stride(dst), dOff = offset(dst, dx, dy);
+            for (int y = 0; y < h; y++)
+                System.arraycopy(s, so + y * ss, d, dOff + y * ds, w);
+            return;
         }
+        int[] row = ScratchArena.get().ints(ScratchArena.ROW, w);
+        for (int y = 0; y < h; y++) {
+            tile.getRGB(0, y, w, 1, row, 0, w);
+            dst.setRGB(dx, dy + y, w, 1, row, 0, w);
+        }
+    }
+
+    /**
+     * Backing array of a TYPE_INT_ARGB image laid out as {@link #wrapArgb}
+     * makes it (offset 0, stride = width; the array may be longer), else null.
+     */
+    public static int[] data(BufferedImage img) {
+        int[] d = packed(img);
+        return d != null && offset(img, 0, 0) == 0 && stride(img) == img.getWidth() ? d : null;
+    }
+
+    /** Backing array of any single-bank packed TYPE_INT_ARGB raster (subimages included), else null. */
+    private static int[] packed(BufferedImage img) {
+        WritableRaster r = img.getRaster();
+        if (img.getType() == BufferedImage.TYPE_INT_ARGB && r.getDataBuffer() instanceof DataBufferInt db
+                && db.getNumBanks() == 1 && r.getSampleModel() instanceof SinglePixelPackedSampleModel)
+            return db.getData();
+        return null;
+    }
+
+    private static int stride(BufferedImage img) {
+        return ((SinglePixelPackedSampleModel) img.getRaster().getSampleModel()).getScanlineStride();
+    }
+
+    /** Array index of pixel (x, y) of a {@link #packed} image. */
+    private static int offset(BufferedImage img, int x, int y) {
+        WritableRaster r = img.getRaster();
+        return r.getDataBuffer().getOffset() + (y - r.getSampleModelTranslateY()) * stride(img)
+                + (x - r.getSampleModelTranslateX());
+    }
+
+    /**
+     * Packed ARGB pixels of {@code img}: its own int[] when it is a plain
+     * TYPE_INT_ARGB raster of exactly w*h pixels (callers must treat it as
+     * read-only), else a copy.
+     */
+    public static int[] argb(BufferedImage img) {
+        int w = img.getWidth(), h = img.getHeight();
+        int[] d = data(img);
+        if (d != null && d.length == w * h)
+            return d;
+        return img.getRGB(0, 0, w, h, null, 0, w);
+    }
+
+    /** View packed ARGB pixels (stride = w) as a TYPE_INT_ARGB image without copying. */
+    public static BufferedImage wrapArgb(int[] data, int w, int h) {
+        WritableRaster wr = Raster.createPackedRaster(new DataBufferInt(data, w * h), w, h, w,
+                new int[] { 0x00FF0000, 0x0000FF00, 0x000000FF, 0xFF000000 }, null);
+        return new BufferedImage(ColorModel.getRGBdefault(), wr, false, null);
     }
 }